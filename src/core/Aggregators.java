@@ -65,12 +65,36 @@ public final class Aggregators {
    * if timestamps don't line up instead of interpolating. */
   public static final Aggregator MIMMAX = new Max(
       Interpolation.MIN, "mimmax");
-  
+
+  /** Aggregator that returns the estimated median of the data points. */
+  public static final Aggregator P50 = new Percentile(
+      Interpolation.LERP, "p50", 0.5);
+
+  /** Aggregator that returns the estimated 75th percentile. */
+  public static final Aggregator P75 = new Percentile(
+      Interpolation.LERP, "p75", 0.75);
+
+  /** Aggregator that returns the estimated 90th percentile. */
+  public static final Aggregator P90 = new Percentile(
+      Interpolation.LERP, "p90", 0.9);
+
+  /** Aggregator that returns the estimated 95th percentile. */
+  public static final Aggregator P95 = new Percentile(
+      Interpolation.LERP, "p95", 0.95);
+
+  /** Aggregator that returns the estimated 99th percentile. */
+  public static final Aggregator P99 = new Percentile(
+      Interpolation.LERP, "p99", 0.99);
+
+  /** Aggregator that returns the estimated 99.9th percentile. */
+  public static final Aggregator P999 = new Percentile(
+      Interpolation.LERP, "p999", 0.999);
+
   /** Maps an aggregator name to its instance. */
   private static final HashMap<String, Aggregator> aggregators;
 
   static {
-    aggregators = new HashMap<String, Aggregator>(8);
+    aggregators = new HashMap<String, Aggregator>(20);
     aggregators.put("sum", SUM);
     aggregators.put("min", MIN);
     aggregators.put("max", MAX);
@@ -79,6 +103,12 @@ public final class Aggregators {
     aggregators.put("zimsum", ZIMSUM);
     aggregators.put("mimmin", MIMMIN);
     aggregators.put("mimmax", MIMMAX);
+    aggregators.put("p50", P50);
+    aggregators.put("p75", P75);
+    aggregators.put("p90", P90);
+    aggregators.put("p95", P95);
+    aggregators.put("p99", P99);
+    aggregators.put("p999", P999);
   }
 
   private Aggregators() {
@@ -106,7 +136,7 @@ public final class Aggregators {
     throw new NoSuchElementException("No such aggregator: " + name);
   }
 
-  private static final class Sum implements Aggregator {
+  private static final class Sum implements Aggregator.Bulk {
     private final Interpolation method;
     private final String name;
     
@@ -131,6 +161,26 @@ public final class Aggregators {
       return result;
     }
 
+    public long runLongs(final long[] values, final int offset,
+                         final int length) {
+      final int end = offset + length;
+      long result = values[offset];
+      for (int i = offset + 1; i < end; i++) {
+        result += values[i];
+      }
+      return result;
+    }
+
+    public double runDoubles(final double[] values, final int offset,
+                             final int length) {
+      final int end = offset + length;
+      double result = values[offset];
+      for (int i = offset + 1; i < end; i++) {
+        result += values[i];
+      }
+      return result;
+    }
+
     public String toString() {
       return name;
     }
@@ -141,7 +191,7 @@ public final class Aggregators {
     
   }
 
-  private static final class Min implements Aggregator {
+  private static final class Min implements Aggregator.Bulk {
     private final Interpolation method;
     private final String name;
     
@@ -172,6 +222,30 @@ public final class Aggregators {
       return min;
     }
 
+    public long runLongs(final long[] values, final int offset,
+                         final int length) {
+      final int end = offset + length;
+      long min = values[offset];
+      for (int i = offset + 1; i < end; i++) {
+        if (values[i] < min) {
+          min = values[i];
+        }
+      }
+      return min;
+    }
+
+    public double runDoubles(final double[] values, final int offset,
+                             final int length) {
+      final int end = offset + length;
+      double min = values[offset];
+      for (int i = offset + 1; i < end; i++) {
+        if (values[i] < min) {
+          min = values[i];
+        }
+      }
+      return min;
+    }
+
     public String toString() {
       return name;
     }
@@ -182,7 +256,7 @@ public final class Aggregators {
     
   }
 
-  private static final class Max implements Aggregator {
+  private static final class Max implements Aggregator.Bulk {
     private final Interpolation method;
     private final String name;
     
@@ -213,6 +287,30 @@ public final class Aggregators {
       return max;
     }
 
+    public long runLongs(final long[] values, final int offset,
+                         final int length) {
+      final int end = offset + length;
+      long max = values[offset];
+      for (int i = offset + 1; i < end; i++) {
+        if (values[i] > max) {
+          max = values[i];
+        }
+      }
+      return max;
+    }
+
+    public double runDoubles(final double[] values, final int offset,
+                             final int length) {
+      final int end = offset + length;
+      double max = values[offset];
+      for (int i = offset + 1; i < end; i++) {
+        if (values[i] > max) {
+          max = values[i];
+        }
+      }
+      return max;
+    }
+
     public String toString() {
       return name;
     }
@@ -223,7 +321,7 @@ public final class Aggregators {
     
   }
 
-  private static final class Avg implements Aggregator {
+  private static final class Avg implements Aggregator.Bulk {
     private final Interpolation method;
     private final String name;
     
@@ -252,6 +350,26 @@ public final class Aggregators {
       return result / n;
     }
 
+    public long runLongs(final long[] values, final int offset,
+                         final int length) {
+      final int end = offset + length;
+      long result = values[offset];
+      for (int i = offset + 1; i < end; i++) {
+        result += values[i];
+      }
+      return result / length;
+    }
+
+    public double runDoubles(final double[] values, final int offset,
+                             final int length) {
+      final int end = offset + length;
+      double result = values[offset];
+      for (int i = offset + 1; i < end; i++) {
+        result += values[i];
+      }
+      return result / length;
+    }
+
     public String toString() {
       return name;
     }
@@ -271,7 +389,7 @@ public final class Aggregators {
    * paper by B.  P. Welford and is presented in Donald Knuth's Art of
    * Computer Programming, Vol 2, page 232, 3rd edition
    */
-  private static final class StdDev implements Aggregator {
+  private static final class StdDev implements Aggregator.Bulk {
     private final Interpolation method;
     private final String name;
     
@@ -322,6 +440,44 @@ public final class Aggregators {
       return Math.sqrt(variance / (n - 1));
     }
 
+    public long runLongs(final long[] values, final int offset,
+                         final int length) {
+      if (length == 1) {
+        return 0;
+      }
+      final int end = offset + length;
+      double old_mean = values[offset];
+      long n = 2;
+      double variance = 0;
+      for (int i = offset + 1; i < end; i++) {
+        final double x = values[i];
+        final double new_mean = old_mean + (x - old_mean) / n;
+        variance += (x - old_mean) * (x - new_mean);
+        old_mean = new_mean;
+        n++;
+      }
+      return (long) Math.sqrt(variance / (n - 1));
+    }
+
+    public double runDoubles(final double[] values, final int offset,
+                             final int length) {
+      if (length == 1) {
+        return 0;
+      }
+      final int end = offset + length;
+      double old_mean = values[offset];
+      long n = 2;
+      double variance = 0;
+      for (int i = offset + 1; i < end; i++) {
+        final double x = values[i];
+        final double new_mean = old_mean + (x - old_mean) / n;
+        variance += (x - old_mean) * (x - new_mean);
+        old_mean = new_mean;
+        n++;
+      }
+      return Math.sqrt(variance / (n - 1));
+    }
+
     public String toString() {
       return name;
     }
@@ -332,4 +488,74 @@ public final class Aggregators {
     
   }
 
+  /**
+   * Percentile aggregator.
+   * The values are added to a {@link QuantileSketch} rather than sorted, so
+   * the percentile is estimated within {@link QuantileSketch#RELATIVE_ACCURACY}
+   * of its value.  Rollups keep the sketch of their data points, which lets
+   * the percentiles of long intervals be computed from them.
+   */
+  static final class Percentile implements Aggregator.Bulk {
+    private final Interpolation method;
+    private final String name;
+    private final double quantile;
+
+    public Percentile(final Interpolation method, final String name,
+                      final double quantile) {
+      this.method = method;
+      this.name = name;
+      this.quantile = quantile;
+    }
+
+    /** @return the quantile computed, between 0 and 1 */
+    double quantile() {
+      return quantile;
+    }
+
+    public long runLong(final Longs values) {
+      final QuantileSketch sketch = new QuantileSketch();
+      do {
+        sketch.add(values.nextLongValue());
+      } while (values.hasNextValue());
+      return Math.round(sketch.quantile(quantile));
+    }
+
+    public double runDouble(final Doubles values) {
+      final QuantileSketch sketch = new QuantileSketch();
+      do {
+        sketch.add(values.nextDoubleValue());
+      } while (values.hasNextValue());
+      return sketch.quantile(quantile);
+    }
+
+    public long runLongs(final long[] values, final int offset,
+                         final int length) {
+      final QuantileSketch sketch = new QuantileSketch();
+      final int end = offset + length;
+      for (int i = offset; i < end; i++) {
+        sketch.add(values[i]);
+      }
+      return Math.round(sketch.quantile(quantile));
+    }
+
+    public double runDoubles(final double[] values, final int offset,
+                             final int length) {
+      final QuantileSketch sketch = new QuantileSketch();
+      final int end = offset + length;
+      for (int i = offset; i < end; i++) {
+        sketch.add(values[i]);
+      }
+      return sketch.quantile(quantile);
+    }
+
+    public String toString() {
+      return name;
+    }
+
+    public Interpolation interpolationMethod() {
+      return method;
+    }
+
+  }
+
 }
@@ -21,6 +21,7 @@ import java.util.Map;
 import com.stumbleupon.async.Deferred;
 
 import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
 
 import net.opentsdb.meta.Annotation;
 
@@ -29,6 +30,10 @@ import net.opentsdb.meta.Annotation;
  * {@code flushNow} is called. This ensures that true batch dynamics can be leveraged. This
  * implementation will allow an entire hours worth of data to be written in a single transaction to
  * the data table.
+ * <p>
+ * Data points don't have to be added in order. They are kept sorted by timestamp in primitive
+ * arrays, which is cheap for the common case of points arriving mostly in order since those are
+ * simply appended. The compacted cell is only encoded when the batch is persisted.
  */
 final class BatchedDataPoints implements WritableDataPoints {
 
@@ -37,6 +42,11 @@ final class BatchedDataPoints implements WritableDataPoints {
 	 */
 	private final TSDB tsdb;
 
+	/**
+	 * The index of last data points of the TSDB, or {@code null} if it has none.
+	 */
+	private final LastPointIndex last_points;
+
 	/**
 	 * The row key. 3 bytes for the metric name, 4 bytes for the base timestamp, 6 bytes per tag (3
 	 * for the name, 3 for the value).
@@ -44,34 +54,36 @@ final class BatchedDataPoints implements WritableDataPoints {
 	private byte[] rowKey;
 
 	/**
-	 * Track the last timestamp written for this series.
+	 * Number of data points in this row.
 	 */
-	private long lastTimestamp;
+	private int size = 0;
 
 	/**
-	 * Number of data points in this row.
+	 * Initial number of data points we make room for. The buffers grow on demand so that a
+	 * sparse series doesn't pay for a full hour of second resolution data.
 	 */
-	private short size = 0;
+	private static final int INITIAL_CAPACITY = 32;
 
 	/**
-	 * Storage of the compacted qualifier.
+	 * Rough estimate, in bytes, of the fixed cost of an instance (object headers, fields).
 	 */
-	private byte[] batchedQualifier = new byte[Const.MAX_TIMESPAN * 4];
+	private static final int OVERHEAD = 96;
 
 	/**
-	 * Storage of the compacted value.
+	 * Timestamps of the data points as they were given to us, in seconds or milliseconds, sorted
+	 * in increasing order.
 	 */
-	private byte[] batchedValue = new byte[Const.MAX_TIMESPAN * 8];
+	private long[] timestamps = new long[INITIAL_CAPACITY];
 
 	/**
-	 * Track the index position where the next qualifier gets written.
+	 * Values of the data points. Floating point values are stored as their raw int bits.
 	 */
-	private int qualifierIndex = 0;
+	private long[] values = new long[INITIAL_CAPACITY];
 
 	/**
-	 * Track the index position where the next value gets written.
+	 * Qualifier flags of the data points (size and type of the value).
 	 */
-	private int valueIndex = 0;
+	private byte[] flags = new byte[INITIAL_CAPACITY];
 
 	/**
 	 * Track the base time for this batch of points.
@@ -85,9 +97,24 @@ final class BatchedDataPoints implements WritableDataPoints {
 	 */
 	BatchedDataPoints(final TSDB tsdb, final String metric, final Map<String, String> tags) {
 		this.tsdb = tsdb;
+		this.last_points = tsdb.getLastPointIndex();
 		setSeries(metric, tags);
 	}
 
+	/**
+	 * Constructor for a series whose UIDs have already been resolved.
+	 *
+	 * @param tsdb The TSDB we belong to.
+	 * @param row A row key template as returned by {@link IncomingDataPoints#rowKeyTemplate}. The
+	 * array is owned by this instance from now on.
+	 */
+	BatchedDataPoints(final TSDB tsdb, final byte[] row) {
+		this.tsdb = tsdb;
+		this.last_points = tsdb.getLastPointIndex();
+		this.rowKey = row;
+		reset();
+	}
+
 	/**
 	 * Sets the metric name and tags of this batch. This method only need be called if there is a
 	 * desire to reuse the data structure after the data has been flushed. This will reset all
@@ -114,10 +141,7 @@ final class BatchedDataPoints implements WritableDataPoints {
 
 	private void reset() {
 		size = 0;
-		qualifierIndex = 0;
-		valueIndex = 0;
 		baseTime = Long.MIN_VALUE;
-		lastTimestamp = Long.MIN_VALUE;
 	}
 
 	/**
@@ -129,11 +153,81 @@ final class BatchedDataPoints implements WritableDataPoints {
 	 */
 	@Override
 	public Deferred<Object> persist() {
-		final byte[] q = Arrays.copyOfRange(batchedQualifier, 0, qualifierIndex);
-		final byte[] v = Arrays.copyOfRange(batchedValue, 0, valueIndex);
-		final byte[] r = Arrays.copyOfRange(rowKey, 0, rowKey.length);
+		if (size == 0) {
+			return Deferred.fromResult(null);
+		}
+		final KeyValue cell = toKeyValue();
+		final long base_time = baseTime;
 		reset();
-		return tsdb.put(r, q, v);
+		tsdb.invalidateCachedRow(cell.key());
+		if (tsdb.getRollups() != null) {
+			// Batches aren't compacted, but the compaction queue reads the row back to roll it up.
+			tsdb.scheduleForCompaction(cell.key(), (int) base_time);
+		}
+		return tsdb.invalidateCachedRowWhenWritten(cell.key(),
+				tsdb.put(cell.key(), cell.qualifier(), cell.value()));
+	}
+
+	/**
+	 * Encodes the data points into the compacted cell {@link #persist} writes, without resetting
+	 * this batch, so that queries can read the data points that weren't written yet.
+	 *
+	 * @return The cell, in a copy of the row key.
+	 */
+	KeyValue toKeyValue() {
+		final byte[] r = Arrays.copyOfRange(rowKey, 0, rowKey.length);
+
+		// Size the cell exactly, then encode every data point straight into it.
+		int qual_len = 0;
+		// A lone data point is written like any other single data point, otherwise reserve an
+		// extra byte for meta-data like the CompactionQueue does.
+		int val_len = size == 1 ? 0 : 1;
+		boolean ms_in_row = false;
+		boolean s_in_row = false;
+		for (int i = 0; i < size; i++) {
+			final boolean ms = (timestamps[i] & Const.SECOND_MASK) != 0;
+			ms_in_row |= ms;
+			s_in_row |= !ms;
+			qual_len += ms ? 4 : 2;
+			val_len += (flags[i] & Const.LENGTH_MASK) + 1;
+		}
+		final byte[] q = new byte[qual_len];
+		final byte[] v = new byte[val_len];
+		int q_off = 0;
+		int v_off = 0;
+		for (int i = 0; i < size; i++) {
+			q_off += Internal.writeQualifier(q, q_off, timestamps[i], flags[i]);
+			v_off += Internal.writeValue(v, v_off, values[i], flags[i]);
+		}
+		// Set the meta flag in the values if we have a mix of seconds and ms, otherwise we just
+		// leave them alone.
+		if (ms_in_row && s_in_row) {
+			v[v.length - 1] |= Const.MS_MIXED_COMPACT;
+		}
+		return new KeyValue(r, TSDB.FAMILY, q, v);
+	}
+
+	/**
+	 * Returns an estimate of the heap used by this batch, in bytes. This accounts for the
+	 * capacity of the buffers, not just the part of them currently in use.
+	 */
+	int memoryUsage() {
+		return OVERHEAD + rowKey.length + timestamps.length * 9 + values.length * 8;
+	}
+
+	/**
+	 * Returns the base time of the row this batch is for, in seconds, or {@link Long#MIN_VALUE}
+	 * if no data point was added since the batch was created or last persisted.
+	 */
+	long baseTime() {
+		return baseTime;
+	}
+
+	/**
+	 * Returns the row key of this batch. Only meaningful once a data point has been added.
+	 */
+	byte[] rowKey() {
+		return rowKey;
 	}
 
 	@Override
@@ -148,60 +242,71 @@ final class BatchedDataPoints implements WritableDataPoints {
 
 	@Override
 	public Deferred<Object> addPoint(final long timestamp, final long value) {
-		final byte[] v;
+		addLong(timestamp, value);
+		return Deferred.fromResult((Object) null);
+	}
+
+	@Override
+	public Deferred<Object> addPoint(final long timestamp, final float value) {
+		addFloat(timestamp, value);
+		return Deferred.fromResult((Object) null);
+	}
+
+	/**
+	 * Same as {@link #addPoint(long, long)} without the deferred, so that adding a data point
+	 * doesn't allocate anything unless the buffers have to grow.
+	 */
+	void addLong(final long timestamp, final long value) {
+		final short flags;
 		if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
-			v = new byte[] {(byte) value};
+			flags = 0;
 		}
 		else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
-			v = Bytes.fromShort((short) value);
+			flags = 1;
 		}
 		else if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
-			v = Bytes.fromInt((int) value);
+			flags = 3;
 		}
 		else {
-			v = Bytes.fromLong(value);
+			flags = 7;
 		}
-		final short flags = (short) (v.length - 1);  // Just the length.
-		return addPointInternal(timestamp, v, flags);
+		addPointInternal(timestamp, value, flags);
 	}
 
-	@Override
-	public Deferred<Object> addPoint(final long timestamp, final float value) {
+	/**
+	 * Same as {@link #addPoint(long, float)} without the deferred, so that adding a data point
+	 * doesn't allocate anything unless the buffers have to grow.
+	 */
+	void addFloat(final long timestamp, final float value) {
 		if (Float.isNaN(value) || Float.isInfinite(value)) {
 			throw new IllegalArgumentException("value is NaN or Infinite: " + value
 					+ " for timestamp=" + timestamp);
 		}
 		final short flags = Const.FLAG_FLOAT | 0x3;  // A float stored on 4 bytes.
-		return addPointInternal(timestamp, Bytes.fromInt(Float.floatToRawIntBits(value)), flags);
+		addPointInternal(timestamp, Float.floatToRawIntBits(value), flags);
 	}
 
 	/**
 	 * Implements {@link #addPoint} by storing a value with a specific flag.
 	 *
 	 * @param timestamp The timestamp to associate with the value.
-	 * @param value The value to store.
+	 * @param value The value to store, the raw int bits in the case of a float.
 	 * @param flags Flags to store in the qualifier (size and type of the data point).
+	 * @throws IllegalArgumentException if the timestamp is invalid or if there's already a data
+	 * point at this timestamp.
+	 * @throws IllegalDataException if the timestamp doesn't belong to the hour of this batch.
 	 */
-	private Deferred<Object> addPointInternal(final long timestamp, final byte[] value, final short flags)
-			throws IllegalDataException {
+	private void addPointInternal(final long timestamp, final long value,
+			final short flags) throws IllegalDataException {
 		final boolean ms_timestamp = (timestamp & Const.SECOND_MASK) != 0;
 
 		// we only accept unix epoch timestamps in seconds or milliseconds
 		if (timestamp < 0 || (ms_timestamp && timestamp > 9999999999999L)) {
 			throw new IllegalArgumentException((timestamp < 0 ? "negative " : "bad")
 					+ " timestamp=" + timestamp
-					+ " when trying to add value=" + Arrays.toString(value) + " to " + this);
+					+ " when trying to add value=" + value + " to row=" + Arrays.toString(rowKey));
 		}
 
-		// always maintain lastTimestamp in milliseconds
-		if ((ms_timestamp ? timestamp : timestamp * 1000) <= lastTimestamp) {
-			throw new IllegalArgumentException("New timestamp=" + timestamp
-					+ " is less than or equal to previous=" + lastTimestamp
-					+ " when trying to add value=" + Arrays.toString(value)
-					+ " to " + this);
-		}
-		lastTimestamp = (ms_timestamp ? timestamp : timestamp * 1000);
-
 		long incomingBaseTime;
 		if (ms_timestamp) {
 			// drop the ms timestamp to seconds to calculate the base timestamp
@@ -226,38 +331,75 @@ final class BatchedDataPoints implements WritableDataPoints {
 			throw new IllegalDataException("The timestamp is prior to the boundary of this batch of data points");
 		}
 
-		// Java is so stupid with its auto-promotion of int to float.
-		final byte[] newQualifier = Internal.buildQualifier(timestamp, flags);
+		// Points mostly arrive in order, so check the end of the buffer before searching.
+		final long ms = ms_timestamp ? timestamp : timestamp * 1000;
+		int index = size;
+		if (size > 0 && ms <= inMillis(timestamps[size - 1])) {
+			index = search(ms);
+			if (index >= 0) {
+				throw new IllegalArgumentException("Duplicate timestamp=" + timestamp
+						+ " when trying to add value=" + value + " to row=" + Arrays.toString(rowKey));
+			}
+			index = -(index + 1);
+		}
+		insert(index, timestamp, value, (byte) flags);
 
-		// compact this data point with the previously compacted data points.
-		append(newQualifier, value);
-		size++;
+		if (last_points != null) {
+			if ((flags & Const.FLAG_FLOAT) == 0) {
+				last_points.update(rowKey, timestamp, true, value);
+			}
+			else {
+				last_points.update(rowKey, timestamp, false,
+						Double.doubleToRawLongBits(Float.intBitsToFloat((int) value)));
+			}
+		}
+	}
 
-		/**
-		 * Satisfies the interface.
-		 */
-		return Deferred.fromResult((Object) null);
+	private static long inMillis(final long timestamp) {
+		return (timestamp & Const.SECOND_MASK) != 0 ? timestamp : timestamp * 1000;
 	}
 
-	private void ensureCapacity(final byte[] nextQualifier, final byte[] nextValue) {
-		if (qualifierIndex + nextQualifier.length >= batchedQualifier.length) {
-			batchedQualifier = Arrays.copyOf(batchedQualifier, batchedQualifier.length * 2);
-		}
-		if (valueIndex + nextValue.length >= batchedValue.length) {
-			batchedValue = Arrays.copyOf(batchedValue, batchedValue.length * 2);
+	/**
+	 * Binary search of a timestamp in milliseconds.
+	 *
+	 * @return The index of the data point with this timestamp if there is one, otherwise
+	 * {@code (-(insertion point) - 1)}, like {@link Arrays#binarySearch}.
+	 */
+	private int search(final long ms) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final long cur = inMillis(timestamps[mid]);
+			if (cur < ms) {
+				low = mid + 1;
+			}
+			else if (cur > ms) {
+				high = mid - 1;
+			}
+			else {
+				return mid;
+			}
 		}
+		return -(low + 1);
 	}
 
-	private void append(final byte[] nextQualifier, final byte[] nextValue) {
-		ensureCapacity(nextQualifier, nextValue);
-
-		// Now let's simply concatenate all the values together.
-		System.arraycopy(nextValue, 0, batchedValue, valueIndex, nextValue.length);
-		valueIndex += nextValue.length;
-
-		// Now let's concatenate all the qualifiers together.
-		System.arraycopy(nextQualifier, 0, batchedQualifier, qualifierIndex, nextQualifier.length);
-		qualifierIndex += nextQualifier.length;
+	private void insert(final int index, final long timestamp, final long value, final byte flag) {
+		if (size == timestamps.length) {
+			final int capacity = timestamps.length * 2;
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			values = Arrays.copyOf(values, capacity);
+			flags = Arrays.copyOf(flags, capacity);
+		}
+		if (index < size) {
+			System.arraycopy(timestamps, index, timestamps, index + 1, size - index);
+			System.arraycopy(values, index, values, index + 1, size - index);
+			System.arraycopy(flags, index, flags, index + 1, size - index);
+		}
+		timestamps[index] = timestamp;
+		values[index] = value;
+		flags[index] = flag;
+		size++;
 	}
 
 	@Override
@@ -340,8 +482,8 @@ final class BatchedDataPoints implements WritableDataPoints {
 	 * @throws IndexOutOfBoundsException if {@code i} is out of bounds.
 	 */
 	private void checkIndex(final int i) {
-		if (i > size) {
-			throw new IndexOutOfBoundsException("index " + i + " > " + size
+		if (i >= size) {
+			throw new IndexOutOfBoundsException("index " + i + " >= " + size
 					+ " for this=" + this);
 		}
 		if (i < 0) {
@@ -350,27 +492,23 @@ final class BatchedDataPoints implements WritableDataPoints {
 		}
 	}
 
-	private static short delta(final short qualifier) {
-		return (short) ((qualifier & 0xFFFF) >>> Const.FLAG_BITS);
-	}
-
 	@Override
 	public long timestamp(final int i) {
 		checkIndex(i);
-		return baseTime + (delta(batchedQualifier[i]) & 0xFFFF);
+		return inMillis(timestamps[i]);
 	}
 
 	@Override
 	public boolean isInteger(final int i) {
 		checkIndex(i);
-		return (batchedQualifier[i] & Const.FLAG_FLOAT) == 0x0;
+		return (flags[i] & Const.FLAG_FLOAT) == 0x0;
 	}
 
 	@Override
 	public long longValue(final int i) {
 		// Don't call checkIndex(i) because isInteger(i) already calls it.
 		if (isInteger(i)) {
-			return batchedValue[i];
+			return values[i];
 		}
 		throw new ClassCastException("value #" + i + " is not a long in " + this);
 	}
@@ -379,7 +517,7 @@ final class BatchedDataPoints implements WritableDataPoints {
 	public double doubleValue(final int i) {
 		// Don't call checkIndex(i) because isInteger(i) already calls it.
 		if (!isInteger(i)) {
-			return Float.intBitsToFloat((int) batchedValue[i]);
+			return Float.intBitsToFloat((int) values[i]);
 		}
 		throw new ClassCastException("value #" + i + " is not a float in " + this);
 	}
@@ -403,8 +541,8 @@ final class BatchedDataPoints implements WritableDataPoints {
 				.append(" (")
 				.append(baseTime > 0 ? new Date(baseTime * 1000) : "no date")
 				.append("), [");
-		for (short i = 0; i < size; i++) {
-			buf.append('+').append(delta(batchedQualifier[i]));
+		for (int i = 0; i < size; i++) {
+			buf.append('+').append(inMillis(timestamps[i]) - baseTime * 1000);
 			if (isInteger(i)) {
 				buf.append(":long(").append(longValue(i));
 			}
@@ -0,0 +1,326 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Cache of decoded rows, keyed by row key, shared by every query whatever
+ * its tags, group by, aggregator or downsampling.
+ * <p>
+ * Rows are cached by blocks, a block being every row of a metric in an hour
+ * that ended at least {@code min_age} seconds ago.  Queries scan such hours
+ * without a row key filter so that they load whole blocks, and filter the
+ * rows themselves.  A block can then serve any query of its metric without
+ * scanning, until one of its rows is written to or evicted, after which the
+ * rows left only spare compacting them again when the hour is scanned.
+ * Writes drop their row, see {@link #invalidate}, once as they're sent and
+ * again once HBase answered them, so that a block read whole while a write
+ * was in flight isn't left complete without it.  Only the writes of this TSD
+ * are seen.
+ * <p>
+ * The memory used by the rows is estimated and kept under {@code max_bytes}
+ * by evicting the least recently used rows.  Metrics with blocks larger than
+ * a quarter of that are remembered as too wide to be read whole, so their
+ * queries go on scanning only the rows they need.
+ * <p>
+ * This class is thread-safe.
+ */
+final class BlockCache {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Rough memory overhead of a cached row, besides its bytes. */
+  private static final int ROW_OVERHEAD = 128;
+
+  /** Rough memory used by a cached annotation. */
+  private static final int ANNOTATION_BYTES = 256;
+
+  /** Maximum number of metrics remembered as too wide. */
+  private static final int MAX_WIDE_METRICS = 1024;
+
+  /** Maximum memory used by the rows, in bytes. */
+  private final long max_bytes;
+
+  /** Number of seconds after the end of an hour before it's cached. */
+  private final long min_age;
+
+  /** Rows by key, from the least to the most recently used. */
+  private final LinkedHashMap<String, Row> rows =
+    new LinkedHashMap<String, Row>(16, 0.75f, true);
+
+  /** Blocks by metric and base time, see {@link QueryCache#prefix}. */
+  private final HashMap<String, Block> blocks = new HashMap<String, Block>();
+
+  /** Metrics whose blocks are too large to be cached. */
+  private final HashSet<String> wide_metrics = new HashSet<String>();
+
+  /** Estimated memory used by the rows. */
+  private long bytes;
+
+  /**
+   * Incremented by every invalidation, so that rows scanned before a write
+   * aren't cached after it.
+   */
+  private long generation;
+
+  private long hits;
+  private long misses;
+  private long row_hits;
+  private long evictions;
+  private long invalidations;
+
+  /**
+   * Constructor.
+   * @param max_bytes Maximum memory used by the rows, in bytes
+   * @param min_age Number of seconds after the end of an hour before it's
+   * cached
+   */
+  BlockCache(final long max_bytes, final long min_age) {
+    this.max_bytes = max_bytes;
+    this.min_age = min_age;
+  }
+
+  /**
+   * Tells whether the rows of an hour can be cached, i.e. whether it ended
+   * long enough ago.
+   * @param base_time The base time of the hour, in seconds
+   * @param now The current time, in seconds
+   */
+  boolean isCacheable(final long base_time, final long now) {
+    return base_time + Const.MAX_TIMESPAN + min_age <= now;
+  }
+
+  /**
+   * Returns the current generation of the cache, to give to
+   * {@link #putBlock} once the rows are scanned.
+   */
+  synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * Tells whether the blocks of a metric are too large to be cached, in
+   * which case its rows shouldn't be scanned whole.
+   * @param metric The UID of the metric
+   */
+  synchronized boolean isWide(final byte[] metric) {
+    return wide_metrics.contains(new String(metric, CHARSET));
+  }
+
+  /**
+   * Returns every row of a block, if they're all cached.
+   * @param prefix The metric and the hour, see {@link QueryCache#prefix}
+   * @return The rows in row key order, or null if the block isn't entirely
+   * cached
+   */
+  synchronized ArrayList<Row> getBlock(final String prefix) {
+    final Block block = blocks.get(prefix);
+    if (block == null || !block.complete) {
+      misses++;
+      return null;
+    }
+    hits++;
+    final ArrayList<Row> found = new ArrayList<Row>(block.rows.size());
+    for (final String key : block.rows) {
+      found.add(rows.get(key));  // Also makes it the most recently used.
+    }
+    return found;
+  }
+
+  /**
+   * Returns a cached row.
+   * @param key The key of the row
+   * @return The row, or null if it isn't cached
+   */
+  synchronized Row getRow(final byte[] key) {
+    final Row row = rows.get(new String(key, CHARSET));
+    if (row != null) {
+      row_hits++;
+    }
+    return row;
+  }
+
+  /**
+   * Caches every row of a block, unless the metric was written to since the
+   * rows were scanned.
+   * @param prefix The metric and the hour, see {@link QueryCache#prefix}
+   * @param block_rows Every row of the block, which must not be modified
+   * anymore
+   * @param generation The generation of the cache from before the rows were
+   * scanned
+   */
+  synchronized void putBlock(final String prefix,
+                             final ArrayList<Row> block_rows,
+                             final long generation) {
+    if (generation != this.generation) {
+      return;
+    }
+    long block_bytes = 0;
+    for (final Row row : block_rows) {
+      block_bytes += row.bytes;
+    }
+    if (block_bytes > max_bytes / 4) {
+      if (wide_metrics.size() >= MAX_WIDE_METRICS) {
+        wide_metrics.clear();
+      }
+      wide_metrics.add(prefix.substring(0,
+          prefix.length() - Const.TIMESTAMP_BYTES));
+      return;
+    }
+    Block block = blocks.get(prefix);
+    if (block == null) {
+      block = new Block();
+      blocks.put(prefix, block);
+    }
+    for (final Row row : block_rows) {
+      final String key = new String(row.key, CHARSET);
+      final Row old = rows.put(key, row);
+      if (old != null) {
+        bytes -= old.bytes;
+      }
+      bytes += row.bytes;
+      block.rows.add(key);
+    }
+    block.complete = true;
+    evict();
+  }
+
+  /**
+   * Drops a cached row as it's being written to, which makes its block
+   * incomplete.  Rows of hours that can't be cached yet are ignored.
+   * @param row The key of the row written to
+   * @param metric_width The width of the metric UIDs
+   */
+  void invalidate(final byte[] row, final short metric_width) {
+    final long base_time = Bytes.getUnsignedInt(row, metric_width);
+    if (!isCacheable(base_time, System.currentTimeMillis() / 1000)) {
+      return;
+    }
+    final String prefix =
+      new String(row, 0, metric_width + Const.TIMESTAMP_BYTES, CHARSET);
+    final String key = new String(row, CHARSET);
+    synchronized (this) {
+      generation++;
+      final Block block = blocks.get(prefix);
+      if (block == null) {
+        return;
+      }
+      block.complete = false;
+      invalidations++;
+      final Row old = rows.remove(key);
+      if (old != null) {
+        bytes -= old.bytes;
+      }
+      removeFromBlock(prefix, block, key);
+    }
+  }
+
+  /**
+   * Collects the stats of the cache.
+   * @param collector The collector to use.
+   */
+  synchronized void collectStats(final StatsCollector collector) {
+    collector.record("query.blockcache.hits", hits);
+    collector.record("query.blockcache.misses", misses);
+    collector.record("query.blockcache.row_hits", row_hits);
+    collector.record("query.blockcache.evictions", evictions);
+    collector.record("query.blockcache.invalidations", invalidations);
+    collector.record("query.blockcache.rows", rows.size());
+    collector.record("query.blockcache.blocks", blocks.size());
+    collector.record("query.blockcache.bytes", bytes);
+  }
+
+  /** Evicts the least recently used rows until under the memory bound. */
+  private void evict() {
+    final Iterator<Map.Entry<String, Row>> it = rows.entrySet().iterator();
+    while (bytes > max_bytes && it.hasNext()) {
+      final Map.Entry<String, Row> eldest = it.next();
+      it.remove();
+      bytes -= eldest.getValue().bytes;
+      final String key = eldest.getKey();
+      final String prefix =
+        key.substring(0, eldest.getValue().prefix_length);
+      final Block block = blocks.get(prefix);
+      block.complete = false;
+      removeFromBlock(prefix, block, key);
+      evictions++;
+    }
+  }
+
+  private void removeFromBlock(final String prefix, final Block block,
+                               final String key) {
+    block.rows.remove(key);
+    if (block.rows.isEmpty()) {
+      blocks.remove(prefix);
+    }
+  }
+
+  /** A row, compacted, with its annotations. */
+  static final class Row {
+    /** The key of the row. */
+    final byte[] key;
+
+    /** The compacted row, null if it only had annotations. */
+    final KeyValue row;
+
+    /** The annotations of the row, null if it has none. */
+    final List<Annotation> annotations;
+
+    /** Length of the metric and base time at the start of the key. */
+    private final int prefix_length;
+
+    /** Estimated memory used by the row. */
+    final long bytes;
+
+    /**
+     * Constructor.
+     * @param key The key of the row
+     * @param row The row once compacted, or null if it only had annotations
+     * @param notes The annotations of the row
+     * @param metric_width The width of the metric UIDs
+     */
+    Row(final byte[] key, final KeyValue row, final List<Annotation> notes,
+        final short metric_width) {
+      this.key = key;
+      this.row = row;
+      annotations = notes.isEmpty() ? null : notes;
+      prefix_length = metric_width + Const.TIMESTAMP_BYTES;
+      bytes = ROW_OVERHEAD + key.length * 3 + notes.size() * ANNOTATION_BYTES
+        + (row == null ? 0 : row.qualifier().length + row.value().length);
+    }
+  }
+
+  /** The rows cached of a metric in an hour. */
+  private static final class Block {
+    /** Keys of the rows cached, in order. */
+    final TreeSet<String> rows = new TreeSet<String>();
+
+    /** Whether every row of the metric in that hour is cached. */
+    boolean complete;
+  }
+}
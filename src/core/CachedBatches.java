@@ -12,49 +12,227 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
-import com.stumbleupon.async.Deferred;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
 
+import org.hbase.async.KeyValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
 
 /**
+ * Write-back cache of {@link BatchedDataPoints}, one per time series, so that an entire hour of
+ * data can be written to the data table in a single compacted cell.
+ * <p>
+ * Series are identified by their TSUID (the row key without the base time) and spread over a
+ * fixed number of shards. Each shard is an access ordered map guarded by its own lock, which is
+ * only held to find or create a batch. Data points are then appended under the lock of their
+ * batch, so any number of threads can write to different series in parallel while each
+ * {@link BatchedDataPoints} only ever sees one writer at a time.
+ * <p>
+ * Memory is bounded by {@code tsd.storage.batch.max_bytes}, split evenly among the shards. When
+ * a shard goes over its budget the least recently used batches are persisted and evicted. A
+ * background timer also persists and evicts batches that haven't seen a data point in
+ * {@code tsd.storage.batch.idle_timeout} seconds, or whose hour is over.
+ * <p>
+ * Data points of a series don't need to arrive in order. Within an hour they're kept sorted, and
+ * when {@code tsd.storage.batch.reorder_window} is set the previous hour stays open for that many
+ * seconds after the first data point of the next hour, so points from hosts with skewed clocks
+ * still end up in the single compacted cell of their hour. Points arriving after their hour was
+ * written are stored as individual cells and the row is scheduled for compaction.
  *
  * @author jscott
  */
-public class CachedBatches {
+public final class CachedBatches {
 
-	  private static final Logger LOG = LoggerFactory.getLogger(CachedBatches.class);
+	private static final Logger LOG = LoggerFactory.getLogger(CachedBatches.class);
 
-	private static final Map<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
-	private static final Timer TIMER = new Timer(true);
-	private static final TimerTask TIMER_TASK = new TimerTask() {
-		@Override
-		public void run() {
-			rebaseBatches();
+	/**
+	 * How often the background timer looks for batches to persist, in milliseconds.
+	 */
+	private static final long TIMER_INTERVAL = 1000 * 60;
+
+	/**
+	 * Rough estimate, in bytes, of what a cache entry costs on top of its data points (map entry,
+	 * key, {@link Batch} object).
+	 */
+	private static final int ENTRY_OVERHEAD = 96;
+
+	/**
+	 * Turns the result of a group of writes into a plain deferred.
+	 */
+	private static final Callback<Object, ArrayList<Object>> GROUP_DONE =
+			new Callback<Object, ArrayList<Object>>() {
+				@Override
+				public Object call(final ArrayList<Object> results) {
+					return null;
+				}
+
+				@Override
+				public String toString() {
+					return "batch group done";
+				}
+			};
+
+	/**
+	 * The {@code TSDB} instance we belong to.
+	 */
+	private final TSDB tsdb;
+
+	/**
+	 * The shards, the number of which is always a power of 2.
+	 */
+	private final Shard[] shards;
+
+	/**
+	 * Maximum number of bytes a single shard may hold before evicting batches.
+	 */
+	private final long max_shard_bytes;
+
+	/**
+	 * How long a batch may go without a new data point before it gets evicted, in milliseconds.
+	 */
+	private final long idle_timeout;
+
+	/**
+	 * How long the previous hour of a series stays open once data for the next hour came in, in
+	 * seconds.
+	 */
+	private final long reorder_window;
+
+	/**
+	 * Started the first time a batch is cached, so TSDs not using batches don't pay for it.
+	 */
+	private Timer timer;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tsdb The TSDB we belong to.
+	 * @throws IllegalArgumentException if the configuration is invalid.
+	 */
+	CachedBatches(final TSDB tsdb) {
+		this.tsdb = tsdb;
+		final int num_shards = tsdb.config.getInt("tsd.storage.batch.shards");
+		if (num_shards < 1) {
+			throw new IllegalArgumentException("tsd.storage.batch.shards must be"
+					+ " greater than 0: " + num_shards);
+		}
+		// Round up to a power of 2 so we can mask instead of using a modulo.
+		int n = 1;
+		while (n < num_shards) {
+			n <<= 1;
 		}
-	};
+		shards = new Shard[n];
+		for (int i = 0; i < n; i++) {
+			shards[i] = new Shard(i);
+		}
+		max_shard_bytes = Math.max(1, tsdb.config.getLong("tsd.storage.batch.max_bytes") / n);
+		idle_timeout = tsdb.config.getInt("tsd.storage.batch.idle_timeout") * 1000L;
+		reorder_window = tsdb.config.getInt("tsd.storage.batch.reorder_window");
+		if (reorder_window < 0 || reorder_window >= Const.MAX_TIMESPAN) {
+			throw new IllegalArgumentException("tsd.storage.batch.reorder_window must be"
+					+ " between 0 and " + (Const.MAX_TIMESPAN - 1) + ": " + reorder_window);
+		}
+	}
+
+	/**
+	 * Adds a data point to the batch of its series, creating the batch if needed.
+	 *
+	 * @param metric A non-empty string.
+	 * @param timestamp The timestamp associated with the value, in seconds or milliseconds.
+	 * @param value The value of the data point, either an integer or a floating point number.
+	 * @param tags The tags on this series. This map must be non-empty.
+	 * @return A deferred object that indicates the completion of the request.
+	 * @throws NumberFormatException if the value is invalid.
+	 * @throws IllegalArgumentException if any other argument is invalid.
+	 * @throws NoSuchUniqueName if the metric isn't registered.
+	 */
+	public Deferred<Object> addPoint(final String metric, final long timestamp, final String value,
+			final Map<String, String> tags) {
+		IncomingDataPoints.checkMetricAndTags(metric, tags);
+		final boolean is_integer = Tags.looksLikeInteger(value);
+		final long lvalue = is_integer ? Tags.parseLong(value) : 0;
+		final float fvalue = is_integer ? 0 : Float.parseFloat(value);
+		final byte[] row = IncomingDataPoints.rowKeyTemplate(tsdb, metric, tags);
+		return addPoint(row, timestamp, is_integer, lvalue, fvalue);
+	}
 
 	/**
-	 * Schedule the Timer to run once per minute.
+	 * Adds an integer data point to a series whose UIDs were already resolved with
+	 * {@link #rowKeyTemplate}. This saves the UID lookups when adding many data points.
+	 *
+	 * @param row The row key template of the series. It is not modified.
+	 * @param timestamp The timestamp associated with the value, in seconds or milliseconds.
+	 * @param value The value of the data point.
+	 * @return A deferred object that indicates the completion of the request.
+	 * @throws IllegalArgumentException if the timestamp is invalid.
+	 */
+	public Deferred<Object> addPoint(final byte[] row, final long timestamp, final long value) {
+		return addPoint(row, timestamp, true, value, 0);
+	}
+
+	/**
+	 * Adds a floating point data point to a series whose UIDs were already resolved with
+	 * {@link #rowKeyTemplate}. This saves the UID lookups when adding many data points.
+	 *
+	 * @param row The row key template of the series. It is not modified.
+	 * @param timestamp The timestamp associated with the value, in seconds or milliseconds.
+	 * @param value The value of the data point.
+	 * @return A deferred object that indicates the completion of the request.
+	 * @throws IllegalArgumentException if the timestamp is invalid or the value is NaN or
+	 * infinite.
 	 */
-	static {
-		final long delay = 1000 * 60;
-		TIMER.schedule(TIMER_TASK, delay, delay);
+	public Deferred<Object> addPoint(final byte[] row, final long timestamp, final float value) {
+		return addPoint(row, timestamp, false, 0, value);
 	}
 
 	/**
-	 * There should be no WAY to create instances of this.
+	 * Resolves the UIDs of a series, assigning new ones if the TSD is configured to, and returns
+	 * the row key template to use with {@link #addPoint(byte[], long, long)}.
+	 *
+	 * @param metric A non-empty string.
+	 * @param tags The tags on this series. This map must be non-empty.
+	 * @return A row key without its base time.
+	 * @throws IllegalArgumentException if the metric or the tags are invalid.
+	 * @throws NoSuchUniqueName if the metric isn't registered.
 	 */
-	private CachedBatches() {
+	public byte[] rowKeyTemplate(final String metric, final Map<String, String> tags) {
+		IncomingDataPoints.checkMetricAndTags(metric, tags);
+		return IncomingDataPoints.rowKeyTemplate(tsdb, metric, tags);
 	}
 
-	public static Deferred<Object> addPoint(final TSDB tsdb, final String metric, final long timestamp, final String value, final Map<String, String> tags) {
-		return getBatch(tsdb, metric, timestamp, tags).addPoint(timestamp, value);
+	private Deferred<Object> addPoint(final byte[] row, final long timestamp,
+			final boolean is_integer, final long lvalue, final float fvalue) {
+		final SeriesKey key = new SeriesKey(
+				UniqueId.getTSUIDFromKey(row, tsdb.metrics.width(), Const.TIMESTAMP_BYTES));
+		startTimer();
+
+		final Shard shard = shardFor(key);
+		while (true) {
+			final Batch batch = shard.getOrCreate(key, row, timestamp);
+			final Deferred<Object> result = batch.addPoint(timestamp, is_integer, lvalue, fvalue);
+			if (result != null) {
+				shard.evictIfNecessary();
+				return result;
+			}
+			// else: the batch was evicted between the lookup and the append, so it was already
+			// written out. Try again, which will start a new batch for this series.
+		}
 	}
 
 	/**
@@ -64,8 +242,8 @@ public class CachedBatches {
 	 * @param tags tags used against metric
 	 * @return DataPoints for a maximum of one complete hour.
 	 */
-	public static DataPoints get(final String metric, final Map<String, String> tags) {
-		Batch batch = batches.get(metric + tags.toString());
+	public DataPoints get(final String metric, final Map<String, String> tags) {
+		final Batch batch = getBatch(metric, tags);
 		return batch == null ? null : batch.getDataPoints();
 	}
 
@@ -78,13 +256,9 @@ public class CachedBatches {
 	 * @param timestamp used to extract the base hour, may be millis or seconds
 	 * @return DataPoints for a maximum of one complete hour.
 	 */
-	public static DataPoints get(final String metric, final long timestamp, final Map<String, String> tags) {
-		Batch batch = batches.get(metric + tags.toString());
-		DataPoints dp = null;
-		if (batch != null && baseTime(timestamp) == batch.batchBaseTime()) {
-			dp = batch.getDataPoints();
-		}
-		return dp;
+	public DataPoints get(final String metric, final long timestamp, final Map<String, String> tags) {
+		final Batch batch = getBatch(metric, tags);
+		return batch == null ? null : batch.getDataPoints(baseTime(timestamp));
 	}
 
 	/**
@@ -100,19 +274,33 @@ public class CachedBatches {
 	 * @return DataPoints for a maximum of one complete hour. <code>null</code> if the time range
 	 * doesn't match what is cached or if the combination doesn't exist.
 	 */
-	public static DataPoints get(final String metric, final Map<String, String> tags,
+	public DataPoints get(final String metric, final Map<String, String> tags,
 			final long startTime, final long endTime) {
-		Batch batch = batches.get(metric + tags.toString());
-		DataPoints dp = null;
-		if (batch != null) {
-			final long startBase = baseTime(startTime);
-			final long endBase = baseTime(endTime);
-			if (startBase == batch.baseTime || endBase == batch.baseTime
-					|| (batch.baseTime > startBase && batch.baseTime < endBase)) {
-				dp = batch.getDataPoints();
-			}
+		final Batch batch = getBatch(metric, tags);
+		return batch == null ? null : batch.getDataPoints(baseTime(startTime), baseTime(endTime));
+	}
+
+	/**
+	 * Adds the data points of a metric that weren't written yet to the given rows, as the
+	 * compacted cells they'll be written as, so that queries can merge them with the rows they
+	 * scanned and read their own writes.
+	 *
+	 * @param metric The UID of the metric.
+	 * @param start The UNIX timestamp, in seconds, before which rows are left out.
+	 * @param end The UNIX timestamp, in seconds, from which rows are left out, or -1 to not leave
+	 * out recent rows.
+	 * @param rows Where to add the rows, in no particular order.
+	 */
+	void getUnflushedRows(final byte[] metric, final long start, final long end,
+			final ArrayList<KeyValue> rows) {
+		final SeriesKey key = new SeriesKey(metric);
+		final ArrayList<Batch> batches = new ArrayList<Batch>();
+		for (final Shard shard : shards) {
+			shard.getBatches(key, batches);
+		}
+		for (final Batch batch : batches) {
+			batch.getUnflushedRows(start, end, rows);
 		}
-		return dp;
 	}
 
 	/**
@@ -133,86 +321,542 @@ public class CachedBatches {
 		return baseTime;
 	}
 
-	private static Batch getBatch(final TSDB tsdb, final String metric, final long timestamp, final Map<String, String> tags) {
-		Batch batch = batches.get(metric + tags.toString());
-		if (batch == null) {
-			batch = new Batch(timestamp, tsdb.newBatch(metric, tags));
-			batches.put(metric + tags.toString(), batch);
+	/**
+	 * Collects the stats and metrics tracked by this instance, one set per shard.
+	 *
+	 * @param collector The collector to use.
+	 */
+	void collectStats(final StatsCollector collector) {
+		for (final Shard shard : shards) {
+			final String tag = "shard=" + shard.id;
+			collector.record("batch.cache.series", shard.series.get(), tag);
+			collector.record("batch.cache.bytes", shard.bytes.get(), tag);
+			collector.record("batch.cache.hits", shard.hits, tag);
+			collector.record("batch.cache.misses", shard.misses, tag);
+			collector.record("batch.cache.persists", shard.persists, tag);
+			collector.record("batch.cache.errors", shard.errors, tag);
+			collector.record("batch.cache.late", shard.late_points, tag);
+			collector.addExtraTag("type", "size");
+			try {
+				collector.record("batch.cache.evictions", shard.size_evictions, tag);
+			}
+			finally {
+				collector.clearExtraTag("type");
+			}
+			collector.addExtraTag("type", "idle");
+			try {
+				collector.record("batch.cache.evictions", shard.idle_evictions, tag);
+			}
+			finally {
+				collector.clearExtraTag("type");
+			}
 		}
-		return batch;
+	}
+
+	/**
+	 * Persists and evicts every cached batch. This is pretty much only in the case of a shutdown
+	 * where data will no longer be coming in.
+	 *
+	 * @return A deferred to wait on for all the batches to be written.
+	 */
+	Deferred<ArrayList<Object>> shutdown() {
+		synchronized (this) {
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+		}
+		final ArrayList<Deferred<Object>> deferreds = new ArrayList<Deferred<Object>>();
+		for (final Shard shard : shards) {
+			shard.evictAll(deferreds);
+		}
+		return Deferred.group(deferreds);
 	}
 
 	/**
 	 * For batches that are rapidly changing this won't do much, but for batches that don't get
-	 * updated that often this will cause them to persist near hour boundaries.
+	 * updated that often this will cause them to persist near hour boundaries, and releases the
+	 * memory of series that stopped sending data.
 	 */
-	private static void rebaseBatches() {
-		LOG.info("rebase Batches");
-		long base = baseTime(System.currentTimeMillis());
-		for (Map.Entry<String, Batch> entry : batches.entrySet()) {
-			entry.getValue().persistIfNecessary(base);
+	private void evictIdleBatches() {
+		final long now = System.currentTimeMillis();
+		final long current_base = baseTime(now);
+		for (final Shard shard : shards) {
+			shard.evictIdle(now, current_base);
 		}
 	}
 
-	synchronized static void shutdownHook() {
-		for (Map.Entry<String, Batch> entry : batches.entrySet()) {
-			entry.getValue().shutdown();
+	private synchronized void startTimer() {
+		if (timer != null) {
+			return;
+		}
+		timer = new Timer("CachedBatchesTimer", true);
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				try {
+					evictIdleBatches();
+				}
+				catch (Exception e) {
+					LOG.error("Uncaught exception while evicting idle batches", e);
+				}
+			}
+		}, TIMER_INTERVAL, TIMER_INTERVAL);
+	}
+
+	private Shard shardFor(final SeriesKey key) {
+		return shards[key.hash & (shards.length - 1)];
+	}
+
+	/**
+	 * Looks up the batch of an existing series without assigning new UIDs.
+	 *
+	 * @return The batch or {@code null} if the series isn't cached or doesn't exist.
+	 */
+	private Batch getBatch(final String metric, final Map<String, String> tags) {
+		final byte[] tsuid;
+		try {
+			final byte[] metric_id = tsdb.metrics.getId(metric);
+			final ArrayList<byte[]> tag_ids = Tags.resolveAll(tsdb, tags);
+			int length = metric_id.length;
+			for (final byte[] tag : tag_ids) {
+				length += tag.length;
+			}
+			tsuid = new byte[length];
+			System.arraycopy(metric_id, 0, tsuid, 0, metric_id.length);
+			int pos = metric_id.length;
+			for (final byte[] tag : tag_ids) {
+				System.arraycopy(tag, 0, tsuid, pos, tag.length);
+				pos += tag.length;
+			}
+		}
+		catch (NoSuchUniqueName e) {
+			return null;
+		}
+		final SeriesKey key = new SeriesKey(tsuid);
+		return shardFor(key).get(key);
+	}
+
+	/**
+	 * Hashable wrapper around a TSUID.
+	 */
+	private static final class SeriesKey {
+
+		private final byte[] tsuid;
+		private final int hash;
+
+		SeriesKey(final byte[] tsuid) {
+			this.tsuid = tsuid;
+			// Spread the bits since the low order bytes of UIDs tend to look alike.
+			final int h = Arrays.hashCode(tsuid);
+			this.hash = h ^ (h >>> 16);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			return obj instanceof SeriesKey && Arrays.equals(tsuid, ((SeriesKey) obj).tsuid);
+		}
+	}
+
+	/**
+	 * A slice of the cache with its own lock, LRU order, memory budget and stats.
+	 */
+	private final class Shard {
+
+		private final int id;
+
+		/**
+		 * Batches in least to most recently used order. Guarded by {@code this}.
+		 */
+		private final LinkedHashMap<SeriesKey, Batch> batches =
+				new LinkedHashMap<SeriesKey, Batch>(16, 0.75f, true);
+
+		/**
+		 * The same batches, by metric UID, so that a query doesn't scan every series of the shard.
+		 * Guarded by {@code this}.
+		 */
+		private final HashMap<SeriesKey, HashSet<Batch>> metrics =
+				new HashMap<SeriesKey, HashSet<Batch>>();
+
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong series = new AtomicLong();
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		private final AtomicLong persists = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong late_points = new AtomicLong();
+		private final AtomicLong size_evictions = new AtomicLong();
+		private final AtomicLong idle_evictions = new AtomicLong();
+
+		private final PersistErrback persist_errback = new PersistErrback();
+
+		Shard(final int id) {
+			this.id = id;
+		}
+
+		synchronized Batch get(final SeriesKey key) {
+			return batches.get(key);
+		}
+
+		/**
+		 * Adds the batches of a metric to the given list, without changing their LRU order.
+		 */
+		synchronized void getBatches(final SeriesKey metric, final ArrayList<Batch> found) {
+			final HashSet<Batch> batches = metrics.get(metric);
+			if (batches != null) {
+				found.addAll(batches);
+			}
+		}
+
+		/**
+		 * Returns the batch of a series, creating it if needed. This also marks the batch as the
+		 * most recently used one.
+		 *
+		 * @param row The row key template to use if a batch has to be created.
+		 */
+		synchronized Batch getOrCreate(final SeriesKey key, final byte[] row, final long timestamp) {
+			Batch batch = batches.get(key);
+			if (batch == null) {
+				misses.incrementAndGet();
+				batch = new Batch(this, row);
+				batches.put(key, batch);
+				HashSet<Batch> same_metric = metrics.get(batch.metric);
+				if (same_metric == null) {
+					same_metric = new HashSet<Batch>();
+					metrics.put(batch.metric, same_metric);
+				}
+				same_metric.add(batch);
+				series.incrementAndGet();
+				bytes.addAndGet(batch.memoryUsage());
+			}
+			else {
+				hits.incrementAndGet();
+			}
+			return batch;
+		}
+
+		/**
+		 * Persists and evicts batches, least recently used first, until the shard is back under
+		 * its memory budget.
+		 */
+		void evictIfNecessary() {
+			if (bytes.get() <= max_shard_bytes) {
+				return;
+			}
+			synchronized (this) {
+				evictLeastRecentlyUsed();
+			}
+		}
+
+		/**
+		 * Must be called with the lock held.
+		 */
+		private void evictLeastRecentlyUsed() {
+			final Iterator<Batch> it = batches.values().iterator();
+			while (bytes.get() > max_shard_bytes && it.hasNext()) {
+				final Batch batch = it.next();
+				it.remove();
+				evicted(batch);
+				size_evictions.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Persists and evicts batches that have been idle for too long, or that have been idle for
+		 * a little while and belong to an hour that is over.
+		 */
+		synchronized void evictIdle(final long now, final long current_base) {
+			// Every batch is checked: the map is ordered by access, reads included, while
+			// last_access only moves on writes, so an idle batch can sit behind a recent one.
+			final Iterator<Batch> it = batches.values().iterator();
+			while (it.hasNext()) {
+				final Batch batch = it.next();
+				final long idle = now - batch.last_access;
+				if (idle >= idle_timeout
+						|| (idle >= TIMER_INTERVAL && batch.batchBaseTime() < current_base)) {
+					it.remove();
+					evicted(batch);
+					idle_evictions.incrementAndGet();
+				}
+			}
+		}
+
+		synchronized void evictAll(final ArrayList<Deferred<Object>> deferreds) {
+			for (final Batch batch : batches.values()) {
+				deferreds.add(evicted(batch));
+			}
+			batches.clear();
+		}
+
+		/**
+		 * Accounts for a batch that was removed from the map and writes it out. Must be called
+		 * with the lock held.
+		 */
+		private Deferred<Object> evicted(final Batch batch) {
+			final HashSet<Batch> same_metric = metrics.get(batch.metric);
+			if (same_metric != null && same_metric.remove(batch) && same_metric.isEmpty()) {
+				metrics.remove(batch.metric);
+			}
+			series.decrementAndGet();
+			return batch.close();
+		}
+
+		/**
+		 * Logs failed writes of evicted or completed batches, since nobody waits on them.
+		 */
+		private final class PersistErrback implements Callback<Object, Exception> {
+			@Override
+			public Object call(final Exception e) {
+				// Basic rate-limiting to not flood logs.
+				if (errors.incrementAndGet() % 100 == 1) {
+					LOG.error("Failed to persist a batch of data points", e);
+				}
+				return e;
+			}
+
+			@Override
+			public String toString() {
+				return "log batch persist error";
+			}
 		}
 	}
 
 	/**
 	 * No reason to expose this to the rest of the code base.
+	 * <p>
+	 * All the writes to the underlying {@link BatchedDataPoints} happen while holding the lock of
+	 * this object. Once closed, a batch rejects new data points since it has been evicted from its
+	 * shard and written out.
 	 */
-	private static class Batch {
+	private final class Batch {
+
+		private final Shard shard;
+
+		/**
+		 * Row key template of the series, copied for each hour.
+		 */
+		private final byte[] row;
 
-		private final WritableDataPoints dataPoints;
-		private long baseTime;
+		/**
+		 * UID of the metric, to find the batch in {@link Shard#metrics}.
+		 */
+		private final SeriesKey metric;
+
+		/**
+		 * The most recent hour of data.
+		 */
+		private BatchedDataPoints current;
 
-		Batch(final long timestamp, final net.opentsdb.core.WritableDataPoints dataPoints) {
-			this.baseTime = baseTime(timestamp);
-			this.dataPoints = dataPoints;
+		/**
+		 * The hour before {@link #current}, while its reorder window is still open. Once written,
+		 * the instance is kept around to be reused for the next hour.
+		 */
+		private BatchedDataPoints previous;
+
+		private volatile long baseTime = Long.MIN_VALUE;
+		private volatile long previous_base = Long.MIN_VALUE;
+
+		/**
+		 * Latest timestamp seen for this series, in seconds.
+		 */
+		private long high_watermark = Long.MIN_VALUE;
+
+		private volatile long last_access;
+		private boolean closed;
+
+		Batch(final Shard shard, final byte[] row) {
+			this.shard = shard;
+			this.row = row.clone();
+			this.metric = new SeriesKey(Arrays.copyOf(row, tsdb.metrics.width()));
+			this.current = new BatchedDataPoints(tsdb, row.clone());
+		}
+
+		/**
+		 * Returns the data points of the most recent hour.
+		 */
+		synchronized DataPoints getDataPoints() {
+			return current;
+		}
+
+		/**
+		 * Returns the data points of the given hour, if it's still open.
+		 */
+		DataPoints getDataPoints(final long base) {
+			return getDataPoints(base, base);
 		}
 
-		DataPoints getDataPoints() {
-			return dataPoints;
+		/**
+		 * Returns the data points of the most recent open hour that overlaps the given range.
+		 */
+		synchronized DataPoints getDataPoints(final long start_base, final long end_base) {
+			if (baseTime >= start_base && baseTime <= end_base) {
+				return current;
+			}
+			if (previous_base >= start_base && previous_base <= end_base) {
+				return previous;
+			}
+			return null;
 		}
 
 		long batchBaseTime() {
 			return baseTime;
 		}
 
-		Deferred<Object> addPoint(final long timestamp, final String value) {
-			persistIfNecessary(baseTime(timestamp));
+		/**
+		 * Adds the open hours of this batch within the given range to the rows.
+		 */
+		synchronized void getUnflushedRows(final long start, final long end,
+				final ArrayList<KeyValue> rows) {
+			addUnflushedRow(previous, start, end, rows);
+			addUnflushedRow(current, start, end, rows);
+		}
 
-			final Deferred<Object> def;
-			if (net.opentsdb.core.Tags.looksLikeInteger(value)) {
-				def = dataPoints.addPoint(timestamp, net.opentsdb.core.Tags.parseLong(value));
+		private void addUnflushedRow(final BatchedDataPoints dataPoints, final long start,
+				final long end, final ArrayList<KeyValue> rows) {
+			if (dataPoints == null || dataPoints.size() == 0) {
+				return;
 			}
-			else {
-				def = dataPoints.addPoint(timestamp, Float.parseFloat(value));
+			final long base = dataPoints.baseTime();
+			if (base >= start && (end < 0 || base < end)) {
+				rows.add(dataPoints.toKeyValue());
+			}
+		}
+
+		synchronized int memoryUsage() {
+			return ENTRY_OVERHEAD + dataPointsMemoryUsage();
+		}
+
+		private int dataPointsMemoryUsage() {
+			return current.memoryUsage() + (previous == null ? 0 : previous.memoryUsage());
+		}
+
+		/**
+		 * Adds a data point, already parsed by the caller so that as little work as possible
+		 * happens while holding the lock.
+		 *
+		 * @return A deferred object that indicates the completion of the request, or {@code null}
+		 * if this batch was closed and the data point wasn't added.
+		 */
+		synchronized Deferred<Object> addPoint(final long timestamp, final boolean is_integer,
+				final long lvalue, final float fvalue) {
+			if (closed) {
+				return null;
+			}
+			final int before = dataPointsMemoryUsage();
+			try {
+				last_access = System.currentTimeMillis();
+				final long base = baseTime(timestamp);
+				if (base > baseTime) {
+					startHour(base);
+				}
+
+				final BatchedDataPoints target;
+				if (base == baseTime) {
+					target = current;
+				}
+				else if (base == previous_base) {
+					target = previous;
+				}
+				else {
+					return addLatePoint(timestamp, is_integer, lvalue, fvalue);
+				}
+				add(target, timestamp, is_integer, lvalue, fvalue);
+
+				final long seconds = (timestamp & Const.SECOND_MASK) != 0 ? timestamp / 1000 : timestamp;
+				if (seconds > high_watermark) {
+					high_watermark = seconds;
+					closeExpiredWindow();
+				}
+				return Deferred.fromResult((Object) null);
+			}
+			finally {
+				shard.bytes.addAndGet(dataPointsMemoryUsage() - before);
 			}
-			return def;
 		}
 
 		/**
-		 * This is pretty much only in the case of a shutdown where data will no longer be coming
-		 * in. Do not use this otherwise!
+		 * Writes whatever is left in this batch, once it's been evicted from the cache or
+		 * during a shutdown. Points can no longer be added afterwards.
 		 */
-		void shutdown() {
-			dataPoints.persist();
+		synchronized Deferred<Object> close() {
+			closed = true;
 			baseTime = Long.MIN_VALUE;
+			shard.bytes.addAndGet(-(ENTRY_OVERHEAD + dataPointsMemoryUsage()));
+			if (previous == null) {
+				return persist(current);
+			}
+			final ArrayList<Deferred<Object>> deferreds = new ArrayList<Deferred<Object>>(2);
+			deferreds.add(persist(previous));
+			deferreds.add(persist(current));
+			previous_base = Long.MIN_VALUE;
+			return Deferred.group(deferreds).addCallback(GROUP_DONE);
+		}
+
+		/**
+		 * A data point for a new hour came in. Without a reorder window the current hour is
+		 * written right away, otherwise it becomes the previous hour and stays open until the
+		 * high watermark is past the window.
+		 */
+		private void startHour(final long base) {
+			if (previous != null && previous_base != Long.MIN_VALUE) {
+				persist(previous);
+				previous_base = Long.MIN_VALUE;
+			}
+			if (reorder_window == 0 || current.size() == 0) {
+				persist(current);
+			}
+			else {
+				final BatchedDataPoints spare = previous;
+				previous = current;
+				previous_base = baseTime;
+				current = spare != null ? spare : new BatchedDataPoints(tsdb, row.clone());
+			}
+			baseTime = base;
+		}
+
+		private void closeExpiredWindow() {
+			if (previous_base != Long.MIN_VALUE
+					&& high_watermark - reorder_window >= previous_base + Const.MAX_TIMESPAN) {
+				persist(previous);
+				previous_base = Long.MIN_VALUE;
+			}
 		}
 
 		/**
-		 * Data comes in time order, and if the BASE we had doesn't match the current base we have
-		 * hit a new hour. It is time to persist the records, reset the baseTime and continue adding
-		 * data points.
+		 * Writes a data point whose hour was already persisted as a cell of its own, and lets the
+		 * compaction queue merge it with the rest of the row.
 		 */
-		void persistIfNecessary(final long base) {
-			if (base != baseTime) {
-				dataPoints.persist();
-				baseTime = base;
+		private Deferred<Object> addLatePoint(final long timestamp, final boolean is_integer,
+				final long lvalue, final float fvalue) {
+			shard.late_points.incrementAndGet();
+			final BatchedDataPoints late = new BatchedDataPoints(tsdb, row.clone());
+			add(late, timestamp, is_integer, lvalue, fvalue);
+			final Deferred<Object> result = persist(late);
+			tsdb.scheduleForCompaction(late.rowKey(), (int) baseTime(timestamp));
+			return result;
+		}
+
+		private void add(final BatchedDataPoints target, final long timestamp,
+				final boolean is_integer, final long lvalue, final float fvalue) {
+			if (is_integer) {
+				target.addLong(timestamp, lvalue);
+			}
+			else {
+				target.addFloat(timestamp, fvalue);
+			}
+		}
+
+		private Deferred<Object> persist(final BatchedDataPoints dataPoints) {
+			if (dataPoints.size() == 0) {
+				return Deferred.fromResult(null);
 			}
+			shard.persists.incrementAndGet();
+			return dataPoints.persist().addErrback(shard.persist_errback);
 		}
 	}
 }
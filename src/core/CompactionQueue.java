@@ -212,11 +212,17 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    * Callback to compact a row once it's been read.
    * <p>
    * This is used once the "get" completes, to actually compact the row and
-   * write back the compacted version.
+   * write back the compacted version, and to write the rollups of the row if
+   * they're enabled.
    */
   private final class CompactCB implements Callback<Object, ArrayList<KeyValue>> {
     public Object call(final ArrayList<KeyValue> row) {
-      return compact(row, null);
+      final KeyValue compacted = compact(row, null);
+      final Rollups rollups = tsdb.getRollups();
+      if (rollups != null && compacted != null) {
+        return rollups.write(compacted);
+      }
+      return compacted;
     }
     public String toString() {
       return "compact";
@@ -0,0 +1,146 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over data points decoded into two arrays, the decoded data points
+ * of a {@link Span} or the materialized ones of a {@link SpanGroup}.
+ * <p>
+ * Timestamps are in milliseconds, with {@link #FLAG_FLOAT} set for floating
+ * point values, whose values are stored as the bits of the double.
+ */
+final class DecodedIterator implements SeekableView, DataPoint {
+
+  /** Flag set on the decoded timestamps of floating point values. */
+  static final long FLAG_FLOAT = 0x8000000000000000L;
+
+  /** Mask to use in order to get rid of the flag above. */
+  static final long TIME_MASK  = 0x7FFFFFFFFFFFFFFFL;
+
+  private final long[] times;
+  private final long[] values;
+
+  /** What the data points were decoded from, for {@link #toString}. */
+  private final Object source;
+
+  /** Index of the current data point, -1 before the first one. */
+  private int index = -1;
+
+  /**
+   * Constructor.
+   * @param times The decoded timestamps, sorted
+   * @param values The decoded values
+   * @param source What the data points were decoded from
+   */
+  DecodedIterator(final long[] times, final long[] values,
+                  final Object source) {
+    this.times = times;
+    this.values = values;
+    this.source = source;
+  }
+
+  /**
+   * Decodes a data point at index {@code i} of the given arrays.
+   * @param times The decoded timestamps
+   * @param values The decoded values
+   * @param i The index of the data point
+   * @param dp The data point to decode
+   */
+  static void decode(final long[] times, final long[] values, final int i,
+                     final DataPoint dp) {
+    if (dp.isInteger()) {
+      times[i] = dp.timestamp();
+      values[i] = dp.longValue();
+    } else {
+      times[i] = dp.timestamp() | FLAG_FLOAT;
+      values[i] = Double.doubleToRawLongBits(dp.doubleValue());
+    }
+  }
+
+  /**
+   * Returns the index of the first of the given timestamps, flags aside, at
+   * or after the given time, or the number of timestamps if they're all
+   * before.
+   */
+  static int indexOf(final long[] times, final long timestamp) {
+    int low = 0;
+    int high = times.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if ((times[mid] & TIME_MASK) < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  public boolean hasNext() {
+    return index < times.length - 1;
+  }
+
+  public DataPoint next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException("no more elements");
+    }
+    index++;
+    return this;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  public void seek(final long timestamp) {
+    if ((timestamp & Const.MILLISECOND_MASK) != 0) {  // negative or not 48 bits
+      throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+    }
+    index = indexOf(times, timestamp) - 1;
+  }
+
+  public long timestamp() {
+    return times[index] & TIME_MASK;
+  }
+
+  public boolean isInteger() {
+    return (times[index] & FLAG_FLOAT) == 0;
+  }
+
+  public long longValue() {
+    if (!isInteger()) {
+      throw new ClassCastException("value #" + index + " is not a long in "
+                                   + this);
+    }
+    return values[index];
+  }
+
+  public double doubleValue() {
+    if (isInteger()) {
+      throw new ClassCastException("value #" + index + " is not a float in "
+                                   + this);
+    }
+    return Double.longBitsToDouble(values[index]);
+  }
+
+  public double toDouble() {
+    return isInteger() ? longValue() : doubleValue();
+  }
+
+  public String toString() {
+    return "DecodedIterator(index=" + index + ", source=" + source + ')';
+  }
+
+}
@@ -0,0 +1,256 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.hbase.async.Bytes;
+
+/**
+ * Assigns row keys to groups for a 'GROUP BY', according to the values of the
+ * tags grouped by.
+ * <p>
+ * Groups are numbered in the order they're found. A group is identified by
+ * the value IDs of the tags grouped by, one after the other in the order of
+ * the tag name IDs, which this class calls the key of the group.
+ * <p>
+ * Both the tags of a row key and the tags grouped by are sorted by name ID,
+ * so the values are found in a single pass over the row key. Row keys of a
+ * query usually have the same tags, so the offsets of the values in the
+ * previous row key are tried first. The groups are then looked up in an open
+ * addressing hash table of group numbers, hashed from the values in the row
+ * key, with the keys of the groups stored one after the other in one array.
+ * Nothing is allocated for row keys of existing groups.
+ * <p>
+ * This class is not synchronized.
+ */
+final class GroupByIndex {
+
+  /** The tag name IDs grouped by, sorted. */
+  private final byte[][] tag_ids;
+  private final short name_width;
+  private final short value_width;
+  /** Offset of the first tag in row keys. */
+  private final int tags_offset;
+  /** Length of the key of a group. */
+  private final int key_width;
+
+  /** Offsets of the values in the last row key looked up. */
+  private final int[] offsets;
+  /** Length of the last row key looked up, -1 if it missed a tag. */
+  private int last_length = -1;
+
+  /** Keys of every group, one after the other. */
+  private byte[] keys;
+  /** Number of groups. */
+  private int size = 0;
+  /**
+   * Hash table of group numbers plus 1, 0 for an empty slot. Its length is a
+   * power of 2 at least twice the number of groups.
+   */
+  private int[] slots = new int[16];
+
+  /**
+   * Constructor.
+   * @param tag_ids The tag name IDs grouped by
+   * @param metric_width Width of metric IDs
+   * @param name_width Width of tag name IDs
+   * @param value_width Width of tag value IDs
+   * @throws IllegalArgumentException if there are no tags to group by
+   */
+  GroupByIndex(final List<byte[]> tag_ids, final short metric_width,
+               final short name_width, final short value_width) {
+    if (tag_ids.isEmpty()) {
+      throw new IllegalArgumentException("No tags to group by");
+    }
+    final ArrayList<byte[]> sorted = new ArrayList<byte[]>(tag_ids);
+    Collections.sort(sorted, Bytes.MEMCMP);
+    this.tag_ids = sorted.toArray(new byte[sorted.size()][]);
+    this.name_width = name_width;
+    this.value_width = value_width;
+    tags_offset = metric_width + Const.TIMESTAMP_BYTES;
+    key_width = this.tag_ids.length * value_width;
+    offsets = new int[this.tag_ids.length];
+    keys = new byte[16 * key_width];
+  }
+
+  /** Returns the number of groups found so far. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the group of a row key, creating it if it's the first row key
+   * found with these values.
+   * @param row A row key
+   * @return The number of the group, from 0 to {@link #size} excluded, or -1
+   * if the row key doesn't have every tag grouped by
+   */
+  int groupOf(final byte[] row) {
+    if (!sameLayout(row) && !findOffsets(row)) {
+      last_length = -1;
+      return -1;
+    }
+    last_length = row.length;
+
+    int hash = 1;
+    for (final int offset : offsets) {
+      for (int i = offset; i < offset + value_width; i++) {
+        hash = 31 * hash + row[i];
+      }
+    }
+    hash ^= hash >>> 16;
+
+    final int mask = slots.length - 1;
+    int slot = hash & mask;
+    while (slots[slot] != 0) {
+      final int group = slots[slot] - 1;
+      if (keyEquals(group, row)) {
+        return group;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    final int group = size++;
+    if (keys.length < size * key_width) {
+      keys = Arrays.copyOf(keys, keys.length * 2);
+    }
+    int pos = group * key_width;
+    for (final int offset : offsets) {
+      System.arraycopy(row, offset, keys, pos, value_width);
+      pos += value_width;
+    }
+    slots[slot] = group + 1;
+    if (size * 2 > slots.length) {
+      rehash();
+    }
+    return group;
+  }
+
+  /**
+   * Returns the key of a group.
+   * @param group The number of a group
+   * @return A copy of the value IDs of the tags grouped by
+   */
+  byte[] key(final int group) {
+    return Arrays.copyOfRange(keys, group * key_width,
+                              (group + 1) * key_width);
+  }
+
+  /**
+   * Returns the groups sorted by key, i.e. by value IDs.
+   */
+  Integer[] sortedGroups() {
+    final Integer[] groups = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      groups[i] = i;
+    }
+    Arrays.sort(groups, new Comparator<Integer>() {
+      public int compare(final Integer a, final Integer b) {
+        return GroupByIndex.compare(keys, a * key_width,
+                                    keys, b * key_width, key_width);
+      }
+    });
+    return groups;
+  }
+
+  /**
+   * Checks whether the tags grouped by are at the same offsets in this row
+   * key as in the previous one.
+   */
+  private boolean sameLayout(final byte[] row) {
+    if (row.length != last_length) {
+      return false;
+    }
+    for (int i = 0; i < offsets.length; i++) {
+      if (compare(row, offsets[i] - name_width, tag_ids[i], 0,
+                  name_width) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Finds the offsets of the values of the tags grouped by, merging the tags
+   * of the row key with the tags grouped by.
+   * @return false if the row key misses one of the tags
+   */
+  private boolean findOffsets(final byte[] row) {
+    final int tag_width = name_width + value_width;
+    int i = 0;
+    for (int pos = tags_offset; pos + tag_width <= row.length
+         && i < tag_ids.length; pos += tag_width) {
+      final int cmp = compare(row, pos, tag_ids[i], 0, name_width);
+      if (cmp == 0) {
+        offsets[i++] = pos + name_width;
+      } else if (cmp > 0) {
+        return false;  // The row key went past a tag grouped by.
+      }
+    }
+    return i == tag_ids.length;
+  }
+
+  private boolean keyEquals(final int group, final byte[] row) {
+    int pos = group * key_width;
+    for (final int offset : offsets) {
+      if (compare(keys, pos, row, offset, value_width) != 0) {
+        return false;
+      }
+      pos += value_width;
+    }
+    return true;
+  }
+
+  private void rehash() {
+    final int[] old = slots;
+    slots = new int[old.length * 2];
+    final int mask = slots.length - 1;
+    for (final int entry : old) {
+      if (entry == 0) {
+        continue;
+      }
+      final int start = (entry - 1) * key_width;
+      int hash = 1;
+      for (int i = start; i < start + key_width; i++) {
+        hash = 31 * hash + keys[i];
+      }
+      hash ^= hash >>> 16;
+      int slot = hash & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = entry;
+    }
+  }
+
+  /**
+   * Compares parts of two byte arrays, as unsigned bytes like
+   * {@link Bytes#memcmp}.
+   */
+  private static int compare(final byte[] a, final int a_offset,
+                             final byte[] b, final int b_offset,
+                             final int length) {
+    for (int i = 0; i < length; i++) {
+      final int cmp = (a[a_offset + i] & 0xFF) - (b[b_offset + i] & 0xFF);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,191 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Bounded thread pool that aggregates the {@link SpanGroup}s of queries
+ * before they're serialized, see {@link SpanGroup#materialize}.
+ * <p>
+ * Otherwise groups are aggregated lazily as they're serialized, one after the
+ * other on the thread sending the response.  Here the groups of a query are
+ * shared by at most {@code parallelism} tasks, each aggregating the next
+ * group left until there are none, so that a query with many groups can use
+ * several cores without taking them all.  When the backlog is full, tasks
+ * run on the thread handing them over.
+ */
+final class GroupEvaluator {
+
+  /** Maximum number of tasks waiting for a thread. */
+  private static final int BACKLOG = 1024;
+
+  /** Time (in ms) it took to aggregate a group. */
+  private final Histogram evaluate_latency =
+    new Histogram(16000, (short) 2, 100);
+
+  private final ThreadPoolExecutor executor;
+
+  /** Maximum number of groups of a query aggregated at once. */
+  private final int parallelism;
+
+  /** Number of groups aggregated. */
+  private final AtomicLong groups = new AtomicLong();
+
+  /** Number of tasks run by the caller as the backlog was full. */
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param threads Number of aggregating threads
+   * @param parallelism Maximum number of groups of a query aggregated at once
+   */
+  GroupEvaluator(final int threads, final int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+    executor = new ThreadPoolExecutor(threads, threads,
+        /* 5m = */ 300000, MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(BACKLOG),
+        new EvaluatorThdFactory(), new CallerRuns());
+  }
+
+  /**
+   * Aggregates the groups of a query in parallel.
+   * @param results The results of a query, where every {@link SpanGroup}
+   * gets materialized.
+   * @return A deferred called back with {@code results} once they're all
+   * aggregated, or with the first exception thrown while aggregating them.
+   */
+  Deferred<DataPoints[]> evaluate(final DataPoints[] results) {
+    if (results.length < 2) {
+      // Nothing to run in parallel, aggregate lazily as before.
+      return Deferred.fromResult(results);
+    }
+    final Deferred<DataPoints[]> done = new Deferred<DataPoints[]>();
+    final int tasks = Math.min(parallelism, results.length);
+    final Evaluation evaluation = new Evaluation(results, tasks, done);
+    for (int i = 0; i < tasks; i++) {
+      executor.execute(evaluation);
+    }
+    return done;
+  }
+
+  /** Stops the aggregating threads once the backlog is done. */
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Collects the stats of the evaluator.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("query.evaluate.queue", executor.getQueue().size());
+    collector.record("query.evaluate.active", executor.getActiveCount());
+    collector.record("query.evaluate.groups", groups.get());
+    collector.record("query.evaluate.rejected", rejected.get());
+    synchronized (evaluate_latency) {
+      collector.record("query.evaluate.latency", evaluate_latency, null);
+    }
+  }
+
+  /**
+   * Aggregation of the groups of one query, run by several tasks at once
+   * which each take the next group left.
+   */
+  private final class Evaluation implements Runnable {
+    private final DataPoints[] results;
+    private final Deferred<DataPoints[]> done;
+
+    /** Index of the next group to aggregate. */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Number of tasks still running. */
+    private final AtomicInteger running;
+
+    /** The first exception thrown while aggregating a group. */
+    private final AtomicReference<Exception> error =
+      new AtomicReference<Exception>();
+
+    Evaluation(final DataPoints[] results, final int tasks,
+               final Deferred<DataPoints[]> done) {
+      this.results = results;
+      this.done = done;
+      running = new AtomicInteger(tasks);
+    }
+
+    public void run() {
+      try {
+        int i;
+        while (error.get() == null
+               && (i = next.getAndIncrement()) < results.length) {
+          if (results[i] instanceof SpanGroup) {
+            final long start = System.nanoTime();
+            ((SpanGroup) results[i]).materialize();
+            final int millis = (int) ((System.nanoTime() - start) / 1000000);
+            groups.incrementAndGet();
+            synchronized (evaluate_latency) {
+              evaluate_latency.add(millis);
+            }
+          }
+        }
+      } catch (Exception e) {
+        error.compareAndSet(null, e);
+      } finally {
+        if (running.decrementAndGet() == 0) {
+          final Exception e = error.get();
+          if (e != null) {
+            done.callback(e);
+          } else {
+            done.callback(results);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs tasks on the calling thread when the backlog is full, or once the
+   * pool is shut down, as the other tasks of the query may already be
+   * queued and the query must still complete.
+   */
+  private final class CallerRuns implements RejectedExecutionHandler {
+    public void rejectedExecution(final Runnable r,
+                                  final ThreadPoolExecutor executor) {
+      rejected.incrementAndGet();
+      r.run();
+    }
+  }
+
+  private static final class EvaluatorThdFactory implements ThreadFactory {
+    private final AtomicInteger id = new AtomicInteger(0);
+
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r,
+          "GroupEvaluator #" + id.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
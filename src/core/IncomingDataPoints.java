@@ -285,6 +285,8 @@ final class IncomingDataPoints implements WritableDataPoints {
     // Java is so stupid with its auto-promotion of int to float.
     final byte[] qualifier = Internal.buildQualifier(timestamp, flags);
 
+    tsdb.invalidateCachedRow(row);
+    tsdb.updateLastPoint(row, timestamp, value, flags);
     final PutRequest point = new PutRequest(tsdb.table, row, TSDB.FAMILY,
                                             qualifier, value);
     // TODO(tsuna): The following timing is rather useless.  First of all,
@@ -308,7 +310,8 @@ final class IncomingDataPoints implements WritableDataPoints {
 
     // TODO(tsuna): Add an errback to handle some error cases here.
     point.setDurable(!batch_import);
-    return tsdb.client.put(point)/*.addBoth(cb)*/;
+    return tsdb.invalidateCachedRowWhenWritten(row,
+        tsdb.client.put(point)/*.addBoth(cb)*/);
   }
 
   private void grow() {
@@ -710,6 +710,70 @@ public final class Internal {
     }
   }
 
+  /**
+   * Writes the 2 or 4 byte qualifier of a data point into an existing buffer,
+   * the same one {@link #buildQualifier} would return, without allocating
+   * anything.
+   * @param buf The buffer to write to
+   * @param offset Where to write the qualifier in the buffer
+   * @param timestamp A Unix epoch timestamp in seconds or milliseconds
+   * @param flags Flags to set on the qualifier (length &| float)
+   * @return The number of bytes written, 2 or 4
+   * @throws ArrayIndexOutOfBoundsException if the buffer is too small
+   * @since 2.1
+   */
+  public static int writeQualifier(final byte[] buf, final int offset,
+      final long timestamp, final short flags) {
+    if ((timestamp & Const.SECOND_MASK) != 0) {
+      final long base_time = ((timestamp / 1000) - ((timestamp / 1000) 
+          % Const.MAX_TIMESPAN));
+      final int qual = (int) (((timestamp - (base_time * 1000) 
+          << (Const.MS_FLAG_BITS)) | flags) | Const.MS_FLAG);
+      Bytes.setInt(buf, qual, offset);
+      return 4;
+    } else {
+      final long base_time = (timestamp - (timestamp % Const.MAX_TIMESPAN));
+      final short qual = (short) ((timestamp - base_time) << Const.FLAG_BITS
+          | flags);
+      Bytes.setShort(buf, qual, offset);
+      return 2;
+    }
+  }
+
+  /**
+   * Writes a value on as many bytes as the length encoded in its flags, in
+   * big endian order, without allocating anything.
+   * @param buf The buffer to write to
+   * @param offset Where to write the value in the buffer
+   * @param value An integer value, or the raw bits of a floating point value
+   * @param flags Flags of the qualifier, only the length bits are used
+   * @return The number of bytes written, 1, 2, 4 or 8
+   * @throws ArrayIndexOutOfBoundsException if the buffer is too small
+   * @since 2.1
+   */
+  public static int writeValue(final byte[] buf, final int offset,
+      final long value, final short flags) {
+    final int length = (flags & Const.LENGTH_MASK) + 1;
+    switch (length) {
+      case 1:
+        buf[offset] = (byte) value;
+        break;
+      case 2:
+        Bytes.setShort(buf, (short) value, offset);
+        break;
+      case 4:
+        Bytes.setInt(buf, (int) value, offset);
+        break;
+      case 8:
+        Bytes.setLong(buf, value, offset);
+        break;
+      default:
+        throw new IllegalDataException("Invalid value length " + length
+            + " in flags " + flags);
+    }
+    return length;
+  }
+
   /**
    * Checks the qualifier to verify that it has data and that the offset is
    * within bounds
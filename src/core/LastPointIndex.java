@@ -0,0 +1,493 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * Index of the last data point written to every time series, so that the
+ * latest values can be read without scanning the current hour in HBase.
+ * <p>
+ * Series are identified by their TSUID and spread over a fixed number of
+ * shards, each guarded by its own lock.  A shard is an open addressing hash
+ * table whose slots point to entries stored in parallel primitive arrays,
+ * the TSUIDs being appended to a single byte array, so that an entry takes
+ * about 40 bytes on top of its TSUID and updating a series allocates nothing.
+ * The entries of each metric are also chained together, so that a lookup by
+ * metric only goes through the series of that metric.
+ * Data points older than the one indexed for their series are ignored.
+ * <p>
+ * Only the series written through this TSD since it started are indexed,
+ * up to {@code max_series} of them, after which new series are left out.
+ * Entries are never removed.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.1
+ */
+public final class LastPointIndex {
+
+  /** Number of bits of the hash of a TSUID that select its shard. */
+  private static final int SHARD_BITS = 4;
+
+  /** Initial number of entries of a shard. */
+  private static final int INITIAL_CAPACITY = 64;
+
+  /** The TSDB we belong to. */
+  private final TSDB tsdb;
+
+  private final Shard[] shards = new Shard[1 << SHARD_BITS];
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to
+   * @param max_series Maximum number of series indexed
+   */
+  LastPointIndex(final TSDB tsdb, final int max_series) {
+    this.tsdb = tsdb;
+    final int max_shard_series = Math.max(1, max_series / shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new Shard(max_shard_series);
+    }
+  }
+
+  /**
+   * Records a data point as the last one of its series, unless a later one
+   * was already recorded.
+   * @param row The row key of the data point, with its base time
+   * @param timestamp The timestamp of the data point, in seconds or
+   * milliseconds
+   * @param is_integer Whether the value is an integer
+   * @param value The value, or the raw bits of the double if it isn't an
+   * integer
+   */
+  void update(final byte[] row, final long timestamp,
+              final boolean is_integer, final long value) {
+    final short metric_width = tsdb.metrics.width();
+    final int hash = hash(row, metric_width, Const.TIMESTAMP_BYTES);
+    final long ms = (timestamp & Const.SECOND_MASK) != 0 ? timestamp
+      : timestamp * 1000;
+    shardFor(hash).update(row, metric_width, Const.TIMESTAMP_BYTES, hash, ms,
+                          is_integer, value);
+  }
+
+  /**
+   * Returns the last data point of a series.
+   * @param tsuid The TSUID of the series
+   * @return The data point, or null if the series isn't indexed
+   */
+  public LastPoint get(final byte[] tsuid) {
+    final int hash = hash(tsuid, tsuid.length, 0);
+    return shardFor(hash).get(tsuid, hash);
+  }
+
+  /**
+   * Returns the last data points of the series of a metric that match the
+   * given tags.  Like for queries, a tag value may be {@code *} to match
+   * every value or a list of values separated by {@code |}, and the series
+   * may have more tags than given.
+   * @param metric The name of the metric
+   * @param tags The tags to match, possibly empty
+   * @return The data points, one per series, in no particular order
+   * @throws NoSuchUniqueName if the metric, a tag name or a tag value
+   * doesn't exist
+   */
+  public ArrayList<LastPoint> find(final String metric,
+                                   final Map<String, String> tags) {
+    final Filter filter = new Filter(tsdb.metrics.getId(metric),
+        tsdb.tag_names.width(), tsdb.tag_values.width());
+    for (final Map.Entry<String, String> tag : tags.entrySet()) {
+      final byte[] name = tsdb.tag_names.getId(tag.getKey());
+      if ("*".equals(tag.getValue())) {
+        filter.add(name, null);
+        continue;
+      }
+      final String[] names = Tags.splitString(tag.getValue(), '|');
+      final byte[][] values = new byte[names.length][];
+      for (int i = 0; i < names.length; i++) {
+        values[i] = tsdb.tag_values.getId(names[i]);
+      }
+      filter.add(name, values);
+    }
+    final ArrayList<LastPoint> points = new ArrayList<LastPoint>();
+    for (final Shard shard : shards) {
+      shard.find(filter, points);
+    }
+    return points;
+  }
+
+  /**
+   * Collects the stats of the index.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    long series = 0;
+    long dropped = 0;
+    for (final Shard shard : shards) {
+      synchronized (shard) {
+        series += shard.size;
+        dropped += shard.dropped;
+      }
+    }
+    collector.record("last.series", series);
+    collector.record("last.dropped", dropped);
+  }
+
+  private Shard shardFor(final int hash) {
+    return shards[hash & (shards.length - 1)];
+  }
+
+  /**
+   * Packs the metric UID at the start of a buffer into a long.  UIDs wider
+   * than 8 bytes share keys, which is fine as the metric of every entry is
+   * compared anyway.
+   * @param buf The TSUID or row key
+   * @param width The width of metric UIDs
+   */
+  private static long metricKey(final byte[] buf, final int width) {
+    long key = 0;
+    for (int i = 0; i < width; i++) {
+      key = (key << 8) | (buf[i] & 0xFF);
+    }
+    return key;
+  }
+
+  /**
+   * Hashes the TSUID in a buffer, skipping the bytes that come between the
+   * metric and the tags, e.g. the base time of a row key.
+   * @param buf The TSUID or row key
+   * @param split Where the bytes to skip start
+   * @param gap The number of bytes to skip
+   */
+  private static int hash(final byte[] buf, final int split, final int gap) {
+    int h = 1;
+    for (int i = 0; i < split; i++) {
+      h = 31 * h + buf[i];
+    }
+    for (int i = split + gap; i < buf.length; i++) {
+      h = 31 * h + buf[i];
+    }
+    // Spread the bits since the low order bytes of UIDs tend to look alike.
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * A slice of the index with its own lock.  The slots hold the index of
+   * their entry plus one, 0 meaning the slot is free, and are never more
+   * than half full.
+   */
+  private final class Shard {
+    private final int max_series;
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    /** Entry {@code i} spans {@code keys[key_offsets[i]..key_offsets[i + 1]]}. */
+    private int[] key_offsets = new int[INITIAL_CAPACITY + 1];
+    private byte[] keys = new byte[INITIAL_CAPACITY * 16];
+    /** Timestamps of the data points in milliseconds. */
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private long[] values = new long[INITIAL_CAPACITY];
+    private boolean[] integers = new boolean[INITIAL_CAPACITY];
+    /** The previous entry of the same metric, or -1 for the first one. */
+    private int[] previous_of_metric = new int[INITIAL_CAPACITY];
+    /** The last entry added for each metric, by {@link #metricKey}. */
+    private final HashMap<Long, Integer> last_of_metric =
+      new HashMap<Long, Integer>();
+    private int size;
+    /** Number of data points of series left out as the shard was full. */
+    private long dropped;
+
+    Shard(final int max_series) {
+      this.max_series = max_series;
+    }
+
+    synchronized void update(final byte[] buf, final int split,
+                             final int gap, final int hash, final long ms,
+                             final boolean is_integer, final long value) {
+      int entry = find(buf, split, gap, hash);
+      if (entry < 0) {
+        if (size >= max_series) {
+          dropped++;
+          return;
+        }
+        slots[-entry - 1] = size + 1;
+        entry = append(buf, split, gap, hash);
+      } else if (ms < timestamps[entry]) {
+        return;
+      }
+      timestamps[entry] = ms;
+      values[entry] = value;
+      integers[entry] = is_integer;
+    }
+
+    synchronized LastPoint get(final byte[] tsuid, final int hash) {
+      final int entry = find(tsuid, tsuid.length, 0, hash);
+      return entry < 0 ? null : point(entry);
+    }
+
+    synchronized void find(final Filter filter,
+                           final ArrayList<LastPoint> points) {
+      final Integer last = last_of_metric.get(
+          metricKey(filter.metric, filter.metric.length));
+      if (last == null) {
+        return;
+      }
+      for (int i = last; i >= 0; i = previous_of_metric[i]) {
+        if (filter.matches(keys, key_offsets[i], key_offsets[i + 1])) {
+          points.add(point(i));
+        }
+      }
+    }
+
+    private LastPoint point(final int entry) {
+      return new LastPoint(tsdb,
+          Arrays.copyOfRange(keys, key_offsets[entry], key_offsets[entry + 1]),
+          timestamps[entry], integers[entry], values[entry]);
+    }
+
+    /**
+     * Looks a TSUID up.
+     * @return The index of its entry, or {@code -(free slot) - 1} if it
+     * isn't in the shard
+     */
+    private int find(final byte[] buf, final int split, final int gap,
+                     final int hash) {
+      final int mask = slots.length - 1;
+      int slot = (hash >>> SHARD_BITS) & mask;
+      while (true) {
+        final int entry = slots[slot] - 1;
+        if (entry < 0) {
+          return -slot - 1;
+        }
+        if (hashes[entry] == hash && keyEquals(entry, buf, split, gap)) {
+          return entry;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    private boolean keyEquals(final int entry, final byte[] buf,
+                              final int split, final int gap) {
+      final int offset = key_offsets[entry];
+      if (key_offsets[entry + 1] - offset != buf.length - gap) {
+        return false;
+      }
+      for (int i = 0; i < split; i++) {
+        if (keys[offset + i] != buf[i]) {
+          return false;
+        }
+      }
+      for (int i = split + gap, j = offset + split; i < buf.length; i++, j++) {
+        if (keys[j] != buf[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Adds an entry, whose slot was already taken. */
+    private int append(final byte[] buf, final int split, final int gap,
+                       final int hash) {
+      if (size == hashes.length) {
+        final int capacity = size * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        key_offsets = Arrays.copyOf(key_offsets, capacity + 1);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        values = Arrays.copyOf(values, capacity);
+        integers = Arrays.copyOf(integers, capacity);
+        previous_of_metric = Arrays.copyOf(previous_of_metric, capacity);
+      }
+      final int offset = key_offsets[size];
+      final int length = buf.length - gap;
+      if (offset + length > keys.length) {
+        keys = Arrays.copyOf(keys, Math.max(keys.length * 2, offset + length));
+      }
+      System.arraycopy(buf, 0, keys, offset, split);
+      System.arraycopy(buf, split + gap, keys, offset + split,
+                       buf.length - split - gap);
+      key_offsets[size + 1] = offset + length;
+      hashes[size] = hash;
+      final Integer previous = last_of_metric.put(metricKey(buf, split), size);
+      previous_of_metric[size] = previous == null ? -1 : previous;
+      final int entry = size++;
+      if (size * 2 > slots.length) {
+        rehash();
+      }
+      return entry;
+    }
+
+    private void rehash() {
+      slots = new int[slots.length * 2];
+      final int mask = slots.length - 1;
+      for (int i = 0; i < size; i++) {
+        int slot = (hashes[i] >>> SHARD_BITS) & mask;
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = i + 1;
+      }
+    }
+  }
+
+  /** Matches the TSUIDs of a metric against the tags of a lookup. */
+  private static final class Filter {
+    private final byte[] metric;
+    private final short name_width;
+    private final short value_width;
+    /** The tag names to match. */
+    private final ArrayList<byte[]> names = new ArrayList<byte[]>();
+    /** The values accepted for each tag name, null to accept any. */
+    private final ArrayList<byte[][]> values = new ArrayList<byte[][]>();
+
+    Filter(final byte[] metric, final short name_width,
+           final short value_width) {
+      this.metric = metric;
+      this.name_width = name_width;
+      this.value_width = value_width;
+    }
+
+    void add(final byte[] name, final byte[][] accepted) {
+      names.add(name);
+      values.add(accepted);
+    }
+
+    /** Tells whether the TSUID in {@code keys[start..end]} matches. */
+    boolean matches(final byte[] keys, final int start, final int end) {
+      if (end - start < metric.length || !regionEquals(keys, start, metric)) {
+        return false;
+      }
+      final int tag_width = name_width + value_width;
+      for (int t = 0; t < names.size(); t++) {
+        final byte[] name = names.get(t);
+        int pos = start + metric.length;
+        while (pos < end && !regionEquals(keys, pos, name)) {
+          pos += tag_width;
+        }
+        if (pos >= end) {
+          return false;
+        }
+        final byte[][] accepted = values.get(t);
+        if (accepted == null) {
+          continue;
+        }
+        boolean found = false;
+        for (final byte[] value : accepted) {
+          if (regionEquals(keys, pos + name_width, value)) {
+            found = true;
+            break;
+          }
+        }
+        if (!found) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean regionEquals(final byte[] buf, final int offset,
+                                        final byte[] expected) {
+      for (int i = 0; i < expected.length; i++) {
+        if (buf[offset + i] != expected[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** The last data point of a series. */
+  public static final class LastPoint implements DataPoint {
+    private final TSDB tsdb;
+    private final byte[] tsuid;
+    private final long timestamp;
+    private final boolean is_integer;
+    private final long value;
+
+    LastPoint(final TSDB tsdb, final byte[] tsuid, final long timestamp,
+              final boolean is_integer, final long value) {
+      this.tsdb = tsdb;
+      this.tsuid = tsuid;
+      this.timestamp = timestamp;
+      this.is_integer = is_integer;
+      this.value = value;
+    }
+
+    /** Returns the TSUID of the series as a hex string. */
+    public String getTSUID() {
+      return UniqueId.uidToString(tsuid);
+    }
+
+    /** Returns the name of the metric of the series. */
+    public Deferred<String> metricNameAsync() {
+      return tsdb.metrics.getNameAsync(
+          Arrays.copyOfRange(tsuid, 0, tsdb.metrics.width()));
+    }
+
+    /** Returns the tags of the series. */
+    public Deferred<Map<String, String>> getTagsAsync() {
+      // Tags.getTagsAsync reads the tags of a row key, after its base time.
+      final short metric_width = tsdb.metrics.width();
+      final byte[] row = new byte[tsuid.length + Const.TIMESTAMP_BYTES];
+      System.arraycopy(tsuid, 0, row, 0, metric_width);
+      System.arraycopy(tsuid, metric_width, row,
+          metric_width + Const.TIMESTAMP_BYTES, tsuid.length - metric_width);
+      return Tags.getTagsAsync(tsdb, row);
+    }
+
+    @Override
+    public long timestamp() {
+      return timestamp;
+    }
+
+    @Override
+    public boolean isInteger() {
+      return is_integer;
+    }
+
+    @Override
+    public long longValue() {
+      if (is_integer) {
+        return value;
+      }
+      throw new ClassCastException("value is not a long in " + this);
+    }
+
+    @Override
+    public double doubleValue() {
+      if (!is_integer) {
+        return Double.longBitsToDouble(value);
+      }
+      throw new ClassCastException("value is not a double in " + this);
+    }
+
+    @Override
+    public double toDouble() {
+      return is_integer ? value : Double.longBitsToDouble(value);
+    }
+
+    @Override
+    public String toString() {
+      return "LastPoint(tsuid=" + getTSUID() + ", timestamp=" + timestamp
+        + ", value=" + (is_integer ? Long.toString(value)
+                        : Double.toString(Double.longBitsToDouble(value)))
+        + ')';
+    }
+  }
+}
@@ -0,0 +1,330 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * A mergeable sketch of a distribution of values, to estimate its quantiles
+ * without keeping the values around.
+ * <p>
+ * Values are counted in buckets whose bounds grow geometrically, so that
+ * every quantile is estimated within {@link #RELATIVE_ACCURACY} of the value
+ * of that rank.  Merging two sketches adds their bucket counts up, which
+ * gives the same sketch as adding the values of both to a single one.  Up to
+ * {@link #MAX_BUCKETS} buckets are kept for each sign: past that, the
+ * buckets closest to 0 are folded together.
+ * <p>
+ * Encoded, a sketch is the count of zeros, the minimum and the maximum,
+ * followed by the buckets of positive values then those of negative ones.
+ * @since 2.1
+ */
+final class QuantileSketch {
+  /** Relative error of the quantiles estimated. */
+  static final double RELATIVE_ACCURACY = 0.01;
+
+  /** Maximum number of buckets of values of each sign. */
+  static final int MAX_BUCKETS = 2048;
+
+  /** Ratio between the upper and lower bounds of a bucket. */
+  private static final double GAMMA =
+    (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+  private static final double LOG_GAMMA = Math.log(GAMMA);
+
+  /** Magnitude under which values are counted as zeros. */
+  private static final double MIN_MAGNITUDE = 1e-9;
+
+  /** Positive values, by bucket. */
+  private final Buckets positives = new Buckets();
+  /** Negative values, by bucket of their magnitude. */
+  private final Buckets negatives = new Buckets();
+  private long zeros;
+  private long count;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /** @return the number of values in this sketch */
+  long count() {
+    return count;
+  }
+
+  /**
+   * Adds a value to this sketch.  NaNs and infinities are ignored.
+   * @param value The value to add
+   */
+  void add(final double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return;
+    }
+    if (value > MIN_MAGNITUDE) {
+      positives.add(index(value), 1);
+    } else if (value < -MIN_MAGNITUDE) {
+      negatives.add(index(-value), 1);
+    } else {
+      zeros++;
+    }
+    count++;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Adds the values of another sketch to this one.
+   * @param other The sketch to merge, left untouched
+   */
+  void merge(final QuantileSketch other) {
+    if (other.count == 0) {
+      return;
+    }
+    positives.merge(other.positives);
+    negatives.merge(other.negatives);
+    zeros += other.zeros;
+    count += other.count;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Estimates a quantile of the values of this sketch.
+   * @param quantile The quantile, between 0 and 1
+   * @return The estimated value of the smallest rank to have at least
+   * {@code quantile * count} values up to it, or NaN if this sketch is empty
+   */
+  double quantile(final double quantile) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    final long rank = (long) Math.ceil(quantile * count) - 1;
+    if (rank <= 0) {
+      return min;
+    } else if (rank >= count - 1) {
+      return max;
+    }
+    long seen = 0;
+    // Negative values first, from the largest magnitude down.
+    final long[] negative_counts = negatives.counts;
+    for (int i = negatives.length() - 1; i >= 0; i--) {
+      seen += negative_counts[i];
+      if (seen > rank) {
+        return clamp(-value(negatives.offset + i));
+      }
+    }
+    seen += zeros;
+    if (seen > rank) {
+      return 0;
+    }
+    final long[] positive_counts = positives.counts;
+    final int length = positives.length();
+    for (int i = 0; i < length; i++) {
+      seen += positive_counts[i];
+      if (seen > rank) {
+        return clamp(value(positives.offset + i));
+      }
+    }
+    return max;
+  }
+
+  /** @return the sketch, encoded */
+  byte[] encode() {
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+    writeVarLong(buf, zeros);
+    writeLong(buf, Double.doubleToRawLongBits(min));
+    writeLong(buf, Double.doubleToRawLongBits(max));
+    positives.encode(buf);
+    negatives.encode(buf);
+    return buf.toByteArray();
+  }
+
+  /**
+   * Decodes a sketch.
+   * @param value An array holding an encoded sketch
+   * @param offset The offset of the sketch in the array, up to its end
+   * @throws IllegalDataException if it isn't an encoded sketch
+   */
+  static QuantileSketch decode(final byte[] value, final int offset) {
+    final QuantileSketch sketch = new QuantileSketch();
+    final int[] pos = { offset };
+    try {
+      sketch.zeros = readVarLong(value, pos);
+      sketch.min = Double.longBitsToDouble(readLong(value, pos));
+      sketch.max = Double.longBitsToDouble(readLong(value, pos));
+      sketch.count = sketch.zeros + sketch.positives.decode(value, pos)
+        + sketch.negatives.decode(value, pos);
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalDataException("Truncated quantile sketch: "
+          + Arrays.toString(value), e);
+    }
+    if (pos[0] != value.length) {
+      throw new IllegalDataException("Quantile sketch followed by "
+          + (value.length - pos[0]) + " extra bytes: "
+          + Arrays.toString(value));
+    }
+    return sketch;
+  }
+
+  /** Estimates are within the exact bounds of the values. */
+  private double clamp(final double estimate) {
+    return Math.max(min, Math.min(max, estimate));
+  }
+
+  /** @return the bucket of a magnitude over {@link #MIN_MAGNITUDE} */
+  private static int index(final double magnitude) {
+    return (int) Math.ceil(Math.log(magnitude) / LOG_GAMMA);
+  }
+
+  /** @return the magnitude the closest to every one in a bucket */
+  private static double value(final int index) {
+    return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+  }
+
+  /**
+   * Counts of values by bucket, in an array covering a range of consecutive
+   * buckets that grows as needed, up to {@link #MAX_BUCKETS}.
+   */
+  private static final class Buckets {
+    /** Initial number of buckets allocated. */
+    private static final int INITIAL_LENGTH = 32;
+
+    /** Count of values by bucket, from {@code offset}, or null if empty. */
+    long[] counts;
+    /** Index of the first bucket of {@code counts}. */
+    int offset;
+
+    /** @return how many buckets are covered, 0 if empty */
+    int length() {
+      return counts == null ? 0 : counts.length;
+    }
+
+    /**
+     * Counts values in a bucket.  Buckets too far below the largest one are
+     * folded into the lowest bucket kept.
+     */
+    void add(final int index, final long n) {
+      if (counts == null) {
+        counts = new long[INITIAL_LENGTH];
+        offset = index;
+      } else if (index < offset || index >= offset + counts.length) {
+        resize(index);
+      }
+      counts[Math.max(index, offset) - offset] += n;
+    }
+
+    /** Grows the range of buckets covered to {@code index}. */
+    private void resize(final int index) {
+      final int high = Math.max(index, offset + counts.length - 1);
+      final int low = Math.max(Math.min(index, offset),
+                               high - MAX_BUCKETS + 1);
+      // At least double to not copy the counts on every new bucket.
+      final int length = Math.min(MAX_BUCKETS,
+          Math.max(high - low + 1, counts.length * 2));
+      final int new_offset = index < offset ? high - length + 1 : low;
+      if (length == counts.length && new_offset == offset) {
+        return;  // Already at the maximum, the index gets folded.
+      }
+      final long[] resized = new long[length];
+      for (int i = 0; i < counts.length; i++) {
+        resized[Math.max(offset + i, new_offset) - new_offset] += counts[i];
+      }
+      counts = resized;
+      offset = new_offset;
+    }
+
+    void merge(final Buckets other) {
+      for (int i = 0; i < other.length(); i++) {
+        if (other.counts[i] != 0) {
+          add(other.offset + i, other.counts[i]);
+        }
+      }
+    }
+
+    /** Writes the non-empty range of buckets. */
+    void encode(final ByteArrayOutputStream buf) {
+      int first = 0;
+      int last = length() - 1;
+      while (first <= last && counts[first] == 0) {
+        first++;
+      }
+      while (last >= first && counts[last] == 0) {
+        last--;
+      }
+      writeVarLong(buf, last - first + 1);
+      if (last < first) {
+        return;
+      }
+      final int index = offset + first;
+      writeVarLong(buf, (index << 1) ^ (index >> 31));  // ZigZag.
+      for (int i = first; i <= last; i++) {
+        writeVarLong(buf, counts[i]);
+      }
+    }
+
+    /** Reads the buckets written by {@link #encode}, returns their total. */
+    long decode(final byte[] value, final int[] pos) {
+      final long length = readVarLong(value, pos);
+      if (length == 0) {
+        return 0;
+      } else if (length < 0 || length > MAX_BUCKETS) {
+        throw new IllegalDataException("Invalid number of buckets " + length
+            + " in quantile sketch: " + Arrays.toString(value));
+      }
+      final int zigzag = (int) readVarLong(value, pos);
+      offset = (zigzag >>> 1) ^ -(zigzag & 1);
+      counts = new long[(int) length];
+      long total = 0;
+      for (int i = 0; i < length; i++) {
+        counts[i] = readVarLong(value, pos);
+        total += counts[i];
+      }
+      return total;
+    }
+  }
+
+  private static void writeLong(final ByteArrayOutputStream buf,
+                                final long n) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      buf.write((int) (n >>> shift));
+    }
+  }
+
+  private static long readLong(final byte[] value, final int[] pos) {
+    long n = 0;
+    for (int i = 0; i < 8; i++) {
+      n = (n << 8) | (value[pos[0]++] & 0xFF);
+    }
+    return n;
+  }
+
+  /** Writes a non-negative number on 7 bits per byte, lowest bits first. */
+  private static void writeVarLong(final ByteArrayOutputStream buf, long n) {
+    while ((n & ~0x7FL) != 0) {
+      buf.write((int) ((n & 0x7F) | 0x80));
+      n >>>= 7;
+    }
+    buf.write((int) n);
+  }
+
+  private static long readVarLong(final byte[] value, final int[] pos) {
+    long n = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = value[pos[0]++];
+      n |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return n;
+      }
+    }
+    throw new IllegalDataException("Invalid varint in quantile sketch: "
+        + Arrays.toString(value));
+  }
+
+}
@@ -0,0 +1,282 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Cache of the rows queries read, one entry per hour of data and row key
+ * filter, so that queries issued over and over, such as the ones of
+ * dashboards refreshing every few seconds, only scan the hours they haven't
+ * read yet and reuse the rows of the other hours.
+ * <p>
+ * Only hours that ended at least {@code min_age} seconds ago are cached, as
+ * data points usually stop coming in for them by then.  The rows are cached
+ * as they were decoded, before they're grouped and aggregated, because the
+ * results of an hour depend on the data points around it once interpolated,
+ * downsampled or turned into rates.  Hence queries that only differ by their
+ * aggregator, downsampling or rate options share the same entries.
+ * <p>
+ * Writes to a cached hour drop every entry of the metric for that hour, see
+ * {@link #invalidate}, once as they're sent and again once HBase answered
+ * them, so that rows scanned while a write was in flight don't stay cached.
+ * Only the writes of this TSD are seen.  The memory used by the entries is
+ * estimated and kept under {@code max_bytes} by evicting the least recently
+ * used entries.
+ * <p>
+ * This class is thread-safe.
+ */
+final class QueryCache {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Rough memory overhead of a cached row, besides its bytes. */
+  private static final int ROW_OVERHEAD = 96;
+
+  /** Rough memory used by a cached annotation. */
+  private static final int ANNOTATION_BYTES = 256;
+
+  /** Maximum memory used by the entries, in bytes. */
+  private final long max_bytes;
+
+  /** Number of seconds after the end of an hour before it's cached. */
+  private final long min_age;
+
+  /** Entries by key, from the least to the most recently used. */
+  private final LinkedHashMap<String, Hour> hours =
+    new LinkedHashMap<String, Hour>(16, 0.75f, true);
+
+  /** Keys of the entries by metric and base time, see {@link #prefix}. */
+  private final HashMap<String, ArrayList<String>> keys =
+    new HashMap<String, ArrayList<String>>();
+
+  /** Estimated memory used by the entries. */
+  private long bytes;
+
+  /**
+   * Incremented by every invalidation, so that rows scanned before a write
+   * aren't cached after it.
+   */
+  private long generation;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long invalidations;
+
+  /**
+   * Constructor.
+   * @param max_bytes Maximum memory used by the entries, in bytes
+   * @param min_age Number of seconds after the end of an hour before it's
+   * cached
+   */
+  QueryCache(final long max_bytes, final long min_age) {
+    this.max_bytes = max_bytes;
+    this.min_age = min_age;
+  }
+
+  /**
+   * Tells whether the rows of an hour can be cached, i.e. whether it ended
+   * long enough ago.
+   * @param base_time The base time of the hour, in seconds
+   * @param now The current time, in seconds
+   */
+  boolean isCacheable(final long base_time, final long now) {
+    return base_time + Const.MAX_TIMESPAN + min_age <= now;
+  }
+
+  /**
+   * Returns the part of the key of the entries that's common to every query
+   * of a metric in a given hour, which is also the start of its row keys.
+   * @param metric The UID of the metric
+   * @param base_time The base time of the hour, in seconds
+   */
+  static String prefix(final byte[] metric, final long base_time) {
+    final byte[] prefix = new byte[metric.length + Const.TIMESTAMP_BYTES];
+    System.arraycopy(metric, 0, prefix, 0, metric.length);
+    Bytes.setInt(prefix, (int) base_time, metric.length);
+    return new String(prefix, CHARSET);
+  }
+
+  /**
+   * Returns the key of an entry.
+   * @param prefix The metric and the hour, see {@link #prefix}
+   * @param filter The row key regexp of the query, or null if it has none
+   */
+  static String key(final String prefix, final String filter) {
+    return filter == null ? prefix : prefix + filter;
+  }
+
+  /**
+   * Returns the current generation of the cache, to give to {@link #put}
+   * once the rows are scanned.
+   */
+  synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * Returns the rows cached for an hour.
+   * @param key The key of the entry, see {@link #key}
+   * @return The cached rows, or null if they aren't cached
+   */
+  synchronized Hour get(final String key) {
+    final Hour hour = hours.get(key);
+    if (hour == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return hour;
+  }
+
+  /**
+   * Caches the rows of an hour, unless the metric was written to since the
+   * rows were scanned or they're too large.
+   * @param prefix The metric and the hour, see {@link #prefix}
+   * @param key The key of the entry, see {@link #key}
+   * @param hour The rows to cache, which must not be modified anymore
+   * @param generation The generation of the cache from before the rows were
+   * scanned
+   */
+  synchronized void put(final String prefix, final String key,
+                        final Hour hour, final long generation) {
+    if (generation != this.generation || hour.bytes > max_bytes) {
+      return;
+    }
+    final Hour old = hours.put(key, hour);
+    if (old != null) {
+      bytes -= old.bytes;
+    } else {
+      ArrayList<String> prefixed = keys.get(prefix);
+      if (prefixed == null) {
+        prefixed = new ArrayList<String>(1);
+        keys.put(prefix, prefixed);
+      }
+      prefixed.add(key);
+    }
+    bytes += hour.bytes;
+    final Iterator<Map.Entry<String, Hour>> it = hours.entrySet().iterator();
+    while (bytes > max_bytes && it.hasNext()) {
+      final Map.Entry<String, Hour> eldest = it.next();
+      it.remove();
+      bytes -= eldest.getValue().bytes;
+      final String eldest_prefix = eldest.getValue().prefix;
+      final ArrayList<String> prefixed = keys.get(eldest_prefix);
+      prefixed.remove(eldest.getKey());
+      if (prefixed.isEmpty()) {
+        keys.remove(eldest_prefix);
+      }
+      evictions++;
+    }
+  }
+
+  /**
+   * Drops the cached rows of the hour a row belongs to, as it's being
+   * written to.  Rows of hours that can't be cached yet are ignored.
+   * @param row The key of the row written to
+   * @param metric_width The width of the metric UIDs
+   */
+  void invalidate(final byte[] row, final short metric_width) {
+    final long base_time =
+      Bytes.getUnsignedInt(row, metric_width);
+    if (!isCacheable(base_time, System.currentTimeMillis() / 1000)) {
+      return;
+    }
+    final String prefix =
+      new String(row, 0, metric_width + Const.TIMESTAMP_BYTES, CHARSET);
+    synchronized (this) {
+      generation++;
+      final ArrayList<String> prefixed = keys.remove(prefix);
+      if (prefixed == null) {
+        return;
+      }
+      for (final String key : prefixed) {
+        bytes -= hours.remove(key).bytes;
+        invalidations++;
+      }
+    }
+  }
+
+  /**
+   * Collects the stats of the cache.
+   * @param collector The collector to use.
+   */
+  synchronized void collectStats(final StatsCollector collector) {
+    collector.record("query.cache.hits", hits);
+    collector.record("query.cache.misses", misses);
+    collector.record("query.cache.evictions", evictions);
+    collector.record("query.cache.invalidations", invalidations);
+    collector.record("query.cache.entries", hours.size());
+    collector.record("query.cache.bytes", bytes);
+  }
+
+  /**
+   * The rows of one hour that matched a query, compacted, with their
+   * annotations.
+   */
+  static final class Hour {
+    /** The metric and the hour, see {@link QueryCache#prefix}. */
+    private final String prefix;
+
+    /** The keys of the rows, in order. */
+    final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+
+    /** The compacted rows, null for rows with only annotations. */
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+
+    /** The annotations of the rows, null for rows without any. */
+    final ArrayList<List<Annotation>> annotations =
+      new ArrayList<List<Annotation>>();
+
+    /** Number of compacted rows. */
+    int nrows;
+
+    /** Estimated memory used by the rows. */
+    long bytes;
+
+    Hour(final String prefix) {
+      this.prefix = prefix;
+    }
+
+    /**
+     * Adds a row.
+     * @param key The key of the row
+     * @param row The row once compacted, or null if it only had annotations
+     * @param notes The annotations of the row
+     */
+    void add(final byte[] key, final KeyValue row,
+             final List<Annotation> notes) {
+      keys.add(key);
+      rows.add(row);
+      annotations.add(notes.isEmpty() ? null : notes);
+      bytes += ROW_OVERHEAD + key.length + notes.size() * ANNOTATION_BYTES;
+      if (row != null) {
+        nrows++;
+        bytes += row.qualifier().length + row.value().length;
+      }
+    }
+  }
+}
@@ -0,0 +1,135 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Bounded thread pool that decodes the rows read by query scanners, so that
+ * compacting rows and building {@link Span}s doesn't happen on the threads of
+ * the HBase client, which also serve the writes and every other query.
+ * <p>
+ * Each scanner hands over one batch of rows at a time and only asks for the
+ * batch after next once it's decoded, so rows of a scanner are still decoded
+ * in order while the batches of different scanners are decoded in parallel.
+ * When the backlog is full, batches are decoded by the thread handing them
+ * over, which slows down the scanners rather than queuing without bounds.
+ */
+final class QueryDecoder {
+
+  /** Time (in ms) it took to decode a batch of rows. */
+  private final Histogram decode_latency =
+    new Histogram(16000, (short) 2, 100);
+
+  private final ThreadPoolExecutor executor;
+
+  /** Number of batches decoded. */
+  private final AtomicLong batches = new AtomicLong();
+
+  /** Number of batches decoded by the caller as the backlog was full. */
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param threads Number of decoding threads
+   * @param backlog Maximum number of batches waiting to be decoded
+   */
+  QueryDecoder(final int threads, final int backlog) {
+    executor = new ThreadPoolExecutor(threads, threads,
+        /* 5m = */ 300000, MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(backlog),
+        new DecoderThdFactory(), new CallerRuns());
+  }
+
+  /**
+   * Decodes a batch of rows, on a decoding thread if there's room in the
+   * backlog or else on the current thread.
+   * @param decode What decodes the rows
+   */
+  void execute(final Runnable decode) {
+    executor.execute(new Timed(decode));
+  }
+
+  /** Stops the decoding threads once the backlog is done. */
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Collects the stats of the decoder.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("query.decode.queue", executor.getQueue().size());
+    collector.record("query.decode.active", executor.getActiveCount());
+    collector.record("query.decode.batches", batches.get());
+    collector.record("query.decode.rejected", rejected.get());
+    synchronized (decode_latency) {
+      collector.record("query.decode.latency", decode_latency, null);
+    }
+  }
+
+  /** Records how long decoding took. */
+  private final class Timed implements Runnable {
+    private final Runnable decode;
+
+    Timed(final Runnable decode) {
+      this.decode = decode;
+    }
+
+    public void run() {
+      final long start = System.nanoTime();
+      try {
+        decode.run();
+      } finally {
+        final int millis = (int) ((System.nanoTime() - start) / 1000000);
+        batches.incrementAndGet();
+        synchronized (decode_latency) {
+          decode_latency.add(millis);
+        }
+      }
+    }
+  }
+
+  /** Decodes on the calling thread when the backlog is full. */
+  private final class CallerRuns implements RejectedExecutionHandler {
+    public void rejectedExecution(final Runnable r,
+                                  final ThreadPoolExecutor executor) {
+      if (executor.isShutdown()) {
+        throw new IllegalStateException("The query decoder was shut down");
+      }
+      rejected.incrementAndGet();
+      r.run();
+    }
+  }
+
+  private static final class DecoderThdFactory implements ThreadFactory {
+    private final AtomicInteger id = new AtomicInteger(0);
+
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r,
+          "QueryDecoder #" + id.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,434 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Writes the hourly and daily rollups of the rows the compaction queue reads
+ * back, so that downsampled queries over long time ranges read one cell per
+ * series per hour or per day instead of every data point.
+ * <p>
+ * A rollup holds the count, sum, minimum and maximum of the data points of a
+ * series over an hour or a day.  Rollups are stored in their own table, in
+ * one row per series per day whose key is the key of the data rows with the
+ * base time of the day.  The rollup of each hour has its own cell, the
+ * qualifier being {@link #HOUR_PREFIX} followed by the hour of the day, and
+ * the rollup of the day is in the {@link #DAY_QUALIFIER} cell.
+ * <p>
+ * The rollup of an hour is written whenever its row is compacted, so late
+ * data points re-compacted later update it.  The rollup of the day is then
+ * merged again from the rollups of its hours, with a compare-and-set so that
+ * concurrent compactions of hours of the same day don't lose each other's
+ * updates.
+ * @since 2.1
+ */
+public final class Rollups {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Rollups.class);
+
+  /** Column family of the rollups. */
+  static final byte[] FAMILY = { 'r' };
+
+  /** First byte of the qualifiers of the rollups of hours. */
+  static final byte HOUR_PREFIX = 'h';
+
+  /** Qualifier of the rollup of a day. */
+  static final byte[] DAY_QUALIFIER = { 'd', 0 };
+
+  /** Number of seconds in an hour and in a day. */
+  static final int HOUR = Const.MAX_TIMESPAN;
+  static final int DAY = 86400;
+
+  /** How many times we try to merge the rollup of a day before giving up. */
+  private static final int MAX_MERGE_ATTEMPTS = 5;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  /** The TSDB we belong to. */
+  private final TSDB tsdb;
+
+  /** Name of the table in which rollups are stored. */
+  private final byte[] table;
+
+  private final AtomicLong hourly_writes = new AtomicLong();
+  private final AtomicLong daily_writes = new AtomicLong();
+  private final AtomicLong merge_conflicts = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to
+   */
+  Rollups(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    table = tsdb.getConfig().getString("tsd.storage.hbase.rollup_table")
+      .getBytes(Charset.forName("ISO-8859-1"));
+  }
+
+  /** @return the name of the rollup table */
+  byte[] table() {
+    return table;
+  }
+
+  /**
+   * Returns whether queries downsampled with the given function can be
+   * answered from rollups.
+   * @param downsampler The downsampling function
+   */
+  static boolean canRollUp(final Aggregator downsampler) {
+    return downsampler == Aggregators.SUM || downsampler == Aggregators.ZIMSUM
+      || downsampler == Aggregators.MIN || downsampler == Aggregators.MIMMIN
+      || downsampler == Aggregators.MAX || downsampler == Aggregators.MIMMAX
+      || downsampler == Aggregators.AVG
+      || downsampler instanceof Aggregators.Percentile;
+  }
+
+  /**
+   * Writes the rollup of the hour of a compacted row, then merges the rollup
+   * of its day again.
+   * @param column The compacted column of the row, holding every data point
+   * of the hour
+   * @return A deferred called back once both rollups were written.  Errors
+   * are logged and counted, not handed back.
+   */
+  Deferred<Object> write(final KeyValue column) {
+    final Rollup hour = new Rollup();
+    for (final Internal.Cell cell : Internal.extractDataPoints(column)) {
+      if (cell.isInteger()) {
+        hour.add(cell.parseValue().longValue());
+      } else {
+        hour.add(cell.parseValue().doubleValue());
+      }
+    }
+    if (hour.count == 0) {
+      return Deferred.fromResult(null);
+    }
+    final short metric_width = tsdb.metrics.width();
+    final byte[] key = Arrays.copyOf(column.key(), column.key().length);
+    final long base_time = Bytes.getUnsignedInt(key, metric_width);
+    Bytes.setInt(key, (int) (base_time - base_time % DAY), metric_width);
+    final byte[] qualifier = { HOUR_PREFIX,
+      (byte) ((base_time % DAY) / HOUR) };
+
+    /** Merges the rollup of the day once the one of the hour is written. */
+    final class MergeDayCB implements Callback<Deferred<Object>, Object> {
+      public Deferred<Object> call(final Object ignored) {
+        hourly_writes.incrementAndGet();
+        return mergeDay(key, 1);
+      }
+      public String toString() {
+        return "merge the rollup of the day of " + Arrays.toString(key);
+      }
+    }
+
+    return tsdb.client.put(new PutRequest(table, key, FAMILY, qualifier,
+                                          hour.encode()))
+      .addCallbackDeferring(new MergeDayCB())
+      .addErrback(new ErrorCB(key));
+  }
+
+  /**
+   * Reads the rollups of the hours of a day back and writes their merge as
+   * the rollup of the day, unless it's already up to date.
+   * @param key The key of the rollup row of the day
+   * @param attempt How many times we tried so far, from 1
+   */
+  private Deferred<Object> mergeDay(final byte[] key, final int attempt) {
+
+    /** Merges again if another compaction wrote the day in the mean time. */
+    final class RetryCB implements Callback<Deferred<Object>, Boolean> {
+      public Deferred<Object> call(final Boolean written) {
+        if (written) {
+          daily_writes.incrementAndGet();
+          return Deferred.fromResult(null);
+        }
+        merge_conflicts.incrementAndGet();
+        if (attempt >= MAX_MERGE_ATTEMPTS) {
+          throw new IllegalStateException("Gave up merging the rollup of the"
+              + " day of " + Arrays.toString(key) + " after " + attempt
+              + " attempts");
+        }
+        return mergeDay(key, attempt + 1);
+      }
+      public String toString() {
+        return "retry merging the rollup of the day of "
+          + Arrays.toString(key);
+      }
+    }
+
+    /** Writes the merge of the hours, if it changed. */
+    final class WriteDayCB implements Callback<Deferred<Object>,
+      ArrayList<KeyValue>> {
+      public Deferred<Object> call(final ArrayList<KeyValue> row) {
+        final Rollup day = new Rollup();
+        byte[] stored = EMPTY;
+        if (row != null) {
+          for (final KeyValue kv : row) {
+            final byte[] qualifier = kv.qualifier();
+            if (qualifier.length == 2 && qualifier[0] == HOUR_PREFIX) {
+              day.merge(Rollup.decode(kv.value()));
+            } else if (Bytes.equals(qualifier, DAY_QUALIFIER)) {
+              stored = kv.value();
+            }
+          }
+        }
+        final byte[] value = day.encode();
+        if (day.count == 0 || Bytes.equals(value, stored)) {
+          return Deferred.fromResult(null);
+        }
+        return tsdb.client.compareAndSet(new PutRequest(table, key, FAMILY,
+            DAY_QUALIFIER, value), stored)
+          .addCallbackDeferring(new RetryCB());
+      }
+      public String toString() {
+        return "write the rollup of the day of " + Arrays.toString(key);
+      }
+    }
+
+    final GetRequest get = new GetRequest(table, key);
+    get.family(FAMILY);
+    return tsdb.client.get(get).addCallbackDeferring(new WriteDayCB());
+  }
+
+  /** Logs and counts the errors of writing rollups. */
+  private final class ErrorCB implements Callback<Object, Exception> {
+    private final byte[] key;
+
+    ErrorCB(final byte[] key) {
+      this.key = key;
+    }
+
+    public Object call(final Exception e) {
+      // Basic rate-limiting to not flood logs.
+      if (errors.incrementAndGet() % 100 == 1) {
+        LOG.error("Failed to write the rollups of " + Arrays.toString(key), e);
+      }
+      return null;
+    }
+
+    public String toString() {
+      return "handle rollup error";
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("rollup.writes", hourly_writes, "interval=1h");
+    collector.record("rollup.writes", daily_writes, "interval=1d");
+    collector.record("rollup.conflicts", merge_conflicts);
+    collector.record("rollup.errors", errors);
+  }
+
+  /**
+   * The count, sum, minimum and maximum of data points.  They're kept as
+   * integers as long as every data point is one, as doubles otherwise.  A
+   * {@link QuantileSketch} of the data points gives their percentiles.
+   * <p>
+   * Encoded, a rollup is a flag byte, 1 if it holds doubles, followed by the
+   * count, sum, minimum and maximum on 8 bytes each, then the encoded sketch.
+   */
+  static final class Rollup {
+    /** Size of an encoded rollup, without its sketch. */
+    static final int SIZE = 1 + 4 * 8;
+
+    long count;
+    boolean integer = true;
+    /** Sum, minimum and maximum as integers, as long as it's one. */
+    long long_sum;
+    long long_min = Long.MAX_VALUE;
+    long long_max = Long.MIN_VALUE;
+    /** Sum, minimum and maximum as doubles, always maintained. */
+    double sum;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    QuantileSketch sketch = new QuantileSketch();
+
+    /** Adds an integer data point. */
+    void add(final long value) {
+      count++;
+      long_sum += value;
+      long_min = Math.min(long_min, value);
+      long_max = Math.max(long_max, value);
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      sketch.add(value);
+    }
+
+    /** Adds a floating point data point. */
+    void add(final double value) {
+      count++;
+      integer = false;
+      sum += value;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      sketch.add(value);
+    }
+
+    /** Adds the data points of another rollup to this one. */
+    void merge(final Rollup other) {
+      if (other.count == 0) {
+        return;
+      }
+      count += other.count;
+      integer &= other.integer;
+      long_sum += other.long_sum;
+      long_min = Math.min(long_min, other.long_min);
+      long_max = Math.max(long_max, other.long_max);
+      sum += other.sum;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+      sketch.merge(other.sketch);
+    }
+
+    /** @return the rollup, encoded */
+    byte[] encode() {
+      final byte[] encoded_sketch = sketch.encode();
+      final byte[] value = new byte[SIZE + encoded_sketch.length];
+      value[0] = (byte) (integer ? 0 : 1);
+      Bytes.setLong(value, count, 1);
+      if (integer) {
+        Bytes.setLong(value, long_sum, 9);
+        Bytes.setLong(value, long_min, 17);
+        Bytes.setLong(value, long_max, 25);
+      } else {
+        Bytes.setLong(value, Double.doubleToRawLongBits(sum), 9);
+        Bytes.setLong(value, Double.doubleToRawLongBits(min), 17);
+        Bytes.setLong(value, Double.doubleToRawLongBits(max), 25);
+      }
+      System.arraycopy(encoded_sketch, 0, value, SIZE, encoded_sketch.length);
+      return value;
+    }
+
+    /**
+     * Decodes a rollup, along with its sketch.
+     * @param value The encoded rollup
+     * @throws IllegalDataException if it isn't an encoded rollup
+     */
+    static Rollup decode(final byte[] value) {
+      return decode(value, true);
+    }
+
+    /**
+     * Decodes a rollup.
+     * @param value The encoded rollup
+     * @param with_sketch Whether to decode the sketch too, or leave it empty
+     * when no percentile is needed
+     * @throws IllegalDataException if it isn't an encoded rollup
+     */
+    static Rollup decode(final byte[] value, final boolean with_sketch) {
+      if (value.length <= SIZE) {
+        throw new IllegalDataException("Invalid rollup of " + value.length
+            + " bytes: " + Arrays.toString(value));
+      }
+      final Rollup rollup = new Rollup();
+      rollup.count = Bytes.getLong(value, 1);
+      rollup.integer = value[0] == 0;
+      if (rollup.integer) {
+        rollup.long_sum = Bytes.getLong(value, 9);
+        rollup.long_min = Bytes.getLong(value, 17);
+        rollup.long_max = Bytes.getLong(value, 25);
+        rollup.sum = rollup.long_sum;
+        rollup.min = rollup.long_min;
+        rollup.max = rollup.long_max;
+      } else {
+        rollup.sum = Double.longBitsToDouble(Bytes.getLong(value, 9));
+        rollup.min = Double.longBitsToDouble(Bytes.getLong(value, 17));
+        rollup.max = Double.longBitsToDouble(Bytes.getLong(value, 25));
+      }
+      if (with_sketch) {
+        rollup.sketch = QuantileSketch.decode(value, SIZE);
+      }
+      return rollup;
+    }
+
+    /**
+     * Returns the data point that the given downsampling function would
+     * have produced from the data points of this rollup, as a single data
+     * point cell of a data row.
+     * @param key The key of the data rows of the series, copied
+     * @param timestamp The timestamp of the data point, in seconds
+     * @param downsampler A downsampling function for which
+     * {@link Rollups#canRollUp} is true
+     * @param metric_width The width of metric UIDs
+     * @return The data point, in the row of its hour
+     */
+    KeyValue toDataPoint(final byte[] key, final long timestamp,
+                         final Aggregator downsampler,
+                         final short metric_width) {
+      final byte[] row = Arrays.copyOf(key, key.length);
+      Bytes.setInt(row, (int) (timestamp - timestamp % HOUR), metric_width);
+      final byte[] value = new byte[8];
+      final short flags;
+      if (integer) {
+        flags = 0x7;
+        final long v;
+        if (downsampler == Aggregators.MIN
+            || downsampler == Aggregators.MIMMIN) {
+          v = long_min;
+        } else if (downsampler == Aggregators.MAX
+                   || downsampler == Aggregators.MIMMAX) {
+          v = long_max;
+        } else if (downsampler == Aggregators.AVG) {
+          v = long_sum / count;
+        } else if (downsampler instanceof Aggregators.Percentile) {
+          v = Math.round(sketch.quantile(
+              ((Aggregators.Percentile) downsampler).quantile()));
+        } else {
+          v = long_sum;
+        }
+        Bytes.setLong(value, v);
+      } else {
+        flags = Const.FLAG_FLOAT | 0x7;
+        final double v;
+        if (downsampler == Aggregators.MIN
+            || downsampler == Aggregators.MIMMIN) {
+          v = min;
+        } else if (downsampler == Aggregators.MAX
+                   || downsampler == Aggregators.MIMMAX) {
+          v = max;
+        } else if (downsampler == Aggregators.AVG) {
+          v = sum / count;
+        } else if (downsampler instanceof Aggregators.Percentile) {
+          v = sketch.quantile(
+              ((Aggregators.Percentile) downsampler).quantile());
+        } else {
+          v = sum;
+        }
+        Bytes.setLong(value, Double.doubleToRawLongBits(v));
+      }
+      return new KeyValue(row, TSDB.FAMILY,
+          Internal.buildQualifier(timestamp, flags), value);
+    }
+  }
+
+}
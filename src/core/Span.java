@@ -34,6 +34,12 @@ import com.stumbleupon.async.Deferred;
  */
 final class Span implements DataPoints {
 
+  /** Flag set on the decoded timestamps of floating point values. */
+  private static final long FLAG_FLOAT = DecodedIterator.FLAG_FLOAT;
+
+  /** Mask to use in order to get rid of the flag above. */
+  private static final long TIME_MASK  = DecodedIterator.TIME_MASK;
+
   /** The {@link TSDB} instance we belong to. */
   private final TSDB tsdb;
 
@@ -49,6 +55,18 @@ final class Span implements DataPoints {
    * first call to an iterator method
    */
   private boolean sorted;
+
+  /**
+   * Timestamps in milliseconds of every data point once {@link #decode}d,
+   * with {@code FLAG_FLOAT} set for floating point values, or null.
+   */
+  private long[] decoded_times;
+
+  /**
+   * Values of every data point once {@link #decode}d, the bits of the double
+   * for floating point values, or null.
+   */
+  private long[] decoded_values;
   
   /**
    * Default constructor.
@@ -119,6 +137,9 @@ final class Span implements DataPoints {
    * Unfortunately we must walk the entire array for every row as there may be a 
    * mix of second and millisecond timestamps */
   public int size() {
+    if (decoded_times != null) {
+      return decoded_times.length;
+    }
     int size = 0;
     for (final RowSeq row : rows) {
       size += row.size();
@@ -183,6 +204,7 @@ final class Span implements DataPoints {
     final RowSeq rowseq = new RowSeq(tsdb);
     rowseq.setRow(row);
     sorted = false;
+    clearDecoded();
     if (last_ts >= rowseq.timestamp(0)) {
       // scan to see if we need to merge into an existing row
       for (final RowSeq rs : rows) {
@@ -196,6 +218,80 @@ final class Span implements DataPoints {
     rows.add(rowseq);
   }
 
+  /**
+   * Appends the rows of another span of the same time series, whose rows all
+   * come after the rows of this span, e.g. because it was scanned from a later
+   * time range.
+   * @param other The span to take the rows and annotations of.
+   * @throws IllegalArgumentException if the argument and this span are for
+   * two different time series.
+   */
+  void appendSpan(final Span other) {
+    if (other.rows.isEmpty()) {
+      annotations.addAll(other.annotations);
+      return;
+    }
+    if (!rows.isEmpty()) {
+      final byte[] key = other.rows.get(0).key;
+      final byte[] last_key = rows.get(rows.size() - 1).key;
+      final short tags_offset =
+        (short) (tsdb.metrics.width() + Const.TIMESTAMP_BYTES);
+      if (key.length != last_key.length
+          || Bytes.memcmp(key, last_key, 0, tsdb.metrics.width()) != 0
+          || Bytes.memcmp(key, last_key, tags_offset,
+                          key.length - tags_offset) != 0) {
+        throw new IllegalArgumentException("Can't append the span of row key "
+            + Arrays.toString(key) + " to the span of row key "
+            + Arrays.toString(last_key));
+      }
+    }
+    rows.addAll(other.rows);
+    annotations.addAll(other.annotations);
+    sorted = false;
+    clearDecoded();
+  }
+
+  /**
+   * Decodes every data point of this span into arrays of timestamps and
+   * values, which the iterators and the accessors by index use from then on
+   * instead of parsing the qualifiers and values of every row over and over.
+   * This takes 16 bytes per data point on top of the rows, so it's worth it
+   * once all the rows were added, when the data points are read several
+   * times, e.g. to aggregate them with interpolation.
+   * Adding rows afterwards drops the decoded data points.
+   */
+  void decode() {
+    if (decoded_times != null || rows.isEmpty()) {
+      return;
+    }
+    checkRowOrder();
+    int size = 0;
+    for (final RowSeq row : rows) {
+      size += row.size();
+    }
+    final long[] times = new long[size];
+    final long[] values = new long[size];
+    int i = 0;
+    for (final RowSeq row : rows) {
+      final RowSeq.Iterator it = row.internalIterator();
+      while (it.hasNext()) {
+        DecodedIterator.decode(times, values, i++, it.next());
+      }
+    }
+    decoded_times = times;
+    decoded_values = values;
+  }
+
+  /** @return whether or not the data points of this span are decoded */
+  boolean isDecoded() {
+    return decoded_times != null;
+  }
+
+  private void clearDecoded() {
+    decoded_times = null;
+    decoded_values = null;
+  }
+
   /**
    * Package private helper to access the last timestamp in an HBase row.
    * @param metric_width The number of bytes on which metric IDs are stored.
@@ -253,6 +349,9 @@ final class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    */
   public long timestamp(final int i) {
+    if (decoded_times != null) {
+      return decoded_times[i] & TIME_MASK;
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -268,6 +367,9 @@ final class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    */
   public boolean isInteger(final int i) {
+    if (decoded_times != null) {
+      return (decoded_times[i] & FLAG_FLOAT) == 0;
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -286,6 +388,13 @@ final class Span implements DataPoints {
    * @throws IllegalDataException if the data is malformed
    */
   public long longValue(final int i) {
+    if (decoded_times != null) {
+      if ((decoded_times[i] & FLAG_FLOAT) != 0) {
+        throw new ClassCastException("value #" + i + " is not a long in "
+                                     + this);
+      }
+      return decoded_values[i];
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -304,6 +413,13 @@ final class Span implements DataPoints {
    * @throws IllegalDataException if the data is malformed
    */
   public double doubleValue(final int i) {
+    if (decoded_times != null) {
+      if ((decoded_times[i] & FLAG_FLOAT) == 0) {
+        throw new ClassCastException("value #" + i + " is not a float in "
+                                     + this);
+      }
+      return Double.longBitsToDouble(decoded_values[i]);
+    }
     checkRowOrder();
     final long idxoffset = getIdxOffsetFor(i);
     final int idx = (int) (idxoffset >>> 32);
@@ -365,8 +481,14 @@ final class Span implements DataPoints {
     }
   }
   
-  /** Package private iterator method to access it as a Span.Iterator. */
-  Span.Iterator spanIterator() {
+  /**
+   * Package private iterator method to access it as a {@link Span.Iterator},
+   * or as a {@link DecodedIterator} if the data points are decoded.
+   */
+  SeekableView spanIterator() {
+    if (decoded_times != null) {
+      return new DecodedIterator(decoded_times, decoded_values, this);
+    }
     if (!sorted) {
       Collections.sort(rows, new RowSeq.RowSeqComparator());
       sorted = true;
@@ -423,9 +545,15 @@ final class Span implements DataPoints {
 
   }
 
-  /** Package private iterator method to access it as a DownsamplingIterator. */
-  Span.DownsamplingIterator downsampler(final long interval,
-                                        final Aggregator downsampler) {
+  /**
+   * Package private iterator method to access it as a
+   * {@link DownsamplingIterator}, or as a {@link DecodedDownsamplingIterator}
+   * if the data points are decoded.
+   */
+  SeekableView downsampler(final long interval, final Aggregator downsampler) {
+    if (decoded_times != null) {
+      return new DecodedDownsamplingIterator(interval, downsampler);
+    }
     return new Span.DownsamplingIterator(interval, downsampler);
   }
 
@@ -660,4 +788,199 @@ final class Span implements DataPoints {
 
   }
 
+  /**
+   * Iterator that downsamples the decoded data points of a {@link Span},
+   * exactly like a {@link DownsamplingIterator} does with the rows.
+   */
+  final class DecodedDownsamplingIterator
+    implements SeekableView, DataPoint,
+               Aggregator.Longs, Aggregator.Doubles {
+
+    /** The "sampling" interval, in milliseconds. */
+    private final long interval;
+
+    /** Function to use to for downsampling. */
+    private final Aggregator downsampler;
+
+    private final long[] times = decoded_times;
+    private final long[] values = decoded_values;
+
+    /** Index of the next data point to use. */
+    private int index;
+
+    /**
+     * Current timestamp, the end of the interval while downsampling it.
+     * The most significant bit is used to store FLAG_FLOAT.
+     */
+    private long time;
+
+    /** Current value (either an actual long or a double encoded in a long). */
+    private long value;
+
+    /** The downsampler if it can aggregate arrays of values, else null. */
+    private final Aggregator.Bulk bulk;
+
+    /** Values of an interval with floats, for {@link #bulk}. */
+    private double[] double_values;
+
+    DecodedDownsamplingIterator(final long interval,
+                                final Aggregator downsampler) {
+      this.interval = interval;
+      this.downsampler = downsampler;
+      bulk = downsampler instanceof Aggregator.Bulk
+        ? (Aggregator.Bulk) downsampler : null;
+    }
+
+    // ------------------ //
+    // Iterator interface //
+    // ------------------ //
+
+    public boolean hasNext() {
+      return index < times.length;
+    }
+
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more data points in " + this);
+      }
+
+      // Find out whether all the data points of the next interval are
+      // integers, and their average timestamp.
+      time = (times[index] & TIME_MASK) + interval;  // end of interval
+      long newtime = 0;
+      boolean integer = true;
+      int i = index;
+      do {
+        newtime += times[i] & TIME_MASK;
+        integer &= (times[i] & FLAG_FLOAT) == 0;
+        i++;
+      } while (i < times.length && (times[i] & TIME_MASK) < time);
+      newtime /= i - index;
+
+      // Compute `value'.  This will rely on `time' containing the end time of
+      // this interval...
+      if (bulk != null) {
+        value = integer ? bulk.runLongs(values, index, i - index)
+          : Double.doubleToRawLongBits(runDoubles(i));
+        index = i;
+      } else if (integer) {
+        value = downsampler.runLong(this);
+      } else {
+        value = Double.doubleToRawLongBits(downsampler.runDouble(this));
+      }
+      // ... so update the time only here.
+      time = newtime;
+      if (!integer) {
+        time |= FLAG_FLOAT;
+      }
+      return this;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Downsamples the values up to {@code end} excluded with {@link #bulk},
+     * as doubles.
+     */
+    private double runDoubles(final int end) {
+      final int length = end - index;
+      if (double_values == null || double_values.length < length) {
+        double_values = new double[Math.max(length, 16)];
+      }
+      for (int i = 0; i < length; i++) {
+        final long bits = values[index + i];
+        double_values[i] = (times[index + i] & FLAG_FLOAT) == 0
+          ? bits : Double.longBitsToDouble(bits);
+      }
+      return bulk.runDoubles(double_values, 0, length);
+    }
+
+    // ---------------------- //
+    // SeekableView interface //
+    // ---------------------- //
+
+    public void seek(final long timestamp) {
+      if ((timestamp & Const.MILLISECOND_MASK) != 0) {  // negative or not 48 bits
+        throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+      }
+      index = DecodedIterator.indexOf(times, timestamp);
+    }
+
+    // ------------------- //
+    // DataPoint interface //
+    // ------------------- //
+
+    public long timestamp() {
+      return time & TIME_MASK;
+    }
+
+    public boolean isInteger() {
+      return (time & FLAG_FLOAT) == 0;
+    }
+
+    public long longValue() {
+      if (isInteger()) {
+        return value;
+      }
+      throw new ClassCastException("this value is not a long in " + this);
+    }
+
+    public double doubleValue() {
+      if (!isInteger()) {
+        return Double.longBitsToDouble(value);
+      }
+      throw new ClassCastException("this value is not a float in " + this);
+    }
+
+    public double toDouble() {
+      return isInteger() ? longValue() : doubleValue();
+    }
+
+    // -------------------------- //
+    // Aggregator.Longs interface //
+    // -------------------------- //
+
+    public boolean hasNextValue() {
+      return index < times.length && (times[index] & TIME_MASK) < time;
+    }
+
+    public long nextLongValue() {
+      if (hasNextValue()) {
+        if ((times[index] & FLAG_FLOAT) != 0) {
+          throw new ClassCastException("value #" + index
+                                       + " is not a long in " + this);
+        }
+        return values[index++];
+      }
+      throw new NoSuchElementException("no more longs in interval of " + this);
+    }
+
+    // ---------------------------- //
+    // Aggregator.Doubles interface //
+    // ---------------------------- //
+
+    public double nextDoubleValue() {
+      if (hasNextValue()) {
+        // There can be a mix of integer values and floating point values in
+        // the current downsampled interval.
+        final long bits = values[index];
+        return (times[index++] & FLAG_FLOAT) == 0
+          ? bits : Double.longBitsToDouble(bits);
+      }
+      throw new NoSuchElementException("no more floats in interval of " + this);
+    }
+
+    public String toString() {
+      return "Span.DecodedDownsamplingIterator(interval=" + interval
+        + ", downsampler=" + downsampler + ", index=" + index
+        + ", current time=" + timestamp() + ", current value="
+        + (isInteger() ? "long:" + value
+           : "double:" + Double.longBitsToDouble(value))
+        + ", span=" + Span.this + ')';
+    }
+
+  }
+
 }
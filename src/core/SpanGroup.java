@@ -94,6 +94,19 @@ final class SpanGroup implements DataPoints {
   /** Minimum time interval (in seconds) wanted between each data point. */
   private final long sample_interval;
 
+  /**
+   * Timestamps of the aggregated data points once {@link #materialize}d,
+   * with {@link DecodedIterator#FLAG_FLOAT} set for floating point values,
+   * else null.
+   */
+  private long[] materialized_times;
+
+  /**
+   * Values of the aggregated data points once {@link #materialize}d, with
+   * floating point values stored as their binary representation.
+   */
+  private long[] materialized_values;
+
   /**
    * Ctor.
    * @param tsdb The TSDB we belong to.
@@ -192,7 +205,42 @@ final class SpanGroup implements DataPoints {
     }
     if (first_dp <= end && last_dp >= start) {
       this.spans.add(span);
+      materialized_times = null;
+      materialized_values = null;
+    }
+  }
+
+  /**
+   * Aggregates the data points of this group once and keeps them, so that
+   * reading them afterwards is only a matter of reading two arrays.
+   * <p>
+   * This lets the groups of a query be aggregated in parallel before they're
+   * serialized, see {@link GroupEvaluator}.  Must not be called concurrently
+   * with anything else on this group.
+   */
+  void materialize() {
+    if (materialized_times != null) {
+      return;
+    }
+    long[] times = new long[64];
+    long[] values = new long[64];
+    int n = 0;
+    final SGIterator it = new SGIterator(aggregator.interpolationMethod());
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      if (n == times.length) {
+        times = Arrays.copyOf(times, n * 2);
+        values = Arrays.copyOf(values, n * 2);
+      }
+      DecodedIterator.decode(times, values, n++, dp);
     }
+    materialized_values = Arrays.copyOf(values, n);
+    materialized_times = Arrays.copyOf(times, n);
+  }
+
+  /** Returns whether {@link #materialize} was called since the last span. */
+  boolean isMaterialized() {
+    return materialized_times != null;
   }
 
   /**
@@ -349,6 +397,9 @@ final class SpanGroup implements DataPoints {
   }
   
   public int size() {
+    if (materialized_times != null) {
+      return materialized_times.length;
+    }
     // TODO(tsuna): There is a way of doing this way more efficiently by
     // inspecting the Spans and counting only data points that fall in
     // our time range.
@@ -370,6 +421,10 @@ final class SpanGroup implements DataPoints {
   }
 
   public SeekableView iterator() {
+    if (materialized_times != null) {
+      return new DecodedIterator(materialized_times, materialized_values,
+                                 this);
+    }
     return new SGIterator(aggregator.interpolationMethod());
   }
 
@@ -396,18 +451,38 @@ final class SpanGroup implements DataPoints {
   }
 
   public long timestamp(final int i) {
+    if (materialized_times != null) {
+      return materialized_times[i] & DecodedIterator.TIME_MASK;
+    }
     return getDataPoint(i).timestamp();
   }
 
   public boolean isInteger(final int i) {
+    if (materialized_times != null) {
+      return (materialized_times[i] & DecodedIterator.FLAG_FLOAT) == 0;
+    }
     return getDataPoint(i).isInteger();
   }
 
   public double doubleValue(final int i) {
+    if (materialized_times != null) {
+      if (isInteger(i)) {
+        throw new ClassCastException("value #" + i + " is not a float in "
+                                     + this);
+      }
+      return Double.longBitsToDouble(materialized_values[i]);
+    }
     return getDataPoint(i).doubleValue();
   }
 
   public long longValue(final int i) {
+    if (materialized_times != null) {
+      if (!isInteger(i)) {
+        throw new ClassCastException("value #" + i + " is not a long in "
+                                     + this);
+      }
+      return materialized_values[i];
+    }
     return getDataPoint(i).longValue();
   }
 
@@ -524,6 +599,16 @@ final class SpanGroup implements DataPoints {
    * "current" to compute the rate.  Once a value has been used, instead of
    * throwing it away like we do when rates aren't involved, we "migrate" it
    * to the 3rd part of the array ("prev") so we can use it for the next rate.
+   * <p>
+   * Finding the Span to use next doesn't go through every Span: the ones
+   * with a next data point within our time range are kept in a binary
+   * min-heap ordered by the timestamp of that data point (then by index, so
+   * the Span with the smallest index is used first like when scanning them
+   * in order), and the Spans that reached their end are remembered until
+   * they expire.  The number of floating point values in the timestamps
+   * array is kept up to date as well.  So picking the next data point costs
+   * {@code O(log n)} for {@code n} Spans, and aggregating it costs one pass
+   * over the Spans that have a current value.
    */
   private final class SGIterator
     implements SeekableView, DataPoint,
@@ -592,6 +677,44 @@ final class SpanGroup implements DataPoints {
     /** The index in {@link #values} of the current value being aggregated. */
     private int pos;
 
+    /**
+     * Min-heap of the indexes in {@link #iterators} of the Spans whose next
+     * data point falls within our time range, ordered by the timestamp of
+     * that data point and then by index.
+     */
+    private final int[] heap;
+
+    /** Number of Spans in {@link #heap}. */
+    private int heap_size;
+
+    /** Indexes of the Spans moved forward by the last call to next(). */
+    private final int[] moved;
+
+    /**
+     * Indexes of the Spans that reached their end, whose current data point
+     * must be expired at the next call to {@link #next}.
+     */
+    private final int[] ended;
+
+    /** Number of Spans in {@link #ended}. */
+    private int nended;
+
+    /** Number of timestamps with {@code FLAG_FLOAT} set. */
+    private int nfloats;
+
+    /**
+     * The aggregator if it can aggregate arrays of values, in which case the
+     * values of the Spans are gathered in {@link #long_values} or
+     * {@link #double_values} and aggregated at once, otherwise null.
+     */
+    private final Aggregator.Bulk bulk;
+
+    /** Values to aggregate with {@link #bulk}, allocated on first use. */
+    private long[] long_values;
+
+    /** Values to aggregate with {@link #bulk}, allocated on first use. */
+    private double[] double_values;
+
     /** Creates a new iterator for this {@link SpanGroup}. */
     public SGIterator(final Interpolation method) {
       this.method = method;
@@ -599,6 +722,11 @@ final class SpanGroup implements DataPoints {
       iterators = new SeekableView[size];
       timestamps = new long[size * (rate ? 3 : 2)];
       values = new long[size * (rate ? 3 : 2)];
+      heap = new int[size];
+      moved = new int[size];
+      ended = new int[size];
+      bulk = aggregator instanceof Aggregator.Bulk
+        ? (Aggregator.Bulk) aggregator : null;
       // Initialize every Iterator, fetch their first values that fall
       // within our time range.
       for (int i = 0; i < size; i++) {
@@ -634,6 +762,11 @@ final class SpanGroup implements DataPoints {
           }
         }
       }
+      for (int i = 0; i < size; i++) {
+        if (nextTimestamp(i) <= end_time) {
+          heapPush(i);
+        }
+      }
     }
 
     /**
@@ -642,8 +775,9 @@ final class SpanGroup implements DataPoints {
      */
     private void endReached(final int i) {
       //LOG.debug("No more DP for #" + i);
-      timestamps[iterators.length + i] = TIME_MASK;
+      setTimestamp(iterators.length + i, TIME_MASK);
       iterators[i] = null;  // We won't use it anymore, so free() it.
+      ended[nended++] = i;
     }
 
     /**
@@ -652,17 +786,83 @@ final class SpanGroup implements DataPoints {
      * @param dp The last data point returned by that iterator.
      */
     private void putDataPoint(final int i, final DataPoint dp) {
-      timestamps[i] = dp.timestamp();
       if (dp.isInteger()) {
         //LOG.debug("Putting #" + i + " (long) " + dp.longValue()
         //          + " @ time " + dp.timestamp());
         values[i] = dp.longValue();
+        setTimestamp(i, dp.timestamp());
       } else {
         //LOG.debug("Putting #" + i + " (double) " + dp.doubleValue()
         //          + " @ time " + dp.timestamp());
         values[i] = Double.doubleToRawLongBits(dp.doubleValue());
-        timestamps[i] |= FLAG_FLOAT;
+        setTimestamp(i, dp.timestamp() | FLAG_FLOAT);
+      }
+    }
+
+    /**
+     * Sets an entry of {@link #timestamps}, keeping {@link #nfloats} up to
+     * date.
+     * @param i The index in {@link #timestamps}.
+     * @param timestamp The timestamp, possibly with {@code FLAG_FLOAT}.
+     */
+    private void setTimestamp(final int i, final long timestamp) {
+      if ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT) {
+        nfloats--;
+      }
+      if ((timestamp & FLAG_FLOAT) == FLAG_FLOAT) {
+        nfloats++;
+      }
+      timestamps[i] = timestamp;
+    }
+
+    /**
+     * Returns the timestamp of the next data point of iterator {@code i},
+     * {@code TIME_MASK} if it reached its end.
+     */
+    private long nextTimestamp(final int i) {
+      return timestamps[iterators.length + i] & TIME_MASK;
+    }
+
+    /** Whether iterator {@code a} must be used before iterator {@code b}. */
+    private boolean before(final int a, final int b) {
+      final long ta = nextTimestamp(a);
+      final long tb = nextTimestamp(b);
+      return ta < tb || (ta == tb && a < b);
+    }
+
+    private void heapPush(final int i) {
+      int child = heap_size++;
+      while (child > 0) {
+        final int parent = (child - 1) >>> 1;
+        if (!before(i, heap[parent])) {
+          break;
+        }
+        heap[child] = heap[parent];
+        child = parent;
+      }
+      heap[child] = i;
+    }
+
+    private int heapPop() {
+      final int top = heap[0];
+      final int last = heap[--heap_size];
+      int parent = 0;
+      while (true) {
+        int child = 2 * parent + 1;
+        if (child >= heap_size) {
+          break;
+        }
+        if (child + 1 < heap_size && before(heap[child + 1], heap[child])) {
+          child++;
+        }
+        if (!before(heap[child], last)) {
+          break;
+        }
+        heap[parent] = heap[child];
+        parent = child;
       }
+      heap[parent] = last;
+      return top;
     }
 
     // ------------------ //
@@ -670,68 +870,45 @@ final class SpanGroup implements DataPoints {
     // ------------------ //
 
     public boolean hasNext() {
-      final int size = iterators.length;
-      for (int i = 0; i < size; i++) {
-        // As long as any of the iterators has a data point with a timestamp
-        // that falls within our interval, we know we have at least one next.
-        if ((timestamps[size + i] & TIME_MASK) <= end_time) {
-          //LOG.debug("hasNext #" + (size + i));
-          return true;
-        }
-      }
-      //LOG.debug("No hasNext (return false)");
-      return false;
+      // As long as any of the iterators has a data point with a timestamp
+      // that falls within our interval, we know we have at least one next.
+      return heap_size > 0;
     }
 
     public DataPoint next() {
-      final int size = iterators.length;
-      long min_ts = Long.MAX_VALUE;
-
       // In case we reached the end of one or more Spans, we need to make sure
       // we mark them as such by zeroing their current timestamp.  There may
-      // be multiple Spans that reached their end at once, so check them all.
-      for (int i = current; i < size; i++) {
-        if (timestamps[i + size] == TIME_MASK) {
-          //LOG.debug("Expiring last DP for #" + current);
-          timestamps[i] = 0;
-        }
+      // be multiple Spans that reached their end at once.
+      for (int i = 0; i < nended; i++) {
+        //LOG.debug("Expiring last DP for #" + ended[i]);
+        setTimestamp(ended[i], 0);
       }
+      nended = 0;
 
-      // Now we need to find which Span we'll consume next.  We'll pick the
-      // one that has the data point with the smallest timestamp since we want to
-      // return them in chronological order.
-      current = -1;
-      // If there's more than one Span with the same smallest timestamp, we'll
-      // set this to true so we can fetch the next data point in all of them at
-      // the same time.
-      boolean multiple = false;
-      for (int i = 0; i < size; i++) {
-        final long timestamp = timestamps[size + i] & TIME_MASK;
-        if (timestamp <= end_time) {
-          if (timestamp < min_ts) {
-            min_ts = timestamp;
-            current = i;
-            // We just found a new minimum so right now we can't possibly have
-            // multiple Spans with the same minimum.
-            multiple = false;
-          } else if (timestamp == min_ts) {
-            multiple = true;
-          }
-        }
-      }
-      if (current < 0) {
+      if (heap_size == 0) {
         throw new NoSuchElementException("no more elements");
       }
+      // Now we need to find which Span we'll consume next.  We'll pick the
+      // one that has the data point with the smallest timestamp since we want
+      // to return them in chronological order.  If there's more than one Span
+      // with the same smallest timestamp, we fetch the next data point in all
+      // of them at the same time.  They're put back in the heap once they've
+      // all moved, so that a Span with two data points at the same time
+      // doesn't move twice.
+      current = heapPop();
+      final long min_ts = nextTimestamp(current);
       moveToNext(current);
-      if (multiple) {
+      moved[0] = current;
+      int nmoved = 1;
+      while (heap_size > 0 && nextTimestamp(heap[0]) == min_ts) {
         //LOG.debug("Moving multiple DPs at time " + min_ts);
-        // We know we saw at least one other data point with the same minimum
-        // timestamp after `current', so let's move those ones too.
-        for (int i = current + 1; i < size; i++) {
-          final long timestamp = timestamps[size + i] & TIME_MASK;
-          if (timestamp == min_ts) {
-            moveToNext(i);
-          }
+        final int i = heapPop();
+        moveToNext(i);
+        moved[nmoved++] = i;
+      }
+      for (int i = 0; i < nmoved; i++) {
+        if (nextTimestamp(moved[i]) <= end_time) {
+          heapPush(moved[i]);
         }
       }
 
@@ -746,7 +923,7 @@ final class SpanGroup implements DataPoints {
       final int size = iterators.length;
       final int next = iterators.length + i;
       if (rate) {  // move "current" in "prev".
-        timestamps[next + size] = timestamps[i];
+        setTimestamp(next + size, timestamps[i]);
         values[next + size] = values[i];
         //LOG.debug("Saving #" + i + " -> #" + (next + size)
         //          + ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT
@@ -754,7 +931,7 @@ final class SpanGroup implements DataPoints {
         //             : " long " + values[i])
         //          + " @ time " + (timestamps[i] & TIME_MASK));
       }
-      timestamps[i] = timestamps[next];
+      setTimestamp(i, timestamps[next]);
       values[i] = values[next];
       //LOG.debug("Moving #" + next + " -> #" + i
       //          + ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT
@@ -798,16 +975,23 @@ final class SpanGroup implements DataPoints {
       }
       // If at least one of the values we're going to aggregate or interpolate
       // with is a float, we have to convert everything to a float.
-      for (int i = timestamps.length - 1; i >= 0; i--) {
-        if ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT) {
-          return false;
-        }
-      }
-      return true;
+      return nfloats == 0;
     }
 
     public long longValue() {
       if (isInteger()) {
+        if (bulk != null) {
+          if (long_values == null) {
+            long_values = new long[iterators.length];
+          }
+          int n = 0;
+          for (int i = 0; i < iterators.length; i++) {
+            if (timestamps[i] != 0) {
+              long_values[n++] = longValueAt(i);
+            }
+          }
+          return bulk.runLongs(long_values, 0, n);
+        }
         pos = -1;
         return aggregator.runLong(this);
       }
@@ -816,8 +1000,22 @@ final class SpanGroup implements DataPoints {
 
     public double doubleValue() {
       if (!isInteger()) {
-        pos = -1;
-        final double value = aggregator.runDouble(this);
+        final double value;
+        if (bulk != null) {
+          if (double_values == null) {
+            double_values = new double[iterators.length];
+          }
+          int n = 0;
+          for (int i = 0; i < iterators.length; i++) {
+            if (timestamps[i] != 0) {
+              double_values[n++] = doubleValueAt(i);
+            }
+          }
+          value = bulk.runDoubles(double_values, 0, n);
+        } else {
+          pos = -1;
+          value = aggregator.runDouble(this);
+        }
         //LOG.debug("aggregator returned " + value);
         if (value != value || Double.isInfinite(value)) {
           throw new IllegalStateException("Got NaN or Infinity: "
@@ -863,152 +1061,170 @@ final class SpanGroup implements DataPoints {
 
     public long nextLongValue() {
       if (hasNextValue(true)) {
-        final long y0 = values[pos];
-        if (rate) {
-          throw new AssertionError("Should not be here, impossible! " + this);
-        }
-        if (current == pos) {
-          return y0;
-        }
-        final long x = timestamps[current] & TIME_MASK;
-        final long x0 = timestamps[pos] & TIME_MASK;
-        if (x == x0) {
-          return y0;
-        }
-        final long y1 = values[pos + iterators.length];
-        final long x1 = timestamps[pos + iterators.length] & TIME_MASK;
-        if (x == x1) {
-          return y1;
-        }
-        if ((x1 & Const.MILLISECOND_MASK) != 0) {
-          throw new AssertionError("x1=" + x1 + " in " + this);
-        }
-        final long r;
-        switch (method) {
-          case LERP: 
-            r = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
-            //LOG.debug("Lerping to time " + x + ": " + y0 + " @ " + x0
-            //          + " -> " + y1 + " @ " + x1 + " => " + r);
-            break;
-          case ZIM:
-            r = 0;
-            break;
-          case MAX:
-            r = Long.MAX_VALUE;
-            break;
-          case MIN:
-            r = Long.MIN_VALUE;
-            break;
-          default:
-            throw new IllegalDataException("Invalid interploation somehow??");
-        }
-        return r;
+        return longValueAt(pos);
       }
       throw new NoSuchElementException("no more longs in " + this);
     }
 
+    /**
+     * Returns the value of the Span at index {@code i} in {@link #iterators},
+     * interpolated at the current timestamp if needed.
+     */
+    private long longValueAt(final int i) {
+      final long y0 = values[i];
+      if (rate) {
+        throw new AssertionError("Should not be here, impossible! " + this);
+      }
+      if (current == i) {
+        return y0;
+      }
+      final long x = timestamps[current] & TIME_MASK;
+      final long x0 = timestamps[i] & TIME_MASK;
+      if (x == x0) {
+        return y0;
+      }
+      final long y1 = values[i + iterators.length];
+      final long x1 = timestamps[i + iterators.length] & TIME_MASK;
+      if (x == x1) {
+        return y1;
+      }
+      if ((x1 & Const.MILLISECOND_MASK) != 0) {
+        throw new AssertionError("x1=" + x1 + " in " + this);
+      }
+      final long r;
+      switch (method) {
+        case LERP: 
+          r = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
+          //LOG.debug("Lerping to time " + x + ": " + y0 + " @ " + x0
+          //          + " -> " + y1 + " @ " + x1 + " => " + r);
+          break;
+        case ZIM:
+          r = 0;
+          break;
+        case MAX:
+          r = Long.MAX_VALUE;
+          break;
+        case MIN:
+          r = Long.MIN_VALUE;
+          break;
+        default:
+          throw new IllegalDataException("Invalid interploation somehow??");
+      }
+      return r;
+    }
+
     // ---------------------------- //
     // Aggregator.Doubles interface //
     // ---------------------------- //
 
     public double nextDoubleValue() {
       if (hasNextValue(true)) {
-        final double y0 = ((timestamps[pos] & FLAG_FLOAT) == FLAG_FLOAT
-                           ? Double.longBitsToDouble(values[pos])
-                           : values[pos]);
-        if (rate) {
-          final long x0 = timestamps[pos] & TIME_MASK;
-          final int prev = pos + iterators.length * 2;
-          final double y1 = ((timestamps[prev] & FLAG_FLOAT) == FLAG_FLOAT
-                             ? Double.longBitsToDouble(values[prev])
-                             : values[prev]);
-          final long x1 = timestamps[prev] & TIME_MASK;
-          assert x0 > x1: ("Next timestamp (" + x0 + ") is supposed to be "
-            + " strictly greater than the previous one (" + x1 + "), but it's"
-            + " not.  this=" + this);
-          
-          // we need to account for LONGs that are being converted to a double
-          // to do so, we can see if it's greater than the most precise integer
-          // a double can store. Then we calc the diff on the Longs before
-          // casting to a double. 
-          // TODO(cl) If the diff between data points is > 2^53 we're still in 
-          // trouble though that's less likely than giant integer counters.
-          final boolean double_overflow = 
-              (timestamps[pos] & FLAG_FLOAT) != FLAG_FLOAT && 
-              (timestamps[prev] & FLAG_FLOAT) != FLAG_FLOAT &&
-              ((values[prev] & Const.MAX_INT_IN_DOUBLE) != 0 || 
-                  (values[pos] & Const.MAX_INT_IN_DOUBLE) != 0);
-          //LOG.debug("Double overflow detected");
-          
-          final double difference;
+        return doubleValueAt(pos);
+      }
+      throw new NoSuchElementException("no more doubles in " + this);
+    }
+
+    /**
+     * Returns the value of the Span at index {@code i} in {@link #iterators},
+     * interpolated at the current timestamp if needed.
+     */
+    private double doubleValueAt(final int i) {
+      final double y0 = ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT
+                         ? Double.longBitsToDouble(values[i])
+                         : values[i]);
+      if (rate) {
+        final long x0 = timestamps[i] & TIME_MASK;
+        final int prev = i + iterators.length * 2;
+        final double y1 = ((timestamps[prev] & FLAG_FLOAT) == FLAG_FLOAT
+                           ? Double.longBitsToDouble(values[prev])
+                           : values[prev]);
+        final long x1 = timestamps[prev] & TIME_MASK;
+        assert x0 > x1: ("Next timestamp (" + x0 + ") is supposed to be "
+          + " strictly greater than the previous one (" + x1 + "), but it's"
+          + " not.  this=" + this);
+        
+        // we need to account for LONGs that are being converted to a double
+        // to do so, we can see if it's greater than the most precise integer
+        // a double can store. Then we calc the diff on the Longs before
+        // casting to a double. 
+        // TODO(cl) If the diff between data points is > 2^53 we're still in 
+        // trouble though that's less likely than giant integer counters.
+        final boolean double_overflow = 
+            (timestamps[i] & FLAG_FLOAT) != FLAG_FLOAT && 
+            (timestamps[prev] & FLAG_FLOAT) != FLAG_FLOAT &&
+            ((values[prev] & Const.MAX_INT_IN_DOUBLE) != 0 || 
+                (values[i] & Const.MAX_INT_IN_DOUBLE) != 0);
+        //LOG.debug("Double overflow detected");
+        
+        final double difference;
+        if (double_overflow) {
+          final long diff = values[i] - values[prev];
+          difference = (double)(diff);
+        } else {
+          difference = y0 - y1;
+        }
+        //LOG.debug("Difference is: " + difference);
+        
+        // If we have a counter rate of change calculation, y0 and y1
+        // have values such that the rate would be < 0 then calculate the
+        // new rate value assuming a roll over
+        if (rate_options.isCounter() && difference < 0) {
+          final double r;
           if (double_overflow) {
-            final long diff = values[pos] - values[prev];
-            difference = (double)(diff);
+            long diff = rate_options.getCounterMax() - values[prev];
+            diff += values[i];
+            // TODO - for backwards compatibility we'll convert the ms to seconds
+            // but in the future we should add a ratems flag that will calculate
+            // the rate as is.
+            r = (double)diff / ((double)(x0 - x1) / (double)1000);
           } else {
-            difference = y0 - y1;
+            // TODO - for backwards compatibility we'll convert the ms to seconds
+            // but in the future we should add a ratems flag that will calculate
+            // the rate as is.
+            r = (rate_options.getCounterMax() - y1 + y0) / 
+                                      ((double)(x0 - x1) / (double)1000);
           }
-          //LOG.debug("Difference is: " + difference);
-          
-          // If we have a counter rate of change calculation, y0 and y1
-          // have values such that the rate would be < 0 then calculate the
-          // new rate value assuming a roll over
-          if (rate_options.isCounter() && difference < 0) {
-            final double r;
-            if (double_overflow) {
-              long diff = rate_options.getCounterMax() - values[prev];
-              diff += values[pos];
-              // TODO - for backwards compatibility we'll convert the ms to seconds
-              // but in the future we should add a ratems flag that will calculate
-              // the rate as is.
-              r = (double)diff / ((double)(x0 - x1) / (double)1000);
-            } else {
-              // TODO - for backwards compatibility we'll convert the ms to seconds
-              // but in the future we should add a ratems flag that will calculate
-              // the rate as is.
-              r = (rate_options.getCounterMax() - y1 + y0) / 
-                                        ((double)(x0 - x1) / (double)1000);
-            }
-            if (rate_options.getResetValue() > RateOptions.DEFAULT_RESET_VALUE
-                && r > rate_options.getResetValue()) {
-              return 0.0;
-            }
-            //LOG.debug("Rolled Rate for " + y1 + " @ " + x1
-            // + " -> " + y0 + " @ " + x0 + " => " + r);
-            return r;
+          if (rate_options.getResetValue() > RateOptions.DEFAULT_RESET_VALUE
+              && r > rate_options.getResetValue()) {
+            return 0.0;
           }
-          
-          // TODO - for backwards compatibility we'll convert the ms to seconds
-          // but in the future we should add a ratems flag that will calculate
-          // the rate as is.
-          final double r = difference / ((double)(x0 - x1) / (double)1000);
-          //LOG.debug("Rate for " + y1 + " @ " + x1
-          //          + " -> " + y0 + " @ " + x0 + " => " + r);
+          //LOG.debug("Rolled Rate for " + y1 + " @ " + x1
+          // + " -> " + y0 + " @ " + x0 + " => " + r);
           return r;
         }
-        if (current == pos) {
-          //LOG.debug("Exact match, no lerp needed");
-          return y0;
-        }
-        final long x = timestamps[current] & TIME_MASK;
-        final long x0 = timestamps[pos] & TIME_MASK;
-        if (x == x0) {
-          //LOG.debug("No lerp needed x == x0 (" + x + " == "+x0+") => " + y0);
-          return y0;
-        }
-        final int next = pos + iterators.length;
-        final double y1 = ((timestamps[next] & FLAG_FLOAT) == FLAG_FLOAT
-                           ? Double.longBitsToDouble(values[next])
-                           : values[next]);
-        final long x1 = timestamps[next] & TIME_MASK;
-        if (x == x1) {
-          //LOG.debug("No lerp needed x == x1 (" + x + " == "+x1+") => " + y1);
-          return y1;
-        }
-        if ((x1 & Const.MILLISECOND_MASK) != 0) {
-          throw new AssertionError("x1=" + x1 + " in " + this);
-        }
-        final double r;
-        switch (method) {
+        
+        // TODO - for backwards compatibility we'll convert the ms to seconds
+        // but in the future we should add a ratems flag that will calculate
+        // the rate as is.
+        final double r = difference / ((double)(x0 - x1) / (double)1000);
+        //LOG.debug("Rate for " + y1 + " @ " + x1
+        //          + " -> " + y0 + " @ " + x0 + " => " + r);
+        return r;
+      }
+      if (current == i) {
+        //LOG.debug("Exact match, no lerp needed");
+        return y0;
+      }
+      final long x = timestamps[current] & TIME_MASK;
+      final long x0 = timestamps[i] & TIME_MASK;
+      if (x == x0) {
+        //LOG.debug("No lerp needed x == x0 (" + x + " == "+x0+") => " + y0);
+        return y0;
+      }
+      final int next = i + iterators.length;
+      final double y1 = ((timestamps[next] & FLAG_FLOAT) == FLAG_FLOAT
+                         ? Double.longBitsToDouble(values[next])
+                         : values[next]);
+      final long x1 = timestamps[next] & TIME_MASK;
+      if (x == x1) {
+        //LOG.debug("No lerp needed x == x1 (" + x + " == "+x1+") => " + y1);
+        return y1;
+      }
+      if ((x1 & Const.MILLISECOND_MASK) != 0) {
+        throw new AssertionError("x1=" + x1 + " in " + this);
+      }
+      final double r;
+      switch (method) {
         case LERP: 
           r = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
           //LOG.debug("Lerping to time " + x + ": " + y0 + " @ " + x0
@@ -1026,9 +1242,7 @@ final class SpanGroup implements DataPoints {
         default:
           throw new IllegalDataException("Invalid interploation somehow??");
       }
-        return r;
-      }
-      throw new NoSuchElementException("no more doubles in " + this);
+      return r;
     }
 
     public String toString() {
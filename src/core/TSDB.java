@@ -101,6 +101,27 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /** Per series batches of data points waiting to be written, created on first use. */
+  private volatile CachedBatches batches;
+
+  /** Decodes the rows read by queries, null to decode on the HBase threads. */
+  private final QueryDecoder query_decoder;
+
+  /** Aggregates the groups of queries, null to aggregate them lazily. */
+  private final GroupEvaluator group_evaluator;
+
+  /** Rows of past hours read by queries, null if they aren't cached. */
+  private final QueryCache query_cache;
+
+  /** Rows of past hours shared by queries, null if they aren't cached. */
+  private final BlockCache block_cache;
+
+  /** Last data point of every series written, null if it isn't indexed. */
+  private final LastPointIndex last_points;
+
+  /** Writes the rollups of compacted rows, null if they aren't rolled up. */
+  private final Rollups rollups;
+
   /** Search indexer to use if configure */
   private SearchPlugin search = null;
 
@@ -130,6 +151,25 @@ public final class TSDB {
     tag_names = new UniqueId(client, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH);
     tag_values = new UniqueId(client, uidtable, TAG_VALUE_QUAL, TAG_VALUE_WIDTH);
     compactionq = new CompactionQueue(this);
+    final int decode_threads = config.getInt("tsd.query.decode.threads");
+    query_decoder = decode_threads > 0 ? new QueryDecoder(decode_threads,
+        config.getInt("tsd.query.decode.backlog")) : null;
+    final int evaluate_threads = config.getInt("tsd.query.evaluate.threads");
+    group_evaluator = evaluate_threads > 0 ? new GroupEvaluator(
+        evaluate_threads, config.getInt("tsd.query.evaluate.parallelism"))
+        : null;
+    final long cache_bytes = config.getLong("tsd.query.cache.max_bytes");
+    query_cache = cache_bytes > 0 ? new QueryCache(cache_bytes,
+        config.getLong("tsd.query.cache.min_age")) : null;
+    final long block_bytes = config.getLong("tsd.query.block_cache.max_bytes");
+    block_cache = block_bytes > 0 ? new BlockCache(block_bytes,
+        config.getLong("tsd.query.cache.min_age")) : null;
+    final int last_series = config.getInt("tsd.query.last.max_series");
+    last_points = last_series > 0 ? new LastPointIndex(this, last_series)
+        : null;
+    // Rollups are written by compactions, without them there would be none.
+    rollups = config.getBoolean("tsd.storage.rollups.enable")
+        && config.enable_compactions() ? new Rollups(this) : null;
 
     if (config.hasProperty("tsd.core.timezone")) {
       DateTime.setDefaultTimezone(config.getString("tsd.core.timezone"));
@@ -244,6 +284,151 @@ public final class TSDB {
     return this.client;
   }
 
+  /**
+   * Returns the thread pool decoding the rows read by queries.
+   * @return The query decoder, or null if rows are decoded on the threads of
+   * the HBase client, i.e. if {@code tsd.query.decode.threads} is 0
+   */
+  QueryDecoder getQueryDecoder() {
+    return query_decoder;
+  }
+
+  /**
+   * Returns the thread pool aggregating the groups of queries.
+   * @return The group evaluator, or null if groups are aggregated lazily
+   * while serialized, i.e. if {@code tsd.query.evaluate.threads} is 0
+   */
+  GroupEvaluator getGroupEvaluator() {
+    return group_evaluator;
+  }
+
+  /**
+   * Returns the cache of the rows of past hours read by queries.
+   * @return The query cache, or null if rows aren't cached, i.e. if
+   * {@code tsd.query.cache.max_bytes} is 0
+   */
+  QueryCache getQueryCache() {
+    return query_cache;
+  }
+
+  /**
+   * Returns the cache of the rows of past hours shared by queries.
+   * @return The block cache, or null if rows aren't cached, i.e. if
+   * {@code tsd.query.block_cache.max_bytes} is 0
+   */
+  BlockCache getBlockCache() {
+    return block_cache;
+  }
+
+  /**
+   * Returns the index of the last data point of every series written.
+   * @return The index, or null if the last data points aren't indexed, i.e.
+   * if {@code tsd.query.last.max_series} is 0
+   * @since 2.1
+   */
+  public LastPointIndex getLastPointIndex() {
+    return last_points;
+  }
+
+  /**
+   * Returns the writer of the hourly and daily rollups of compacted rows.
+   * @return The rollups, or {@code null} if
+   * {@code tsd.storage.rollups.enable} or compactions are disabled
+   * @since 2.1
+   */
+  public Rollups getRollups() {
+    return rollups;
+  }
+
+  /**
+   * Records a data point in the index of last data points, if there's one.
+   * @param row The row key of the data point, with its base time
+   * @param timestamp The timestamp of the data point
+   * @param value The encoded value of the data point
+   * @param flags The flags of the qualifier of the data point
+   */
+  void updateLastPoint(final byte[] row, final long timestamp,
+                       final byte[] value, final short flags) {
+    if (last_points == null) {
+      return;
+    }
+    if ((flags & Const.FLAG_FLOAT) == 0) {
+      last_points.update(row, timestamp, true,
+          Internal.extractIntegerValue(value, 0, (byte) flags));
+    } else {
+      last_points.update(row, timestamp, false, Double.doubleToRawLongBits(
+          Internal.extractFloatingPointValue(value, 0, (byte) flags)));
+    }
+  }
+
+  /**
+   * Drops what the query caches hold of a row, as it's being written to.
+   * @param row The key of the row
+   */
+  void invalidateCachedRow(final byte[] row) {
+    if (query_cache != null) {
+      query_cache.invalidate(row, metrics.width());
+    }
+    if (block_cache != null) {
+      block_cache.invalidate(row, metrics.width());
+    }
+  }
+
+  /**
+   * Drops what the query caches hold of a row once more when a write to it
+   * completes, successfully or not, as queries that scanned the row while
+   * the write was in flight may have cached it without the write.
+   * @param row The key of the row
+   * @param write The deferred result of the write
+   * @return The deferred result of the write
+   */
+  Deferred<Object> invalidateCachedRowWhenWritten(final byte[] row,
+      final Deferred<Object> write) {
+    if (query_cache == null && block_cache == null) {
+      return write;
+    }
+    final class InvalidateCB implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        invalidateCachedRow(row);
+        return arg;
+      }
+      public String toString() {
+        return "invalidate cached row once written";
+      }
+    }
+    return write.addBoth(new InvalidateCB());
+  }
+
+  /**
+   * Returns the cache of batched data points used by the {@code batch} RPC
+   * and the bulk importers. The cache is created the first time this is
+   * called so TSDs that don't use it don't pay for it.
+   * @return The batch cache of this TSDB
+   * @throws IllegalArgumentException if the batch cache configuration is
+   * invalid.
+   */
+  public final CachedBatches getCachedBatches() {
+    CachedBatches cache = batches;
+    if (cache == null) {
+      synchronized (this) {
+        cache = batches;
+        if (cache == null) {
+          cache = batches = new CachedBatches(this);
+        }
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the cache of batched data points without creating it, so that
+   * queries can read the data points it holds if anything uses it.
+   * @return The batch cache of this TSDB, or null if it wasn't created
+   */
+  final CachedBatches getCachedBatchesIfCreated() {
+    return batches;
+  }
+
   /**
    * Getter that returns the configuration object
    * @return The configuration object
@@ -327,6 +512,10 @@ public final class TSDB {
       checks.add(client.ensureTableExists(
           config.getString("tsd.storage.hbase.meta_table")));
     }
+    if (rollups != null) {
+      checks.add(client.ensureTableExists(
+          config.getString("tsd.storage.hbase.rollup_table")));
+    }
     return Deferred.group(checks);
   }
 
@@ -406,6 +595,24 @@ public final class TSDB {
     } finally {
       collector.clearExtraTag("class");
     }
+    if (query_decoder != null) {
+      query_decoder.collectStats(collector);
+    }
+    if (group_evaluator != null) {
+      group_evaluator.collectStats(collector);
+    }
+    if (query_cache != null) {
+      query_cache.collectStats(collector);
+    }
+    if (block_cache != null) {
+      block_cache.collectStats(collector);
+    }
+    if (last_points != null) {
+      last_points.collectStats(collector);
+    }
+    if (rollups != null) {
+      rollups.collectStats(collector);
+    }
     final ClientStats stats = client.stats();
     collector.record("hbase.root_lookups", stats.rootLookups());
     collector.record("hbase.meta_lookups",
@@ -428,6 +635,10 @@ public final class TSDB {
                      stats.numRpcDelayedDueToNSRE());
 
     compactionq.collectStats(collector);
+    final CachedBatches cache = batches;
+    if (cache != null) {
+      cache.collectStats(collector);
+    }
     // Collect Stats from Plugins
     if (rt_publisher != null) {
       try {
@@ -661,11 +872,14 @@ public final class TSDB {
 
     Bytes.setInt(row, (int) base_time, metrics.width());
     scheduleForCompaction(row, (int) base_time);
+    invalidateCachedRow(row);
+    updateLastPoint(row, timestamp, value, flags);
     final PutRequest point = new PutRequest(table, row, FAMILY, qualifier, value);
 
     // TODO(tsuna): Add a callback to time the latency of HBase and store the
     // timing in a moving Histogram (once we have a class for this).
-    Deferred<Object> result = client.put(point);
+    Deferred<Object> result =
+      invalidateCachedRowWhenWritten(row, client.put(point));
     if (!config.enable_realtime_ts() && !config.enable_tsuid_incrementing() &&
         !config.enable_tsuid_tracking() && rt_publisher == null) {
       return result;
@@ -772,11 +986,19 @@ public final class TSDB {
       }
     }
 
-	/**
-	 * Be sure that anything in the cache gets flushed to the data store
-	 * so we don't "accidentally" lose our data.
-	 */
-	CachedBatches.shutdownHook();
+    // Be sure that anything in the batch cache gets flushed to the data store
+    // so we don't "accidentally" lose our data.
+    final CachedBatches cache = batches;
+    if (cache != null) {
+      deferreds.add(cache.shutdown().addCallback(new CompactCB()));
+    }
+
+    if (query_decoder != null) {
+      query_decoder.shutdown();
+    }
+    if (group_evaluator != null) {
+      group_evaluator.shutdown();
+    }
 
     if (config.enable_compactions()) {
       LOG.info("Flushing compaction queue");
@@ -1080,7 +1302,7 @@ public final class TSDB {
 
   /** Gets the entire given row from the data table. */
   final Deferred<ArrayList<KeyValue>> get(final byte[] key) {
-    return client.get(new GetRequest(table, key));
+    return client.get(new GetRequest(table, key).family(FAMILY));
   }
 
   /** Puts the given value into the data table. */
@@ -17,10 +17,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,8 +34,10 @@ import org.hbase.async.Scanner;
 import com.google.common.annotations.VisibleForTesting;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import static org.hbase.async.Bytes.ByteMap;
+import net.opentsdb.meta.Annotation;
 import net.opentsdb.stats.Histogram;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
@@ -62,6 +66,12 @@ final class TsdbQuery implements Query {
    */
   private static final Charset CHARSET = Charset.forName("ISO-8859-1");
 
+  /** Rows per batch a scanner starts with, the default of asynchbase. */
+  static final int DEFAULT_BATCH_ROWS = 128;
+  /** Bounds of the number of rows per batch of a pipelined scan. */
+  static final int MIN_BATCH_ROWS = 16;
+  static final int MAX_BATCH_ROWS = 4096;
+
   /** The TSDB we belong to. */
   private final TSDB tsdb;
 
@@ -321,13 +331,37 @@ final class TsdbQuery implements Query {
   }
   
   public Deferred<DataPoints[]> runAsync() throws HBaseException {
-    return findSpans().addCallback(new GroupByAndAggregateCB());
+    final Deferred<DataPoints[]> results =
+      findSpans().addCallback(new GroupByAndAggregateCB());
+    final GroupEvaluator evaluator = tsdb.getGroupEvaluator();
+    if (evaluator == null) {
+      return results;
+    }
+
+    /** Aggregates the groups in parallel before they're serialized. */
+    final class EvaluateCB
+      implements Callback<Deferred<DataPoints[]>, DataPoints[]> {
+      public Deferred<DataPoints[]> call(final DataPoints[] groups) {
+        return evaluator.evaluate(groups);
+      }
+      public String toString() {
+        return "evaluate groups of " + TsdbQuery.this;
+      }
+    }
+    return results.addCallbackDeferring(new EvaluateCB());
   }
 
   /**
    * Finds all the {@link Span}s that match this query.
    * This is what actually scans the HBase table and loads the data into
-   * {@link Span}s.
+   * {@link Span}s. Long time ranges are split in time slices, up to
+   * {@code tsd.query.scan.parallelism} of them, that are scanned concurrently
+   * and then merged. With a query cache, the first hours of the range that
+   * are cached aren't scanned, and the old enough hours that are scanned get
+   * cached.  Data points still waiting in the batch cache are added to the
+   * spans found.  When the query can be answered from rollups, the rollups
+   * are read for as much of the time range as they cover, see
+   * {@link #findRollupSpans}.
    * @return A map from HBase row key to the {@link Span} for that row key.
    * Since a {@link Span} actually contains multiple HBase rows, the row key
    * stored in the map has its timestamp zero'ed out.
@@ -336,95 +370,988 @@ final class TsdbQuery implements Query {
    * @throws IllegalArgumentException if bad data was retreived from HBase.
    */
   private Deferred<TreeMap<byte[], Span>> findSpans() throws HBaseException {
-    final short metric_width = tsdb.metrics.width();
-    final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
+    final long rollup_end = getRollupEndTimeSeconds();
+    if (rollup_end >= 0) {
+      return findRollupSpans(getRollupStartTimeSeconds(), rollup_end);
+    }
+    return scanSpans(getScanStartTimeSeconds(),
+                     end_time == UNSET ? -1 : getScanEndTimeSeconds());
+  }
+
+  /**
+   * Scans the data table for the {@link Span}s that match this query, like
+   * {@link #findSpans} but over a given time range.
+   * @param start The UNIX timestamp, in seconds, from which to scan
+   * @param scan_end The UNIX timestamp, in seconds, at which to stop
+   * scanning, or -1 to scan until the end of the table
+   */
+  private Deferred<TreeMap<byte[], Span>> scanSpans(final long start,
+      final long scan_end) throws HBaseException {
+    final long starttime = System.nanoTime();
+    final QueryCache query_cache = tsdb.getQueryCache();
+    final BlockCache block_cache = tsdb.getBlockCache();
+    final CachedHours cached = query_cache == null && block_cache == null
+      ? null : new CachedHours(query_cache, block_cache, start, scan_end);
+    final long scan_start = cached == null ? start : cached.scan_start;
+    long[] boundaries = sliceBoundaries(scan_start, scan_end,
+        tsdb.getConfig().getInt("tsd.query.scan.parallelism"));
+    if (cached != null && cached.whole) {
+      // The hours read whole get slices of their own.
+      boundaries = splitSlices(boundaries, cached.fill_end);
+    }
+    // Nothing is left to scan when every hour was cached.
+    final int nslices = scan_end >= 0 && scan_start >= scan_end ? 0
+      : boundaries.length - 1;
+    final ArrayList<SliceScanner> slices = new ArrayList<SliceScanner>(nslices);
+    final ArrayList<Deferred<Object>> deferreds =
+      new ArrayList<Deferred<Object>>(nslices);
+    for (int i = 0; i < nslices; i++) {
+      final boolean whole = cached != null && cached.whole
+        && boundaries[i + 1] >= 0 && boundaries[i + 1] <= cached.fill_end;
+      final SliceScanner slice = new SliceScanner(
+          getScanner(boundaries[i], boundaries[i + 1], !whole), cached, whole);
+      slices.add(slice);
+      deferreds.add(slice.scan());
+    }
+
+    /**
+     * Merges the spans of every slice, the slices being in time order, after
+     * the spans of the cached hours.
+     */
+    final class MergeCB implements Callback<TreeMap<byte[], Span>,
+      ArrayList<Object>> {
+      @Override
+      public TreeMap<byte[], Span> call(final ArrayList<Object> ignored) {
+        final TreeMap<byte[], Span> spans;
+        int nrows;
+        int first_slice;
+        if (cached != null) {
+          cached.store(slices);
+          spans = cached.spans;
+          nrows = cached.nrows;
+          first_slice = 0;
+        } else {
+          spans = slices.get(0).spans;
+          nrows = slices.get(0).nrows;
+          first_slice = 1;
+        }
+        for (int i = first_slice; i < nslices; i++) {
+          nrows += slices.get(i).nrows;
+          for (final Map.Entry<byte[], Span> entry :
+               slices.get(i).spans.entrySet()) {
+            final Span span = spans.get(entry.getKey());
+            if (span == null) {
+              spans.put(entry.getKey(), entry.getValue());
+            } else {
+              span.appendSpan(entry.getValue());
+            }
+          }
+        }
+        final int unflushed = addUnflushedRows(spans, start, scan_end);
+        nrows += unflushed;
+        final int hbase_time = (int) ((System.nanoTime() - starttime) / 1000000);
+        scanlatency.add(hbase_time);
+        LOG.info(TsdbQuery.this + " matched " + nrows + " rows in " +
+            spans.size() + " spans in " + hbase_time + "ms" +
+            (nslices > 1 ? " with " + nslices + " scanners" : "") +
+            (cached != null && cached.nrows > 0
+             ? " including " + cached.nrows + " cached rows" : "") +
+            (unflushed > 0 ? " and " + unflushed + " unflushed rows" : ""));
+        return nrows < 1 ? null : spans;
+      }
+      @Override
+      public String toString() {
+        return "merge scanned spans";
+      }
+    }
+
+    /** Reports the error of the first slice that failed. */
+    final class ErrorCB implements Callback<Exception, Exception> {
+      @Override
+      public Exception call(final Exception e) {
+        if (e instanceof DeferredGroupException && e.getCause() != null) {
+          return (Exception) e.getCause();
+        }
+        return e;
+      }
+      @Override
+      public String toString() {
+        return "report scan error";
+      }
+    }
+
+    return Deferred.group(deferreds).addCallbacks(new MergeCB(),
+        new ErrorCB());
+  }
+
+  /**
+   * Adds to the spans the rows of this query that are still in the batch
+   * cache, waiting to be written, so that queries over the current hours see
+   * the data points batched so far.  They're merged with the rows scanned
+   * for the same hours, if any.
+   * @param spans The spans found, keyed like the result of findSpans
+   * @param scan_start The UNIX timestamp, in seconds, from which the scan
+   * started
+   * @param scan_end The UNIX timestamp, in seconds, at which the scan stopped,
+   * or -1 if it went on until the end of the table
+   * @return The number of rows added
+   */
+  private int addUnflushedRows(final TreeMap<byte[], Span> spans,
+                               final long scan_start, final long scan_end) {
+    final CachedBatches batches = tsdb.getCachedBatchesIfCreated();
+    if (batches == null) {
+      return 0;
+    }
+    setMetricFromTSUIDs();
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    batches.getUnflushedRows(metric, scan_start, scan_end, rows);
+    if (rows.isEmpty()) {
+      return 0;
+    }
+    final String filter = getRowFilter();
+    final Pattern pattern = filter == null ? null : Pattern.compile(filter);
+    int nrows = 0;
+    for (final KeyValue row : rows) {
+      if (pattern != null
+          && !pattern.matcher(new String(row.key(), CHARSET)).find()) {
+        continue;
+      }
+      Span datapoints = spans.get(row.key());
+      if (datapoints == null) {
+        datapoints = new Span(tsdb);
+        spans.put(row.key(), datapoints);
+      }
+      datapoints.addRow(row);
+      nrows++;
+    }
+    return nrows;
+  }
+
+  /**
+   * Finds the {@link Span}s that match this query from the rollups of the
+   * series over the given time range, then from the data table for the rest
+   * of the time range, if any.
+   * <p>
+   * The rollups of every downsampling interval are merged into a single data
+   * point, at the start of the interval, whose value is the one the
+   * downsampling function would have computed from the data points of the
+   * interval.  The intervals are aligned on multiples of their length, and
+   * the spans hold no annotation for the rolled up time range.  The hours
+   * before the rollups, written before rollups were enabled, are scanned
+   * first and their data points rolled up the same way, so that every
+   * interval up to the end of the rollups is aligned alike.
+   * @param rollup_start The UNIX timestamp, in seconds, from which to read
+   * rollups, see {@link #getRollupStartTimeSeconds}
+   * @param rollup_end The UNIX timestamp, in seconds, until which to read
+   * rollups, see {@link #getRollupEndTimeSeconds}
+   * @return The spans, like {@link #findSpans}
+   */
+  private Deferred<TreeMap<byte[], Span>> findRollupSpans(
+      final long rollup_start, final long rollup_end) throws HBaseException {
+    final long starttime = System.nanoTime();
+    final long interval = sample_interval_ms / 1000;
+    final long start = getScanStartTimeSeconds();
+    final RollupScanner rollups =
+      new RollupScanner(rollup_start, rollup_end, interval);
+    final long scan_end = end_time == UNSET ? -1 : getScanEndTimeSeconds();
+
+    /** Adds the spans scanned after the rollups to the rolled up ones. */
+    final class AppendCB implements Callback<TreeMap<byte[], Span>,
+      TreeMap<byte[], Span>> {
+      @Override
+      public TreeMap<byte[], Span> call(final TreeMap<byte[], Span> scanned) {
+        final TreeMap<byte[], Span> spans = rollups.spans;
+        if (scanned != null) {
+          for (final Map.Entry<byte[], Span> entry : scanned.entrySet()) {
+            final Span span = spans.get(entry.getKey());
+            if (span == null) {
+              spans.put(entry.getKey(), entry.getValue());
+            } else {
+              span.appendSpan(entry.getValue());
+            }
+          }
+        }
+        return spans.isEmpty() ? null : spans;
+      }
+      @Override
+      public String toString() {
+        return "append scanned spans to rollups";
+      }
+    }
+
+    /** Rolls up the data points scanned before the rollups, then reads them. */
+    final class RollupCB implements Callback<Deferred<Object>,
+      TreeMap<byte[], Span>> {
+      @Override
+      public Deferred<Object> call(final TreeMap<byte[], Span> scanned) {
+        if (scanned != null) {
+          rollups.rollUp(scanned);
+        }
+        return rollups.scan();
+      }
+      @Override
+      public String toString() {
+        return "read rollups of " + TsdbQuery.this;
+      }
+    }
+
+    /** Scans the rest of the time range once the rollups are read. */
+    final class ScanCB implements Callback<Deferred<TreeMap<byte[], Span>>,
+      Object> {
+      @Override
+      public Deferred<TreeMap<byte[], Span>> call(final Object ignored) {
+        LOG.info(TsdbQuery.this + " read " + rollups.nrollups + " rollups in "
+            + rollups.spans.size() + " spans in "
+            + (System.nanoTime() - starttime) / 1000000 + "ms");
+        if (scan_end >= 0 && rollup_end >= scan_end) {
+          return Deferred.fromResult(rollups.spans.isEmpty() ? null
+                                     : rollups.spans);
+        }
+        return scanSpans(rollup_end, scan_end).addCallback(new AppendCB());
+      }
+      @Override
+      public String toString() {
+        return "scan after rollups of " + TsdbQuery.this;
+      }
+    }
+
+    final Deferred<TreeMap<byte[], Span>> before = rollup_start > start
+      ? scanSpans(start, rollup_start)
+      : Deferred.<TreeMap<byte[], Span>>fromResult(null);
+    return before.addCallbackDeferring(new RollupCB())
+      .addCallbackDeferring(new ScanCB());
+  }
+
+  /**
+   * Reads the rollups of the series of this query and turns every
+   * downsampling interval of each series into a data point of its span.
+   * The rollups of a series come in time order, so only the interval being
+   * merged is kept per series.
+   */
+  private final class RollupScanner implements Callback<Object,
+    ArrayList<ArrayList<KeyValue>>> {
+
+    private final Scanner scanner;
+    /** The time range read, in seconds, aligned on the interval. */
+    private final long start;
+    private final long end;
+    /** The downsampling interval, in seconds. */
+    private final long interval;
+    /** Whether to read the rollups of days rather than hours. */
+    private final boolean daily;
+    /** Whether the sketches of the rollups are needed, for percentiles. */
+    private final boolean with_sketches =
+      downsampler instanceof Aggregators.Percentile;
+    private final short metric_width = tsdb.metrics.width();
+    /** Spans of the rolled up data points, keyed like the result of findSpans. */
+    final TreeMap<byte[], Span> spans =
       new TreeMap<byte[], Span>(new SpanCmp(metric_width));
-    final Scanner scanner = getScanner();
-    final Deferred<TreeMap<byte[], Span>> results =
-      new Deferred<TreeMap<byte[], Span>>();
-    
+    /** The interval being merged of every series, keyed like the spans. */
+    private final TreeMap<byte[], Interval> intervals =
+      new TreeMap<byte[], Interval>(new SpanCmp(metric_width));
+    /** Number of rollups read. */
+    int nrollups = 0;
+    /** Called back with null once every rollup was read. */
+    private final Deferred<Object> done = new Deferred<Object>();
+    private final ScanErrorCB errback = new ScanErrorCB();
+
+    RollupScanner(final long start, final long end, final long interval) {
+      this.start = start;
+      this.end = end;
+      this.interval = interval;
+      daily = interval % Rollups.DAY == 0;
+      // The rollup rows are keyed by day.
+      final long stop = end % Rollups.DAY == 0 ? end
+        : end - end % Rollups.DAY + Rollups.DAY;
+      scanner = getScanner(tsdb.getRollups().table(), Rollups.FAMILY,
+                           start - start % Rollups.DAY, stop, true);
+      if (daily) {
+        scanner.setQualifier(Rollups.DAY_QUALIFIER);
+      }
+    }
+
     /**
-    * Scanner callback executed recursively each time we get a set of data
-    * from storage. This is responsible for determining what columns are
-    * returned and issuing requests to load leaf objects.
-    * When the scanner returns a null set of rows, the method initiates the
-    * final callback.
-    */
-    final class ScannerCB implements Callback<Object,
-      ArrayList<ArrayList<KeyValue>>> {
-      
-      int nrows = 0;
-      int hbase_time = 0; // milliseconds.
-      long starttime = System.nanoTime();
-      
-      /**
-      * Starts the scanner and is called recursively to fetch the next set of
-      * rows from the scanner.
-      * @return The map of spans if loaded successfully, null if no data was
-      * found
-      */
-       public Object scan() {
-         starttime = System.nanoTime();
-         return scanner.nextRows().addCallback(this);
-       }
-  
-      /**
-      * Loops through each row of the scanner results and parses out data
-      * points and optional meta data
-      * @return null if no rows were found, otherwise the TreeMap with spans
-      */
-       @Override
-       public Object call(final ArrayList<ArrayList<KeyValue>> rows)
-         throws Exception {
-         hbase_time += (System.nanoTime() - starttime) / 1000000;
-         try {
-           if (rows == null) {
-             hbase_time += (System.nanoTime() - starttime) / 1000000;
-             scanlatency.add(hbase_time);
-             LOG.info(TsdbQuery.this + " matched " + nrows + " rows in " +
-                 spans.size() + " spans in " + hbase_time + "ms");
-             if (nrows < 1) {
-               results.callback(null);
-             } else {
-               results.callback(spans);
-             }
-             scanner.close();
-             return null;
-           }
-           
-           for (final ArrayList<KeyValue> row : rows) {
-             final byte[] key = row.get(0).key();
-             if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
-               scanner.close();
-               throw new IllegalDataException(
-                   "HBase returned a row that doesn't match"
-                   + " our scanner (" + scanner + ")! " + row + " does not start"
-                   + " with " + Arrays.toString(metric));
-             }
-             Span datapoints = spans.get(key);
-             if (datapoints == null) {
-               datapoints = new Span(tsdb);
-               spans.put(key, datapoints);
-             }
-             final KeyValue compacted = 
-               tsdb.compact(row, datapoints.getAnnotations());
-             if (compacted != null) { // Can be null if we ignored all KVs.
-               datapoints.addRow(compacted);
-               nrows++;
-             }
-           }
-           
-           return scan();
-         } catch (Exception e) {
-           scanner.close();
-           results.callback(e);
-           return null;
-         }
-       }
-     }
+     * Starts the scanner.
+     * @return A deferred called back once every rollup was read
+     */
+    Deferred<Object> scan() {
+      scanner.nextRows().addCallbacks(this, errback);
+      return done;
+    }
+
+    @Override
+    public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+      try {
+        if (rows == null) {
+          scanner.close();
+          for (final Map.Entry<byte[], Interval> entry : intervals.entrySet()) {
+            addDataPoint(entry.getKey(), entry.getValue());
+          }
+          done.callback(null);
+          return null;
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          for (final KeyValue kv : row) {
+            add(kv);
+          }
+        }
+        scanner.nextRows().addCallbacks(this, errback);
+        return null;
+      } catch (Exception e) {
+        scanner.close();
+        done.callback(e);
+        return null;
+      }
+    }
+
+    /**
+     * Fails the scan when HBase returns an error, rather than leaving the
+     * query waiting for rows that will never come.
+     */
+    private final class ScanErrorCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) {
+        scanner.close();
+        done.callback(e);
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "fail rollup scan of " + TsdbQuery.this;
+      }
+    }
+
+    /**
+     * Rolls up the data points of spans scanned before the rollups into the
+     * spans of the rolled up data points, one interval at a time like the
+     * rollups read afterwards.
+     */
+    void rollUp(final TreeMap<byte[], Span> scanned) {
+      for (final Map.Entry<byte[], Span> entry : scanned.entrySet()) {
+        final byte[] key = entry.getKey();
+        Interval current = null;
+        for (final DataPoint dp : entry.getValue()) {
+          final long time = dp.timestamp() / 1000;
+          final long interval_start = time - time % interval;
+          if (current == null || current.start != interval_start) {
+            if (current != null) {
+              addDataPoint(key, current);
+            }
+            current = new Interval();
+            current.start = interval_start;
+          }
+          if (dp.isInteger()) {
+            current.rollup.add(dp.longValue());
+          } else {
+            current.rollup.add(dp.doubleValue());
+          }
+        }
+        if (current != null) {
+          addDataPoint(key, current);
+        }
+      }
+    }
+
+    /** Merges a rollup into the interval of its series. */
+    private void add(final KeyValue kv) {
+      final byte[] key = kv.key();
+      final byte[] qualifier = kv.qualifier();
+      long time = Bytes.getUnsignedInt(key, metric_width);
+      if (daily) {
+        if (!Bytes.equals(qualifier, Rollups.DAY_QUALIFIER)) {
+          return;
+        }
+      } else if (qualifier.length == 2
+                 && qualifier[0] == Rollups.HOUR_PREFIX) {
+        time += qualifier[1] * Rollups.HOUR;
+      } else {
+        return;
+      }
+      if (time < start || time >= end) {
+        return;
+      }
+      final long interval_start = time - time % interval;
+      Interval current = intervals.get(key);
+      if (current == null) {
+        current = new Interval();
+        intervals.put(key, current);
+      } else if (current.start != interval_start) {
+        addDataPoint(key, current);
+        current.rollup = new Rollups.Rollup();
+      }
+      current.start = interval_start;
+      current.rollup.merge(Rollups.Rollup.decode(kv.value(),
+          with_sketches));
+      nrollups++;
+    }
+
+    /** Adds the data point of a merged interval to the span of its series. */
+    private void addDataPoint(final byte[] key, final Interval merged) {
+      if (merged.rollup.count == 0) {
+        return;
+      }
+      Span datapoints = spans.get(key);
+      if (datapoints == null) {
+        datapoints = new Span(tsdb);
+        spans.put(key, datapoints);
+      }
+      datapoints.addRow(merged.rollup.toDataPoint(key, merged.start,
+          downsampler, metric_width));
+    }
+
+    @Override
+    public String toString() {
+      return "scan rollups of " + TsdbQuery.this;
+    }
+  }
+
+  /** The rollups of a series merged so far for a downsampling interval. */
+  private static final class Interval {
+    /** The UNIX timestamp, in seconds, at which the interval starts. */
+    long start;
+    Rollups.Rollup rollup = new Rollups.Rollup();
+  }
+
+  /**
+   * Splits the time range to scan in at most {@code max_slices} slices whose
+   * boundaries, except the first and last ones, are aligned on row base times,
+   * so that every row is read by exactly one slice.
+   * @param start The UNIX timestamp, in seconds, from which to scan
+   * @param end The UNIX timestamp, in seconds, at which to stop scanning, or
+   * -1 to scan until the end of the table (in which case the range isn't
+   * split)
+   * @param max_slices The maximum number of slices
+   * @return The boundaries of the slices, in increasing order: slice
+   * {@code i} goes from {@code boundaries[i]} to {@code boundaries[i + 1]}
+   */
+  static long[] sliceBoundaries(final long start, final long end,
+      final int max_slices) {
+    // The row base times strictly between start and end.
+    final long first = start - (start % Const.MAX_TIMESPAN)
+      + Const.MAX_TIMESPAN;
+    final long inner = end <= first ? 0
+      : (end - first - 1) / Const.MAX_TIMESPAN + 1;
+    final int nslices = (int) Math.max(1, Math.min(max_slices, inner + 1));
+    final long[] boundaries = new long[nslices + 1];
+    boundaries[0] = start;
+    for (int i = 1; i < nslices; i++) {
+      // Spread the inner base times evenly among the slices.
+      boundaries[i] = first + ((i * (inner + 1)) / nslices - 1)
+        * Const.MAX_TIMESPAN;
+    }
+    boundaries[nslices] = end;
+    return boundaries;
+  }
+
+  /**
+   * Splits the slice that spans a given time in two at that time.
+   * @param boundaries The boundaries of the slices, see
+   * {@link #sliceBoundaries}
+   * @param at The UNIX timestamp, in seconds, where to split
+   * @return The boundaries of the slices, including {@code at} if it's
+   * within them
+   */
+  static long[] splitSlices(final long[] boundaries, final long at) {
+    final int last = boundaries.length - 1;
+    if (at <= boundaries[0]
+        || (boundaries[last] >= 0 && at >= boundaries[last])) {
+      return boundaries;
+    }
+    int i = 1;
+    while (i < last && boundaries[i] < at) {
+      i++;
+    }
+    if (boundaries[i] == at) {
+      return boundaries;
+    }
+    final long[] split = new long[boundaries.length + 1];
+    System.arraycopy(boundaries, 0, split, 0, i);
+    split[i] = at;
+    System.arraycopy(boundaries, i, split, i + 1, boundaries.length - i);
+    return split;
+  }
+
+  /**
+   * The hours of the time range of this query that are cached, from the
+   * first hour on, either in the query cache or as whole blocks in the block
+   * cache, and the ones to cache once scanned, which are the next hours that
+   * ended long enough ago.
+   */
+  private final class CachedHours {
+    private final QueryCache query_cache;
+    private final BlockCache block_cache;
+    /** The row key filter of the query, or null if it has none. */
+    private final String filter;
+    /** The filter compiled, to filter the rows of whole blocks. */
+    private final Pattern pattern;
+    /** The generations of the caches before anything was scanned. */
+    private final long query_generation;
+    private final long block_generation;
+    /** Spans of the cached hours, keyed like the result of findSpans. */
+    final TreeMap<byte[], Span> spans =
+      new TreeMap<byte[], Span>(new SpanCmp(tsdb.metrics.width()));
+    /** Number of cached rows. */
+    int nrows = 0;
+    /** The UNIX timestamp, in seconds, from which to scan. */
+    final long scan_start;
+    /** Base times of the first hour to cache and of the hour after the last. */
+    final long fill_start;
+    final long fill_end;
+    /** Whether the hours to cache are to be scanned whole, as blocks. */
+    final boolean whole;
+
+    /**
+     * Looks the hours of the query up in the caches.
+     * @param query_cache The query cache, or null
+     * @param block_cache The block cache, or null
+     * @param start The UNIX timestamp, in seconds, from which to scan
+     * @param end The UNIX timestamp, in seconds, at which to stop scanning,
+     * or -1 to scan until the end of the table
+     */
+    CachedHours(final QueryCache query_cache, final BlockCache block_cache,
+                final long start, final long end) {
+      this.query_cache = query_cache;
+      this.block_cache = block_cache;
+      setMetricFromTSUIDs();
+      filter = getRowFilter();
+      pattern = block_cache == null || filter == null ? null
+        : Pattern.compile(filter);
+      query_generation = query_cache == null ? 0 : query_cache.generation();
+      block_generation = block_cache == null ? 0 : block_cache.generation();
+      final long min_age = tsdb.getConfig().getLong("tsd.query.cache.min_age");
+      final long now = System.currentTimeMillis() / 1000 - min_age;
+      // Only rows from the first base time after start are scanned.
+      long hour = start % Const.MAX_TIMESPAN == 0 ? start
+        : start - (start % Const.MAX_TIMESPAN) + Const.MAX_TIMESPAN;
+      final long first = hour;
+      while ((end < 0 || hour < end) && hour + Const.MAX_TIMESPAN <= now) {
+        final String prefix = QueryCache.prefix(metric, hour);
+        final QueryCache.Hour rows = query_cache == null ? null
+          : query_cache.get(QueryCache.key(prefix, filter));
+        if (rows != null) {
+          addRows(rows);
+        } else {
+          final ArrayList<BlockCache.Row> block = block_cache == null ? null
+            : block_cache.getBlock(prefix);
+          if (block == null) {
+            break;
+          }
+          addBlock(prefix, block);
+        }
+        hour += Const.MAX_TIMESPAN;
+      }
+      scan_start = hour == first ? start : hour;
+      fill_start = hour;
+      while ((end < 0 || hour < end) && hour + Const.MAX_TIMESPAN <= now) {
+        hour += Const.MAX_TIMESPAN;
+      }
+      fill_end = hour;
+      whole = block_cache != null && fill_start < fill_end
+        && !block_cache.isWide(metric);
+    }
+
+    /**
+     * Returns whether the rows of the hour of the given base time are to be
+     * cached.
+     */
+    boolean isToCache(final long base_time) {
+      return base_time >= fill_start && base_time < fill_end;
+    }
 
-     new ScannerCB().scan();
-     return results;
+    /** Returns whether a row of a whole block matches the query. */
+    boolean matches(final byte[] key) {
+      return pattern == null
+        || pattern.matcher(new String(key, CHARSET)).find();
+    }
+
+    /**
+     * Caches the hours that were to be, once they're entirely scanned.
+     * @param slices The slices that scanned them
+     */
+    void store(final ArrayList<SliceScanner> slices) {
+      for (long hour = fill_start; hour < fill_end;
+           hour += Const.MAX_TIMESPAN) {
+        final String prefix = QueryCache.prefix(metric, hour);
+        if (query_cache != null) {
+          QueryCache.Hour rows = null;
+          for (final SliceScanner slice : slices) {
+            if (slice.hours != null
+                && (rows = slice.hours.get(hour)) != null) {
+              break;
+            }
+          }
+          if (rows == null) {  // No row matched in that hour.
+            rows = new QueryCache.Hour(prefix);
+          }
+          query_cache.put(prefix, QueryCache.key(prefix, filter), rows,
+                          query_generation);
+        }
+        if (whole) {
+          ArrayList<BlockCache.Row> block = null;
+          for (final SliceScanner slice : slices) {
+            if (slice.blocks != null
+                && (block = slice.blocks.get(hour)) != null) {
+              break;
+            }
+          }
+          if (block == null) {  // The metric has no row in that hour.
+            block = new ArrayList<BlockCache.Row>(0);
+          }
+          block_cache.putBlock(prefix, block, block_generation);
+        }
+      }
+    }
+
+    /** Adds the rows of an hour from the query cache to the spans. */
+    private void addRows(final QueryCache.Hour rows) {
+      for (int i = 0; i < rows.keys.size(); i++) {
+        add(rows.keys.get(i), rows.rows.get(i), rows.annotations.get(i));
+      }
+      nrows += rows.nrows;
+    }
+
+    /**
+     * Adds the rows of a whole block that match the query to the spans, and
+     * caches them in the query cache.
+     */
+    private void addBlock(final String prefix,
+                          final ArrayList<BlockCache.Row> block) {
+      final QueryCache.Hour rows = query_cache == null ? null
+        : new QueryCache.Hour(prefix);
+      for (final BlockCache.Row row : block) {
+        if (!matches(row.key)) {
+          continue;
+        }
+        add(row.key, row.row, row.annotations);
+        if (row.row != null) {
+          nrows++;
+        }
+        if (rows != null) {
+          rows.add(row.key, row.row, row.annotations == null
+                   ? Collections.<Annotation>emptyList() : row.annotations);
+        }
+      }
+      if (rows != null) {
+        query_cache.put(prefix, QueryCache.key(prefix, filter), rows,
+                        query_generation);
+      }
+    }
+
+    /** Adds a cached row to the spans. */
+    private void add(final byte[] key, final KeyValue row,
+                     final List<Annotation> notes) {
+      Span datapoints = spans.get(key);
+      if (datapoints == null) {
+        datapoints = new Span(tsdb);
+        spans.put(key, datapoints);
+      }
+      if (notes != null) {
+        datapoints.getAnnotations().addAll(notes);
+      }
+      if (row != null) {
+        datapoints.addRow(row);
+      }
+    }
+  }
+
+  /**
+   * Scans one time slice of the query, loading its rows into {@link Span}s.
+   * Each slice has its own spans, so that slices can be scanned concurrently.
+   * <p>
+   * With {@code tsd.query.scan.prefetch}, the next batch of rows is requested
+   * before the current one is decoded so that the round trip to HBase
+   * overlaps with the decoding, and the number of rows per batch is adapted
+   * to the observed row sizes and latency, see {@link #nextBatchRows}.
+   */
+  private final class SliceScanner implements Callback<Object,
+    ArrayList<ArrayList<KeyValue>>> {
+
+    private final Scanner scanner;
+    private final boolean prefetch;
+    /** Targeted size of a batch of rows, in bytes, 0 to not adapt it. */
+    private final long batch_bytes;
+    /** Spans found in this slice, keyed like the result of findSpans. */
+    final TreeMap<byte[], Span> spans =
+      new TreeMap<byte[], Span>(new SpanCmp(tsdb.metrics.width()));
+    /** Number of rows found in this slice. */
+    int nrows = 0;
+    /** The cached hours of the query, or null without a query cache. */
+    private final CachedHours cached;
+    /** Rows of the hours to cache found in this slice, by base time. */
+    HashMap<Long, QueryCache.Hour> hours;
+    /** Whether this slice reads every row of the metric, to cache them. */
+    private final boolean whole;
+    /** Every row of the hours of this slice if it's whole, by base time. */
+    HashMap<Long, ArrayList<BlockCache.Row>> blocks;
+    /** Called back with null once the whole slice was read. */
+    private final Deferred<Object> done = new Deferred<Object>();
+    private final ScanErrorCB errback = new ScanErrorCB();
+    /** Maximum number of rows currently asked for with each nextRows(). */
+    private int batch_rows = DEFAULT_BATCH_ROWS;
+    /** Bytes and rows read so far, to estimate the size of a row. */
+    private long bytes_read = 0;
+    private long rows_read = 0;
+    /** When the last batch was decoded and how long that took, in ns. */
+    private long decoded_at = 0;
+    private long decode_time = 0;
+
+    SliceScanner(final Scanner scanner, final CachedHours cached,
+                 final boolean whole) {
+      this.scanner = scanner;
+      this.cached = cached;
+      this.whole = whole;
+      prefetch = tsdb.getConfig().getBoolean("tsd.query.scan.prefetch");
+      batch_bytes = tsdb.getConfig().getLong("tsd.query.scan.batch_bytes");
+    }
+
+    /**
+     * Starts the scanner.
+     * @return A deferred called back once the whole slice was read
+     */
+    Deferred<Object> scan() {
+      scanner.nextRows().addCallbacks(this, errback);
+      return done;
+    }
+
+    /**
+     * Hands the rows read by the scanner over to be decoded, on the query
+     * decoder if there's one. When prefetching, the next rows are requested
+     * first and only handled once this batch is decoded, so batches are
+     * still decoded one at a time.
+     */
+    @Override
+    public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+      try {
+        if (rows == null) {
+          scanner.close();
+          done.callback(null);
+          return null;
+        }
+
+        // If we waited for this batch longer than it took to decode the
+        // previous one, HBase is the bottleneck.
+        final boolean io_bound = decoded_at > 0
+          && System.nanoTime() - decoded_at > decode_time;
+        final Deferred<ArrayList<ArrayList<KeyValue>>> next =
+          prefetch ? scanner.nextRows() : null;
+        final DecodeBatch decode = new DecodeBatch(rows, next, io_bound);
+        final QueryDecoder decoder = tsdb.getQueryDecoder();
+        if (decoder == null) {
+          decode.run();
+        } else {
+          decoder.execute(decode);
+        }
+        return null;
+      } catch (Exception e) {
+        scanner.close();
+        done.callback(e);
+        return null;
+      }
+    }
+
+    /**
+     * Fails the slice when HBase returns an error, rather than leaving the
+     * query waiting for rows that will never come.
+     */
+    private final class ScanErrorCB implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) {
+        scanner.close();
+        done.callback(e);
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "fail slice scan of " + TsdbQuery.this;
+      }
+    }
+
+    /**
+     * Loops through each row of a batch and parses out data points and
+     * optional meta data, then fetches the next rows.
+     */
+    final class DecodeBatch implements Runnable {
+      private final ArrayList<ArrayList<KeyValue>> rows;
+      /** The next batch if it was prefetched, or null. */
+      private final Deferred<ArrayList<ArrayList<KeyValue>>> next;
+      private final boolean io_bound;
+
+      DecodeBatch(final ArrayList<ArrayList<KeyValue>> rows,
+                  final Deferred<ArrayList<ArrayList<KeyValue>>> next,
+                  final boolean io_bound) {
+        this.rows = rows;
+        this.next = next;
+        this.io_bound = io_bound;
+      }
+
+      public void run() {
+        try {
+          decode();
+        } catch (Exception e) {
+          scanner.close();
+          done.callback(e);
+        }
+      }
+
+      private void decode() {
+        final long start = System.nanoTime();
+        final short metric_width = tsdb.metrics.width();
+        for (final ArrayList<KeyValue> row : rows) {
+          final byte[] key = row.get(0).key();
+          if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
+            throw new IllegalDataException(
+                "HBase returned a row that doesn't match"
+                + " our scanner (" + scanner + ")! " + row + " does not start"
+                + " with " + Arrays.toString(metric));
+          }
+          if (prefetch) {
+            for (final KeyValue kv : row) {
+              bytes_read += key.length + kv.qualifier().length
+                + kv.value().length;
+            }
+          }
+          if (whole) {
+            decodeWhole(key, row);
+            continue;
+          }
+          Span datapoints = spans.get(key);
+          if (datapoints == null) {
+            datapoints = new Span(tsdb);
+            spans.put(key, datapoints);
+          }
+          final QueryCache.Hour hour = hourToCache(key);
+          final List<Annotation> notes = hour == null
+            ? datapoints.getAnnotations() : new ArrayList<Annotation>(0);
+          final KeyValue compacted = tsdb.compact(row, notes);
+          if (hour != null) {
+            hour.add(key, compacted, notes);
+            datapoints.getAnnotations().addAll(notes);
+          }
+          if (compacted != null) { // Can be null if we ignored all KVs.
+            datapoints.addRow(compacted);
+            nrows++;
+          }
+        }
+
+        if (next == null) {
+          scanner.nextRows().addCallbacks(SliceScanner.this, errback);
+          return;
+        }
+        rows_read += rows.size();
+        // The batch after the one already requested gets the new size.
+        final int new_rows = nextBatchRows(batch_rows,
+            bytes_read / Math.max(1, rows_read), batch_bytes, io_bound);
+        if (new_rows != batch_rows) {
+          batch_rows = new_rows;
+          scanner.setMaxNumRows(batch_rows);
+        }
+        decoded_at = System.nanoTime();
+        decode_time = decoded_at - start;
+        next.addCallbacks(SliceScanner.this, errback);
+      }
+    }
+
+    /**
+     * Decodes a row of a slice read whole: every row goes to the block of its
+     * hour, reusing the row from the block cache if it's there already, and
+     * only the rows that match the query go to the spans.
+     */
+    private void decodeWhole(final byte[] key,
+                             final ArrayList<KeyValue> row) {
+      final short metric_width = tsdb.metrics.width();
+      BlockCache.Row decoded = cached.block_cache.getRow(key);
+      if (decoded == null) {
+        final ArrayList<Annotation> notes = new ArrayList<Annotation>(0);
+        decoded = new BlockCache.Row(key, tsdb.compact(row, notes), notes,
+            metric_width);
+      }
+      final long base_time = Bytes.getUnsignedInt(key, metric_width);
+      if (blocks == null) {
+        blocks = new HashMap<Long, ArrayList<BlockCache.Row>>();
+      }
+      ArrayList<BlockCache.Row> block = blocks.get(base_time);
+      if (block == null) {
+        block = new ArrayList<BlockCache.Row>();
+        blocks.put(base_time, block);
+      }
+      block.add(decoded);
+
+      if (!cached.matches(key)) {
+        return;
+      }
+      Span datapoints = spans.get(key);
+      if (datapoints == null) {
+        datapoints = new Span(tsdb);
+        spans.put(key, datapoints);
+      }
+      final List<Annotation> notes = decoded.annotations == null
+        ? Collections.<Annotation>emptyList() : decoded.annotations;
+      datapoints.getAnnotations().addAll(notes);
+      final QueryCache.Hour hour = hourToCache(key);
+      if (hour != null) {
+        hour.add(key, decoded.row, notes);
+      }
+      if (decoded.row != null) {
+        datapoints.addRow(decoded.row);
+        nrows++;
+      }
+    }
+
+    /**
+     * Returns where to put a row of an hour to cache.
+     * @param key The key of the row
+     * @return The rows of its hour found so far, or null if its hour isn't
+     * to be cached
+     */
+    private QueryCache.Hour hourToCache(final byte[] key) {
+      if (cached == null || cached.query_cache == null) {
+        return null;
+      }
+      final long base_time = Bytes.getUnsignedInt(key, tsdb.metrics.width());
+      if (!cached.isToCache(base_time)) {
+        return null;
+      }
+      if (hours == null) {
+        hours = new HashMap<Long, QueryCache.Hour>();
+      }
+      QueryCache.Hour hour = hours.get(base_time);
+      if (hour == null) {
+        hour = new QueryCache.Hour(QueryCache.prefix(metric, base_time));
+        hours.put(base_time, hour);
+      }
+      return hour;
+    }
+
+    @Override
+    public String toString() {
+      return "scan slice of " + TsdbQuery.this;
+    }
+  }
+
+  /**
+   * Returns how many rows to ask for with each call to
+   * {@link Scanner#nextRows()} in a pipelined scan.
+   * <p>
+   * Batches grow twofold while the scan waits on HBase, as fewer and larger
+   * batches cost fewer round trips, but never beyond {@code batch_bytes}
+   * worth of rows so that wide rows don't make huge responses. When the scan
+   * keeps up, the batch size is only capped.
+   * @param rows The current number of rows per batch
+   * @param bytes_per_row The average size of the rows read so far
+   * @param batch_bytes The targeted size of a batch in bytes, 0 to keep
+   * {@code rows}
+   * @param io_bound Whether the scan waited on HBase for the last batch
+   * @return The number of rows per batch, between {@link #MIN_BATCH_ROWS} and
+   * {@link #MAX_BATCH_ROWS}
+   */
+  static int nextBatchRows(final int rows, final long bytes_per_row,
+      final long batch_bytes, final boolean io_bound) {
+    if (batch_bytes <= 0) {
+      return rows;
+    }
+    final long cap = Math.max(MIN_BATCH_ROWS, Math.min(MAX_BATCH_ROWS,
+        batch_bytes / Math.max(1, bytes_per_row)));
+    return (int) Math.min(cap, io_bound ? rows * 2L : rows);
   }
 
   /**
@@ -445,6 +1372,12 @@ final class TsdbQuery implements Query {
       if (spans == null || spans.size() <= 0) {
         return NO_RESULT;
       }
+      if (tsdb.getConfig().getBoolean("tsd.query.columnar")) {
+        // Decode the spans once, rather than every time they're read.
+        for (final Span span : spans.values()) {
+          span.decode();
+        }
+      }
       if (group_bys == null) {
         // We haven't been asked to find groups, so let's put all the spans
         // together in the same group.
@@ -458,71 +1391,83 @@ final class TsdbQuery implements Query {
         return new SpanGroup[] { group };
       }
   
-      // Maps group value IDs to the SpanGroup for those values. Say we've
-      // been asked to group by two things: foo=* bar=* Then the keys in this
-      // map will contain all the value IDs combinations we've seen. If the
-      // name IDs for `foo' and `bar' are respectively [0, 0, 7] and [0, 0, 2]
-      // then we'll have group_bys=[[0, 0, 2], [0, 0, 7]] (notice it's sorted
-      // by ID, so bar is first) and say we find foo=LOL bar=OMG as well as
-      // foo=LOL bar=WTF and that the IDs of the tag values are:
+      // Groups are numbered by the index in the order they're found, and
+      // identified by the value IDs of the tags we group by. Say we've been
+      // asked to group by two things: foo=* bar=* If the name IDs for `foo'
+      // and `bar' are respectively [0, 0, 7] and [0, 0, 2] then the tags are
+      // sorted by ID, so bar is first, and say we find foo=LOL bar=OMG as
+      // well as foo=LOL bar=WTF and that the IDs of the tag values are:
       // LOL=[0, 0, 1] OMG=[0, 0, 4] WTF=[0, 0, 3]
-      // then the map will have two keys:
-      // - one for the LOL-OMG combination: [0, 0, 1, 0, 0, 4] and,
-      // - one for the LOL-WTF combination: [0, 0, 1, 0, 0, 3].
-      final ByteMap<SpanGroup> groups = new ByteMap<SpanGroup>();
-      final short value_width = tsdb.tag_values.width();
-      final byte[] group = new byte[group_bys.size() * value_width];
+      // then we'll have two groups:
+      // - one for the OMG-LOL combination: [0, 0, 4, 0, 0, 1] and,
+      // - one for the WTF-LOL combination: [0, 0, 3, 0, 0, 1].
+      final GroupByIndex index = new GroupByIndex(group_bys,
+          tsdb.metrics.width(), tsdb.tag_names.width(),
+          tsdb.tag_values.width());
+      final ArrayList<SpanGroup> groups = new ArrayList<SpanGroup>();
       for (final Map.Entry<byte[], Span> entry : spans.entrySet()) {
         final byte[] row = entry.getKey();
-        byte[] value_id = null;
-        int i = 0;
-        // TODO(tsuna): The following loop has a quadratic behavior. We can
-        // make it much better since both the row key and group_bys are sorted.
-        for (final byte[] tag_id : group_bys) {
-          value_id = Tags.getValueId(tsdb, row, tag_id);
-          if (value_id == null) {
-            break;
-          }
-          System.arraycopy(value_id, 0, group, i, value_width);
-          i += value_width;
-        }
-        if (value_id == null) {
+        final int group = index.groupOf(row);
+        if (group < 0) {
           LOG.error("WTF? Dropping span for row " + Arrays.toString(row)
                    + " as it had no matching tag from the requested groups,"
                    + " which is unexpected. Query=" + this);
           continue;
         }
-        //LOG.info("Span belongs to group " + Arrays.toString(group) + ": " + Arrays.toString(row));
-        SpanGroup thegroup = groups.get(group);
-        if (thegroup == null) {
-          thegroup = new SpanGroup(tsdb, getScanStartTimeSeconds(),
+        if (group == groups.size()) {
+          groups.add(new SpanGroup(tsdb, getScanStartTimeSeconds(),
                                    getScanEndTimeSeconds(),
                                    null, rate, rate_options, aggregator,
-                                   sample_interval_ms, downsampler);
-          // Copy the array because we're going to keep `group' and overwrite
-          // its contents. So we want the collection to have an immutable copy.
-          final byte[] group_copy = new byte[group.length];
-          System.arraycopy(group, 0, group_copy, 0, group.length);
-          groups.put(group_copy, thegroup);
+                                   sample_interval_ms, downsampler));
         }
-        thegroup.add(entry.getValue());
+        groups.get(group).add(entry.getValue());
       }
-      //for (final Map.Entry<byte[], SpanGroup> entry : groups) {
-      // LOG.info("group for " + Arrays.toString(entry.getKey()) + ": " + entry.getValue());
-      //}
-      return groups.values().toArray(new SpanGroup[groups.size()]);
+      // Return the groups sorted by tag value IDs.
+      final Integer[] sorted = index.sortedGroups();
+      final SpanGroup[] results = new SpanGroup[sorted.length];
+      for (int i = 0; i < sorted.length; i++) {
+        results[i] = groups.get(sorted[i]);
+      }
+      return results;
     }
   }
 
   /**
    * Returns a scanner set for the given metric (from {@link #metric} or from
-   * the first TSUID in the {@link #tsuids}s list. If one or more tags are 
-   * provided, it calls into {@link #createAndSetFilter} to setup a row key 
-   * filter. If one or more TSUIDs have been provided, it calls into
-   * {@link #createAndSetTSUIDFilter} to setup a row key filter.
+   * the first TSUID in the {@link #tsuids}s list, with the row key filter
+   * of {@link #getRowFilter}.
    * @return A scanner to use for fetching data points
    */
   protected Scanner getScanner() throws HBaseException {
+    return getScanner(getScanStartTimeSeconds(),
+                      end_time == UNSET
+                      ? -1  // Will scan until the end (0xFFF...).
+                      : getScanEndTimeSeconds(), true);
+  }
+
+  /**
+   * Returns a scanner like {@link #getScanner()} for a part of the time range
+   * of this query.
+   * @param start The UNIX timestamp, in seconds, from which to scan
+   * @param end The UNIX timestamp, in seconds, at which to stop scanning, or
+   * -1 to scan until the end of the table
+   * @param filtered Whether to only scan the rows that match the query, or
+   * every row of the metric
+   * @return A scanner to use for fetching data points
+   */
+  private Scanner getScanner(final long start, final long end,
+                             final boolean filtered) throws HBaseException {
+    return getScanner(tsdb.table, TSDB.FAMILY, start, end, filtered);
+  }
+
+  /**
+   * Returns a scanner like {@link #getScanner(long, long, boolean)} over a
+   * given table and column family whose row keys are laid out like the ones
+   * of the data table.
+   */
+  private Scanner getScanner(final byte[] table, final byte[] family,
+                             final long start, final long end,
+                             final boolean filtered) throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
     final byte[] end_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
@@ -532,34 +1477,47 @@ final class TsdbQuery implements Query {
     // rely on having a few extra data points before & after the exact start
     // & end dates in order to do proper rate calculation or downsampling near
     // the "edges" of the graph.
-    Bytes.setInt(start_row, (int) getScanStartTimeSeconds(), metric_width);
-    Bytes.setInt(end_row, (end_time == UNSET
-                           ? -1  // Will scan until the end (0xFFF...).
-                           : (int) getScanEndTimeSeconds()),
-                 metric_width);
+    Bytes.setInt(start_row, (int) start, metric_width);
+    Bytes.setInt(end_row, (int) end, metric_width);
     
     // set the metric UID based on the TSUIDs if given, or the metric UID
+    setMetricFromTSUIDs();
+    System.arraycopy(metric, 0, start_row, 0, metric_width);
+    System.arraycopy(metric, 0, end_row, 0, metric_width);
+
+    final Scanner scanner = tsdb.client.newScanner(table);
+    scanner.setStartKey(start_row);
+    scanner.setStopKey(end_row);
+    final String filter = filtered ? getRowFilter() : null;
+    if (filter != null) {
+      scanner.setKeyRegexp(filter, CHARSET);
+    }
+    scanner.setFamily(family);
+    return scanner;
+  }
+
+  /** Sets the metric UID from the first TSUID, if the query has TSUIDs. */
+  private void setMetricFromTSUIDs() {
     if (tsuids != null && !tsuids.isEmpty()) {
       final String tsuid = tsuids.get(0);
       final String metric_uid = tsuid.substring(0, TSDB.metrics_width() * 2);
       metric = UniqueId.stringToUid(metric_uid);
-      System.arraycopy(metric, 0, start_row, 0, metric_width);
-      System.arraycopy(metric, 0, end_row, 0, metric_width); 
-    } else {
-      System.arraycopy(metric, 0, start_row, 0, metric_width);
-      System.arraycopy(metric, 0, end_row, 0, metric_width);
     }
+  }
 
-    final Scanner scanner = tsdb.client.newScanner(tsdb.table);
-    scanner.setStartKey(start_row);
-    scanner.setStopKey(end_row);
+  /**
+   * Returns the server-side regexp filter of the row keys, built by
+   * {@link #getTSUIDFilter} if TSUIDs have been provided, or by
+   * {@link #getTagFilter} if one or more tags are.
+   * @return The regexp, or null if every row of the metric matches
+   */
+  private String getRowFilter() {
     if (tsuids != null && !tsuids.isEmpty()) {
-      createAndSetTSUIDFilter(scanner);
+      return getTSUIDFilter();
     } else if (tags.size() > 0 || group_bys != null) {
-      createAndSetFilter(scanner);
+      return getTagFilter();
     }
-    scanner.setFamily(TSDB.FAMILY);
-    return scanner;
+    return null;
   }
 
   /** Returns the UNIX timestamp from which we must start scanning.  */
@@ -603,12 +1561,57 @@ final class TsdbQuery implements Query {
   }
 
   /**
-   * Sets the server-side regexp filter on the scanner.
+   * Returns the UNIX timestamp, in seconds, from which this query reads
+   * rollups rather than data points.  That's the start of the query, unless
+   * it starts before {@code tsd.query.rollups.start}: hours from before
+   * rollups were written have none, so their data points are read instead.
+   * @return The timestamp, aligned on the downsampling interval
+   */
+  private long getRollupStartTimeSeconds() {
+    final long interval = sample_interval_ms / 1000;
+    final long start = getScanStartTimeSeconds();
+    final long rollups_start =
+      tsdb.getConfig().getLong("tsd.query.rollups.start");
+    return Math.max(start - start % interval, rollups_start % interval == 0
+        ? rollups_start : rollups_start - rollups_start % interval + interval);
+  }
+
+  /**
+   * Returns the UNIX timestamp, in seconds, until which this query reads
+   * rollups rather than data points.  Rollups are read when they're enabled,
+   * {@code tsd.query.rollups.start} is set and the query is downsampled by a
+   * whole number of hours with a function they can answer, for the whole
+   * intervals that ended at least {@code tsd.query.rollups.min_age} seconds
+   * ago, so that their hours were compacted.  Intervals of whole days read
+   * the rollups of days.
+   * @return The timestamp, aligned on the downsampling interval, or -1 if
+   * this query doesn't read rollups
+   */
+  private long getRollupEndTimeSeconds() {
+    if (downsampler == null || tsdb.getRollups() == null
+        || !Rollups.canRollUp(downsampler)
+        || sample_interval_ms % (Rollups.HOUR * 1000L) != 0
+        || tsdb.getConfig().getLong("tsd.query.rollups.start") <= 0) {
+      return -1;
+    }
+    final long interval = sample_interval_ms / 1000;
+    final long now = System.currentTimeMillis() / 1000
+      - tsdb.getConfig().getLong("tsd.query.rollups.min_age");
+    long end = now - now % interval;
+    if (end_time != UNSET) {
+      final long scan_end = getScanEndTimeSeconds();
+      end = Math.min(end, scan_end - scan_end % interval);
+    }
+    return end > getRollupStartTimeSeconds() ? end : -1;
+  }
+
+  /**
+   * Returns the server-side regexp filter of the row keys.
    * In order to find the rows with the relevant tags, we use a
    * server-side filter that matches a regular expression on the row key.
-   * @param scanner The scanner on which to add the filter.
+   * @return The regexp to set on the scanners.
    */
-  private void createAndSetFilter(final Scanner scanner) {
+  private String getTagFilter() {
     if (group_bys != null) {
       Collections.sort(group_bys, Bytes.MEMCMP);
     }
@@ -666,17 +1669,17 @@ final class TsdbQuery implements Query {
     } while (tag != group_by);  // Stop when they both become null.
     // Skip any number of tags before the end.
     buf.append("(?:.{").append(tagsize).append("})*$");
-    scanner.setKeyRegexp(buf.toString(), CHARSET);
+    return buf.toString();
    }
 
   /**
-   * Sets the server-side regexp filter on the scanner.
+   * Returns the server-side regexp filter of the row keys.
    * This will compile a list of the tagk/v pairs for the TSUIDs to prevent
    * storage from returning irrelevant rows.
-   * @param scanner The scanner on which to add the filter.
+   * @return The regexp to set on the scanners.
    * @since 2.0
    */
-  private void createAndSetTSUIDFilter(final Scanner scanner) {
+  private String getTSUIDFilter() {
     Collections.sort(tsuids);
     
     // first, convert the tags to byte arrays and count up the total length
@@ -717,7 +1720,7 @@ final class TsdbQuery implements Query {
     // Replace the pipe of the last iteration, close and set
     buf.setCharAt(buf.length() - 1, ')');
     buf.append("$");
-    scanner.setKeyRegexp(buf.toString(), CHARSET);
+    return buf.toString();
   }
   
   /**
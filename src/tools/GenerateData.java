@@ -5,7 +5,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.zip.GZIPOutputStream;
 
@@ -17,7 +20,7 @@ public class GenerateData {
 
 	/** Prints usage and exits.  */
 	static void usage(final ArgP argp) {
-		System.err.println("Usage: generate --metric=NAME --year=YYY");
+		System.err.println("Usage: generate --metric=NAME --year=YYY [--binary]");
 		System.err.print(argp.usage());
 		System.exit(-1);
 	}
@@ -35,6 +38,8 @@ public class GenerateData {
 		argp.addOption("--range", "RANGE", "(default 101) value += random(range) - gap");
 		argp.addOption("--gap", "GAP", "(default 50) value += random(range) - gap");
 		argp.addOption("--compress", "[optional] compress generated file");
+		argp.addOption("--binary", "[optional] write series block files (" + SeriesBlockFile.EXTENSION
+				+ ") instead of text, for import2");
 		if (args.length < 2) {
 			usage(argp);
 		}
@@ -52,6 +57,7 @@ public class GenerateData {
 		int totalYears = Integer.parseInt(argp.get("--num-years", "1"));
 		int days = Integer.parseInt(argp.get("--num-days", "1"));
 		boolean useCompression = argp.has("--compress");
+		boolean binary = argp.has("--binary");
 		int pph = Integer.parseInt(argp.get("--pph", "3600"));
 		int range = Integer.parseInt(argp.get("--range", "101"));
 		int gap = Integer.parseInt(argp.get("--gap", "50"));
@@ -64,15 +70,26 @@ public class GenerateData {
 		LOG.info("Generating {} years starting from year {}, for metric {} with {} points per hour", totalYears, startYear, metricName, pph);
 		LOG.info("Generating {} metrics with {} tags and {} values for each tag", numMetrics, numTagK, numTagV);
 
-		generateYearlyFiles(useCompression, metricName, numMetrics, numTagK, numTagV, startYear, totalYears, days, pph, range, gap, new Random());
+		generateYearlyFiles(useCompression, binary, metricName, numMetrics, numTagK, numTagV, startYear, totalYears, days, pph, range, gap, new Random());
 	}
 
 	public static void generateYearlyFiles(final boolean useCompression, final String metricName, final int numMetrics, final int numTagK, final int numTagV, final int startYear, final int totalYears, final int days, final int pph, final int range, final int gap, final Random rand) throws IOException {
+		generateYearlyFiles(useCompression, false, metricName, numMetrics, numTagK, numTagV, startYear, totalYears, days, pph, range, gap, rand);
+	}
+
+	/**
+	 * Generates one file per year, of text lines or of series blocks. Both formats hold the same
+	 * data points for the same random generator.
+	 */
+	public static void generateYearlyFiles(final boolean useCompression, final boolean binary, final String metricName, final int numMetrics, final int numTagK, final int numTagV, final int startYear, final int totalYears, final int days, final int pph, final int range, final int gap, final Random rand) throws IOException {
 		//TODO add timezone (--tz) param to argp
 		Calendar cal = Calendar.getInstance(); // use local timezone
 		cal.set(startYear, 0, 1, 0, 0, 0);
 
-		String extension = useCompression ? ".tsd.gz" : ".tsd";
+		String extension = binary ? SeriesBlockFile.EXTENSION : ".tsd";
+		if (useCompression) {
+			extension += ".gz";
+		}
 
 		long value = rand.nextInt(range) - gap;
 		long count = 0;
@@ -86,6 +103,8 @@ public class GenerateData {
 
 			File metricFile = new File("" + year + "-" + metricName + extension);
 			OutputStream os = createOutputStream(useCompression, metricFile);
+			SeriesBlockFile.Writer blocks = binary ? new SeriesBlockFile.Writer(os) : null;
+			Map<String, Integer> seriesIds = new HashMap<String, Integer>();
 
 			long time = (pph > 3600) ? cal.getTimeInMillis() : cal.getTimeInMillis() / 1000;
 			int time_inc = (pph > 3600) ? 3600000 / pph : 3600 / pph;
@@ -101,7 +120,11 @@ public class GenerateData {
 							
 							final String mname = metricName + ((numMetrics > 1) ? "." + rand.nextInt(numMetrics) : "");
 							
-							writeRecord(os, mname, time, value, tagValues);
+							if (blocks != null) {
+								writeDataPoint(blocks, seriesIds, mname, time, value, tagValues);
+							} else {
+								writeRecord(os, mname, time, value, tagValues);
+							}
 							
 							// Alter the value by a range of +/- RANDOM_GAP
 							value += rand.nextInt(range) - gap;
@@ -113,8 +136,12 @@ public class GenerateData {
 					}
 				}
 
-			os.flush();
-			os.close();
+			if (blocks != null) {
+				blocks.close();
+			} else {
+				os.flush();
+				os.close();
+			}
 
 			cal.add(Calendar.YEAR, 1);
 		}
@@ -130,6 +157,20 @@ public class GenerateData {
 		: new BufferedOutputStream(fos);
 	}
 
+	private static void writeDataPoint(SeriesBlockFile.Writer blocks, Map<String, Integer> seriesIds, String metricName, long time, long value, int[] tagValues) throws IOException {
+		final String key = metricName + Arrays.toString(tagValues);
+		Integer id = seriesIds.get(key);
+		if (id == null) {
+			final Map<String, String> tags = new HashMap<String, String>();
+			for (int v = 0; v < tagValues.length; v++) {
+				tags.put("tag" + v, "value" + tagValues[v]);
+			}
+			id = blocks.addSeries(metricName, tags);
+			seriesIds.put(key, id);
+		}
+		blocks.add(id, time, value);
+	}
+
 	private static void writeRecord(OutputStream os, String metricName, long time, long value, int[] tagValues) throws IOException {
 		StringBuffer record = new StringBuffer();
 		record.append(metricName)
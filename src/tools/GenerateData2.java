@@ -0,0 +1,581 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details. You should have received a copy
+// of the GNU Lesser General Public License along with this program. If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parallel and reproducible data generator, for load tests and capacity planning.
+ * <p>
+ * The series space is every combination of a metric and of tag values, and each thread owns
+ * the series whose index modulo the number of threads is its own. Every series has its own
+ * random stream, seeded from the global seed and the index of the series, so the data points
+ * generated only depend on the seed and the parameters, never on the number of threads. Threads
+ * generate one hour of all their series at a time, so the output moves forward in time roughly
+ * together.
+ * <p>
+ * A series is either a gauge, doing a random walk like {@link GenerateData}, or a counter,
+ * increasing by random steps. Sparse series only keep a fraction of their data points. Data
+ * points are written to one file per thread, as text lines or series blocks, or sent to a
+ * running TSD over the telnet protocol, optionally at a target rate.
+ */
+final class GenerateData2 {
+
+	private static final Logger LOG = LoggerFactory.getLogger(GenerateData2.class);
+
+	private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+	/** Prints usage and exits. */
+	private static void usage(final ArgP argp, final String errmsg) {
+		System.err.println(errmsg);
+		System.err.println("Usage: generate2 --metric=NAME [--out=DIR | --tsd=HOST:PORT] [options]");
+		System.err.print(argp.usage());
+		System.exit(-1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		final ArgP argp = new ArgP();
+		argp.addOption("--metric", "NAME", "metric name, and basis of the output file names");
+		argp.addOption("--num-metrics", "N", "(default 1) number of metrics");
+		argp.addOption("--num-tagk", "N", "(default 1) number of tags of each series");
+		argp.addOption("--num-tagv", "N", "(default 1) number of values of each tag");
+		argp.addOption("--start", "SECONDS", "(default 1356998400) UNIX time of the first data point");
+		argp.addOption("--hours", "N", "(default 24) number of hours generated");
+		argp.addOption("--interval", "SECONDS", "(default 60) time between two data points of a series");
+		argp.addOption("--counters", "FRACTION", "(default 0.25) fraction of the series that are counters");
+		argp.addOption("--sparse", "FRACTION", "(default 0) fraction of the series that are sparse");
+		argp.addOption("--sparse-density", "FRACTION", "(default 0.1) fraction of the data points sparse series keep");
+		argp.addOption("--range", "RANGE", "(default 101) gauges: value += random(range) - gap, counters: value += random(range)");
+		argp.addOption("--gap", "GAP", "(default 50) gauges: value += random(range) - gap");
+		argp.addOption("--seed", "SEED", "(default 0) seed of the random streams");
+		argp.addOption("--threads", "N", "(default: number of cores) number of generator threads");
+		argp.addOption("--out", "DIR", "(default .) directory of the generated files, one per thread");
+		argp.addOption("--binary", "write series block files (" + SeriesBlockFile.EXTENSION + ") instead of text");
+		argp.addOption("--compress", "compress the generated files");
+		argp.addOption("--tsd", "HOST:PORT", "send the data points to a TSD instead of writing files");
+		argp.addOption("--command", "put|batch", "(default batch) telnet command used with --tsd");
+		argp.addOption("--rate", "POINTS", "(default unlimited) target number of data points per second");
+		args = CliOptions.parse(argp, args);
+		if (args == null || !argp.has("--metric")) {
+			usage(argp, "Missing --metric");
+		}
+
+		final Spec spec = new Spec(argp.get("--metric"),
+				Integer.parseInt(argp.get("--num-metrics", "1")),
+				Integer.parseInt(argp.get("--num-tagk", "1")),
+				Integer.parseInt(argp.get("--num-tagv", "1")),
+				Long.parseLong(argp.get("--start", "1356998400")),
+				Integer.parseInt(argp.get("--hours", "24")),
+				Integer.parseInt(argp.get("--interval", "60")),
+				Double.parseDouble(argp.get("--counters", "0.25")),
+				Double.parseDouble(argp.get("--sparse", "0")),
+				Double.parseDouble(argp.get("--sparse-density", "0.1")),
+				Integer.parseInt(argp.get("--range", "101")),
+				Integer.parseInt(argp.get("--gap", "50")),
+				Long.parseLong(argp.get("--seed", "0")));
+		final int threads = Integer.parseInt(argp.get("--threads",
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		final double rate = Double.parseDouble(argp.get("--rate", "0"));
+
+		final SinkFactory sinks;
+		if (argp.has("--tsd")) {
+			final String[] address = argp.get("--tsd").split(":");
+			if (address.length != 2) {
+				usage(argp, "Invalid --tsd, expected HOST:PORT");
+			}
+			final String command = argp.get("--command", "batch");
+			if (!"put".equals(command) && !"batch".equals(command)) {
+				usage(argp, "Invalid --command: " + command);
+			}
+			sinks = tsdSinks(spec, address[0], Integer.parseInt(address[1]), command);
+		} else {
+			sinks = fileSinks(spec, new File(argp.get("--out", ".")), argp.has("--binary"),
+					argp.has("--compress"));
+		}
+
+		LOG.info("Generating {} series over {} hours with {} threads", spec.numSeries(),
+				spec.hours, threads);
+		final long start_time = System.nanoTime();
+		final long points = generate(spec, threads, rate, sinks);
+		final double time_delta = (System.nanoTime() - start_time) / 1000000000.0;
+		LOG.info(String.format("Generated %d data points in %.3fs (%.1f points/s)",
+				points, time_delta, points / time_delta));
+	}
+
+	/**
+	 * Generates every data point of a spec.
+	 *
+	 * @param spec What to generate.
+	 * @param threads Number of generator threads.
+	 * @param rate Target number of data points per second, over all threads, or 0 for no limit.
+	 * @param sinks Where each thread writes its data points.
+	 * @return The number of data points generated.
+	 * @throws IOException if a sink failed.
+	 * @throws IllegalArgumentException if a thread would own more than 2^31 series.
+	 */
+	static long generate(final Spec spec, final int threads, final double rate,
+			final SinkFactory sinks) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Need at least one thread: " + threads);
+		}
+		if (spec.numSeries() / threads >= Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many series per thread, use more threads: "
+					+ spec.numSeries());
+		}
+		final AtomicLong points = new AtomicLong();
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Generator[] generators = new Generator[threads];
+		for (int i = 0; i < threads; i++) {
+			generators[i] = new Generator(spec, i, threads, rate / threads, sinks, points, error);
+			generators[i].start();
+		}
+		for (final Generator generator : generators) {
+			try {
+				generator.join();
+			} catch (InterruptedException e) {
+				error.compareAndSet(null, e);
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		final Throwable t = error.get();
+		if (t instanceof IOException) {
+			throw (IOException) t;
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t != null) {
+			throw new RuntimeException("Generation failed", t);
+		}
+		return points.get();
+	}
+
+	/**
+	 * What to generate. The series space is indexed from 0 to {@link #numSeries}, the metric
+	 * varying fastest, then the value of the first tag and so on.
+	 */
+	static final class Spec {
+		final String metric;
+		final int num_metrics;
+		final int num_tagk;
+		final int num_tagv;
+		/** UNIX time of the first data point, in seconds. */
+		final long start;
+		final int hours;
+		/** Time between two data points of a series, in seconds. */
+		final int interval;
+		final double counters;
+		final double sparse;
+		final double sparse_density;
+		final int range;
+		final int gap;
+		final long seed;
+
+		Spec(final String metric, final int num_metrics, final int num_tagk, final int num_tagv,
+				final long start, final int hours, final int interval, final double counters,
+				final double sparse, final double sparse_density, final int range, final int gap,
+				final long seed) {
+			if (num_metrics < 1 || num_tagk < 0 || num_tagv < 1) {
+				throw new IllegalArgumentException("Invalid series space: num_metrics="
+						+ num_metrics + ", num_tagk=" + num_tagk + ", num_tagv=" + num_tagv);
+			}
+			if (start <= 0 || hours < 1 || interval < 1 || range < 1) {
+				throw new IllegalArgumentException("Invalid time range or values: start="
+						+ start + ", hours=" + hours + ", interval=" + interval + ", range=" + range);
+			}
+			this.metric = metric;
+			this.num_metrics = num_metrics;
+			this.num_tagk = num_tagk;
+			this.num_tagv = num_tagv;
+			this.start = start;
+			this.hours = hours;
+			this.interval = interval;
+			this.counters = counters;
+			this.sparse = sparse;
+			this.sparse_density = sparse_density;
+			this.range = range;
+			this.gap = gap;
+			this.seed = seed;
+			numSeries();  // fails early on overflows
+		}
+
+		/**
+		 * @throws IllegalArgumentException if there are more than 2^63 series.
+		 */
+		long numSeries() {
+			long n = num_metrics;
+			for (int i = 0; i < num_tagk; i++) {
+				if (n > Long.MAX_VALUE / num_tagv) {
+					throw new IllegalArgumentException("Too many series");
+				}
+				n *= num_tagv;
+			}
+			return n;
+		}
+
+		String metric(final long series) {
+			return num_metrics > 1 ? metric + '.' + (series % num_metrics) : metric;
+		}
+
+		Map<String, String> tags(final long series) {
+			final HashMap<String, String> tags = new HashMap<String, String>(num_tagk * 2);
+			long rest = series / num_metrics;
+			for (int i = 0; i < num_tagk; i++) {
+				tags.put("tag" + i, "value" + (rest % num_tagv));
+				rest /= num_tagv;
+			}
+			return tags;
+		}
+
+		/**
+		 * Appends the metric and the tags of a series in the telnet format, without creating
+		 * anything for them.
+		 */
+		void appendPoint(final StringBuilder buf, final long series, final long timestamp,
+				final long value) {
+			buf.append(metric);
+			if (num_metrics > 1) {
+				buf.append('.').append(series % num_metrics);
+			}
+			buf.append(' ').append(timestamp).append(' ').append(value);
+			long rest = series / num_metrics;
+			for (int i = 0; i < num_tagk; i++) {
+				buf.append(" tag").append(i).append("=value").append(rest % num_tagv);
+				rest /= num_tagv;
+			}
+		}
+	}
+
+	/**
+	 * Receives the data points of one generator thread, in order for each series.
+	 */
+	interface Sink {
+		/**
+		 * @param series Index of the series in the series space.
+		 * @param local Index of the series among the ones of this thread.
+		 */
+		void add(long series, int local, long timestamp, long value) throws IOException;
+
+		void close() throws IOException;
+	}
+
+	interface SinkFactory {
+		Sink open(int thread, int num_series) throws IOException;
+	}
+
+	private static SinkFactory fileSinks(final Spec spec, final File dir, final boolean binary,
+			final boolean compress) {
+		final String extension = (binary ? SeriesBlockFile.EXTENSION : ".tsd")
+				+ (compress ? ".gz" : "");
+		return new SinkFactory() {
+			@Override
+			public Sink open(final int thread, final int num_series) throws IOException {
+				final File file = new File(dir, spec.metric + '-' + thread + extension);
+				OutputStream out = new FileOutputStream(file);
+				if (compress) {
+					out = new GZIPOutputStream(out, 65536);
+				}
+				out = new BufferedOutputStream(out, 65536);
+				return binary ? new BlockSink(spec, out, num_series) : new TextSink(spec, out, null);
+			}
+		};
+	}
+
+	private static SinkFactory tsdSinks(final Spec spec, final String host, final int port,
+			final String command) {
+		return new SinkFactory() {
+			@Override
+			public Sink open(final int thread, final int num_series) throws IOException {
+				final Socket socket = new Socket(host, port);
+				socket.setTcpNoDelay(false);
+				logErrors(socket, thread);
+				return new TextSink(spec, new BufferedOutputStream(socket.getOutputStream(), 65536),
+						command + ' ') {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							socket.close();
+						}
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * The TSD only answers with errors, log them until the connection is closed.
+	 */
+	private static void logErrors(final Socket socket, final int thread) throws IOException {
+		final BufferedReader in = new BufferedReader(new InputStreamReader(
+				socket.getInputStream(), ASCII));
+		final Thread reader = new Thread("GenerateData2-tsd-" + thread) {
+			@Override
+			public void run() {
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						LOG.warn("TSD: {}", line);
+					}
+				} catch (IOException e) {
+					if (!socket.isClosed()) {
+						LOG.warn("Error reading from the TSD", e);
+					}
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Writes data points as text lines, optionally prefixed by a telnet command.
+	 */
+	private static class TextSink implements Sink {
+		private final Spec spec;
+		private final OutputStream out;
+		private final String prefix;
+		private final StringBuilder buf = new StringBuilder(256);
+		private byte[] bytes = new byte[256];
+
+		TextSink(final Spec spec, final OutputStream out, final String prefix) {
+			this.spec = spec;
+			this.out = out;
+			this.prefix = prefix;
+		}
+
+		@Override
+		public void add(final long series, final int local, final long timestamp,
+				final long value) throws IOException {
+			buf.setLength(0);
+			if (prefix != null) {
+				buf.append(prefix);
+			}
+			spec.appendPoint(buf, series, timestamp, value);
+			buf.append('\n');
+			final int length = buf.length();
+			if (length > bytes.length) {
+				bytes = new byte[length * 2];
+			}
+			for (int i = 0; i < length; i++) {
+				bytes[i] = (byte) buf.charAt(i);
+			}
+			out.write(bytes, 0, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes data points as series blocks, defining every series the first time it shows up.
+	 */
+	private static final class BlockSink implements Sink {
+		private final Spec spec;
+		private final SeriesBlockFile.Writer writer;
+		/** Id of each series of the thread in the file, -1 until defined. */
+		private final int[] ids;
+
+		BlockSink(final Spec spec, final OutputStream out, final int num_series)
+				throws IOException {
+			this.spec = spec;
+			writer = new SeriesBlockFile.Writer(out);
+			ids = new int[num_series];
+			Arrays.fill(ids, -1);
+		}
+
+		@Override
+		public void add(final long series, final int local, final long timestamp,
+				final long value) throws IOException {
+			if (ids[local] < 0) {
+				ids[local] = writer.addSeries(spec.metric(series), spec.tags(series));
+			}
+			writer.add(ids[local], timestamp, value);
+		}
+
+		@Override
+		public void close() throws IOException {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Generates the data points of the series owned by one thread, an hour at a time.
+	 */
+	private static final class Generator extends Thread {
+		private static final byte COUNTER = 0x01;
+		private static final byte SPARSE = 0x02;
+
+		private final Spec spec;
+		private final int thread;
+		private final int threads;
+		/** Target number of data points per second of this thread, 0 for no limit. */
+		private final double rate;
+		private final SinkFactory sinks;
+		private final AtomicLong points;
+		private final AtomicReference<Throwable> error;
+
+		Generator(final Spec spec, final int thread, final int threads, final double rate,
+				final SinkFactory sinks, final AtomicLong points,
+				final AtomicReference<Throwable> error) {
+			super("GenerateData2-" + thread);
+			this.spec = spec;
+			this.thread = thread;
+			this.threads = threads;
+			this.rate = rate;
+			this.sinks = sinks;
+			this.points = points;
+			this.error = error;
+		}
+
+		@Override
+		public void run() {
+			try {
+				generate();
+			} catch (Throwable t) {
+				if (error.compareAndSet(null, t)) {
+					LOG.error("Generation failed", t);
+				}
+			}
+		}
+
+		private void generate() throws IOException, InterruptedException {
+			final long num_series = spec.numSeries();
+			final int owned = (int) ((num_series - thread + threads - 1) / threads);
+
+			// State of every series of this thread, kept across hours.
+			final long[] random = new long[owned];
+			final long[] values = new long[owned];
+			final byte[] kinds = new byte[owned];
+			final long root = SplitMix.mix(spec.seed);
+			for (int local = 0; local < owned; local++) {
+				final long series = thread + (long) local * threads;
+				random[local] = SplitMix.mix(root ^ series);
+				byte kind = 0;
+				if (SplitMix.nextDouble(random, local) < spec.counters) {
+					kind |= COUNTER;
+				} else {
+					values[local] = SplitMix.nextInt(random, local, spec.range) - spec.gap;
+				}
+				if (SplitMix.nextDouble(random, local) < spec.sparse) {
+					kind |= SPARSE;
+				}
+				kinds[local] = kind;
+			}
+
+			final Sink sink = sinks.open(thread, owned);
+			final long start_time = System.nanoTime();
+			long count = 0;
+			try {
+				final long end = spec.start + spec.hours * 3600L;
+				for (long hour = spec.start; hour < end && error.get() == null; hour += 3600) {
+					final long hour_end = Math.min(hour + 3600, end);
+					// First data point of the hour, data points being every interval since start.
+					final long first = spec.start
+							+ (hour - spec.start + spec.interval - 1) / spec.interval * spec.interval;
+					for (int local = 0; local < owned; local++) {
+						final long series = thread + (long) local * threads;
+						final byte kind = kinds[local];
+						for (long timestamp = first; timestamp < hour_end; timestamp += spec.interval) {
+							if ((kind & COUNTER) != 0) {
+								values[local] += SplitMix.nextInt(random, local, spec.range);
+							} else {
+								values[local] += SplitMix.nextInt(random, local, spec.range) - spec.gap;
+							}
+							if ((kind & SPARSE) != 0
+									&& SplitMix.nextDouble(random, local) >= spec.sparse_density) {
+								continue;
+							}
+							sink.add(series, local, timestamp, values[local]);
+							if (++count % 1024 == 0) {
+								points.addAndGet(1024);
+								throttle(start_time, count);
+							}
+						}
+					}
+				}
+				points.addAndGet(count % 1024);
+			} finally {
+				sink.close();
+			}
+		}
+
+		/**
+		 * Sleeps for as long as this thread is ahead of its target rate.
+		 */
+		private void throttle(final long start_time, final long count)
+				throws InterruptedException {
+			if (rate <= 0) {
+				return;
+			}
+			final long due = start_time + (long) (count / rate * 1000000000.0);
+			final long ahead = due - System.nanoTime();
+			if (ahead > 0) {
+				Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+			}
+		}
+	}
+
+	/**
+	 * SplitMix64 random streams. Every stream is a single long of state, so the streams of all
+	 * the series of a thread fit in an array.
+	 */
+	static final class SplitMix {
+		private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+		private SplitMix() {
+			// Not instantiable.
+		}
+
+		static long mix(long z) {
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
+
+		static long nextLong(final long[] states, final int i) {
+			return mix(states[i] += GOLDEN_GAMMA);
+		}
+
+		/** Returns an integer between 0 included and bound excluded. */
+		static int nextInt(final long[] states, final int i, final int bound) {
+			return (int) (((nextLong(states, i) >>> 32) * bound) >>> 32);
+		}
+
+		/** Returns a double between 0 included and 1 excluded. */
+		static double nextDouble(final long[] states, final int i) {
+			return (nextLong(states, i) >>> 11) * 0x1.0p-53;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details. You should have received a copy
+// of the GNU Lesser General Public License along with this program. If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Parses lines of the import format directly from bytes:
+ * <pre>metric timestamp value tagk1=tagv1 [tagk2=tagv2 ...]</pre>
+ * Nothing is allocated for a well formed line. The metric and the tags are reported as byte
+ * ranges of the buffer, so callers can look series up without creating any string. An instance
+ * holds the result of the last line parsed and isn't thread-safe.
+ */
+final class LineParser {
+
+	private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+	/**
+	 * Powers of ten that can be represented exactly by a float.
+	 */
+	private static final float[] POWERS_OF_TEN = new float[11];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * Mantissas up to this value are exactly representable by a float.
+	 */
+	private static final long MAX_EXACT_MANTISSA = 1L << 24;
+
+	private int metric_start;
+	private int metric_end;
+	private int tags_start;
+	private int tags_end;
+	private long timestamp;
+	private boolean is_float;
+	private long lvalue;
+	private float fvalue;
+
+	/**
+	 * Parses a line.
+	 *
+	 * @param buf The buffer holding the line. Its position and limit are left untouched.
+	 * @param start Index of the first byte of the line.
+	 * @param end Index right after the last byte of the line, not counting the end of line.
+	 * @throws IllegalArgumentException if the line is malformed, in which case the state of this
+	 * parser is undefined.
+	 * @throws NumberFormatException if the timestamp or the value is invalid.
+	 */
+	void parse(final ByteBuffer buf, final int start, int end) {
+		if (end > start && buf.get(end - 1) == '\r') {
+			end--;
+		}
+		int i = start;
+		metric_start = i;
+		while (i < end && buf.get(i) != ' ') {
+			i++;
+		}
+		metric_end = i;
+		if (metric_end == metric_start) {
+			throw new IllegalArgumentException("invalid metric: empty");
+		}
+
+		i = skipSpaces(buf, i, end);
+		final int ts_start = i;
+		i = nextSpace(buf, i, end);
+		timestamp = parseLong(buf, ts_start, i);
+		if (timestamp <= 0) {
+			throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+		}
+
+		i = skipSpaces(buf, i, end);
+		final int value_start = i;
+		i = nextSpace(buf, i, end);
+		if (value_start == i) {
+			throw new IllegalArgumentException("invalid value: empty");
+		}
+		parseValue(buf, value_start, i);
+
+		tags_start = skipSpaces(buf, i, end);
+		int e = end;
+		while (e > tags_start && buf.get(e - 1) == ' ') {
+			e--;
+		}
+		tags_end = e;
+	}
+
+	int metricStart() {
+		return metric_start;
+	}
+
+	int metricEnd() {
+		return metric_end;
+	}
+
+	/**
+	 * Index of the first byte of the tags, which are separated by one or more spaces.
+	 */
+	int tagsStart() {
+		return tags_start;
+	}
+
+	int tagsEnd() {
+		return tags_end;
+	}
+
+	long timestamp() {
+		return timestamp;
+	}
+
+	boolean isFloat() {
+		return is_float;
+	}
+
+	long longValue() {
+		return lvalue;
+	}
+
+	float floatValue() {
+		return fvalue;
+	}
+
+	/**
+	 * Returns a range of a buffer as a string, for the uncommon cases where one is needed.
+	 */
+	static String toString(final ByteBuffer buf, final int start, final int end) {
+		final byte[] bytes = new byte[end - start];
+		for (int i = start; i < end; i++) {
+			bytes[i - start] = buf.get(i);
+		}
+		return new String(bytes, ASCII);
+	}
+
+	private static int skipSpaces(final ByteBuffer buf, int i, final int end) {
+		while (i < end && buf.get(i) == ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	private static int nextSpace(final ByteBuffer buf, int i, final int end) {
+		while (i < end && buf.get(i) != ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Same rules as {@link net.opentsdb.core.Tags#parseLong} without the string.
+	 */
+	private static long parseLong(final ByteBuffer buf, final int start, final int end) {
+		final int n = end - start;
+		if (n == 0) {
+			throw new NumberFormatException("Empty string");
+		}
+		int i = start;
+		final byte first = buf.get(i);
+		if (first == '+' || first == '-') {
+			if (n == 1) {
+				throw new NumberFormatException("Just a sign, no value: " + toString(buf, start, end));
+			} else if (n > 20) {
+				throw new NumberFormatException("Value too long: " + toString(buf, start, end));
+			}
+			i++;
+		} else if (n > 19) {
+			throw new NumberFormatException("Value too long: " + toString(buf, start, end));
+		}
+		long v = 0;  // The result (negated to easily handle MIN_VALUE).
+		for (; i < end; i++) {
+			final byte c = buf.get(i);
+			if (c < '0' || c > '9') {
+				throw new NumberFormatException("Invalid character '" + (char) c + "' in "
+						+ toString(buf, start, end));
+			}
+			v = v * 10 - (c - '0');
+		}
+		if (v > 0) {
+			throw new NumberFormatException("Overflow in " + toString(buf, start, end));
+		} else if (first == '-') {
+			return v;
+		} else if (v == Long.MIN_VALUE) {
+			throw new NumberFormatException("Overflow in " + toString(buf, start, end));
+		}
+		return -v;
+	}
+
+	/**
+	 * Parses an integer, or a floating point value if there's a '.', 'e' or 'E' in it, just like
+	 * {@link net.opentsdb.core.Tags#looksLikeInteger} decides.
+	 */
+	private void parseValue(final ByteBuffer buf, final int start, final int end) {
+		boolean looks_like_integer = true;
+		for (int i = start; i < end; i++) {
+			final byte c = buf.get(i);
+			if (c == '.' || c == 'e' || c == 'E') {
+				looks_like_integer = false;
+				break;
+			}
+		}
+		is_float = !looks_like_integer;
+		if (looks_like_integer) {
+			lvalue = parseLong(buf, start, end);
+			return;
+		}
+
+		// Fast path for plain decimals with few enough digits: the mantissa and the power of ten
+		// are both exact floats, so the float division is correctly rounded. Dividing doubles
+		// and then casting would round twice, and be off by one ULP for some values.
+		int i = start;
+		final byte first = buf.get(i);
+		final boolean negative = first == '-';
+		if (negative || first == '+') {
+			i++;
+		}
+		long mantissa = 0;
+		int decimals = -1;
+		int digits = 0;
+		for (; i < end; i++) {
+			final byte c = buf.get(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				if (decimals >= 0) {
+					decimals++;
+				}
+				if (++digits > 18) {
+					break;
+				}
+			} else if (c == '.' && decimals < 0) {
+				decimals = 0;
+			} else {
+				break;
+			}
+		}
+		if (i == end && digits > 0 && mantissa <= MAX_EXACT_MANTISSA
+				&& decimals < POWERS_OF_TEN.length) {
+			final float v = decimals <= 0 ? mantissa : mantissa / POWERS_OF_TEN[decimals];
+			fvalue = negative ? -v : v;
+		} else {
+			// Exponents, long mantissas and malformed numbers.
+			fvalue = Float.parseFloat(toString(buf, start, end));
+		}
+	}
+}
@@ -0,0 +1,373 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details. You should have received a copy
+// of the GNU Lesser General Public License along with this program. If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Binary import format, grouping the data points of a series into blocks so that nothing needs
+ * to be parsed and every series is resolved once per file. Files have the {@code .tsb}
+ * extension, {@code .tsb.gz} when gzip'ed.
+ * <pre>
+ * file      := MAGIC (series | block)* END
+ * MAGIC     := 'T' 'S' 'B' '1'
+ * series    := 0x01 metric:utf num_tags:varint (tagk:utf tagv:utf){num_tags}
+ * block     := 0x02 series_id:varint flags:byte count:varint
+ *              first_timestamp:int64 (timestamp_delta:zigzag){count - 1}
+ *              values
+ * values    := float32{count}                        if flags has FLOAT_VALUES
+ *            | first_value:zigzag (value_delta:zigzag){count - 1}   otherwise
+ * END       := 0x00
+ * </pre>
+ * Every series record defines the next series id, starting at 0, and must come before the first
+ * block referring to it. Timestamps are in seconds or milliseconds, just like in the text format.
+ * Integers are big endian, {@code utf} is the encoding of {@link DataOutputStream#writeUTF},
+ * {@code varint} is an unsigned LEB128 integer and {@code zigzag} is a signed integer zigzag
+ * encoded into a varint, so that the small deltas of regular series take a byte or two.
+ */
+final class SeriesBlockFile {
+
+	static final String EXTENSION = ".tsb";
+
+	private static final int MAGIC = ('T' << 24) | ('S' << 16) | ('B' << 8) | '1';
+	private static final int END = 0;
+	private static final int SERIES = 1;
+	private static final int BLOCK = 2;
+
+	/** Block flag: the values are floats instead of integers. */
+	private static final int FLOAT_VALUES = 0x01;
+
+	private SeriesBlockFile() {
+		// Not instantiable.
+	}
+
+	/**
+	 * Tells whether a file is in this format, judging by its name.
+	 */
+	static boolean isSeriesBlockFile(final String path) {
+		return path.endsWith(EXTENSION) || path.endsWith(EXTENSION + ".gz");
+	}
+
+	/**
+	 * Writes a series block file. Data points are buffered per series and written as a block
+	 * when the buffer of their series is full, when a series switches between integer and float
+	 * values, or on {@link #flush}. Not thread-safe.
+	 */
+	static final class Writer {
+
+		/** Maximum number of data points per block. */
+		static final int BLOCK_POINTS = 4096;
+
+		private final DataOutputStream out;
+		private final ArrayList<Buffer> series = new ArrayList<Buffer>();
+
+		Writer(final OutputStream out) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(out));
+			this.out.writeInt(MAGIC);
+		}
+
+		/**
+		 * Defines a new series.
+		 *
+		 * @return The id of the series, to pass to {@link #add}.
+		 */
+		int addSeries(final String metric, final Map<String, String> tags) throws IOException {
+			out.writeByte(SERIES);
+			out.writeUTF(metric);
+			writeVarint(out, tags.size());
+			// Sorted, so that files don't depend on the iteration order of the map.
+			for (final Map.Entry<String, String> tag : new TreeMap<String, String>(tags).entrySet()) {
+				out.writeUTF(tag.getKey());
+				out.writeUTF(tag.getValue());
+			}
+			series.add(new Buffer());
+			return series.size() - 1;
+		}
+
+		void add(final int id, final long timestamp, final long value) throws IOException {
+			add(id, timestamp, value, false);
+		}
+
+		void add(final int id, final long timestamp, final float value) throws IOException {
+			add(id, timestamp, Float.floatToRawIntBits(value), true);
+		}
+
+		private void add(final int id, final long timestamp, final long value,
+				final boolean is_float) throws IOException {
+			final Buffer buffer = series.get(id);
+			if (buffer.count > 0 && buffer.is_float != is_float) {
+				writeBlock(id, buffer);
+			}
+			buffer.is_float = is_float;
+			if (buffer.count == buffer.timestamps.length) {
+				buffer.timestamps = Arrays.copyOf(buffer.timestamps, buffer.count * 2);
+				buffer.values = Arrays.copyOf(buffer.values, buffer.count * 2);
+			}
+			buffer.timestamps[buffer.count] = timestamp;
+			buffer.values[buffer.count] = value;
+			if (++buffer.count == BLOCK_POINTS) {
+				writeBlock(id, buffer);
+			}
+		}
+
+		/**
+		 * Writes the buffered data points of every series.
+		 */
+		void flush() throws IOException {
+			for (int id = 0; id < series.size(); id++) {
+				if (series.get(id).count > 0) {
+					writeBlock(id, series.get(id));
+				}
+			}
+			out.flush();
+		}
+
+		/**
+		 * Flushes, ends the file and closes the underlying stream.
+		 */
+		void close() throws IOException {
+			try {
+				flush();
+				out.writeByte(END);
+			} finally {
+				out.close();
+			}
+		}
+
+		private void writeBlock(final int id, final Buffer buffer) throws IOException {
+			final int count = buffer.count;
+			out.writeByte(BLOCK);
+			writeVarint(out, id);
+			out.writeByte(buffer.is_float ? FLOAT_VALUES : 0);
+			writeVarint(out, count);
+			final long[] timestamps = buffer.timestamps;
+			out.writeLong(timestamps[0]);
+			for (int i = 1; i < count; i++) {
+				writeZigzag(out, timestamps[i] - timestamps[i - 1]);
+			}
+			final long[] values = buffer.values;
+			if (buffer.is_float) {
+				for (int i = 0; i < count; i++) {
+					out.writeInt((int) values[i]);
+				}
+			} else {
+				writeZigzag(out, values[0]);
+				for (int i = 1; i < count; i++) {
+					writeZigzag(out, values[i] - values[i - 1]);
+				}
+			}
+			buffer.count = 0;
+		}
+
+		/**
+		 * Data points of a series waiting to be written. Grows up to a block, so that sparse
+		 * series don't cost a full block each.
+		 */
+		private static final class Buffer {
+			long[] timestamps = new long[16];
+			/** Integer values, or the raw int bits of floating point values. */
+			long[] values = new long[16];
+			boolean is_float;
+			int count;
+		}
+	}
+
+	/**
+	 * Reads a series block file one block at a time. The arrays holding the current block are
+	 * reused from one block to the next. Not thread-safe.
+	 */
+	static final class Reader {
+
+		private final DataInputStream in;
+		private final ArrayList<String> metrics = new ArrayList<String>();
+		private final ArrayList<Map<String, String>> tags = new ArrayList<Map<String, String>>();
+
+		private int series;
+		private boolean is_float;
+		private int count;
+		private long[] timestamps = new long[Writer.BLOCK_POINTS];
+		private long[] values = new long[Writer.BLOCK_POINTS];
+
+		/**
+		 * Creates a reader, reading the magic number right away.
+		 *
+		 * @throws IOException if the stream isn't a series block file.
+		 */
+		Reader(final InputStream in) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(in, 65536));
+			if (this.in.readInt() != MAGIC) {
+				throw new IOException("Not a series block file");
+			}
+		}
+
+		/**
+		 * Reads the next block, along with the series defined before it.
+		 *
+		 * @return {@code false} once the end of the file is reached.
+		 * @throws IOException if the file is truncated or corrupted.
+		 */
+		boolean next() throws IOException {
+			while (true) {
+				final int type = in.read();
+				switch (type) {
+				case END:
+					return false;
+				case SERIES:
+					readSeries();
+					break;
+				case BLOCK:
+					readBlock();
+					return true;
+				case -1:
+					throw new EOFException("Series block file truncated, no end marker");
+				default:
+					throw new IOException("Unknown record type " + type);
+				}
+			}
+		}
+
+		/** Number of series defined so far. */
+		int numSeries() {
+			return metrics.size();
+		}
+
+		String metric(final int id) {
+			return metrics.get(id);
+		}
+
+		Map<String, String> tags(final int id) {
+			return tags.get(id);
+		}
+
+		/** Id of the series of the current block. */
+		int series() {
+			return series;
+		}
+
+		/** Number of data points in the current block. */
+		int count() {
+			return count;
+		}
+
+		boolean isFloat() {
+			return is_float;
+		}
+
+		long timestamp(final int i) {
+			return timestamps[i];
+		}
+
+		long longValue(final int i) {
+			return values[i];
+		}
+
+		float floatValue(final int i) {
+			return Float.intBitsToFloat((int) values[i]);
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		private void readSeries() throws IOException {
+			final String metric = in.readUTF();
+			final int num_tags = readVarint(in);
+			final HashMap<String, String> series_tags = new HashMap<String, String>(num_tags * 2);
+			for (int i = 0; i < num_tags; i++) {
+				series_tags.put(in.readUTF(), in.readUTF());
+			}
+			metrics.add(metric);
+			tags.add(Collections.unmodifiableMap(series_tags));
+		}
+
+		private void readBlock() throws IOException {
+			series = readVarint(in);
+			if (series >= metrics.size()) {
+				throw new IOException("Block of undefined series " + series);
+			}
+			is_float = (in.readUnsignedByte() & FLOAT_VALUES) != 0;
+			count = readVarint(in);
+			if (count < 1) {
+				throw new IOException("Invalid block size " + count);
+			}
+			if (count > timestamps.length) {
+				timestamps = Arrays.copyOf(timestamps, count);
+				values = Arrays.copyOf(values, count);
+			}
+			timestamps[0] = in.readLong();
+			for (int i = 1; i < count; i++) {
+				timestamps[i] = timestamps[i - 1] + readZigzag(in);
+			}
+			if (is_float) {
+				for (int i = 0; i < count; i++) {
+					values[i] = in.readInt();
+				}
+			} else {
+				values[0] = readZigzag(in);
+				for (int i = 1; i < count; i++) {
+					values[i] = values[i - 1] + readZigzag(in);
+				}
+			}
+		}
+	}
+
+	static void writeVarint(final DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static void writeZigzag(final DataOutputStream out, final long value) throws IOException {
+		writeVarint(out, (value << 1) ^ (value >> 63));
+	}
+
+	static int readVarint(final DataInputStream in) throws IOException {
+		final long value = readVarLong(in);
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new IOException("Varint out of range: " + value);
+		}
+		return (int) value;
+	}
+
+	static long readZigzag(final DataInputStream in) throws IOException {
+		final long value = readVarLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static long readVarLong(final DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+}
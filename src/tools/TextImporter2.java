@@ -12,81 +12,146 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tools;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 
 import net.opentsdb.core.CachedBatches;
-import net.opentsdb.core.Const;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
 import net.opentsdb.utils.Config;
 
-import org.hbase.async.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Bulk importer writing through the batch cache, so that every hour of a series is written as
+ * a single compacted cell.
+ * <p>
+ * The import runs as a pipeline. Reader threads, one per file being imported, hand chunks of
+ * lines to a pool of parser threads. Plain files are memory mapped and their chunks are views of
+ * the mapping, gzip'ed files are decompressed into buffers. Parsers work on the raw bytes with a
+ * {@link LineParser}, without creating any string or map for a line, and resolve each series to
+ * its row key once: every parser keeps its own table of the series it has seen, keyed by the
+ * bytes of the metric and the tags, in front of a table shared by all parsers. Data points are
+ * then routed to writer threads, each writer owning a fixed subset of the series. Every stage is
+ * connected by a bounded queue, so a slow stage holds back the ones feeding it instead of
+ * buffering the whole file in memory.
+ * <p>
+ * Series block files ({@link SeriesBlockFile}) skip the parsers: their reader resolves each
+ * series once per file and routes the data points of every block straight to the writers.
+ * <p>
+ * Since chunks of the same file are parsed concurrently, the data points of a series may reach
+ * its writer slightly out of order. Batches sort them within an hour, and
+ * {@code tsd.storage.batch.reorder_window} keeps the previous hour open across chunk boundaries.
+ * The command line sets it with {@code --reorder-window}, {@link #REORDER_WINDOW} by default.
+ */
 final class TextImporter2 {
 
 	private static final Logger LOG = LoggerFactory.getLogger(TextImporter2.class);
-	
-	private static boolean toScreen;
 
-	private static final List<MetricTags> metricTags = new ArrayList<MetricTags>();
+	private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+	/**
+	 * Number of bytes a reader hands to a parser at once, rounded to whole lines.
+	 */
+	private static final int CHUNK_BYTES = 1 << 20;
+
+	/**
+	 * Maximum number of bytes of a file mapped at once.
+	 */
+	private static final int MAP_BYTES = 1 << 30;
+
+	/**
+	 * Maximum number of data points a parser hands to a writer at once.
+	 */
+	private static final int WRITE_BATCH = 1024;
+
+	/**
+	 * Number of chunks or batches each queue can hold, per consumer thread.
+	 */
+	private static final int QUEUE_DEPTH = 4;
+
+	/**
+	 * Default reorder window of the batch cache, in seconds. Without one,
+	 * every data point of the previous hour that a slower parser hands over once the next hour
+	 * started would be written as a cell of its own, and its row compacted again.
+	 */
+	static final int REORDER_WINDOW = 600;
+
+	private static boolean toScreen;
 
 	/** Prints usage and exits. */
 	private static void usage(final ArgP argp) {
-		System.err.println("Usage: import2 path [more paths] [--noimport] [--print]");
+		System.err.println("Usage: import2 path [more paths] [--noimport] [--print]"
+				+ " [--parsers N] [--writers N] [--files N] [--reorder-window SECONDS]");
 		System.err.print(argp.usage());
-		System.err.println("This tool can directly read gzip'ed input files.");
+		System.err.println("This tool can directly read gzip'ed input files, and series block"
+				+ " files (" + SeriesBlockFile.EXTENSION + ") written by the generate tool.");
 		System.exit(-1);
 	}
-	
+
 	public static void main(String[] args) throws Exception {
 		ArgP argp = new ArgP();
 		CliOptions.addCommon(argp);
 		CliOptions.addAutoMetricFlag(argp);
 		argp.addOption("--print", "print data points on screen");
 		argp.addOption("--noimport", "do not import data to TSDB");
+		argp.addOption("--parsers", "N", "number of parser threads (default: number of cores)");
+		argp.addOption("--writers", "N", "number of writer threads (default: number of cores)");
+		argp.addOption("--files", "N", "number of files imported concurrently (default: 1)");
+		argp.addOption("--reorder-window", "SECONDS", "how long the batch cache keeps the previous"
+				+ " hour of a series open for late data points (default: " + REORDER_WINDOW + ")");
 		args = CliOptions.parse(argp, args);
 		if (args == null || args.length < 1) {
 			usage(argp);
 		}
 
-		LOG.info("paths: {}", Arrays.toString(args));		
-		
+		LOG.info("paths: {}", Arrays.toString(args));
+
 		toScreen = argp.has("--print");
+		final int cores = Runtime.getRuntime().availableProcessors();
+		final int parsers = Integer.parseInt(argp.get("--parsers", Integer.toString(cores)));
+		final int writers = Integer.parseInt(argp.get("--writers", Integer.toString(cores)));
+		final int files = Integer.parseInt(argp.get("--files", "1"));
+		final String reorder_window = argp.get("--reorder-window",
+				Integer.toString(REORDER_WINDOW));
+		if (Integer.parseInt(reorder_window) < 0) {
+			usage(argp);
+		}
 
-		final long start_time = System.nanoTime();
-		int points = 0;
 		// get a config object
 		TSDB tsdb = null;
 
 		if (!argp.has("--noimport")) {
 			Config config = CliOptions.getConfig(argp);
 			argp = null;
+			config.overrideConfig("tsd.storage.batch.reorder_window", reorder_window);
 			tsdb = new TSDB(config);
 			tsdb.checkNecessaryTablesExist().joinUninterruptibly();
 		}
 
 		try {
-			for (final String path : args) {
-				LOG.info("Importing file {}", path);
-				points += importFile(tsdb, path);
-
-				// we don't need to share the metricTags between files
-				metricTags.clear();
-			}
-			
-			displayAvgSpeed(start_time, points);
+			importFiles(tsdb, args, parsers, writers, files);
 		} finally {
 			if (tsdb != null) {
 				try {
@@ -99,100 +164,526 @@ final class TextImporter2 {
 		}
 	}
 
-	private static void displayAvgSpeed(final long start_time, final int points) {
+	private static void displayAvgSpeed(final long start_time, final long points) {
 		final double time_delta = (System.nanoTime() - start_time) / 1000000000.0;
 		LOG.info(String.format("Average speed: %d data points in %.3fs (%.1f points/s)",
 				points, time_delta, (points / time_delta)));
 	}
 
 	/**
-	 * Imports a given file to TSDB
-	 * @return number of points imported from file
-	 * @throws IOException
+	 * Imports the given files to TSDB.
+	 *
+	 * @param tsdb The TSDB to write to, or {@code null} to only parse the files.
+	 * @param paths The files to import.
+	 * @param parsers Number of parser threads.
+	 * @param writers Number of writer threads.
+	 * @param files Maximum number of files read concurrently.
+	 * @return number of points imported
+	 * @throws IOException if a file couldn't be read.
+	 * @throws IllegalArgumentException if a thread count is less than 1.
+	 * @throws RuntimeException if a line couldn't be imported, in which case the import stops.
 	 */
-	private static int importFile(final TSDB tsdb, final String path) throws IOException {
-
-		final BufferedReader in = open(path);
-		String line = null;
-
-		int points = 0;
+	static long importFiles(final TSDB tsdb, final String[] paths, final int parsers,
+			final int writers, final int files) throws IOException {
+		return importFiles(tsdb, paths, parsers, writers, files, CHUNK_BYTES, MAP_BYTES);
+	}
 
-		final long start_time = System.nanoTime();
-		
-		try {
-			while ((line = in.readLine()) != null) {
-				final String[] words = Tags.splitString(line, ' ');
-				final TimeValue dp = processLine(words);
-				
-				importDataPoint(tsdb, dp);
-
-				points++;
-				
-				if (points % 1000000 == 0) {
-					displayAvgSpeed(start_time, points);
+	/**
+	 * Imports the given files to TSDB, reading them by chunks of the given size.
+	 *
+	 * @param chunk_bytes Number of bytes handed to a parser at once.
+	 * @param map_bytes Maximum number of bytes of a file mapped at once. No line may be longer.
+	 * @see #importFiles(TSDB, String[], int, int, int)
+	 */
+	static long importFiles(final TSDB tsdb, final String[] paths, final int parsers,
+			final int writers, final int files, final int chunk_bytes, final int map_bytes)
+			throws IOException {
+		if (parsers < 1 || writers < 1 || files < 1) {
+			throw new IllegalArgumentException("Need at least one thread per stage: parsers="
+					+ parsers + ", writers=" + writers + ", files=" + files);
+		}
+		if (chunk_bytes < 1 || map_bytes < chunk_bytes) {
+			throw new IllegalArgumentException("Invalid chunk or map size: chunk_bytes="
+					+ chunk_bytes + ", map_bytes=" + map_bytes);
+		}
+		final Pipeline pipeline = new Pipeline(tsdb, parsers, writers, chunk_bytes, map_bytes);
+		pipeline.start();
+
+		final ExecutorService readers = Executors.newFixedThreadPool(
+				Math.min(files, paths.length));
+		for (final String path : paths) {
+			readers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						pipeline.read(path);
+					} catch (Throwable t) {
+						pipeline.fail(t);
+					}
 				}
+			});
+		}
+		readers.shutdown();
+		try {
+			while (!readers.awaitTermination(1, TimeUnit.SECONDS)) {
+				// keep waiting, the readers stop on their own if the pipeline fails
 			}
-		} catch (RuntimeException e) {
-			LOG.error("Exception caught while processing file " + path + " line=" + line);
-			throw e;
-		} finally {
-			in.close();
+		} catch (InterruptedException e) {
+			readers.shutdownNow();
+			pipeline.fail(e);
 		}
 
+		final long points = pipeline.finish();
+		displayAvgSpeed(pipeline.start_time, points);
 		return points;
 	}
 
-	private static TimeValue processLine(final String[] words) {
-		final String metric = words[0];
-		if (metric.length() <= 0) {
-			throw new RuntimeException("invalid metric: " + metric);
+	/**
+	 * The threads and queues of one import run, along with the series table they share.
+	 */
+	private static final class Pipeline {
+
+		private final TSDB tsdb;
+		private final int chunk_bytes;
+		private final int map_bytes;
+		private final BlockingQueue<Chunk> chunks;
+		private final Parser[] parsers;
+		private final Writer[] writers;
+
+		/**
+		 * Every series seen so far, keyed by the bytes of its metric and tags. Parsers only go
+		 * through this table the first time they see a series.
+		 */
+		private final ConcurrentHashMap<SeriesKey, Series> series =
+				new ConcurrentHashMap<SeriesKey, Series>();
+		private final AtomicInteger next_series_id = new AtomicInteger();
+
+		private final AtomicLong points = new AtomicLong();
+		private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		private final long start_time = System.nanoTime();
+
+		Pipeline(final TSDB tsdb, final int num_parsers, final int num_writers,
+				final int chunk_bytes, final int map_bytes) {
+			this.tsdb = tsdb;
+			this.chunk_bytes = chunk_bytes;
+			this.map_bytes = map_bytes;
+			chunks = new ArrayBlockingQueue<Chunk>(num_parsers * QUEUE_DEPTH);
+			writers = new Writer[num_writers];
+			for (int i = 0; i < num_writers; i++) {
+				writers[i] = new Writer(this, i);
+			}
+			parsers = new Parser[num_parsers];
+			for (int i = 0; i < num_parsers; i++) {
+				parsers[i] = new Parser(this, i);
+			}
 		}
 
-		long timestamp = Tags.parseLong(words[1]);
-		if (timestamp <= 0) {
-			throw new RuntimeException("invalid timestamp: " + timestamp);
+		void start() {
+			for (final Writer writer : writers) {
+				writer.start();
+			}
+			for (final Parser parser : parsers) {
+				parser.start();
+			}
 		}
 
-		final String value = words[2];
-		if (value.length() <= 0) {
-			throw new RuntimeException("invalid value: " + value);
+		/**
+		 * Reads a file and hands its lines to the parsers, one chunk at a time.
+		 */
+		void read(final String path) throws IOException, InterruptedException {
+			LOG.info("Importing file {}", path);
+			if (SeriesBlockFile.isSeriesBlockFile(path)) {
+				InputStream in = new FileInputStream(path);
+				try {
+					if (path.endsWith(".gz")) {
+						in = new GZIPInputStream(in, 65536);
+					}
+					readBlocks(new SeriesBlockFile.Reader(in));
+				} finally {
+					in.close();
+				}
+			} else if (path.endsWith(".gz")) {
+				final InputStream in = new GZIPInputStream(new FileInputStream(path), 65536);
+				try {
+					readStream(path, in);
+				} finally {
+					in.close();
+				}
+			} else {
+				final RandomAccessFile file = new RandomAccessFile(path, "r");
+				try {
+					readMapped(path, file.getChannel());
+				} finally {
+					file.close();
+				}
+			}
 		}
 
-		final HashMap<String, String> tags = new HashMap<String, String>();
-		for (int i = 3; i < words.length; i++) {
-			Tags.parse(tags, words[i]);
+		/**
+		 * Maps a file a window at a time, and hands out chunks that are views of the mapping.
+		 * Each window ends with the last complete line it holds, the next one starts right after.
+		 */
+		private void readMapped(final String path, final FileChannel channel)
+				throws IOException, InterruptedException {
+			final long size = channel.size();
+			long position = 0;
+			while (position < size) {
+				final int length = (int) Math.min(size - position, map_bytes);
+				final ByteBuffer map = channel.map(MapMode.READ_ONLY, position, length);
+				final boolean eof = position + length == size;
+				final int window_end = eof ? length : lastLineEnd(map, 0, length);
+				if (window_end == 0) {
+					throw new IOException("Line longer than " + map_bytes + " bytes in file "
+							+ path + " at offset " + position);
+				}
+				int start = 0;
+				while (start < window_end) {
+					int end = Math.min(start + chunk_bytes, window_end);
+					if (end < window_end) {
+						final int cut = lastLineEnd(map, start, end);
+						end = cut > start ? cut : nextLineEnd(map, end, window_end);
+					}
+					final ByteBuffer view = map.duplicate();
+					view.limit(end).position(start);
+					if (!put(chunks, new Chunk(path, position + start, view.slice()))) {
+						return;
+					}
+					start = end;
+				}
+				position += window_end;
+			}
 		}
 
-		final MetricTags mts = new MetricTags(metric, tags);
+		/**
+		 * Reads a stream into buffers of whole lines, carrying the partial line that ends a
+		 * buffer over to the next one.
+		 */
+		private void readStream(final String path, final InputStream in)
+				throws IOException, InterruptedException {
+			byte[] buf = new byte[chunk_bytes];
+			int length = 0;
+			long offset = 0;
+			int n;
+			while ((n = in.read(buf, length, buf.length - length)) >= 0) {
+				length += n;
+				if (length < buf.length) {
+					continue;
+				}
+				final int cut = lastLineEnd(ByteBuffer.wrap(buf), 0, length);
+				if (cut == 0) {  // a line longer than the buffer
+					buf = Arrays.copyOf(buf, buf.length * 2);
+					continue;
+				}
+				final byte[] next = new byte[Math.max(chunk_bytes, (length - cut) * 2)];
+				System.arraycopy(buf, cut, next, 0, length - cut);
+				if (!put(chunks, new Chunk(path, offset, ByteBuffer.wrap(buf, 0, cut)))) {
+					return;
+				}
+				offset += cut;
+				length -= cut;
+				buf = next;
+			}
+			if (length > 0) {
+				put(chunks, new Chunk(path, offset, ByteBuffer.wrap(buf, 0, length)));
+			}
+		}
 
-		int metricTagsId = metricTags.indexOf(mts);
-		if (metricTagsId < 0) {
-			metricTagsId = metricTags.size();
-			metricTags.add(mts);
+		/**
+		 * Reads a series block file. There's nothing to parse, so data points go straight to the
+		 * writers, and every series is looked up once per file.
+		 */
+		private void readBlocks(final SeriesBlockFile.Reader reader)
+				throws IOException, InterruptedException {
+			final ArrayList<Series> file_series = new ArrayList<Series>();
+			final Points[] pending = new Points[writers.length];
+			while (reader.next()) {
+				while (file_series.size() < reader.numSeries()) {
+					final int id = file_series.size();
+					file_series.add(getSeries(new SeriesKey(reader.metric(id), reader.tags(id))));
+				}
+				final Series series = file_series.get(reader.series());
+				final int writer = series.writer;
+				for (int i = 0; i < reader.count(); i++) {
+					if (pending[writer] == null) {
+						pending[writer] = new Points(WRITE_BATCH);
+					}
+					// Float values are read as their raw int bits, which is what Points expects.
+					pending[writer].add(series, reader.timestamp(i), reader.longValue(i),
+							reader.isFloat());
+					if (pending[writer].size == WRITE_BATCH) {
+						if (!put(writers[writer].queue, pending[writer])) {
+							return;
+						}
+						pending[writer] = null;
+					}
+				}
+			}
+			for (int i = 0; i < pending.length; i++) {
+				if (pending[i] != null && !put(writers[i].queue, pending[i])) {
+					return;
+				}
+			}
 		}
 
-		return new TimeValue(metricTagsId, timestamp, value);
+		/**
+		 * Waits for every queued line to be parsed and written, then stops the threads.
+		 *
+		 * @return The number of data points imported.
+		 * @throws RuntimeException if the import failed.
+		 */
+		long finish() throws IOException {
+			try {
+				for (int i = 0; i < parsers.length; i++) {
+					put(chunks, Chunk.END);
+				}
+				for (final Parser parser : parsers) {
+					parser.join();
+				}
+				for (final Writer writer : writers) {
+					put(writer.queue, Points.END);
+				}
+				for (final Writer writer : writers) {
+					writer.join();
+				}
+			} catch (InterruptedException e) {
+				fail(e);
+			}
+
+			final Throwable t = error.get();
+			if (t instanceof IOException) {
+				throw (IOException) t;
+			} else if (t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			} else if (t instanceof Error) {
+				throw (Error) t;
+			} else if (t != null) {
+				throw new RuntimeException("Import failed", t);
+			}
+			return points.get();
+		}
+
+		/**
+		 * Records the first error and makes every stage stop as soon as possible.
+		 */
+		void fail(final Throwable t) {
+			if (error.compareAndSet(null, t)) {
+				LOG.error("Import failed", t);
+			}
+		}
+
+		boolean failed() {
+			return error.get() != null;
+		}
+
+		/**
+		 * Blocks until there's room in the queue, unless the import failed in the meantime.
+		 *
+		 * @return {@code false} if the import failed and the element was dropped.
+		 */
+		<T> boolean put(final BlockingQueue<T> queue, final T element) throws InterruptedException {
+			while (!queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+				if (failed() && element != Chunk.END && element != Points.END) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Returns the series with this key, adding it to the table if needed. This is where the
+		 * metric and the tags get turned into strings and UIDs, once per series.
+		 */
+		Series getSeries(final SeriesKey key) {
+			Series s = series.get(key);
+			if (s == null) {
+				final String[] words = Tags.splitString(new String(key.bytes, ASCII), ' ');
+				final String metric = words[0];
+				final HashMap<String, String> tags = new HashMap<String, String>();
+				for (int i = 1; i < words.length; i++) {
+					if (!words[i].isEmpty()) {
+						Tags.parse(tags, words[i]);
+					}
+				}
+				final byte[] row = tsdb == null ? null
+						: tsdb.getCachedBatches().rowKeyTemplate(metric, tags);
+				final int id = next_series_id.getAndIncrement();
+				// Route on the row key, so that series spelled differently still share a writer.
+				final int writer = ((row == null ? id : Arrays.hashCode(row)) & Integer.MAX_VALUE)
+						% writers.length;
+				s = new Series(writer, metric, tags, row);
+				final Series previous = series.putIfAbsent(key, s);
+				if (previous != null) {
+					s = previous;
+				}
+			}
+			return s;
+		}
+
+		void written(final int count) {
+			final long total = points.addAndGet(count);
+			if (total / 1000000 != (total - count) / 1000000) {
+				displayAvgSpeed(start_time, total);
+			}
+		}
 	}
 
 	/**
-	 * Import a datapoint into TSDB using CachedBatches. Applies concatenation+repetition offset and generates duplicates if necessary 
+	 * Turns chunks of lines into data points, routed to the writer owning their series.
 	 */
-	private static void importDataPoint(final TSDB tsdb, TimeValue dp) {
+	private static final class Parser extends Thread {
 
-		final MetricTags mts = metricTags.get(dp.getMtsIndex());
+		private final Pipeline pipeline;
+		private final Points[] pending;
+		private final LineParser line = new LineParser();
+		private final SeriesCache cache = new SeriesCache();
 
-		final HashMap<String, String> tags = new HashMap<String, String>(mts.tags);
+		Parser(final Pipeline pipeline, final int id) {
+			super("TextImporter2-parser-" + id);
+			this.pipeline = pipeline;
+			pending = new Points[pipeline.writers.length];
+		}
 
-		if (tsdb != null) {
-			CachedBatches.addPoint(tsdb, mts.metric, dp.timestamp, dp.getValueString(), tags);
-		} 
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Chunk chunk = pipeline.chunks.take();
+					if (chunk == Chunk.END) {
+						return;
+					}
+					if (pipeline.failed()) {
+						continue;  // keep draining the queue so that nobody blocks on it
+					}
+					try {
+						parse(chunk);
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Throwable t) {
+						pipeline.fail(t);
+					}
+				}
+			} catch (InterruptedException e) {
+				pipeline.fail(e);
+			}
+		}
 
-		if (toScreen) {
-			logDataPoint(mts.metric, dp.timestamp, dp.getValueString(), tags);
+		private void parse(final Chunk chunk) throws InterruptedException {
+			final ByteBuffer data = chunk.data;
+			final int limit = data.limit();
+			int start = 0;
+			while (start < limit) {
+				final int end = nextLineEnd(data, start, limit);
+				final int eol = end > start && data.get(end - 1) == '\n' ? end - 1 : end;
+				try {
+					processLine(data, start, eol);
+				} catch (RuntimeException e) {
+					throw new RuntimeException("Exception caught while processing file "
+							+ chunk.path + " at offset " + (chunk.offset + start) + ": "
+							+ LineParser.toString(data, start, eol), e);
+				}
+				start = end;
+			}
+			for (int i = 0; i < pending.length; i++) {
+				flush(i);
+			}
+		}
+
+		private void processLine(final ByteBuffer data, final int start, final int end)
+				throws InterruptedException {
+			line.parse(data, start, end);
+			final int hash = SeriesKey.hash(data, line);
+			Series series = cache.get(data, line, hash);
+			if (series == null) {
+				final SeriesKey key = new SeriesKey(data, line, hash);
+				series = pipeline.getSeries(key);
+				cache.put(key, series);
+			}
+
+			final int writer = series.writer;
+			if (pending[writer] == null) {
+				pending[writer] = new Points(WRITE_BATCH);
+			}
+			if (line.isFloat()) {
+				pending[writer].add(series, line.timestamp(),
+						Float.floatToRawIntBits(line.floatValue()), true);
+			} else {
+				pending[writer].add(series, line.timestamp(), line.longValue(), false);
+			}
+			if (pending[writer].size == WRITE_BATCH) {
+				flush(writer);
+			}
+		}
+
+		private void flush(final int writer) throws InterruptedException {
+			if (pending[writer] != null) {
+				pipeline.put(pipeline.writers[writer].queue, pending[writer]);
+				pending[writer] = null;
+			}
 		}
 	}
-	
-	private static void logDataPoint(final String metric, final long timestamp, final String value, final HashMap<String, String> tags) {
+
+	/**
+	 * Adds data points to the batch cache. Every series is always handled by the same writer, so
+	 * writers never compete for the same batch.
+	 */
+	private static final class Writer extends Thread {
+
+		private final Pipeline pipeline;
+		private final BlockingQueue<Points> queue;
+
+		Writer(final Pipeline pipeline, final int id) {
+			super("TextImporter2-writer-" + id);
+			this.pipeline = pipeline;
+			queue = new ArrayBlockingQueue<Points>(QUEUE_DEPTH * 2);
+		}
+
+		@Override
+		public void run() {
+			final CachedBatches batches = pipeline.tsdb == null ? null
+					: pipeline.tsdb.getCachedBatches();
+			try {
+				while (true) {
+					final Points points = queue.take();
+					if (points == Points.END) {
+						return;
+					}
+					if (pipeline.failed()) {
+						continue;  // keep draining the queue so that nobody blocks on it
+					}
+					try {
+						for (int i = 0; i < points.size; i++) {
+							importDataPoint(batches, points, i);
+						}
+						pipeline.written(points.size);
+					} catch (Throwable t) {
+						pipeline.fail(t);
+					}
+				}
+			} catch (InterruptedException e) {
+				pipeline.fail(e);
+			}
+		}
+
+		private static void importDataPoint(final CachedBatches batches, final Points points,
+				final int i) {
+			final Series series = points.series[i];
+			final long timestamp = points.timestamps[i];
+			if (batches != null) {
+				if (points.floats[i]) {
+					batches.addPoint(series.row, timestamp,
+							Float.intBitsToFloat((int) points.values[i]));
+				} else {
+					batches.addPoint(series.row, timestamp, points.values[i]);
+				}
+			}
+
+			if (toScreen) {
+				logDataPoint(series.metric, timestamp, points.valueString(i), series.tags);
+			}
+		}
+	}
+
+	private static void logDataPoint(final String metric, final long timestamp, final String value, final Map<String, String> tags) {
 		final StringBuilder buf = new StringBuilder();
 
 		buf.append(metric)
@@ -200,125 +691,246 @@ final class TextImporter2 {
 		.append(DumpSeries.date(timestamp))
 		.append(' ')
 		.append(value);
-		
+
 		for (String tag : tags.keySet()) {
 			buf.append(' ')
 			.append(tag)
 			.append('=')
 			.append(tags.get(tag));
 		}
-		
+
 		LOG.info(buf.toString());
 	}
 
 	/**
-	 * Opens a file for reading, handling gzipped files.
-	 * @param path The file to open.
-	 * @return A buffered reader to read the file, decompressing it if needed.
-	 * @throws IOException when shit happens.
+	 * Returns the index right after the last end of line in a range of a buffer, or the start of
+	 * the range if there is none.
 	 */
-	private static BufferedReader open(final String path) throws IOException {
-		InputStream is = new FileInputStream(path);
-		if (path.endsWith(".gz")) {
-			is = new GZIPInputStream(is);
+	private static int lastLineEnd(final ByteBuffer buf, final int start, final int end) {
+		for (int i = end - 1; i >= start; i--) {
+			if (buf.get(i) == '\n') {
+				return i + 1;
+			}
 		}
-		// I <3 Java's IO library.
-		return new BufferedReader(new InputStreamReader(is));
+		return start;
 	}
 
 	/**
-	 * converts a timestamp to millis if it is in seconds
-	 * @return
+	 * Returns the index right after the first end of line in a range of a buffer, or the end of
+	 * the range if there is none.
 	 */
-	private static long toMillis(long t) {
-		if (isMillis(t)) return t;
-
-		return t * 1000;
+	private static int nextLineEnd(final ByteBuffer buf, final int start, final int end) {
+		for (int i = start; i < end; i++) {
+			if (buf.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return end;
 	}
 
-	private static boolean isMillis(long t) {
-		return (t & Const.SECOND_MASK) != 0;
+	/**
+	 * Whole lines read from a file, waiting to be parsed.
+	 */
+	private static final class Chunk {
+		/** Tells a parser there's nothing left to read. */
+		static final Chunk END = new Chunk(null, 0, ByteBuffer.allocate(0));
+
+		final String path;
+		/** Offset of the first line in the file, or in the decompressed stream. */
+		final long offset;
+		/** The lines, from index 0 to the limit. */
+		final ByteBuffer data;
+
+		Chunk(final String path, final long offset, final ByteBuffer data) {
+			this.path = path;
+			this.offset = offset;
+			this.data = data;
+		}
 	}
 
-	private static class MetricTags {
-		public final String metric;
-		public final Map<String, String> tags;
+	/**
+	 * Parsed data points waiting to be written, stored in parallel arrays.
+	 */
+	private static final class Points {
+		/** Tells a writer there's nothing left to write. */
+		static final Points END = new Points(0);
+
+		final Series[] series;
+		final long[] timestamps;
+		/** Integer values, or the raw int bits of floating point values. */
+		final long[] values;
+		final boolean[] floats;
+		int size;
+
+		Points(final int capacity) {
+			series = new Series[capacity];
+			timestamps = new long[capacity];
+			values = new long[capacity];
+			floats = new boolean[capacity];
+		}
+
+		void add(final Series s, final long timestamp, final long value, final boolean is_float) {
+			series[size] = s;
+			timestamps[size] = timestamp;
+			values[size] = value;
+			floats[size] = is_float;
+			size++;
+		}
+
+		String valueString(final int i) {
+			if (floats[i]) {
+				return String.valueOf(Float.intBitsToFloat((int) values[i]));
+			}
+			return String.valueOf(values[i]);
+		}
+	}
 
-		public MetricTags(final String metric, final Map<String, String> tags) {
+	/**
+	 * A series of the series table, with its UIDs already resolved.
+	 */
+	private static final class Series {
+		/** Index of the writer owning this series. */
+		final int writer;
+		final String metric;
+		final Map<String, String> tags;
+		/** Row key template, {@code null} when not importing. */
+		final byte[] row;
+
+		Series(final int writer, final String metric, final Map<String, String> tags,
+				final byte[] row) {
+			this.writer = writer;
 			this.metric = metric;
 			this.tags = tags;
+			this.row = row;
+		}
+	}
+
+	/**
+	 * The metric and the tags of a line as they were written, separated by a space.
+	 */
+	private static final class SeriesKey {
+		final byte[] bytes;
+		private final int hash;
+
+		/**
+		 * Builds the key a line with this metric and these tags would have.
+		 */
+		SeriesKey(final String metric, final Map<String, String> tags) {
+			final StringBuilder buf = new StringBuilder(metric);
+			for (final Map.Entry<String, String> tag : tags.entrySet()) {
+				buf.append(' ').append(tag.getKey()).append('=').append(tag.getValue());
+			}
+			bytes = buf.toString().getBytes(ASCII);
+			hash = Arrays.hashCode(bytes);
+		}
+
+		SeriesKey(final ByteBuffer buf, final LineParser line, final int hash) {
+			final int metric_length = line.metricEnd() - line.metricStart();
+			bytes = new byte[metric_length + 1 + line.tagsEnd() - line.tagsStart()];
+			for (int i = 0; i < metric_length; i++) {
+				bytes[i] = buf.get(line.metricStart() + i);
+			}
+			bytes[metric_length] = ' ';
+			for (int i = metric_length + 1; i < bytes.length; i++) {
+				bytes[i] = buf.get(line.tagsStart() + i - metric_length - 1);
+			}
+			this.hash = hash;
+		}
+
+		/**
+		 * Hashes the key of the last line parsed, without building it. Same as
+		 * {@link Arrays#hashCode(byte[])} on the key.
+		 */
+		static int hash(final ByteBuffer buf, final LineParser line) {
+			int h = 1;
+			for (int i = line.metricStart(); i < line.metricEnd(); i++) {
+				h = 31 * h + buf.get(i);
+			}
+			h = 31 * h + ' ';
+			for (int i = line.tagsStart(); i < line.tagsEnd(); i++) {
+				h = 31 * h + buf.get(i);
+			}
+			return h;
+		}
+
+		/**
+		 * Tells whether this is the key of the last line parsed.
+		 */
+		boolean matches(final ByteBuffer buf, final LineParser line) {
+			final int metric_length = line.metricEnd() - line.metricStart();
+			if (bytes.length != metric_length + 1 + line.tagsEnd() - line.tagsStart()) {
+				return false;
+			}
+			for (int i = 0; i < metric_length; i++) {
+				if (bytes[i] != buf.get(line.metricStart() + i)) {
+					return false;
+				}
+			}
+			for (int i = metric_length + 1; i < bytes.length; i++) {
+				if (bytes[i] != buf.get(line.tagsStart() + i - metric_length - 1)) {
+					return false;
+				}
+			}
+			return true;
 		}
 
 		@Override
 		public int hashCode() {
-			return (metric + tags).hashCode();
+			return hash;
 		}
 
 		@Override
-		public boolean equals(Object obj) {
-			if (obj == null || !(obj instanceof MetricTags))
-				return false;
-			MetricTags mts = (MetricTags)obj;
-			return metric.equals(mts.metric) && tags.equals(mts.tags);
+		public boolean equals(final Object obj) {
+			return obj instanceof SeriesKey && Arrays.equals(bytes, ((SeriesKey) obj).bytes);
 		}
 	}
 
-	private static class TimeValue { // (2+8+4) = 14 bytes
-		public static final int SIZE = 14; // in bytes
-		
-		private final short mtsIdx;
-		public final long timestamp;
-		private final int ivalue;
-
-		public boolean isFloat() {
-			return mtsIdx < 0;
-		}
-		
-		public String getValueString() {
-			if (isFloat())
-				return String.valueOf(Float.intBitsToFloat(ivalue));
-			else
-				return String.valueOf(ivalue);
-		}
-		
-		public int getMtsIndex() {
-			return mtsIdx;
-		}
-
-		public static TimeValue fromByteArray(final byte[] bytes, final int off) {
-			int cur = off * TimeValue.SIZE;
-			final short mtsIdx = Bytes.getShort(bytes, cur); cur+= 2;
-			final long timestamp = Bytes.getLong(bytes, cur); cur+= 8;
-			final int ivalue = Bytes.getInt(bytes, cur); cur+= 4;
-			
-			return new TimeValue(mtsIdx, timestamp, ivalue);
-		}
-
-		public static void toByteArray(final byte[] bytes, final int off, final TimeValue dp) {
-			int cur = off * TimeValue.SIZE;
-			System.arraycopy(Bytes.fromShort(dp.mtsIdx), 0, bytes, cur, 2); cur+= 2;
-			System.arraycopy(Bytes.fromLong(dp.timestamp), 0, bytes, cur, 8); cur+= 8;
-			System.arraycopy(Bytes.fromInt(dp.ivalue), 0, bytes, cur, 4); cur+= 4;
-		}
-		
-		public TimeValue(final int mtsIdx, final long timestamp, final String value) {
-			this.timestamp = timestamp;
-			
-			boolean isfloat = !Tags.looksLikeInteger(value);
-			if (isfloat) {
-				float fval = Float.parseFloat(value);
-				ivalue = Float.floatToRawIntBits(fval);
-				this.mtsIdx = (short) -this.mtsIdx;
-			} else {
-				ivalue = Integer.parseInt(value);
-				this.mtsIdx = (short) this.mtsIdx;
+	/**
+	 * Open addressing table of the series a parser has seen, looked up straight from the bytes
+	 * of a line. Not thread-safe, every parser has its own.
+	 */
+	private static final class SeriesCache {
+		private SeriesKey[] keys = new SeriesKey[1024];
+		private Series[] values = new Series[1024];
+		private int size;
+
+		Series get(final ByteBuffer buf, final LineParser line, final int hash) {
+			final int mask = keys.length - 1;
+			for (int i = spread(hash) & mask; keys[i] != null; i = (i + 1) & mask) {
+				if (keys[i].hash == hash && keys[i].matches(buf, line)) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+		void put(final SeriesKey key, final Series series) {
+			if (++size * 2 > keys.length) {
+				final SeriesKey[] old_keys = keys;
+				final Series[] old_values = values;
+				keys = new SeriesKey[old_keys.length * 2];
+				values = new Series[old_values.length * 2];
+				for (int i = 0; i < old_keys.length; i++) {
+					if (old_keys[i] != null) {
+						insert(old_keys[i], old_values[i]);
+					}
+				}
+			}
+			insert(key, series);
+		}
+
+		private void insert(final SeriesKey key, final Series series) {
+			final int mask = keys.length - 1;
+			int i = spread(key.hash) & mask;
+			while (keys[i] != null) {
+				i = (i + 1) & mask;
 			}
+			keys[i] = key;
+			values[i] = series;
 		}
 
-		public TimeValue(final short mtsIdx, final long timestamp, final int ivalue) {
-			this.mtsIdx = mtsIdx;
-			this.timestamp = timestamp;
-			this.ivalue = ivalue;
+		private static int spread(final int hash) {
+			return hash ^ (hash >>> 16);
 		}
 	}
 
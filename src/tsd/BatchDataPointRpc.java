@@ -20,7 +20,6 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
-import net.opentsdb.core.CachedBatches;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.handler.codec.http.HttpMethod;
@@ -152,7 +151,7 @@ final class BatchDataPointRpc implements TelnetRpc, HttpRpc {
 					LOG.warn("Missing tags: " + dp);
 					continue;
 				}
-				CachedBatches.addPoint(tsdb, dp.getMetric(), dp.getTimestamp(), dp.getValue(), dp.getTags());
+				tsdb.getCachedBatches().addPoint(dp.getMetric(), dp.getTimestamp(), dp.getValue(), dp.getTags());
 				success++;
 			}
 			catch (NumberFormatException x) {
@@ -265,7 +264,7 @@ final class BatchDataPointRpc implements TelnetRpc, HttpRpc {
 			}
 		}
 
-		return CachedBatches.addPoint(tsdb, metric, timestamp, value, tags);
+		return tsdb.getCachedBatches().addPoint(metric, timestamp, value, tags);
 	}
 
 	/**
@@ -0,0 +1,163 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+/**
+ * Output stream sending what's written to it as the chunks of a chunked
+ * HTTP reply, each of at most a fixed number of bytes.
+ * <p>
+ * The buffers of the chunks are reused once written to the socket, and at
+ * most {@link #MAX_POOLED} of them are kept, so the memory used by a reply
+ * stays bounded as long as the writer stops writing when {@link #mustWait}
+ * tells it to, until the callback given to {@link #resumeWhenWritten} runs.
+ * <p>
+ * Closing the stream sends what's left and ends the reply.  This class is
+ * not synchronized, only the recycling of the buffers is thread-safe.
+ */
+final class ChunkedReplyStream extends OutputStream {
+
+  /** Maximum number of buffers kept for reuse. */
+  static final int MAX_POOLED = 4;
+
+  private final HttpQuery query;
+
+  /** Size of the buffers, i.e. maximum size of a chunk. */
+  private final int chunk_size;
+
+  /** Buffers of written chunks, ready to be reused. */
+  private final ConcurrentLinkedQueue<ChannelBuffer> pool =
+    new ConcurrentLinkedQueue<ChannelBuffer>();
+
+  /** Buffer of the chunk being written, null until something is written. */
+  private ChannelBuffer buf;
+
+  /** Future of the last chunk sent, null if none was sent yet. */
+  private volatile ChannelFuture last_write;
+
+  /** Whether the stream was closed. */
+  private boolean closed;
+
+  /**
+   * Constructor.
+   * @param query The query replied to, whose chunked reply is started.
+   * @param chunk_size Maximum size of a chunk, in bytes.
+   */
+  ChunkedReplyStream(final HttpQuery query, final int chunk_size) {
+    this.query = query;
+    this.chunk_size = Math.max(256, chunk_size);
+  }
+
+  @Override
+  public void write(final int b) {
+    if (buf == null || !buf.writable()) {
+      nextBuffer();
+    }
+    buf.writeByte(b);
+  }
+
+  @Override
+  public void write(final byte[] b, int off, int len) {
+    while (len > 0) {
+      if (buf == null || !buf.writable()) {
+        nextBuffer();
+      }
+      final int n = Math.min(len, buf.writableBytes());
+      buf.writeBytes(b, off, n);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /** Sends what was written so far as a chunk, if anything. */
+  @Override
+  public void flush() {
+    if (buf != null && buf.readable()) {
+      send();
+    }
+  }
+
+  /** Sends what's left and ends the reply. */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    flush();
+    query.endChunkedReply();
+  }
+
+  /**
+   * Tells whether the writer should stop writing, as the channel can't take
+   * more chunks for now or the last chunk failed to be written, e.g. as the
+   * client went away.
+   */
+  boolean mustWait() {
+    final ChannelFuture write = last_write;
+    if (write == null) {
+      return false;
+    }
+    return write.isDone() ? !write.isSuccess() : !query.isWritable();
+  }
+
+  /**
+   * Calls back once the last chunk sent is written to the socket, or failed
+   * to be.
+   * @param callback What resumes writing.
+   */
+  void resumeWhenWritten(final ChannelFutureListener callback) {
+    last_write.addListener(callback);
+  }
+
+  private void nextBuffer() {
+    if (buf != null) {
+      send();
+    }
+    buf = pool.poll();
+    if (buf == null) {
+      buf = ChannelBuffers.buffer(chunk_size);
+    }
+  }
+
+  private void send() {
+    final ChannelBuffer chunk = buf;
+    buf = null;
+    final ChannelFuture future = query.sendChunk(chunk);
+    last_write = future;
+    future.addListener(new Recycle(chunk));
+  }
+
+  /** Puts back the buffer of a chunk in the pool once it's written. */
+  private final class Recycle implements ChannelFutureListener {
+    private final ChannelBuffer chunk;
+
+    Recycle(final ChannelBuffer chunk) {
+      this.chunk = chunk;
+    }
+
+    public void operationComplete(final ChannelFuture future) {
+      if (future.isSuccess() && pool.size() < MAX_POOLED) {
+        chunk.clear();
+        pool.offer(chunk);
+      }
+    }
+  }
+}
@@ -25,6 +25,8 @@ import java.util.TreeMap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +38,7 @@ import com.stumbleupon.async.Deferred;
 import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.SeekableView;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.meta.Annotation;
@@ -486,7 +489,7 @@ class HttpJsonSerializer extends HttpSerializer {
     final boolean as_arrays = this.query.hasQueryStringParam("arrays");
     final String jsonp = this.query.getQueryStringParam("jsonp");
     
-    // todo - this should be streamed at some point since it could be HUGE
+    // this can be HUGE, see streamQueryV1 to stream it instead
     final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
     final OutputStream output = new ChannelBufferOutputStream(response);
     try {
@@ -499,103 +502,11 @@ class HttpJsonSerializer extends HttpSerializer {
       
       for (DataPoints[] separate_dps : results) {
         for (DataPoints dps : separate_dps) {
-          json.writeStartObject();
-          
-          json.writeStringField("metric", dps.metricName());
-          
-          json.writeFieldName("tags");
-          json.writeStartObject();
-          if (dps.getTags() != null) {
-            for (Map.Entry<String, String> tag : dps.getTags().entrySet()) {
-              json.writeStringField(tag.getKey(), tag.getValue());
-            }
-          }
-          json.writeEndObject();
-          
-          json.writeFieldName("aggregateTags");
-          json.writeStartArray();
-          if (dps.getAggregatedTags() != null) {
-            for (String atag : dps.getAggregatedTags()) {
-              json.writeString(atag);
-            }
-          }
-          json.writeEndArray();
-          
-          if (data_query.getShowTSUIDs()) {
-            json.writeFieldName("tsuids");
-            json.writeStartArray();
-            final List<String> tsuids = dps.getTSUIDs();
-            Collections.sort(tsuids);
-            for (String tsuid : tsuids) {
-              json.writeString(tsuid);
-            }
-            json.writeEndArray();
-          }
-          
-          if (!data_query.getNoAnnotations()) {
-            final List<Annotation> annotations = dps.getAnnotations();
-            if (annotations != null) {
-              Collections.sort(annotations);
-              json.writeArrayFieldStart("annotations");
-              for (Annotation note : annotations) {
-                json.writeObject(note);
-              }
-              json.writeEndArray();
-            }
-            
-            if (globals != null && !globals.isEmpty()) {
-              Collections.sort(globals);
-              json.writeArrayFieldStart("globalAnnotations");
-              for (Annotation note : globals) {
-                json.writeObject(note);
-              }
-              json.writeEndArray();
-            }
-          }
-          
-          // now the fun stuff, dump the data
-          json.writeFieldName("dps");
-          
-          // default is to write a map, otherwise write arrays
-          if (as_arrays) {
-            json.writeStartArray();
-            for (final DataPoint dp : dps) {
-              if (dp.timestamp() < data_query.startTime() || 
-                  dp.timestamp() > data_query.endTime()) {
-                continue;
-              }
-              final long timestamp = data_query.getMsResolution() ? 
-                  dp.timestamp() : dp.timestamp() / 1000;
-              json.writeStartArray();
-              json.writeNumber(timestamp);
-              if (dp.isInteger()) {
-                json.writeNumber(dp.longValue());
-              } else { 
-                json.writeNumber(dp.doubleValue());
-              }
-              json.writeEndArray();
-            }
-            json.writeEndArray();
-          } else {
-            json.writeStartObject();
-            for (final DataPoint dp : dps) {
-              if (dp.timestamp() < (data_query.startTime()) || 
-                  dp.timestamp() > (data_query.endTime())) {
-                continue;
-              }
-              final long timestamp = data_query.getMsResolution() ? 
-                  dp.timestamp() : dp.timestamp() / 1000;
-              if (dp.isInteger()) {
-                json.writeNumberField(Long.toString(timestamp), dp.longValue());
-              } else {
-                json.writeNumberField(Long.toString(timestamp), dp.doubleValue());
-              }
-            }
-            json.writeEndObject();
+          writeQueryHeader(json, data_query, dps, globals, as_arrays);
+          for (final DataPoint dp : dps) {
+            writeDataPoint(json, data_query, dp, as_arrays);
           }
-
-          // close the results for this particular query
-          json.writeEndObject();
+          writeQueryFooter(json, as_arrays);
         }
       }
     
@@ -613,6 +524,255 @@ class HttpJsonSerializer extends HttpSerializer {
     }
   }
   
+  /**
+   * Streams the results from a timeseries data query as a chunked reply,
+   * serializing them as the client reads them, so that only a few chunks of
+   * the reply are in memory at a time.  The output is the same as
+   * {@link #formatQueryV1}.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param chunk_size The maximum size of a chunk of the reply, in bytes
+   */
+  public void streamQueryV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals, 
+      final int chunk_size) {
+    if (!query.startChunkedReply(HttpResponseStatus.OK)) {
+      return;
+    }
+    new QueryStream(data_query, results, globals, chunk_size).resume();
+  }
+
+  /**
+   * Writes the start of the results of one set of data points, up to the
+   * opening of its "dps".
+   */
+  private void writeQueryHeader(final JsonGenerator json, 
+      final TSQuery data_query, final DataPoints dps, 
+      final List<Annotation> globals, final boolean as_arrays) 
+    throws IOException {
+    json.writeStartObject();
+    
+    json.writeStringField("metric", dps.metricName());
+    
+    json.writeFieldName("tags");
+    json.writeStartObject();
+    if (dps.getTags() != null) {
+      for (Map.Entry<String, String> tag : dps.getTags().entrySet()) {
+        json.writeStringField(tag.getKey(), tag.getValue());
+      }
+    }
+    json.writeEndObject();
+    
+    json.writeFieldName("aggregateTags");
+    json.writeStartArray();
+    if (dps.getAggregatedTags() != null) {
+      for (String atag : dps.getAggregatedTags()) {
+        json.writeString(atag);
+      }
+    }
+    json.writeEndArray();
+    
+    if (data_query.getShowTSUIDs()) {
+      json.writeFieldName("tsuids");
+      json.writeStartArray();
+      final List<String> tsuids = dps.getTSUIDs();
+      Collections.sort(tsuids);
+      for (String tsuid : tsuids) {
+        json.writeString(tsuid);
+      }
+      json.writeEndArray();
+    }
+    
+    if (!data_query.getNoAnnotations()) {
+      final List<Annotation> annotations = dps.getAnnotations();
+      if (annotations != null) {
+        Collections.sort(annotations);
+        json.writeArrayFieldStart("annotations");
+        for (Annotation note : annotations) {
+          json.writeObject(note);
+        }
+        json.writeEndArray();
+      }
+      
+      if (globals != null && !globals.isEmpty()) {
+        Collections.sort(globals);
+        json.writeArrayFieldStart("globalAnnotations");
+        for (Annotation note : globals) {
+          json.writeObject(note);
+        }
+        json.writeEndArray();
+      }
+    }
+    
+    // now the fun stuff, dump the data
+    json.writeFieldName("dps");
+    
+    // default is to write a map, otherwise write arrays
+    if (as_arrays) {
+      json.writeStartArray();
+    } else {
+      json.writeStartObject();
+    }
+  }
+
+  /**
+   * Writes one data point, unless it's outside of the time range of the
+   * query.
+   */
+  private static void writeDataPoint(final JsonGenerator json, 
+      final TSQuery data_query, final DataPoint dp, final boolean as_arrays) 
+    throws IOException {
+    if (dp.timestamp() < data_query.startTime() || 
+        dp.timestamp() > data_query.endTime()) {
+      return;
+    }
+    final long timestamp = data_query.getMsResolution() ? 
+        dp.timestamp() : dp.timestamp() / 1000;
+    if (as_arrays) {
+      json.writeStartArray();
+      json.writeNumber(timestamp);
+      if (dp.isInteger()) {
+        json.writeNumber(dp.longValue());
+      } else { 
+        json.writeNumber(dp.doubleValue());
+      }
+      json.writeEndArray();
+    } else {
+      if (dp.isInteger()) {
+        json.writeNumberField(Long.toString(timestamp), dp.longValue());
+      } else {
+        json.writeNumberField(Long.toString(timestamp), dp.doubleValue());
+      }
+    }
+  }
+
+  /** Closes the results of one set of data points. */
+  private static void writeQueryFooter(final JsonGenerator json, 
+      final boolean as_arrays) throws IOException {
+    if (as_arrays) {
+      json.writeEndArray();
+    } else {
+      json.writeEndObject();
+    }
+    // close the results for this particular query
+    json.writeEndObject();
+  }
+
+  /**
+   * Serializes the results of a query into a {@link ChunkedReplyStream},
+   * stopping whenever the channel can't take more and resuming once the
+   * last chunk sent is written.
+   */
+  private final class QueryStream implements ChannelFutureListener {
+    private final TSQuery data_query;
+    private final List<DataPoints[]> results;
+    private final List<Annotation> globals;
+    private final boolean as_arrays;
+    private final String jsonp;
+    private final ChunkedReplyStream output;
+    private JsonGenerator json;
+
+    /** Index in {@link #results} of the next set of data points. */
+    private int result_index;
+
+    /** Index in {@code results[result_index]} of the next data points. */
+    private int dps_index;
+
+    /** The data points being written, null between two sets. */
+    private SeekableView points;
+
+    QueryStream(final TSQuery data_query, final List<DataPoints[]> results, 
+        final List<Annotation> globals, final int chunk_size) {
+      this.data_query = data_query;
+      this.results = results;
+      this.globals = globals;
+      as_arrays = query.hasQueryStringParam("arrays");
+      jsonp = query.getQueryStringParam("jsonp");
+      output = new ChunkedReplyStream(query, chunk_size);
+    }
+
+    /** Writes until the end of the results or until the channel is full. */
+    void resume() {
+      try {
+        if (json == null) {
+          // don't forget jsonp
+          if (jsonp != null && !jsonp.isEmpty()) {
+            output.write((jsonp + "(").getBytes(query.getCharset()));
+          }
+          json = JSON.getFactory().createGenerator(output);
+          json.writeStartArray();
+        }
+        while (true) {
+          if (points == null) {
+            final DataPoints dps = nextDataPoints();
+            if (dps == null) {
+              break;
+            }
+            writeQueryHeader(json, data_query, dps, globals, as_arrays);
+            points = dps.iterator();
+          }
+          while (points.hasNext()) {
+            writeDataPoint(json, data_query, points.next(), as_arrays);
+            if (output.mustWait()) {
+              output.resumeWhenWritten(this);
+              return;
+            }
+          }
+          writeQueryFooter(json, as_arrays);
+          points = null;
+        }
+        
+        // close
+        json.writeEndArray();
+        json.flush();
+        if (jsonp != null && !jsonp.isEmpty()) {
+          output.write(")".getBytes());
+        }
+        json.close();  // Also closes the output, ending the reply.
+      } catch (Exception e) {
+        LOG.error("Unexpected exception while streaming the results of " 
+            + data_query, e);
+        query.abortChunkedReply();
+      }
+    }
+
+    /** Resumes once the last chunk is written. */
+    public void operationComplete(final ChannelFuture future) {
+      if (future.isSuccess()) {
+        resume();
+      } else {
+        LOG.info("Failed to stream the results of " + data_query + ": " 
+            + future.getCause());
+        query.abortChunkedReply();
+      }
+    }
+
+    private DataPoints nextDataPoints() {
+      while (result_index < results.size()) {
+        final DataPoints[] separate_dps = results.get(result_index);
+        if (dps_index < separate_dps.length) {
+          return separate_dps[dps_index++];
+        }
+        result_index++;
+        dps_index = 0;
+      }
+      return null;
+    }
+  }
+  
+  /**
+   * Format the last data points of a list of series
+   * @param points The data points, with the metric and tags of their series
+   * @return A JSON structure
+   * @throws JSONException if serialization failed
+   * @since 2.1
+   */
+  public ChannelBuffer formatLastPointQueryV1(
+      final List<IncomingDataPoint> points) {
+    return serializeJSON(points);
+  }
+  
   /**
    * Format a single UIDMeta object
    * @param meta The UIDMeta object to serialize
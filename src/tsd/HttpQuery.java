@@ -41,7 +41,9 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -999,6 +1001,80 @@ final class HttpQuery {
     done();
   }
 
+  /**
+   * Tells whether the reply can be sent in chunks, which HTTP/1.0 clients
+   * don't understand.
+   * @since 2.1
+   */
+  public boolean acceptsChunkedReply() {
+    return !request.getProtocolVersion().equals(HttpVersion.HTTP_1_0);
+  }
+
+  /**
+   * Starts a reply of unknown length, sent with the "chunked" transfer
+   * encoding. The content must then be sent with {@link #sendChunk} and the
+   * reply ended with {@link #endChunkedReply} or {@link #abortChunkedReply}.
+   * @param status The status of the request (e.g. 200 OK).
+   * @return false if the client is gone, in which case the query is done
+   * @since 2.1
+   */
+  public boolean startChunkedReply(final HttpResponseStatus status) {
+    if (!chan.isConnected()) {
+      done();
+      return false;
+    }
+    response.headers().set(HttpHeaders.Names.CONTENT_TYPE,
+        serializer.responseContentType());
+    response.setStatus(status);
+    response.setChunked(true);
+    HttpHeaders.setTransferEncodingChunked(response);
+    chan.write(response);
+    return true;
+  }
+
+  /**
+   * Sends a chunk of the reply started with {@link #startChunkedReply}.
+   * @param buf The content of the chunk, which must not be empty.
+   * @return The future of the write, done once the chunk is written to the
+   * socket.
+   * @since 2.1
+   */
+  public ChannelFuture sendChunk(final ChannelBuffer buf) {
+    return chan.write(new DefaultHttpChunk(buf));
+  }
+
+  /**
+   * Tells whether the channel can take more chunks without queuing them
+   * beyond its high water mark.
+   * @since 2.1
+   */
+  public boolean isWritable() {
+    return chan.isWritable();
+  }
+
+  /**
+   * Ends a reply started with {@link #startChunkedReply}.
+   * @since 2.1
+   */
+  public void endChunkedReply() {
+    final ChannelFuture future = chan.write(HttpChunk.LAST_CHUNK);
+    if (!HttpHeaders.isKeepAlive(request)) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+    done();
+  }
+
+  /**
+   * Gives up on a reply started with {@link #startChunkedReply} by closing
+   * the connection, as the status was already sent. The client sees a reply
+   * without its last chunk.
+   * @since 2.1
+   */
+  public void abortChunkedReply() {
+    chan.close();
+    done();
+  }
+
   /**
    * Returns the result of an attempt to guess the MIME type of the response.
    * @param buf The content of the reply to send.
@@ -419,6 +419,39 @@ public abstract class HttpSerializer {
         this.getClass().getCanonicalName() + 
         " has not implemented formatQueryV1");
   }
+
+  /**
+   * Sends the results from a timeseries data query as a chunked reply,
+   * serialized while the client reads them. By default, the results are
+   * formatted with {@link #formatQueryV1} and sent at once.
+   * @param query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param chunk_size The maximum size of a chunk of the reply, in bytes
+   * @throws BadRequestException if the plugin has not implemented 
+   * {@link #formatQueryV1}
+   * @since 2.1
+   */
+  public void streamQueryV1(final TSQuery query, 
+      final List<DataPoints[]> results, final List<Annotation> globals, 
+      final int chunk_size) {
+    this.query.sendReply(formatQueryV1(query, results, globals));
+  }
+  
+  /**
+   * Format the last data points of a list of series
+   * @param points The data points, with the metric and tags of their series
+   * @return A ChannelBuffer object to pass on to the caller
+   * @throws BadRequestException if the plugin has not implemented this method
+   * @since 2.1
+   */
+  public ChannelBuffer formatLastPointQueryV1(
+      final List<IncomingDataPoint> points) {
+    throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED, 
+        "The requested API endpoint has not been implemented", 
+        this.getClass().getCanonicalName() + 
+        " has not implemented formatLastPointQueryV1");
+  }
   
   /**
    * Format a single UIDMeta object
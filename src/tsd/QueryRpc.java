@@ -26,9 +26,10 @@ import org.slf4j.LoggerFactory;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import java.util.Map;
-import net.opentsdb.core.CachedBatches;
 
 import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.LastPointIndex;
 import net.opentsdb.core.Query;
 import net.opentsdb.core.RateOptions;
 import net.opentsdb.core.TSDB;
@@ -36,6 +37,8 @@ import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
 import net.opentsdb.core.Tags;
 import net.opentsdb.meta.Annotation;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
 
 /**
  * Handles queries for timeseries datapoints. Each request is parsed into a
@@ -60,6 +63,14 @@ final class QueryRpc implements HttpRpc {
   public void execute(final TSDB tsdb, final HttpQuery query)
     throws IOException {
 
+    // the uri will be /api/vX/query/? or /api/query/?
+    final String[] uri = query.explodeAPIPath();
+    final String endpoint = uri.length > 1 ? uri[1] : "";
+    if (endpoint.toLowerCase().equals("last")) {
+      handleLastDataPointQuery(tsdb, query);
+      return;
+    }
+
     // only accept GET/POST
     if (query.method() != HttpMethod.GET && query.method() != HttpMethod.POST) {
       throw new BadRequestException(HttpResponseStatus.METHOD_NOT_ALLOWED,
@@ -111,26 +122,8 @@ final class QueryRpc implements HttpRpc {
 	  @Override
       public Object call(final ArrayList<DataPoints[]> query_results) throws Exception {
         results.addAll(query_results);
-		checkCache(query_results);
         return null;
       }
-
-	  /**
-	   * Check the cache for data points that may not have been persisted and add them
-	   * to the result set if they are in the time range of the query.
-	   */
-	  private void checkCache(final ArrayList<DataPoints[]> queryResults) {
-		if (queryResults.size() > 0) {
-		  DataPoints[] dps = queryResults.get(0);
-		  if (dps != null && dps[0] != null) {
-			DataPoints cachedDPs = CachedBatches.get(dps[0].metricName(), dps[0].getTags(),
-				  data_query.startTime(), data_query.endTime());
-			if (cachedDPs != null) {
-			  results.add(new DataPoints[]{cachedDPs});
-			}
-		  }
-		}
-	  }
     }
 
     // if the user wants global annotations, we need to scan and fetch
@@ -158,8 +151,117 @@ final class QueryRpc implements HttpRpc {
     switch (query.apiVersion()) {
     case 0:
     case 1:
-      query.sendReply(query.serializer().formatQueryV1(data_query, results,
-          globals));
+      if (tsdb.getConfig().getBoolean("tsd.http.query.stream")
+          && query.acceptsChunkedReply()) {
+        query.serializer().streamQueryV1(data_query, results, globals,
+            tsdb.getConfig().getInt("tsd.http.query.chunk_size"));
+      } else {
+        query.sendReply(query.serializer().formatQueryV1(data_query, results,
+            globals));
+      }
+      break;
+    default:
+      throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED,
+          "Requested API version not implemented", "Version " +
+          query.apiVersion() + " is not implemented");
+    }
+  }
+
+  /**
+   * Implements the /api/query/last endpoint, which returns the last data
+   * point of the series matching {@code timeseries=metric{tag=value,...}}
+   * parameters, where values may be {@code *} or {@code |}-separated lists,
+   * and of the series given by {@code tsuids=tsuid,...} parameters.  The
+   * data points come from the index of last data points, so only the series
+   * written to this TSD since it started are found.
+   * @param tsdb The TSDB to use for fetching data
+   * @param query The HTTP query for parsing and responding
+   * @since 2.1
+   */
+  private void handleLastDataPointQuery(final TSDB tsdb,
+      final HttpQuery query) {
+    if (query.method() != HttpMethod.GET) {
+      throw new BadRequestException(HttpResponseStatus.METHOD_NOT_ALLOWED,
+          "Method not allowed", "The HTTP method [" + query.method().getName() +
+          "] is not permitted for this endpoint");
+    }
+    final LastPointIndex index = tsdb.getLastPointIndex();
+    if (index == null) {
+      throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED,
+          "The last data points are not indexed",
+          "Set tsd.query.last.max_series to enable this endpoint");
+    }
+    if (!query.hasQueryStringParam("timeseries")
+        && !query.hasQueryStringParam("tsuids")) {
+      throw new BadRequestException("Missing timeseries or tsuids");
+    }
+
+    final ArrayList<LastPointIndex.LastPoint> points =
+      new ArrayList<LastPointIndex.LastPoint>();
+    if (query.hasQueryStringParam("timeseries")) {
+      for (final String series : query.getQueryStringParams("timeseries")) {
+        final HashMap<String, String> tags = new HashMap<String, String>();
+        try {
+          points.addAll(index.find(Tags.parseWithMetric(series, tags), tags));
+        } catch (IllegalArgumentException e) {
+          throw new BadRequestException(e);
+        } catch (NoSuchUniqueName e) {
+          throw new BadRequestException(e);
+        }
+      }
+    }
+    if (query.hasQueryStringParam("tsuids")) {
+      for (final String tsuids : query.getQueryStringParams("tsuids")) {
+        for (final String tsuid : tsuids.split(",")) {
+          final LastPointIndex.LastPoint point;
+          try {
+            point = index.get(UniqueId.stringToUid(tsuid));
+          } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e);
+          }
+          if (point != null) {
+            points.add(point);
+          }
+        }
+      }
+    }
+
+    // resolve the names of the series, which are cached by the UID instances
+    final ArrayList<Deferred<String>> metrics =
+      new ArrayList<Deferred<String>>(points.size());
+    final ArrayList<Deferred<Map<String, String>>> tags =
+      new ArrayList<Deferred<Map<String, String>>>(points.size());
+    for (final LastPointIndex.LastPoint point : points) {
+      metrics.add(point.metricNameAsync());
+      tags.add(point.getTagsAsync());
+    }
+    final ArrayList<IncomingDataPoint> results =
+      new ArrayList<IncomingDataPoint>(points.size());
+    try {
+      final ArrayList<String> names =
+        Deferred.groupInOrder(metrics).joinUninterruptibly();
+      final ArrayList<Map<String, String>> tag_maps =
+        Deferred.groupInOrder(tags).joinUninterruptibly();
+      for (int i = 0; i < points.size(); i++) {
+        final LastPointIndex.LastPoint point = points.get(i);
+        final IncomingDataPoint dp = new IncomingDataPoint(names.get(i),
+            point.timestamp(), point.isInteger()
+            ? Long.toString(point.longValue())
+            : Double.toString(point.doubleValue()),
+            new HashMap<String, String>(tag_maps.get(i)));
+        dp.setTSUID(point.getTSUID());
+        results.add(dp);
+      }
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Shouldn't be here", e);
+    }
+
+    switch (query.apiVersion()) {
+    case 0:
+    case 1:
+      query.sendReply(query.serializer().formatLastPointQueryV1(results));
       break;
     default:
       throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED,
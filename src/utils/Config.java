@@ -403,18 +403,40 @@ public class Config {
     default_map.put("tsd.search.enable", "false");
     default_map.put("tsd.search.plugin", "");
     default_map.put("tsd.stats.canonical", "false");
+    default_map.put("tsd.query.block_cache.max_bytes", "0");
+    default_map.put("tsd.query.cache.max_bytes", "0");
+    default_map.put("tsd.query.cache.min_age", "3600");
+    default_map.put("tsd.query.columnar", "false");
+    default_map.put("tsd.query.decode.backlog", "1024");
+    default_map.put("tsd.query.decode.threads", "0");
+    default_map.put("tsd.query.evaluate.parallelism", "4");
+    default_map.put("tsd.query.evaluate.threads", "0");
+    default_map.put("tsd.query.last.max_series", "0");
+    default_map.put("tsd.query.rollups.min_age", "7200");
+    default_map.put("tsd.query.rollups.start", "0");
+    default_map.put("tsd.query.scan.batch_bytes", "1048576");
+    default_map.put("tsd.query.scan.parallelism", "1");
+    default_map.put("tsd.query.scan.prefetch", "false");
     default_map.put("tsd.storage.flush_interval", "1000");
     default_map.put("tsd.storage.hbase.data_table", "tsdb");
     default_map.put("tsd.storage.hbase.uid_table", "tsdb-uid");
     default_map.put("tsd.storage.hbase.tree_table", "tsdb-tree");
     default_map.put("tsd.storage.hbase.meta_table", "tsdb-meta");
+    default_map.put("tsd.storage.hbase.rollup_table", "tsdb-rollup");
     default_map.put("tsd.storage.hbase.zk_quorum", "localhost");
     default_map.put("tsd.storage.hbase.zk_basedir", "/hbase");
     default_map.put("tsd.storage.enable_compaction", "true");
+    default_map.put("tsd.storage.rollups.enable", "false");
+    default_map.put("tsd.storage.batch.shards", "16");
+    default_map.put("tsd.storage.batch.max_bytes", "268435456");
+    default_map.put("tsd.storage.batch.idle_timeout", "3600");
+    default_map.put("tsd.storage.batch.reorder_window", "0");
     default_map.put("tsd.http.show_stack_trace", "true");
     default_map.put("tsd.http.request.enable_chunked", "false");
     default_map.put("tsd.http.request.max_chunk", "4096");
     default_map.put("tsd.http.request.cors_domains", "");
+    default_map.put("tsd.http.query.stream", "false");
+    default_map.put("tsd.http.query.chunk_size", "65536");
 
     for (Map.Entry<String, String> entry : default_map.entrySet()) {
       if (!properties.containsKey(entry.getKey()))
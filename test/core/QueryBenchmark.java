@@ -0,0 +1,241 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.tsd.Benchmarks;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+/**
+ * Measures the query path once the rows have been read from HBase: iterating
+ * over {@link Span}s, and aggregating, interpolating, computing rates and
+ * downsampling them with {@link SpanGroup}.
+ * <p>
+ * The data set is made of {@code bench.series} series of one metric, with a
+ * data point every {@code bench.interval} seconds over {@code bench.hours}
+ * hours, each series starting at a different second so that aggregating them
+ * needs interpolation. Half of the series have integer values, the other half
+ * floating point values. Every operation runs a whole query over the data set,
+ * which each of the {@code bench.threads} threads does {@code bench.queries}
+ * times after {@code bench.warmup} queries. With {@code bench.columnar=1}, the
+ * spans are decoded up front like with {@code tsd.query.columnar}.
+ * {@code bench.only} picks some of the benchmarks:
+ * <ul>
+ * <li>{@code span.iterate}: iterates over every span</li>
+ * <li>{@code span.downsample}: downsamples every span with avg</li>
+ * <li>{@code group.sum}: sum, interpolating missing values</li>
+ * <li>{@code group.zimsum}: sum, with zero for missing values</li>
+ * <li>{@code group.mimmax}: max, ignoring missing values</li>
+ * <li>{@code group.dev}: standard deviation</li>
+ * <li>{@code group.rate}: sum of the rates</li>
+ * <li>{@code group.downsample}: sum of the 1 minute averages</li>
+ * </ul>
+ * Run with {@code make bench}.
+ */
+public final class QueryBenchmark {
+  private static final long START = 1356998400;
+  private static final byte[] FAMILY = { 't' };
+  private static final long DOWNSAMPLE_INTERVAL = 60000;
+
+  private final int threads = Benchmarks.intProperty("threads", 1);
+  private final int queries = Benchmarks.intProperty("queries", 20);
+  private final int warmup = Benchmarks.intProperty("warmup", 10);
+  private final int series = Benchmarks.intProperty("series", 100);
+  private final int hours = Benchmarks.intProperty("hours", 24);
+  private final int interval = Benchmarks.intProperty("interval", 15);
+  private final boolean columnar = Benchmarks.intProperty("columnar", 0) != 0;
+
+  /** Keeps the JIT from optimizing the iterations away. */
+  private static volatile double sink;
+
+  @Test
+  public void query() throws Exception {
+    final TSDB tsdb = new TSDB(new Config(false));
+    final List<Span> spans = buildSpans(tsdb);
+    final long points = countPoints(spans);
+    final List<Benchmarks.Result> results = new ArrayList<Benchmarks.Result>();
+    final List<String> rates = new ArrayList<String>();
+    for (final String name : Benchmarks.selected("span.iterate",
+        "span.downsample", "group.sum", "group.zimsum", "group.mimmax",
+        "group.dev", "group.rate", "group.downsample")) {
+      final Benchmarks.WorkerFactory factory = new Benchmarks.WorkerFactory() {
+        @Override
+        public Benchmarks.Worker newWorker(final int thread, final int threads) {
+          return new QueryWorker(tsdb, name, spans);
+        }
+      };
+      Benchmarks.run(name, threads, warmup, factory);
+      final Benchmarks.Result result = Benchmarks.run(name, threads, queries,
+          factory);
+      results.add(result);
+      rates.add(String.format("%-24s %.1f data points read/s, %.1f bytes"
+          + " allocated per data point read", name,
+          result.operationsPerSecond() * points,
+          (double) result.allocated_bytes / result.operations / points));
+    }
+    tsdb.shutdown();
+    Benchmarks.print("Query, " + series + " series, " + points
+        + " data points", results);
+    for (final String line : rates) {
+      System.out.println(line);
+    }
+  }
+
+  /**
+   * Builds compacted rows, as read from HBase, and the spans made of them.
+   */
+  private List<Span> buildSpans(final TSDB tsdb) {
+    final short metric_width = tsdb.metrics.width();
+    final short tagk_width = tsdb.tag_names.width();
+    final short tagv_width = tsdb.tag_values.width();
+    final int points_per_row = 3600 / interval;
+    final List<Span> spans = new ArrayList<Span>(series);
+    for (int s = 0; s < series; s++) {
+      final Span span = new Span(tsdb);
+      final boolean is_float = s % 2 == 1;
+      final short flags = is_float ? (short) (Const.FLAG_FLOAT | 0x3) : 0x7;
+      final long offset = s % interval;
+      long value = s;
+      for (int h = 0; h < hours; h++) {
+        final long base_time = START + h * 3600L;
+        final byte[] key = new byte[metric_width + Const.TIMESTAMP_BYTES
+            + tagk_width + tagv_width];
+        key[metric_width - 1] = 1;
+        Bytes.setInt(key, (int) base_time, metric_width);
+        key[metric_width + Const.TIMESTAMP_BYTES + tagk_width - 1] = 1;
+        for (int i = 0; i < tagv_width; i++) {
+          key[key.length - 1 - i] = (byte) ((s + 1) >>> (i * 8));
+        }
+        final byte[] qualifier = new byte[points_per_row * 2];
+        final byte[] values = new byte[points_per_row * ((flags & 0x7) + 1)
+            + 1];
+        int q = 0;
+        int v = 0;
+        for (int i = 0; i < points_per_row; i++) {
+          final long timestamp = base_time + i * interval + offset;
+          // Mostly increasing, like counters, with an occasional drop.
+          value += (timestamp * 31 + s) % 100 - (i % 50 == 49 ? 1000 : 0);
+          q += Internal.writeQualifier(qualifier, q, timestamp, flags);
+          v += Internal.writeValue(values, v, is_float
+              ? Float.floatToRawIntBits(value / 10f) : value, flags);
+        }
+        span.addRow(new KeyValue(key, FAMILY, qualifier, values));
+      }
+      if (columnar) {
+        span.decode();
+      }
+      spans.add(span);
+    }
+    return spans;
+  }
+
+  private static long countPoints(final List<Span> spans) {
+    long points = 0;
+    for (final Span span : spans) {
+      points += span.size();
+    }
+    return points;
+  }
+
+  /**
+   * Runs one kind of query over the whole data set.
+   */
+  private static final class QueryWorker implements Benchmarks.Worker {
+    private final TSDB tsdb;
+    private final String name;
+    private final List<Span> spans;
+
+    QueryWorker(final TSDB tsdb, final String name, final List<Span> spans) {
+      this.tsdb = tsdb;
+      this.name = name;
+      this.spans = spans;
+    }
+
+    @Override
+    public void prepare() {
+    }
+
+    @Override
+    public void run(final int i) {
+      double total = 0;
+      long count = 0;
+      if (name.equals("span.iterate")) {
+        for (final Span span : spans) {
+          final SeekableView it = span.iterator();
+          while (it.hasNext()) {
+            total += value(it.next());
+            count++;
+          }
+        }
+      } else if (name.equals("span.downsample")) {
+        for (final Span span : spans) {
+          final SeekableView it = span.downsampler(DOWNSAMPLE_INTERVAL,
+              Aggregators.AVG);
+          while (it.hasNext()) {
+            total += value(it.next());
+            count++;
+          }
+        }
+      } else {
+        final SeekableView it = group().iterator();
+        while (it.hasNext()) {
+          total += value(it.next());
+          count++;
+        }
+      }
+      assertTrue(name, count > 0);
+      sink = total;
+    }
+
+    private SpanGroup group() {
+      final long end = Long.MAX_VALUE / 1000;
+      if (name.equals("group.sum")) {
+        return new SpanGroup(tsdb, START, end, spans, false, Aggregators.SUM,
+            0, null);
+      } else if (name.equals("group.zimsum")) {
+        return new SpanGroup(tsdb, START, end, spans, false,
+            Aggregators.ZIMSUM, 0, null);
+      } else if (name.equals("group.mimmax")) {
+        return new SpanGroup(tsdb, START, end, spans, false,
+            Aggregators.MIMMAX, 0, null);
+      } else if (name.equals("group.dev")) {
+        return new SpanGroup(tsdb, START, end, spans, false, Aggregators.DEV,
+            0, null);
+      } else if (name.equals("group.rate")) {
+        return new SpanGroup(tsdb, START, end, spans, true,
+            new RateOptions(true, Long.MAX_VALUE, 0), Aggregators.SUM, 0,
+            null);
+      } else if (name.equals("group.downsample")) {
+        return new SpanGroup(tsdb, START, end, spans, false, Aggregators.SUM,
+            DOWNSAMPLE_INTERVAL, Aggregators.AVG);
+      }
+      throw new IllegalArgumentException("Unknown benchmark: " + name);
+    }
+
+    private static double value(final DataPoint dp) {
+      return dp.isInteger() ? dp.longValue() : dp.doubleValue();
+    }
+
+    @Override
+    public void finish() {
+    }
+  }
+}
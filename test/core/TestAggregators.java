@@ -64,6 +64,26 @@ public final class TestAggregators {
     }
   }
 
+  /** Helper class to iterate on floating point numbers.  */
+  private static final class Doubles implements Aggregator.Doubles {
+    private final double[] numbers;
+    private int i = 0;
+
+    public Doubles(final double[] numbers) {
+      this.numbers = numbers;
+    }
+
+    @Override
+    public boolean hasNextValue() {
+      return i < numbers.length;
+    }
+
+    @Override
+    public double nextDoubleValue() {
+      return numbers[i++];
+    }
+  }
+
   @Test
   public void testStdDevKnownValues() {
     final long[] values = new long[10000];
@@ -108,6 +128,87 @@ public final class TestAggregators {
     checkSimilarStdDev(values, expected, 0);
   }
 
+  @Test
+  public void testBulkSameAsSequence() {
+    final long[] values = new long[100];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextInt();
+    }
+    final double[] doubles = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      doubles[i] = values[i] / 3.0;
+    }
+    for (final String name : Aggregators.set()) {
+      final Aggregator.Bulk agg = (Aggregator.Bulk) Aggregators.get(name);
+      for (final int length : new int[] { 1, 2, 7, 90 }) {
+        final long[] slice = new long[length];
+        System.arraycopy(values, 10, slice, 0, length);
+        Assert.assertEquals(name, agg.runLong(new Numbers(slice)),
+                            agg.runLongs(values, 10, length));
+        final double[] doubles_slice = new double[length];
+        System.arraycopy(doubles, 10, doubles_slice, 0, length);
+        // Same order of operations, so exactly the same result.
+        Assert.assertEquals(name, agg.runDouble(new Doubles(doubles_slice)),
+                            agg.runDoubles(doubles, 10, length), 0);
+      }
+    }
+  }
+
+  @Test
+  public void testBulkKnownValues() {
+    final long[] values = { 42, 5, -3, 10, 1 };
+    Assert.assertEquals(13, bulk("sum").runLongs(values, 1, 4));
+    Assert.assertEquals(-3, bulk("min").runLongs(values, 1, 4));
+    Assert.assertEquals(10, bulk("max").runLongs(values, 1, 4));
+    Assert.assertEquals(3, bulk("avg").runLongs(values, 1, 4));
+    Assert.assertEquals(0, bulk("dev").runLongs(values, 0, 1));
+    final double[] doubles = { 1.5, -2.5, 4 };
+    Assert.assertEquals(3, bulk("zimsum").runDoubles(doubles, 0, 3), 0);
+    Assert.assertEquals(-2.5, bulk("mimmin").runDoubles(doubles, 0, 3), 0);
+    Assert.assertEquals(4, bulk("mimmax").runDoubles(doubles, 0, 3), 0);
+    Assert.assertEquals(0.75, bulk("avg").runDoubles(doubles, 1, 2), 0);
+  }
+
+  @Test
+  public void testPercentiles() {
+    final long[] values = new long[1000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i + 1;
+    }
+    // Shuffle, the order doesn't matter.
+    for (int i = values.length - 1; i > 0; i--) {
+      final int j = random.nextInt(i + 1);
+      final long tmp = values[i];
+      values[i] = values[j];
+      values[j] = tmp;
+    }
+    final String[] names = { "p50", "p75", "p90", "p95", "p99", "p999" };
+    final long[] expected = { 500, 750, 900, 950, 990, 999 };
+    for (int i = 0; i < names.length; i++) {
+      final Aggregator agg = Aggregators.get(names[i]);
+      final double epsilon = expected[i] * QuantileSketch.RELATIVE_ACCURACY;
+      Assert.assertEquals(names[i], expected[i],
+                          agg.runLong(new Numbers(values)), epsilon);
+      Assert.assertEquals(names[i], expected[i] / 4.0,
+          agg.runDouble(new Doubles(quarter(values))), epsilon / 4);
+    }
+    Assert.assertEquals(5, bulk("p99").runLongs(new long[] { 5 }, 0, 1));
+    Assert.assertEquals(-2.5, bulk("p50").runDoubles(
+        new double[] { 4, -2.5, -3 }, 0, 3), 0.025);
+  }
+
+  private static double[] quarter(final long[] values) {
+    final double[] quarters = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      quarters[i] = values[i] / 4.0;
+    }
+    return quarters;
+  }
+
+  private static Aggregator.Bulk bulk(final String name) {
+    return (Aggregator.Bulk) Aggregators.get(name);
+  }
+
   private static void checkSimilarStdDev(final long[] values,
                                          final double expected,
                                          final double epsilon) {
@@ -0,0 +1,160 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*", "com.sun.management.*"})
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  CompactionQueue.class, PutRequest.class, KeyValue.class})
+public final class TestBatchedDataPoints {
+  private static final byte[] ROW = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27,
+    0, 0, 0, 1, 0, 0, 1 };
+
+  private TSDB tsdb;
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private MockBase storage;
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.whenNew(HBaseClient.class)
+      .withArguments(anyString(), anyString()).thenReturn(client);
+    tsdb = new TSDB(new Config(false));
+    storage = new MockBase(tsdb, client, true, true, true, true);
+
+    Field met = tsdb.getClass().getDeclaredField("metrics");
+    met.setAccessible(true);
+    met.set(tsdb, metrics);
+    when(metrics.width()).thenReturn((short)3);
+  }
+
+  @Test
+  public void persistSinglePoint() throws Exception {
+    final BatchedDataPoints dps = newBatch();
+    dps.addPoint(1356998401, 257);
+    dps.persist().joinUninterruptibly();
+    assertEquals(1, storage.numColumns(ROW));
+    // no trailing meta-data byte for a lone data point
+    assertArrayEquals(Bytes.fromShort((short) 257),
+        storage.getColumn(ROW, new byte[] { 0, 0x11 }));
+  }
+
+  @Test
+  public void persistCompacted() throws Exception {
+    final BatchedDataPoints dps = newBatch();
+    dps.addPoint(1356998400, 42);
+    dps.addPoint(1356998401, 4.2F);
+    dps.addPoint(1356998402, Long.MAX_VALUE);
+    dps.persist().joinUninterruptibly();
+    assertEquals(0, dps.size());
+    assertArrayEquals(MockBase.concatByteArrays(new byte[] { 42 },
+        Bytes.fromInt(Float.floatToRawIntBits(4.2F)),
+        Bytes.fromLong(Long.MAX_VALUE), new byte[] { 0 }),
+        storage.getColumn(ROW, new byte[] { 0, 0, 0, 0x1B, 0, 0x27 }));
+  }
+
+  @Test
+  public void persistMixedSecondsAndMilliseconds() throws Exception {
+    final BatchedDataPoints dps = newBatch();
+    dps.addPoint(1356998400, 42);
+    dps.addPoint(1356998400008L, 24);
+    dps.persist().joinUninterruptibly();
+    final byte[] value = storage.getColumn(ROW,
+        new byte[] { 0, 0, (byte) 0xF0, 0x00, 0x02, 0x00 });
+    assertArrayEquals(new byte[] { 42, 24, Const.MS_MIXED_COMPACT }, value);
+  }
+
+  @Test
+  public void accessors() throws Exception {
+    final BatchedDataPoints dps = newBatch();
+    dps.addPoint(1356998401, 4.2F);
+    dps.addPoint(1356998400, 42);
+    assertEquals(2, dps.size());
+    assertEquals(1356998400000L, dps.timestamp(0));
+    assertTrue(dps.isInteger(0));
+    assertEquals(42, dps.longValue(0));
+    assertEquals(1356998401000L, dps.timestamp(1));
+    assertEquals(4.2F, dps.doubleValue(1), 0.0001);
+  }
+
+  @Test
+  public void addPointDoesNotAllocate() throws Exception {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return;  // can't measure allocations on this JVM
+    }
+    final com.sun.management.ThreadMXBean allocations =
+      (com.sun.management.ThreadMXBean) bean;
+    if (!allocations.isThreadAllocatedMemorySupported()) {
+      return;
+    }
+    allocations.setThreadAllocatedMemoryEnabled(true);
+
+    final int points = 20000;
+    final BatchedDataPoints dps = newBatch();
+    // grow the buffers and set the row's base time once
+    for (int i = 0; i < points; i++) {
+      dps.addLong(1356998400000L + i, i);
+    }
+    dps.persist();
+
+    final long thread = Thread.currentThread().getId();
+    final long start = allocations.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < points; i++) {
+      if (i % 2 == 0) {
+        dps.addLong(1356998400000L + i, i * 1000L);
+      } else {
+        dps.addFloat(1356998400000L + i, i / 3F);
+      }
+    }
+    final long allocated = allocations.getThreadAllocatedBytes(thread) - start;
+    assertEquals(points, dps.size());
+    // whatever the measurement itself costs, but nothing per data point
+    assertTrue("allocated " + allocated + " bytes", allocated < points);
+  }
+
+  private BatchedDataPoints newBatch() {
+    final byte[] row = ROW.clone();
+    Bytes.setInt(row, 0, 3);
+    return new BatchedDataPoints(tsdb, row);
+  }
+}
@@ -0,0 +1,149 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import net.opentsdb.meta.Annotation;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+public final class TestBlockCache {
+  private static final byte[] METRIC = { 0, 0, 1 };
+  private static final long BASE_TIME = 1356998400;
+  private static final short METRIC_WIDTH = 3;
+
+  @Test
+  public void getPutBlock() throws Exception {
+    final BlockCache cache = new BlockCache(1 << 20, 3600);
+    final String prefix = QueryCache.prefix(METRIC, BASE_TIME);
+    assertNull(cache.getBlock(prefix));
+    final ArrayList<BlockCache.Row> block = block(BASE_TIME, 3);
+    cache.putBlock(prefix, block, cache.generation());
+
+    final ArrayList<BlockCache.Row> found = cache.getBlock(prefix);
+    assertEquals(3, found.size());
+    for (int i = 0; i < 3; i++) {
+      assertSame(block.get(i), found.get(i));
+    }
+    assertSame(block.get(1), cache.getRow(block.get(1).key));
+    assertNull(cache.getBlock(QueryCache.prefix(METRIC, BASE_TIME + 3600)));
+  }
+
+  @Test
+  public void emptyBlock() throws Exception {
+    final BlockCache cache = new BlockCache(1 << 20, 3600);
+    final String prefix = QueryCache.prefix(METRIC, BASE_TIME);
+    cache.putBlock(prefix, new ArrayList<BlockCache.Row>(0),
+        cache.generation());
+    assertEquals(0, cache.getBlock(prefix).size());
+  }
+
+  @Test
+  public void invalidate() throws Exception {
+    final BlockCache cache = new BlockCache(1 << 20, 3600);
+    final String prefix = QueryCache.prefix(METRIC, BASE_TIME);
+    final ArrayList<BlockCache.Row> block = block(BASE_TIME, 3);
+    cache.putBlock(prefix, block, cache.generation());
+    cache.invalidate(block.get(0).key, METRIC_WIDTH);
+    assertNull(cache.getBlock(prefix));
+    assertNull(cache.getRow(block.get(0).key));
+    // The other rows are still there to be reused.
+    assertSame(block.get(1), cache.getRow(block.get(1).key));
+  }
+
+  @Test
+  public void invalidateNewRow() throws Exception {
+    final BlockCache cache = new BlockCache(1 << 20, 3600);
+    final String prefix = QueryCache.prefix(METRIC, BASE_TIME);
+    cache.putBlock(prefix, block(BASE_TIME, 2), cache.generation());
+    cache.invalidate(block(BASE_TIME, 3).get(2).key, METRIC_WIDTH);
+    assertNull(cache.getBlock(prefix));
+  }
+
+  @Test
+  public void putBlockAfterInvalidation() throws Exception {
+    final BlockCache cache = new BlockCache(1 << 20, 3600);
+    final String prefix = QueryCache.prefix(METRIC, BASE_TIME);
+    final ArrayList<BlockCache.Row> block = block(BASE_TIME, 3);
+    final long generation = cache.generation();
+    cache.invalidate(block.get(0).key, METRIC_WIDTH);
+    cache.putBlock(prefix, block, generation);
+    assertNull(cache.getBlock(prefix));
+    assertNull(cache.getRow(block.get(1).key));
+  }
+
+  @Test
+  public void evict() throws Exception {
+    final ArrayList<BlockCache.Row> block = block(BASE_TIME, 2);
+    // Room for 8 rows, a block may take 2.
+    final BlockCache cache = new BlockCache(bytes(block) * 4, 3600);
+    for (int i = 0; i < 5; i++) {
+      final long base_time = BASE_TIME + i * 3600;
+      if (i == 4) {
+        assertNotNull(cache.getBlock(QueryCache.prefix(METRIC, BASE_TIME)));
+      }
+      cache.putBlock(QueryCache.prefix(METRIC, base_time),
+          block(base_time, 2), cache.generation());
+    }
+    assertNotNull(cache.getBlock(QueryCache.prefix(METRIC, BASE_TIME)));
+    assertNull(cache.getBlock(QueryCache.prefix(METRIC, BASE_TIME + 3600)));
+    assertNotNull(cache.getBlock(QueryCache.prefix(METRIC,
+        BASE_TIME + 4 * 3600)));
+  }
+
+  @Test
+  public void wideMetric() throws Exception {
+    final ArrayList<BlockCache.Row> block = block(BASE_TIME, 8);
+    final BlockCache cache = new BlockCache(bytes(block) * 3, 3600);
+    assertFalse(cache.isWide(METRIC));
+    final String prefix = QueryCache.prefix(METRIC, BASE_TIME);
+    cache.putBlock(prefix, block, cache.generation());
+    assertNull(cache.getBlock(prefix));
+    assertTrue(cache.isWide(METRIC));
+    assertFalse(cache.isWide(new byte[] { 0, 0, 2 }));
+  }
+
+  /** Returns a block of rows of one data point each. */
+  private static ArrayList<BlockCache.Row> block(final long base_time,
+                                                 final int nrows) {
+    final ArrayList<BlockCache.Row> block =
+      new ArrayList<BlockCache.Row>(nrows);
+    for (int i = 0; i < nrows; i++) {
+      final byte[] key = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, (byte) i };
+      Bytes.setInt(key, (int) base_time, METRIC_WIDTH);
+      block.add(new BlockCache.Row(key, new KeyValue(key, TSDB.FAMILY,
+          new byte[] { 0, 0 }, new byte[] { 42 }),
+          new ArrayList<Annotation>(0), METRIC_WIDTH));
+    }
+    return block;
+  }
+
+  /** Returns the memory used by some rows. */
+  private static long bytes(final ArrayList<BlockCache.Row> rows) {
+    long bytes = 0;
+    for (final BlockCache.Row row : rows) {
+      bytes += row.bytes;
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,526 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  CompactionQueue.class, PutRequest.class, KeyValue.class})
+public final class TestCachedBatches {
+  private static final byte[] ROW_USER = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27,
+    0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] ROW_USER_NEXT_HOUR = { 0, 0, 1, 0x50,
+    (byte) 0xE2, 0x35, 0x10, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] ROW_NICE = { 0, 0, 2, 0x50, (byte) 0xE2, 0x27,
+    0, 0, 0, 1, 0, 0, 1 };
+
+  private Config config;
+  private TSDB tsdb;
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private UniqueId tag_names = mock(UniqueId.class);
+  private UniqueId tag_values = mock(UniqueId.class);
+  private MockBase storage;
+  private HashMap<String, String> tags;
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.whenNew(HBaseClient.class)
+      .withArguments(anyString(), anyString()).thenReturn(client);
+    config = new Config(false);
+    config.overrideConfig("tsd.storage.batch.shards", "1");
+    tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+  }
+
+  @Test
+  public void addPointPersistsOnNewHour() throws Exception {
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    batches.addPoint("sys.cpu.user", 1356998400, "42", tags);
+    batches.addPoint("sys.cpu.user", 1356998401, "24.5", tags);
+    assertEquals(0, storage.numRows());
+
+    batches.addPoint("sys.cpu.user", 1357002000, "1", tags);
+    assertEquals(1, storage.numRows());
+    final byte[] value = storage.getColumn(ROW_USER,
+        new byte[] { 0, 0, 0, 0x1B });
+    assertNotNull(value);
+    assertEquals(42, value[0]);
+    assertEquals(24.5F, Float.intBitsToFloat(Bytes.getInt(value, 1)), 0.0001);
+    assertNull(storage.getColumn(ROW_USER_NEXT_HOUR, new byte[] { 0, 0 }));
+  }
+
+  @Test
+  public void shutdownPersistsEverything() throws Exception {
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    batches.addPoint("sys.cpu.user", 1356998400, "42", tags);
+    batches.addPoint("sys.cpu.nice", 1356998400, "24", tags);
+    assertEquals(0, storage.numRows());
+
+    batches.shutdown().joinUninterruptibly();
+    assertEquals(2, storage.numRows());
+    assertEquals(42, storage.getColumn(ROW_USER, new byte[] { 0, 0 })[0]);
+    assertEquals(24, storage.getColumn(ROW_NICE, new byte[] { 0, 0 })[0]);
+    assertNull(batches.get("sys.cpu.user", tags));
+  }
+
+  @Test
+  public void shutdownEmpty() throws Exception {
+    setupStorage();
+    tsdb.getCachedBatches().shutdown().joinUninterruptibly();
+    assertEquals(0, storage.numRows());
+  }
+
+  @Test
+  public void getUnflushedRows() throws Exception {
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    batches.addPoint("sys.cpu.user", 1356998400, "42", tags);
+    batches.addPoint("sys.cpu.user", 1356998401, "24", tags);
+    batches.addPoint("sys.cpu.nice", 1356998400, "1", tags);
+    final byte[] metric = { 0, 0, 1 };
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    batches.getUnflushedRows(metric, 1356998400, -1, rows);
+    assertEquals(1, rows.size());
+    assertArrayEquals(ROW_USER, rows.get(0).key());
+    assertArrayEquals(new byte[] { 0, 0, 0, 0x10 }, rows.get(0).qualifier());
+    assertArrayEquals(new byte[] { 42, 24, 0 }, rows.get(0).value());
+
+    // The hour is out of these ranges.
+    rows.clear();
+    batches.getUnflushedRows(metric, 1356998401, -1, rows);
+    batches.getUnflushedRows(metric, 0, 1356998400, rows);
+    assertEquals(0, rows.size());
+    // Reading the rows doesn't write them.
+    assertEquals(0, storage.numRows());
+    assertEquals(2, batches.get("sys.cpu.user", tags).size());
+  }
+
+  @Test
+  public void getUnflushedRowsAfterEviction() throws Exception {
+    // room for a single batch
+    config.overrideConfig("tsd.storage.batch.max_bytes", "1000");
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    batches.addPoint("sys.cpu.user", 1356998400, "42", tags);
+    batches.addPoint("sys.cpu.nice", 1356998400, "24", tags);
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    batches.getUnflushedRows(new byte[] { 0, 0, 1 }, 0, -1, rows);
+    assertEquals(0, rows.size());
+    batches.getUnflushedRows(new byte[] { 0, 0, 2 }, 0, -1, rows);
+    assertEquals(1, rows.size());
+
+    // A new batch of the evicted series is found again.
+    batches.addPoint("sys.cpu.user", 1356998401, "43", tags);
+    rows.clear();
+    batches.getUnflushedRows(new byte[] { 0, 0, 1 }, 0, -1, rows);
+    assertEquals(1, rows.size());
+    assertArrayEquals(new byte[] { 43 }, rows.get(0).value());
+  }
+
+  @Test
+  public void evictLeastRecentlyUsed() throws Exception {
+    // room for a single batch
+    config.overrideConfig("tsd.storage.batch.max_bytes", "1000");
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    batches.addPoint("sys.cpu.user", 1356998400, "42", tags);
+    assertNotNull(batches.get("sys.cpu.user", tags));
+    assertEquals(0, storage.numRows());
+
+    batches.addPoint("sys.cpu.nice", 1356998400, "24", tags);
+    assertEquals(1, storage.numRows());
+    assertEquals(42, storage.getColumn(ROW_USER, new byte[] { 0, 0 })[0]);
+    assertNull(batches.get("sys.cpu.user", tags));
+    assertNotNull(batches.get("sys.cpu.nice", tags));
+  }
+
+  @Test
+  public void evictIdleAfterGet() throws Exception {
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    batches.addPoint("sys.cpu.user", 1356998400, "42", tags);
+    batches.addPoint("sys.cpu.nice", 1356998400, "24", tags);
+    // Reading moves the batch of sys.cpu.user behind the one of sys.cpu.nice.
+    assertNotNull(batches.get("sys.cpu.user", tags));
+    final Object shard = ((Object[]) Whitebox.getInternalState(batches,
+        "shards"))[0];
+    final Map<?, ?> cached = Whitebox.getInternalState(shard, "batches");
+    final long now = System.currentTimeMillis();
+    for (final Object batch : cached.values()) {
+      final byte[] row = Whitebox.getInternalState(batch, "row");
+      // sys.cpu.user went idle long ago, sys.cpu.nice was just written to.
+      Whitebox.setInternalState(batch, "last_access", row[2] == 1 ? 0 : now);
+    }
+
+    Whitebox.invokeMethod(batches, "evictIdleBatches");
+    assertEquals(1, storage.numRows());
+    assertEquals(42, storage.getColumn(ROW_USER, new byte[] { 0, 0 })[0]);
+    assertNull(batches.get("sys.cpu.user", tags));
+    assertNotNull(batches.get("sys.cpu.nice", tags));
+  }
+
+  @Test
+  public void addPointConcurrently() throws Exception {
+    final int threads = 16;
+    final int points = 1000;
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    runWriters(batches, threads, points, threads);
+    assertEquals(0, storage.numRows());
+
+    batches.shutdown().joinUninterruptibly();
+    assertEquals(threads, storage.numRows());
+    for (int i = 0; i < threads; i++) {
+      final byte[] row = ROW_USER.clone();
+      row[row.length - 1] = (byte) (i + 1);
+      final Bytes.ByteMap<byte[]> columns = storage.getColumnFamily(row,
+          "t".getBytes(MockBase.ASCII()));
+      assertNotNull(columns);
+      assertEquals(1, columns.size());
+      // every single point made it into the compacted cell
+      assertEquals(points * 2, columns.firstKey().length);
+      assertTrue(columns.firstEntry().getValue().length >= points * 2);
+    }
+  }
+
+  @Test
+  public void addPointConcurrentlySameSeries() throws Exception {
+    final int threads = 8;
+    final int points = 400;
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    runWriters(batches, threads, points, 1);
+    assertEquals(threads * points, batches.get("sys.cpu.user", tags).size());
+    assertEquals(0, storage.numRows());
+
+    batches.shutdown().joinUninterruptibly();
+    final Bytes.ByteMap<byte[]> columns = storage.getColumnFamily(ROW_USER,
+        "t".getBytes(MockBase.ASCII()));
+    assertEquals(1, columns.size());
+    // every single point of every writer made it into the compacted cell
+    assertEquals(threads * points * 2, columns.firstKey().length);
+  }
+
+  @Test
+  public void addPointConcurrentlyWithEvictions() throws Exception {
+    final int threads = 8;
+    final int points = 400;
+    // room for a single batch, so writers keep evicting each other's series
+    config.overrideConfig("tsd.storage.batch.max_bytes", "1000");
+    setupStorage();
+    // MockBase isn't thread safe, count the written data points instead.
+    final ArrayList<PutRequest> puts = new ArrayList<PutRequest>();
+    PowerMockito.doAnswer(new Answer<Deferred<Object>>() {
+      @Override
+      public Deferred<Object> answer(final InvocationOnMock invocation) {
+        synchronized (puts) {
+          puts.add((PutRequest) invocation.getArguments()[0]);
+        }
+        return Deferred.fromResult(null);
+      }
+    }).when(client).put(any(PutRequest.class));
+    final CachedBatches batches = tsdb.getCachedBatches();
+    runWriters(batches, threads, points, 2);
+    batches.shutdown().joinUninterruptibly();
+
+    final Object shard = ((Object[]) Whitebox.getInternalState(batches,
+        "shards"))[0];
+    final AtomicLong evictions = Whitebox.getInternalState(shard,
+        "size_evictions");
+    assertTrue(evictions.get() > 0);
+    final int[] written = new int[2];
+    for (final PutRequest put : puts) {
+      // second qualifiers, 2 bytes per data point
+      written[put.key()[put.key().length - 1] - 1] += put.qualifier().length / 2;
+    }
+    // no data point was lost when its batch was evicted under the writer
+    assertEquals(threads / 2 * points, written[0]);
+    assertEquals(threads / 2 * points, written[1]);
+  }
+
+  @Test
+  public void addPointOutOfOrder() throws Exception {
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    batches.addPoint("sys.cpu.user", 1356998410, "10", tags);
+    batches.addPoint("sys.cpu.user", 1356998400, "0", tags);
+    batches.addPoint("sys.cpu.user", 1356998405, "5", tags);
+
+    final DataPoints dps = batches.get("sys.cpu.user", tags);
+    assertEquals(3, dps.size());
+    assertEquals(1356998400000L, dps.timestamp(0));
+    assertEquals(1356998405000L, dps.timestamp(1));
+    assertEquals(5, dps.longValue(1));
+    assertEquals(1356998410000L, dps.timestamp(2));
+
+    batches.shutdown().joinUninterruptibly();
+    assertEquals(1, storage.numColumns(ROW_USER));
+    // sorted, with the trailing meta-data byte of compacted cells
+    assertArrayEquals(new byte[] { 0, 5, 10, 0 }, storage.getColumn(ROW_USER,
+        new byte[] { 0, 0, 0, 0x50, 0, (byte) 0xA0 }));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void addPointDuplicate() throws Exception {
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    batches.addPoint("sys.cpu.user", 1356998410, "10", tags);
+    batches.addPoint("sys.cpu.user", 1356998400, "0", tags);
+    batches.addPoint("sys.cpu.user", 1356998410000L, "11", tags);
+  }
+
+  @Test
+  public void reorderWindowKeepsPreviousHourOpen() throws Exception {
+    config.overrideConfig("tsd.storage.batch.reorder_window", "60");
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    batches.addPoint("sys.cpu.user", 1356998400, "42", tags);
+    batches.addPoint("sys.cpu.user", 1357002000, "1", tags);
+    // late, but within the window
+    batches.addPoint("sys.cpu.user", 1357001999, "24", tags);
+    assertEquals(0, storage.numRows());
+    assertEquals(2, batches.get("sys.cpu.user", 1356998400, tags).size());
+    assertEquals(1, batches.get("sys.cpu.user", 1357002000, tags).size());
+
+    // moves the high watermark past the window of the first hour
+    batches.addPoint("sys.cpu.user", 1357002060, "2", tags);
+    assertEquals(1, storage.numRows());
+    assertEquals(1, storage.numColumns(ROW_USER));
+    assertNull(batches.get("sys.cpu.user", 1356998400, tags));
+    final byte[] qualifier = new byte[] { 0, 0, (byte) 0xE0, (byte) 0xF0 };
+    assertArrayEquals(new byte[] { 42, 24, 0 },
+        storage.getColumn(ROW_USER, qualifier));
+  }
+
+  @Test
+  public void latePointWrittenAsSingleCell() throws Exception {
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    batches.addPoint("sys.cpu.user", 1356998400, "42", tags);
+    batches.addPoint("sys.cpu.user", 1356998401, "43", tags);
+    batches.addPoint("sys.cpu.user", 1357002000, "1", tags);
+    assertEquals(1, storage.numColumns(ROW_USER));
+
+    batches.addPoint("sys.cpu.user", 1356998402, "44", tags);
+    assertEquals(2, storage.numColumns(ROW_USER));
+    assertArrayEquals(new byte[] { 44 },
+        storage.getColumn(ROW_USER, new byte[] { 0, 0x20 }));
+    // the current hour is left alone
+    assertEquals(1, batches.get("sys.cpu.user", 1357002000, tags).size());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadReorderWindow() throws Exception {
+    config.overrideConfig("tsd.storage.batch.reorder_window", "3600");
+    new TSDB(config).getCachedBatches();
+  }
+
+  @Test
+  public void getTimeRange() throws Exception {
+    setupStorage();
+    final CachedBatches batches = tsdb.getCachedBatches();
+    batches.addPoint("sys.cpu.user", 1356998400, "42", tags);
+    assertNotNull(batches.get("sys.cpu.user", tags, 1356990000, 1357000000));
+    assertNotNull(batches.get("sys.cpu.user", 1356999000, tags));
+    assertNull(batches.get("sys.cpu.user", tags, 1357002000, 1357009000));
+    assertNull(batches.get("sys.cpu.user", 1357002000, tags));
+  }
+
+  @Test
+  public void getUnknownSeries() throws Exception {
+    setupStorage();
+    assertNull(tsdb.getCachedBatches().get("sys.cpu.user", tags));
+    assertNull(tsdb.getCachedBatches().get("sys.cpu.idle", tags));
+  }
+
+  @Test (expected = NoSuchUniqueName.class)
+  public void addPointNSUN() throws Exception {
+    setupStorage();
+    tsdb.getCachedBatches().addPoint("sys.cpu.idle", 1356998400, "42", tags);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void addPointNoTags() throws Exception {
+    setupStorage();
+    tsdb.getCachedBatches().addPoint("sys.cpu.user", 1356998400, "42",
+        new HashMap<String, String>());
+  }
+
+  @Test (expected = NumberFormatException.class)
+  public void addPointBadValue() throws Exception {
+    setupStorage();
+    tsdb.getCachedBatches().addPoint("sys.cpu.user", 1356998400, "notanumber",
+        tags);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadShards() throws Exception {
+    config.overrideConfig("tsd.storage.batch.shards", "0");
+    new TSDB(config).getCachedBatches();
+  }
+
+  @Test
+  public void collectStatsPerShard() throws Exception {
+    config.overrideConfig("tsd.storage.batch.shards", "3");
+    setupStorage();
+    tsdb.getCachedBatches().addPoint("sys.cpu.user", 1356998400, "42", tags);
+    final ArrayList<String> lines = new ArrayList<String>();
+    tsdb.getCachedBatches().collectStats(new StatsCollector("tsd") {
+      @Override
+      public void emit(final String line) {
+        lines.add(line);
+      }
+    });
+    // rounded up to 4 shards, 9 lines each
+    assertEquals(36, lines.size());
+    long series = 0;
+    for (final String line : lines) {
+      if (line.startsWith("tsd.batch.cache.series ")) {
+        series += Long.parseLong(line.split(" ")[2]);
+      }
+    }
+    assertEquals(1, series);
+  }
+
+  /**
+   * Has writer threads add data points at distinct timestamps of the first
+   * hour, writer {@code i} to host {@code web(i % nseries)}, and waits for
+   * them to be done.
+   */
+  private void runWriters(final CachedBatches batches, final int threads,
+      final int points, final int nseries) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final Thread[] writers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final Map<String, String> series_tags = new HashMap<String, String>(1);
+      series_tags.put("host", "web" + (i % nseries));
+      final long first = 1356998400 + i / nseries * points;
+      writers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < points; j++) {
+              batches.addPoint("sys.cpu.user", first + j,
+                  (j % 2 == 0) ? Integer.toString(j) : "1.5", series_tags);
+            }
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+      writers[i].start();
+    }
+    start.countDown();
+    for (final Thread writer : writers) {
+      writer.join();
+    }
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+  }
+
+  /**
+   * Creates the TSDB with the current config and mocks the UID lookups
+   */
+  private void setupStorage() throws Exception {
+    tsdb = new TSDB(config);
+    storage = new MockBase(tsdb, client, true, true, true, true);
+
+    Field met = tsdb.getClass().getDeclaredField("metrics");
+    met.setAccessible(true);
+    met.set(tsdb, metrics);
+
+    Field tagk = tsdb.getClass().getDeclaredField("tag_names");
+    tagk.setAccessible(true);
+    tagk.set(tsdb, tag_names);
+
+    Field tagv = tsdb.getClass().getDeclaredField("tag_values");
+    tagv.setAccessible(true);
+    tagv.set(tsdb, tag_values);
+
+    when(metrics.width()).thenReturn((short)3);
+    when(tag_names.width()).thenReturn((short)3);
+    when(tag_values.width()).thenReturn((short)3);
+
+    when(metrics.getId("sys.cpu.user")).thenReturn(new byte[] { 0, 0, 1 });
+    when(metrics.getId("sys.cpu.nice")).thenReturn(new byte[] { 0, 0, 2 });
+    when(metrics.getId("sys.cpu.idle")).thenThrow(
+        new NoSuchUniqueName("metric", "sys.cpu.idle"));
+    when(tag_names.getId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_names.getOrCreateId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getOrCreateId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+    // web0, web1, ... map to UIDs 1, 2, ...
+    final Answer<byte[]> host_uid = new Answer<byte[]>() {
+      @Override
+      public byte[] answer(final InvocationOnMock invocation) {
+        final String name = (String) invocation.getArguments()[0];
+        if (name.equals("web01")) {
+          return new byte[] { 0, 0, 1 };
+        }
+        final int id = Integer.parseInt(name.substring(3)) + 1;
+        return new byte[] { 0, 0, (byte) id };
+      }
+    };
+    when(tag_values.getId(anyString())).thenAnswer(host_uid);
+    when(tag_values.getOrCreateId(anyString())).thenAnswer(host_uid);
+  }
+}
@@ -0,0 +1,115 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public final class TestGroupByIndex {
+  private static final byte[] HOST = { 0, 0, 1 };
+  private static final byte[] OWNER = { 0, 0, 2 };
+  private static final byte[] DC = { 0, 0, 3 };
+
+  @Test
+  public void groupOneTag() throws Exception {
+    final GroupByIndex index = index(HOST);
+    assertEquals(0, index.groupOf(row(HOST, 1, OWNER, 4)));
+    assertEquals(1, index.groupOf(row(HOST, 2, OWNER, 4)));
+    assertEquals(0, index.groupOf(row(HOST, 1, OWNER, 5)));
+    assertEquals(2, index.groupOf(row(HOST, 0x80, OWNER, 4)));
+    assertEquals(1, index.groupOf(row(HOST, 2)));
+    assertEquals(3, index.size());
+    assertArrayEquals(new byte[] { 0, 0, 2 }, index.key(1));
+  }
+
+  @Test
+  public void groupTwoTags() throws Exception {
+    // Not sorted, as the index sorts them.
+    final GroupByIndex index = index(DC, HOST);
+    assertEquals(0, index.groupOf(row(HOST, 1, OWNER, 4, DC, 7)));
+    assertEquals(1, index.groupOf(row(HOST, 1, OWNER, 4, DC, 8)));
+    assertEquals(0, index.groupOf(row(HOST, 1, DC, 7)));
+    assertEquals(2, index.groupOf(row(HOST, 7, DC, 1)));
+    assertArrayEquals(new byte[] { 0, 0, 1, 0, 0, 8 }, index.key(1));
+  }
+
+  @Test
+  public void missingTag() throws Exception {
+    final GroupByIndex index = index(HOST, DC);
+    assertEquals(0, index.groupOf(row(HOST, 1, OWNER, 4, DC, 7)));
+    // Same length as the previous row key, with OWNER instead of DC.
+    assertEquals(-1, index.groupOf(row(HOST, 1, OWNER, 4, OWNER, 7)));
+    assertEquals(-1, index.groupOf(row(OWNER, 4, DC, 7)));
+    assertEquals(-1, index.groupOf(row(HOST, 1)));
+    assertEquals(0, index.groupOf(row(HOST, 1, OWNER, 4, DC, 7)));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void manyGroups() throws Exception {
+    final GroupByIndex index = index(HOST, OWNER);
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(i, index.groupOf(row(HOST, i % 100, OWNER, i / 100)));
+    }
+    for (int i = 9999; i >= 0; i--) {
+      assertEquals(i, index.groupOf(row(HOST, i % 100, OWNER, i / 100)));
+    }
+    assertEquals(10000, index.size());
+  }
+
+  @Test
+  public void sortedGroups() throws Exception {
+    final GroupByIndex index = index(HOST);
+    index.groupOf(row(HOST, 3));
+    index.groupOf(row(HOST, 0xFF));
+    index.groupOf(row(HOST, 1));
+    index.groupOf(row(HOST, 2));
+    assertEquals(Arrays.asList(2, 3, 0, 1),
+        Arrays.asList(index.sortedGroups()));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void noTags() throws Exception {
+    index();
+  }
+
+  private static GroupByIndex index(final byte[]... tag_ids) {
+    final List<byte[]> list = new ArrayList<byte[]>(Arrays.asList(tag_ids));
+    return new GroupByIndex(list, (short) 3, (short) 3, (short) 3);
+  }
+
+  /**
+   * Returns a row key for metric 1, with tag name IDs followed by integer
+   * tag value IDs.
+   */
+  private static byte[] row(final Object... tags) {
+    final byte[] row = new byte[3 + Const.TIMESTAMP_BYTES + tags.length / 2 * 6];
+    row[2] = 1;
+    int pos = 3 + Const.TIMESTAMP_BYTES;
+    for (int i = 0; i < tags.length; i += 2) {
+      System.arraycopy(tags[i], 0, row, pos, 3);
+      final int value = (Integer) tags[i + 1];
+      row[pos + 3] = (byte) (value >>> 16);
+      row[pos + 4] = (byte) (value >>> 8);
+      row[pos + 5] = (byte) value;
+      pos += 6;
+    }
+    return row;
+  }
+}
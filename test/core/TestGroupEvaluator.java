@@ -0,0 +1,92 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ SpanGroup.class })
+public final class TestGroupEvaluator {
+  private GroupEvaluator evaluator;
+
+  @Before
+  public void before() {
+    evaluator = new GroupEvaluator(2, 2);
+  }
+
+  @After
+  public void after() {
+    evaluator.shutdown();
+  }
+
+  @Test
+  public void evaluate() throws Exception {
+    final SpanGroup[] groups = new SpanGroup[5];
+    for (int i = 0; i < groups.length; i++) {
+      groups[i] = mock(SpanGroup.class);
+    }
+    assertSame(groups, evaluator.evaluate(groups).joinUninterruptibly());
+    for (final SpanGroup group : groups) {
+      verify(group, times(1)).materialize();
+    }
+  }
+
+  @Test
+  public void evaluateSingleGroup() throws Exception {
+    final SpanGroup[] groups = { mock(SpanGroup.class) };
+    assertSame(groups, evaluator.evaluate(groups).joinUninterruptibly());
+    // Left to be aggregated while serialized.
+    verify(groups[0], times(0)).materialize();
+  }
+
+  @Test
+  public void evaluateOtherDataPoints() throws Exception {
+    final DataPoints[] results = { mock(DataPoints.class),
+        mock(DataPoints.class) };
+    assertSame(results, evaluator.evaluate(results).joinUninterruptibly());
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void evaluateException() throws Exception {
+    final SpanGroup[] groups = { mock(SpanGroup.class),
+        mock(SpanGroup.class), mock(SpanGroup.class) };
+    doThrow(new IllegalStateException("Got NaN or Infinity"))
+      .when(groups[1]).materialize();
+    evaluator.evaluate(groups).joinUninterruptibly();
+  }
+
+  @Test
+  public void evaluateShutdown() throws Exception {
+    evaluator.shutdown();
+    final SpanGroup[] groups = { mock(SpanGroup.class),
+        mock(SpanGroup.class) };
+    // Aggregated by the caller.
+    assertSame(groups, evaluator.evaluate(groups).joinUninterruptibly());
+    verify(groups[1], times(1)).materialize();
+  }
+}
@@ -18,6 +18,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import net.opentsdb.core.Internal.Cell;
 import net.opentsdb.storage.MockBase;
@@ -793,6 +794,53 @@ public final class TestInternal {
     assertArrayEquals(new byte[] {
         (byte) 0xFD, (byte) 0xBB, (byte) 0x9F, (byte) 0xCB }, q);
   }
+
+  @Test
+  public void writeQualifierSecond() {
+    final byte[] buf = new byte[4];
+    assertEquals(2, Internal.writeQualifier(buf, 1, 1357001999, (short) 3));
+    assertArrayEquals(new byte[] { 0, (byte) 0xE0, (byte) 0xF3, 0 }, buf);
+  }
+
+  @Test
+  public void writeQualifierMilliSecond() {
+    final byte[] buf = new byte[6];
+    assertEquals(4, Internal.writeQualifier(buf, 2, 1356998400008L,
+        (short) ( 3 | Const.FLAG_FLOAT)));
+    assertArrayEquals(new byte[] { 0, 0, (byte) 0xF0, 0x00, 0x02, 0x0B }, buf);
+  }
+
+  @Test
+  public void writeQualifierMatchesBuild() {
+    final byte[] buf = new byte[4];
+    for (final long ts : new long[] { 1356998400, 1357001999, 1356998400000L,
+        1356998400999L, 1357001999999L }) {
+      final byte[] expected = Internal.buildQualifier(ts, (short) 7);
+      assertEquals(expected.length, Internal.writeQualifier(buf, 0, ts,
+          (short) 7));
+      assertArrayEquals(expected, Arrays.copyOf(buf, expected.length));
+    }
+  }
+
+  @Test
+  public void writeValue() {
+    final byte[] buf = new byte[15];
+    int off = Internal.writeValue(buf, 0, 42, (short) 0);
+    off += Internal.writeValue(buf, off, 257, (short) 1);
+    off += Internal.writeValue(buf, off, Float.floatToRawIntBits(4.2F),
+        (short) (3 | Const.FLAG_FLOAT));
+    off += Internal.writeValue(buf, off, Long.MAX_VALUE, (short) 7);
+    assertEquals(15, off);
+    assertArrayEquals(MockBase.concatByteArrays(new byte[] { 42 },
+        Bytes.fromShort((short) 257),
+        Bytes.fromInt(Float.floatToRawIntBits(4.2F)),
+        Bytes.fromLong(Long.MAX_VALUE)), buf);
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void writeValueBadLength() {
+    Internal.writeValue(new byte[8], 0, 42, (short) 2);
+  }
   
   @Test
   public void extractQualifierSeconds() {
@@ -0,0 +1,246 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  CompactionQueue.class, PutRequest.class, KeyValue.class})
+public final class TestLastPointIndex {
+  private static final byte[] TSUID_WEB01 = { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] TSUID_WEB02 = { 0, 0, 1, 0, 0, 1, 0, 0, 2 };
+
+  private Config config;
+  private TSDB tsdb;
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private UniqueId tag_names = mock(UniqueId.class);
+  private UniqueId tag_values = mock(UniqueId.class);
+  private LastPointIndex index;
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.whenNew(HBaseClient.class)
+      .withArguments(anyString(), anyString()).thenReturn(client);
+    config = new Config(false);
+    config.overrideConfig("tsd.query.last.max_series", "1000000");
+    tsdb = new TSDB(config);
+    new MockBase(tsdb, client, true, true, true, true);
+
+    Field met = tsdb.getClass().getDeclaredField("metrics");
+    met.setAccessible(true);
+    met.set(tsdb, metrics);
+
+    Field tagk = tsdb.getClass().getDeclaredField("tag_names");
+    tagk.setAccessible(true);
+    tagk.set(tsdb, tag_names);
+
+    Field tagv = tsdb.getClass().getDeclaredField("tag_values");
+    tagv.setAccessible(true);
+    tagv.set(tsdb, tag_values);
+
+    when(metrics.width()).thenReturn((short)3);
+    when(tag_names.width()).thenReturn((short)3);
+    when(tag_values.width()).thenReturn((short)3);
+
+    when(metrics.getId("sys.cpu.user")).thenReturn(new byte[] { 0, 0, 1 });
+    when(metrics.getId("sys.cpu.nice")).thenReturn(new byte[] { 0, 0, 2 });
+    when(metrics.getId("sys.cpu.idle")).thenThrow(
+        new NoSuchUniqueName("metric", "sys.cpu.idle"));
+    when(tag_names.getId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_names.getOrCreateId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getOrCreateId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getId("web02")).thenReturn(new byte[] { 0, 0, 2 });
+    when(tag_values.getOrCreateId("web02")).thenReturn(new byte[] { 0, 0, 2 });
+    when(tag_values.getId("web03")).thenReturn(new byte[] { 0, 0, 3 });
+
+    index = tsdb.getLastPointIndex();
+  }
+
+  @Test
+  public void disabledByDefault() throws Exception {
+    config.overrideConfig("tsd.query.last.max_series", "0");
+    assertNull(new TSDB(config).getLastPointIndex());
+  }
+
+  @Test
+  public void update() throws Exception {
+    index.update(row(TSUID_WEB01, 1356998400), 1356998410L, true, 42);
+    LastPointIndex.LastPoint point = index.get(TSUID_WEB01);
+    assertNotNull(point);
+    assertEquals(1356998410000L, point.timestamp());
+    assertTrue(point.isInteger());
+    assertEquals(42, point.longValue());
+    assertEquals("000001000001000001", point.getTSUID());
+    assertNull(index.get(TSUID_WEB02));
+
+    // Later points replace it, earlier ones don't.
+    index.update(row(TSUID_WEB01, 1356998400), 1356998420500L, false,
+        Double.doubleToRawLongBits(24.5));
+    index.update(row(TSUID_WEB01, 1356998400), 1356998415L, true, 1);
+    point = index.get(TSUID_WEB01);
+    assertEquals(1356998420500L, point.timestamp());
+    assertFalse(point.isInteger());
+    assertEquals(24.5, point.doubleValue(), 0.0001);
+  }
+
+  @Test
+  public void updateManySeries() throws Exception {
+    for (int i = 0; i < 10000; i++) {
+      index.update(row(tsuid(i), 1356998400), 1356998400L + i, true, i);
+    }
+    for (int i = 0; i < 10000; i++) {
+      final LastPointIndex.LastPoint point = index.get(tsuid(i));
+      assertEquals(i, point.longValue());
+      assertEquals((1356998400L + i) * 1000, point.timestamp());
+    }
+  }
+
+  @Test
+  public void updateMaxSeries() throws Exception {
+    // One series per shard.
+    index = new LastPointIndex(tsdb, 1);
+    for (int i = 0; i < 1000; i++) {
+      index.update(row(tsuid(i), 1356998400), 1356998400L, true, i);
+    }
+    int found = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (index.get(tsuid(i)) != null) {
+        found++;
+      }
+    }
+    assertTrue(found > 0);
+    assertTrue(found <= 16);
+  }
+
+  @Test
+  public void find() throws Exception {
+    index.update(row(TSUID_WEB01, 1356998400), 1356998400L, true, 1);
+    index.update(row(TSUID_WEB02, 1356998400), 1356998400L, true, 2);
+    index.update(row(new byte[] { 0, 0, 2, 0, 0, 1, 0, 0, 1 }, 1356998400),
+        1356998400L, true, 3);
+
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    assertEquals(2, index.find("sys.cpu.user", tags).size());
+    tags.put("host", "*");
+    assertEquals(2, index.find("sys.cpu.user", tags).size());
+    tags.put("host", "web02|web03");
+    final ArrayList<LastPointIndex.LastPoint> points =
+      index.find("sys.cpu.user", tags);
+    assertEquals(1, points.size());
+    assertEquals(2, points.get(0).longValue());
+    tags.put("host", "web03");
+    assertEquals(0, index.find("sys.cpu.user", tags).size());
+    tags.clear();
+    assertEquals(1, index.find("sys.cpu.nice", tags).size());
+  }
+
+  @Test
+  public void findManySeries() throws Exception {
+    // Interleave the series of two metrics, so that the shards grow while
+    // both are indexed.
+    for (int i = 0; i < 10000; i++) {
+      final byte[] tsuid = tsuid(i);
+      tsuid[2] = (byte) (i % 3 == 0 ? 2 : 1);
+      index.update(row(tsuid, 1356998400), 1356998400L, true, i);
+    }
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    final ArrayList<LastPointIndex.LastPoint> points =
+      index.find("sys.cpu.nice", tags);
+    assertEquals(3334, points.size());
+    for (final LastPointIndex.LastPoint point : points) {
+      assertEquals(0, point.longValue() % 3);
+    }
+    assertEquals(6666, index.find("sys.cpu.user", tags).size());
+  }
+
+  @Test (expected = NoSuchUniqueName.class)
+  public void findNoSuchMetric() throws Exception {
+    index.find("sys.cpu.idle", new HashMap<String, String>());
+  }
+
+  @Test
+  public void addPoint() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", 1356998410L, 42, tags).joinUninterruptibly();
+    tsdb.addPoint("sys.cpu.user", 1356998400L, 24, tags).joinUninterruptibly();
+    tags.put("host", "web02");
+    tsdb.addPoint("sys.cpu.user", 1356998400L, 1.5F, tags)
+      .joinUninterruptibly();
+    assertEquals(42, index.get(TSUID_WEB01).longValue());
+    assertEquals(1356998410000L, index.get(TSUID_WEB01).timestamp());
+    assertEquals(1.5, index.get(TSUID_WEB02).doubleValue(), 0.0001);
+  }
+
+  @Test
+  public void addBatchedPoint() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.getCachedBatches().addPoint("sys.cpu.user", 1356998410L, "42", tags);
+    tsdb.getCachedBatches().addPoint("sys.cpu.user", 1356998420L, "2.5",
+        tags);
+    assertEquals(2.5, index.get(TSUID_WEB01).doubleValue(), 0.0001);
+    assertEquals(1356998420000L, index.get(TSUID_WEB01).timestamp());
+  }
+
+  /** Returns the row key of a series in an hour. */
+  private static byte[] row(final byte[] tsuid, final int base_time) {
+    final byte[] row = new byte[tsuid.length + 4];
+    System.arraycopy(tsuid, 0, row, 0, 3);
+    row[3] = (byte) (base_time >>> 24);
+    row[4] = (byte) (base_time >>> 16);
+    row[5] = (byte) (base_time >>> 8);
+    row[6] = (byte) base_time;
+    System.arraycopy(tsuid, 3, row, 7, tsuid.length - 3);
+    return row;
+  }
+
+  /** Returns the TSUID of the i-th series of sys.cpu.user. */
+  private static byte[] tsuid(final int i) {
+    return new byte[] { 0, 0, 1, 0, 0, 1, (byte) (i >>> 16), (byte) (i >>> 8),
+      (byte) i };
+  }
+}
@@ -0,0 +1,165 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public final class TestQuantileSketch {
+
+  private static final Random random;
+  static {
+    final long seed = System.nanoTime();
+    System.out.println("Random seed: " + seed);
+    random = new Random(seed);
+  }
+
+  private static final double[] QUANTILES =
+    { 0, 0.1, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 1 };
+
+  @Test
+  public void empty() throws Exception {
+    final QuantileSketch sketch = new QuantileSketch();
+    assertEquals(0, sketch.count());
+    assertTrue(Double.isNaN(sketch.quantile(0.5)));
+    assertEquals(0, QuantileSketch.decode(sketch.encode(), 0).count());
+  }
+
+  @Test
+  public void singleValue() throws Exception {
+    final QuantileSketch sketch = new QuantileSketch();
+    sketch.add(42.5);
+    for (final double q : QUANTILES) {
+      assertEquals(42.5, sketch.quantile(q), 0);
+    }
+  }
+
+  @Test
+  public void knownValues() throws Exception {
+    final QuantileSketch sketch = new QuantileSketch();
+    for (int i = 1000; i > 0; i--) {
+      sketch.add(i);
+    }
+    assertEquals(1000, sketch.count());
+    assertEquals(1, sketch.quantile(0), 0);
+    assertEquals(500, sketch.quantile(0.5), 5);
+    assertEquals(950, sketch.quantile(0.95), 9.5);
+    assertEquals(990, sketch.quantile(0.99), 9.9);
+    assertEquals(1000, sketch.quantile(1), 0);
+  }
+
+  @Test
+  public void negativesAndZeros() throws Exception {
+    final QuantileSketch sketch = new QuantileSketch();
+    for (int i = -50; i <= 50; i++) {
+      sketch.add(i);
+    }
+    sketch.add(Double.NaN);
+    sketch.add(Double.POSITIVE_INFINITY);
+    assertEquals(101, sketch.count());
+    assertEquals(-50, sketch.quantile(0), 0);
+    assertEquals(-40, sketch.quantile(0.1), 0.4);
+    assertEquals(0, sketch.quantile(0.5), 0);
+    assertEquals(40, sketch.quantile(0.9), 0.4);
+  }
+
+  @Test
+  public void randomValues() throws Exception {
+    final double[] values = new double[10000];
+    final QuantileSketch sketch = new QuantileSketch();
+    for (int i = 0; i < values.length; i++) {
+      // Latencies spread over several orders of magnitude.
+      values[i] = Math.exp(random.nextGaussian() * 3);
+      sketch.add(values[i]);
+    }
+    Arrays.sort(values);
+    for (final double q : QUANTILES) {
+      final double expected =
+        values[Math.max(0, (int) Math.ceil(q * values.length) - 1)];
+      assertEquals(expected, sketch.quantile(q),
+                   expected * QuantileSketch.RELATIVE_ACCURACY);
+    }
+  }
+
+  @Test
+  public void merge() throws Exception {
+    final QuantileSketch all = new QuantileSketch();
+    final QuantileSketch low = new QuantileSketch();
+    final QuantileSketch high = new QuantileSketch();
+    for (int i = 0; i < 1000; i++) {
+      final double value = random.nextDouble() * 100 - 10;
+      all.add(value);
+      (value < 30 ? low : high).add(value);
+    }
+    high.merge(low);
+    high.merge(new QuantileSketch());
+    assertEquals(all.count(), high.count());
+    // The same counts in the same buckets.
+    assertArrayEquals(all.encode(), high.encode());
+  }
+
+  @Test
+  public void encode() throws Exception {
+    final QuantileSketch sketch = new QuantileSketch();
+    for (int i = 0; i < 1000; i++) {
+      sketch.add(random.nextGaussian() * 1000);
+    }
+    sketch.add(0);
+    final byte[] encoded = sketch.encode();
+    final byte[] prefixed = new byte[encoded.length + 3];
+    System.arraycopy(encoded, 0, prefixed, 3, encoded.length);
+    final QuantileSketch decoded = QuantileSketch.decode(prefixed, 3);
+    assertEquals(1001, decoded.count());
+    for (final double q : QUANTILES) {
+      assertEquals(sketch.quantile(q), decoded.quantile(q), 0);
+    }
+    assertArrayEquals(encoded, decoded.encode());
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeTruncated() throws Exception {
+    final QuantileSketch sketch = new QuantileSketch();
+    sketch.add(1);
+    sketch.add(10);
+    final byte[] encoded = sketch.encode();
+    QuantileSketch.decode(Arrays.copyOf(encoded, encoded.length - 1), 0);
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeExtraBytes() throws Exception {
+    final byte[] encoded = new QuantileSketch().encode();
+    QuantileSketch.decode(Arrays.copyOf(encoded, encoded.length + 1), 0);
+  }
+
+  @Test
+  public void maxBuckets() throws Exception {
+    final QuantileSketch sketch = new QuantileSketch();
+    // Far more buckets than kept: the smallest values get folded together.
+    for (int i = -300; i <= 300; i++) {
+      sketch.add(Math.pow(10, i / 2.0));
+      sketch.add(-Math.pow(10, i / 2.0));
+    }
+    assertEquals(1202, sketch.count());
+    // 319 values of each sign over 1e-9, the rest counted as zeros.
+    assertEquals(1e150, sketch.quantile(1), 1e138);
+    assertEquals(1e140, sketch.quantile(1181.5 / 1202), 1e138);
+    assertEquals(-1e140, sketch.quantile(20.5 / 1202), 1e138);
+    assertTrue(sketch.encode().length < 2 * 3 * QuantileSketch.MAX_BUCKETS);
+  }
+}
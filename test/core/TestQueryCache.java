@@ -0,0 +1,156 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import net.opentsdb.meta.Annotation;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+public final class TestQueryCache {
+  private static final byte[] METRIC = { 0, 0, 1 };
+  private static final byte[] OTHER_METRIC = { 0, 0, 2 };
+  private static final long BASE_TIME = 1356998400;
+  private static final short METRIC_WIDTH = 3;
+
+  @Test
+  public void isCacheable() throws Exception {
+    final QueryCache cache = new QueryCache(1024, 600);
+    assertTrue(cache.isCacheable(BASE_TIME, BASE_TIME + 4200));
+    assertFalse(cache.isCacheable(BASE_TIME, BASE_TIME + 4199));
+  }
+
+  @Test
+  public void getPut() throws Exception {
+    final QueryCache cache = new QueryCache(1 << 20, 3600);
+    final String prefix = QueryCache.prefix(METRIC, BASE_TIME);
+    final String key = QueryCache.key(prefix, "filter");
+    assertNull(cache.get(key));
+    final QueryCache.Hour hour = hour(METRIC, BASE_TIME);
+    cache.put(prefix, key, hour, cache.generation());
+    assertSame(hour, cache.get(key));
+    assertNull(cache.get(QueryCache.key(prefix, null)));
+    assertNull(cache.get(QueryCache.key(
+        QueryCache.prefix(METRIC, BASE_TIME + 3600), "filter")));
+  }
+
+  @Test
+  public void hour() throws Exception {
+    final QueryCache.Hour hour = hour(METRIC, BASE_TIME);
+    final ArrayList<Annotation> notes = new ArrayList<Annotation>(1);
+    notes.add(new Annotation());
+    hour.add(new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0,
+        2 }, null, notes);
+    assertEquals(2, hour.keys.size());
+    assertEquals(1, hour.nrows);
+    assertNotNull(hour.rows.get(0));
+    assertNull(hour.annotations.get(0));
+    assertNull(hour.rows.get(1));
+    assertSame(notes, hour.annotations.get(1));
+  }
+
+  @Test
+  public void putEvictsLeastRecentlyUsed() throws Exception {
+    final long size = hour(METRIC, BASE_TIME).bytes;
+    final QueryCache cache = new QueryCache(size * 2, 3600);
+    final String[] keys = new String[3];
+    for (int i = 0; i < keys.length; i++) {
+      final String prefix = QueryCache.prefix(METRIC, BASE_TIME + i * 3600);
+      keys[i] = QueryCache.key(prefix, null);
+      if (i == 2) {
+        assertNotNull(cache.get(keys[0]));
+      }
+      cache.put(prefix, keys[i], hour(METRIC, BASE_TIME + i * 3600),
+          cache.generation());
+    }
+    assertNotNull(cache.get(keys[0]));
+    assertNull(cache.get(keys[1]));
+    assertNotNull(cache.get(keys[2]));
+  }
+
+  @Test
+  public void putTooLarge() throws Exception {
+    final QueryCache.Hour hour = hour(METRIC, BASE_TIME);
+    final QueryCache cache = new QueryCache(hour.bytes - 1, 3600);
+    final String prefix = QueryCache.prefix(METRIC, BASE_TIME);
+    cache.put(prefix, prefix, hour, cache.generation());
+    assertNull(cache.get(prefix));
+  }
+
+  @Test
+  public void invalidate() throws Exception {
+    final QueryCache cache = new QueryCache(1 << 20, 3600);
+    final String prefix = QueryCache.prefix(METRIC, BASE_TIME);
+    final String other_prefix = QueryCache.prefix(OTHER_METRIC, BASE_TIME);
+    final String next_prefix = QueryCache.prefix(METRIC, BASE_TIME + 3600);
+    cache.put(prefix, QueryCache.key(prefix, null), hour(METRIC, BASE_TIME),
+        cache.generation());
+    cache.put(prefix, QueryCache.key(prefix, "filter"),
+        hour(METRIC, BASE_TIME), cache.generation());
+    cache.put(other_prefix, other_prefix, hour(OTHER_METRIC, BASE_TIME),
+        cache.generation());
+    cache.put(next_prefix, next_prefix, hour(METRIC, BASE_TIME + 3600),
+        cache.generation());
+
+    cache.invalidate(hour(METRIC, BASE_TIME).keys.get(0), METRIC_WIDTH);
+    assertNull(cache.get(QueryCache.key(prefix, null)));
+    assertNull(cache.get(QueryCache.key(prefix, "filter")));
+    assertNotNull(cache.get(other_prefix));
+    assertNotNull(cache.get(next_prefix));
+  }
+
+  @Test
+  public void invalidateRecentHour() throws Exception {
+    final QueryCache cache = new QueryCache(1 << 20, 3600);
+    final long now = System.currentTimeMillis() / 1000;
+    final long base_time = now - (now % 3600);
+    final long generation = cache.generation();
+    cache.invalidate(hour(METRIC, base_time).keys.get(0), METRIC_WIDTH);
+    // Not cacheable yet, so nothing to invalidate.
+    assertEquals(generation, cache.generation());
+  }
+
+  @Test
+  public void putAfterInvalidation() throws Exception {
+    final QueryCache cache = new QueryCache(1 << 20, 3600);
+    final String prefix = QueryCache.prefix(METRIC, BASE_TIME);
+    final long generation = cache.generation();
+    // Written to while the hour was being scanned.
+    cache.invalidate(hour(METRIC, BASE_TIME).keys.get(0), METRIC_WIDTH);
+    cache.put(prefix, prefix, hour(METRIC, BASE_TIME), generation);
+    assertNull(cache.get(prefix));
+  }
+
+  /** Returns the rows of an hour with a single row of one data point. */
+  private static QueryCache.Hour hour(final byte[] metric,
+                                      final long base_time) {
+    final byte[] key = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1 };
+    System.arraycopy(metric, 0, key, 0, metric.length);
+    Bytes.setInt(key, (int) base_time, metric.length);
+    final QueryCache.Hour hour =
+      new QueryCache.Hour(QueryCache.prefix(metric, base_time));
+    hour.add(key, new KeyValue(key, TSDB.FAMILY, new byte[] { 0, 0 },
+        new byte[] { 42 }), new ArrayList<Annotation>(0));
+    return hour;
+  }
+}
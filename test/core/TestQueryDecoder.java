@@ -0,0 +1,90 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestQueryDecoder {
+  private QueryDecoder decoder;
+
+  @Before
+  public void before() {
+    decoder = new QueryDecoder(1, 1);
+  }
+
+  @After
+  public void after() {
+    decoder.shutdown();
+  }
+
+  @Test
+  public void execute() throws Exception {
+    final AtomicReference<String> thread = new AtomicReference<String>();
+    final CountDownLatch done = new CountDownLatch(1);
+    decoder.execute(new Runnable() {
+      public void run() {
+        thread.set(Thread.currentThread().getName());
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals("QueryDecoder #1", thread.get());
+  }
+
+  @Test
+  public void executeBacklogFull() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    decoder.execute(new Runnable() {
+      public void run() {
+        blocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    decoder.execute(new Runnable() {  // Waits in the backlog.
+      public void run() {
+      }
+    });
+    final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+    decoder.execute(new Runnable() {
+      public void run() {
+        thread.set(Thread.currentThread());
+      }
+    });
+    release.countDown();
+    assertEquals(Thread.currentThread(), thread.get());
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void executeShutdown() throws Exception {
+    decoder.shutdown();
+    decoder.execute(new Runnable() {
+      public void run() {
+      }
+    });
+  }
+}
@@ -0,0 +1,270 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  CompactionQueue.class, GetRequest.class, PutRequest.class, KeyValue.class})
+public final class TestRollups {
+  /** Key of the rollup row of 2013-01-01 of sys.cpu.user host=web01. */
+  private static final byte[] ROLLUP_KEY =
+    { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 1 };
+
+  private Config config;
+  private TSDB tsdb;
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private UniqueId tag_names = mock(UniqueId.class);
+  private UniqueId tag_values = mock(UniqueId.class);
+  private MockBase storage;
+  private HashMap<String, String> tags = new HashMap<String, String>(1);
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.whenNew(HBaseClient.class)
+      .withArguments(anyString(), anyString()).thenReturn(client);
+    config = new Config(false);
+    config.overrideConfig("tsd.storage.rollups.enable", "true");
+    tsdb = new TSDB(config);
+    storage = new MockBase(tsdb, client, true, true, true, true);
+
+    Field met = tsdb.getClass().getDeclaredField("metrics");
+    met.setAccessible(true);
+    met.set(tsdb, metrics);
+
+    Field tagk = tsdb.getClass().getDeclaredField("tag_names");
+    tagk.setAccessible(true);
+    tagk.set(tsdb, tag_names);
+
+    Field tagv = tsdb.getClass().getDeclaredField("tag_values");
+    tagv.setAccessible(true);
+    tagv.set(tsdb, tag_values);
+
+    when(metrics.width()).thenReturn((short)3);
+    when(tag_names.width()).thenReturn((short)3);
+    when(tag_values.width()).thenReturn((short)3);
+    when(metrics.getId("sys.cpu.user")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_names.getOrCreateId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getOrCreateId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+    tags.put("host", "web01");
+  }
+
+  @Test
+  public void disabledByDefault() throws Exception {
+    assertNull(new TSDB(new Config(false)).getRollups());
+  }
+
+  @Test
+  public void canRollUp() throws Exception {
+    assertTrue(Rollups.canRollUp(Aggregators.SUM));
+    assertTrue(Rollups.canRollUp(Aggregators.ZIMSUM));
+    assertTrue(Rollups.canRollUp(Aggregators.MIN));
+    assertTrue(Rollups.canRollUp(Aggregators.MIMMAX));
+    assertTrue(Rollups.canRollUp(Aggregators.AVG));
+    assertTrue(Rollups.canRollUp(Aggregators.P95));
+    assertFalse(Rollups.canRollUp(Aggregators.DEV));
+  }
+
+  @Test
+  public void encodeIntegers() throws Exception {
+    final Rollups.Rollup rollup = new Rollups.Rollup();
+    rollup.add(4);
+    rollup.add(-2);
+    rollup.add(10);
+    final Rollups.Rollup decoded = Rollups.Rollup.decode(rollup.encode());
+    assertEquals(3, decoded.count);
+    assertTrue(decoded.integer);
+    assertEquals(12, decoded.long_sum);
+    assertEquals(-2, decoded.long_min);
+    assertEquals(10, decoded.long_max);
+    assertEquals(12, decoded.sum, 0.0001);
+  }
+
+  @Test
+  public void mergeFloats() throws Exception {
+    final Rollups.Rollup integers = new Rollups.Rollup();
+    integers.add(4);
+    final Rollups.Rollup floats = new Rollups.Rollup();
+    floats.add(1.5);
+    floats.add(-0.5);
+    integers.merge(floats);
+    integers.merge(new Rollups.Rollup());
+    final Rollups.Rollup decoded = Rollups.Rollup.decode(integers.encode());
+    assertEquals(3, decoded.count);
+    assertFalse(decoded.integer);
+    assertEquals(5, decoded.sum, 0.0001);
+    assertEquals(-0.5, decoded.min, 0.0001);
+    assertEquals(4, decoded.max, 0.0001);
+  }
+
+  @Test
+  public void encodeSketch() throws Exception {
+    final Rollups.Rollup rollup = new Rollups.Rollup();
+    for (int i = 1; i <= 100; i++) {
+      rollup.add(i);
+    }
+    final byte[] value = rollup.encode();
+    assertEquals(50, Rollups.Rollup.decode(value).sketch.quantile(0.5), 0.5);
+    // The sketch is only decoded when asked to.
+    final Rollups.Rollup decoded = Rollups.Rollup.decode(value, false);
+    assertEquals(100, decoded.count);
+    assertEquals(0, decoded.sketch.count());
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeInvalid() throws Exception {
+    Rollups.Rollup.decode(new byte[] { 0, 1 });
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeWithoutSketch() throws Exception {
+    Rollups.Rollup.decode(new byte[Rollups.Rollup.SIZE]);
+  }
+
+  @Test
+  public void toDataPoint() throws Exception {
+    final Rollups.Rollup rollup = new Rollups.Rollup();
+    rollup.add(4);
+    rollup.add(7);
+    final KeyValue kv = rollup.toDataPoint(ROLLUP_KEY, 1357005600L,
+        Aggregators.AVG, (short) 3);
+    // The data point is in the row of its hour.
+    assertEquals(1357005600L, Bytes.getUnsignedInt(kv.key(), 3));
+    assertArrayEquals(new byte[] { 0, 7 }, kv.qualifier());
+    assertEquals(5, Bytes.getLong(kv.value()));
+    assertEquals(11, Bytes.getLong(rollup.toDataPoint(ROLLUP_KEY, 1357005600L,
+        Aggregators.SUM, (short) 3).value()));
+    assertEquals(4, Bytes.getLong(rollup.toDataPoint(ROLLUP_KEY, 1357005600L,
+        Aggregators.MIN, (short) 3).value()));
+    assertEquals(7, Bytes.getLong(rollup.toDataPoint(ROLLUP_KEY, 1357005600L,
+        Aggregators.P99, (short) 3).value()));
+    rollup.add(0.5);
+    assertEquals(4, Double.longBitsToDouble(Bytes.getLong(rollup.toDataPoint(
+        ROLLUP_KEY, 1357005600L, Aggregators.P50, (short) 3).value())), 0.04);
+  }
+
+  @Test
+  public void compactionWritesRollups() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      // Four data points an hour.
+      tsdb.addPoint("sys.cpu.user", 1356998400L + i * 3600 / 4, i, tags)
+        .joinUninterruptibly();
+    }
+    tsdb.addPoint("sys.cpu.user", 1357005660L, 2.5F, tags)
+      .joinUninterruptibly();
+    compact();
+
+    final Rollups.Rollup first = Rollups.Rollup.decode(storage.getColumn(
+        ROLLUP_KEY, Rollups.FAMILY, new byte[] { 'h', 0 }));
+    assertEquals(4, first.count);
+    assertEquals(6, first.long_sum);
+    assertEquals(0, first.long_min);
+    assertEquals(3, first.long_max);
+    assertNotNull(storage.getColumn(ROLLUP_KEY, Rollups.FAMILY,
+        new byte[] { 'h', 1 }));
+    final Rollups.Rollup third = Rollups.Rollup.decode(storage.getColumn(
+        ROLLUP_KEY, Rollups.FAMILY, new byte[] { 'h', 2 }));
+    assertEquals(3, third.count);
+    assertFalse(third.integer);
+    assertEquals(2.5 + 8 + 9, third.sum, 0.0001);
+
+    final Rollups.Rollup day = Rollups.Rollup.decode(storage.getColumn(
+        ROLLUP_KEY, Rollups.FAMILY, Rollups.DAY_QUALIFIER));
+    assertEquals(11, day.count);
+    assertFalse(day.integer);
+    assertEquals(45 + 2.5, day.sum, 0.0001);
+    assertEquals(0, day.min, 0.0001);
+    assertEquals(9, day.max, 0.0001);
+    assertEquals(11, day.sketch.count());
+    assertEquals(4, day.sketch.quantile(0.5), 0.04);
+  }
+
+  @Test
+  public void recompactionUpdatesRollups() throws Exception {
+    tsdb.addPoint("sys.cpu.user", 1356998400L, 1, tags).joinUninterruptibly();
+    tsdb.addPoint("sys.cpu.user", 1356998460L, 2, tags).joinUninterruptibly();
+    compact();
+    // A late data point gets its row compacted again.
+    tsdb.addPoint("sys.cpu.user", 1356998430L, 3, tags).joinUninterruptibly();
+    compact();
+
+    final Rollups.Rollup hour = Rollups.Rollup.decode(storage.getColumn(
+        ROLLUP_KEY, Rollups.FAMILY, new byte[] { 'h', 0 }));
+    assertEquals(3, hour.count);
+    assertEquals(6, hour.long_sum);
+    final Rollups.Rollup day = Rollups.Rollup.decode(storage.getColumn(
+        ROLLUP_KEY, Rollups.FAMILY, Rollups.DAY_QUALIFIER));
+    assertEquals(3, day.count);
+    assertEquals(6, day.long_sum);
+  }
+
+  @Test
+  public void batchesRolledUp() throws Exception {
+    final WritableDataPoints batch = tsdb.newBatch("sys.cpu.user", tags);
+    batch.addPoint(1356998400L, 5).joinUninterruptibly();
+    batch.addPoint(1356998410L, 7).joinUninterruptibly();
+    batch.persist().joinUninterruptibly();
+    compact();
+
+    final Rollups.Rollup hour = Rollups.Rollup.decode(storage.getColumn(
+        ROLLUP_KEY, Rollups.FAMILY, new byte[] { 'h', 0 }));
+    assertEquals(2, hour.count);
+    assertEquals(12, hour.long_sum);
+  }
+
+  /**
+   * Flushes the compaction queue until it's empty, as every flush leaves a
+   * random third of the rows out.
+   */
+  private void compact() throws Exception {
+    final CompactionQueue compactionq =
+      Whitebox.getInternalState(tsdb, "compactionq");
+    while (compactionq.size() > 0) {
+      tsdb.flush().joinUninterruptibly();
+    }
+  }
+}
@@ -14,6 +14,7 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import net.opentsdb.storage.MockBase;
@@ -301,6 +302,112 @@ public final class TestSpan {
     
   }
 
+  @Test
+  public void decode() throws Exception {
+    final Span span = mixedSpan();
+    span.decode();
+    assertTrue(span.isDecoded());
+    assertEquals(6, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(1357005602000L, span.timestamp(5));
+    assertTrue(span.isInteger(0));
+    assertEquals(4, span.longValue(0));
+    assertFalse(span.isInteger(1));
+    assertEquals(5.5, span.doubleValue(1), 0.0001);
+    
+    final SeekableView it = span.iterator();
+    final Span raw = mixedSpan();
+    final SeekableView expected = raw.iterator();
+    while (expected.hasNext()) {
+      assertTrue(it.hasNext());
+      final DataPoint dp = it.next();
+      final DataPoint exp = expected.next();
+      assertEquals(exp.timestamp(), dp.timestamp());
+      assertEquals(exp.isInteger(), dp.isInteger());
+      assertEquals(exp.toDouble(), dp.toDouble(), 0.0001);
+    }
+    assertFalse(it.hasNext());
+  }
+  
+  @Test (expected = ClassCastException.class)
+  public void decodeLongValueOfFloat() throws Exception {
+    final Span span = mixedSpan();
+    span.decode();
+    span.longValue(1);
+  }
+  
+  @Test
+  public void decodeSeek() throws Exception {
+    final Span span = mixedSpan();
+    span.decode();
+    final SeekableView it = span.iterator();
+    it.seek(1357002001000L);
+    assertEquals(1357002002000L, it.next().timestamp());
+    it.seek(1357002000000L);
+    assertEquals(1357002000000L, it.next().timestamp());
+    it.seek(1357005603000L);
+    assertFalse(it.hasNext());
+  }
+  
+  @Test
+  public void decodeDownsample() throws Exception {
+    final Span raw = mixedSpan();
+    final Span span = mixedSpan();
+    span.decode();
+    for (final long interval : new long[] { 1000, 5000, 3600000, 7200000 }) {
+      for (final Aggregator agg : new Aggregator[] { Aggregators.AVG,
+          Aggregators.SUM, Aggregators.MAX }) {
+        final SeekableView expected = raw.downsampler(interval, agg);
+        final SeekableView it = span.downsampler(interval, agg);
+        while (expected.hasNext()) {
+          assertTrue(it.hasNext());
+          final DataPoint dp = it.next();
+          final DataPoint exp = expected.next();
+          assertEquals(exp.timestamp(), dp.timestamp());
+          assertEquals(exp.isInteger(), dp.isInteger());
+          assertEquals(exp.toDouble(), dp.toDouble(), 0.0001);
+        }
+        assertFalse(it.hasNext());
+      }
+    }
+  }
+  
+  @Test
+  public void decodeThenAddRow() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual1, 
+        MockBase.concatByteArrays(val1, ZERO)));
+    span.decode();
+    assertEquals(1, span.size());
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual1, 
+        MockBase.concatByteArrays(val1, ZERO)));
+    assertFalse(span.isDecoded());
+    assertEquals(2, span.size());
+    assertEquals(1357002000000L, span.timestamp(1));
+  }
+  
+  /**
+   * Returns a span of 3 rows, each with an integer and a float value.
+   */
+  private Span mixedSpan() {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x2B };
+    final byte[] val2 = Bytes.fromInt(Float.floatToRawIntBits(5.5f));
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.addRow(new KeyValue(HOUR3, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    return span;
+  }
+
   @Test
   public void lastTimestampInRow() throws Exception {
     final byte[] qual1 = { 0x00, 0x07 };
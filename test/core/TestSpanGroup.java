@@ -0,0 +1,189 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+/**
+ * The expected data points are the ones the group produced when it looked
+ * for the next data point by going through every span.
+ */
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+             "ch.qos.*", "org.slf4j.*",
+             "com.sum.*", "org.xml.*"})
+@PrepareForTest({ RowSeq.class, TSDB.class, UniqueId.class, KeyValue.class,
+  Config.class, RowKey.class })
+public final class TestSpanGroup {
+  private TSDB tsdb = mock(TSDB.class);
+  private Config config = mock(Config.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private static final byte[] TABLE = { 't', 'a', 'b', 'l', 'e' };
+  private static final byte[] FAMILY = { 't' };
+  private static final long BASE_TIME = 1356998400L;
+
+  @Before
+  public void before() throws Exception {
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "table", TABLE);
+    Whitebox.setInternalState(tsdb, "config", config);
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.metrics.width()).thenReturn((short)3);
+  }
+
+  @Test
+  public void tiedTimestamps() throws Exception {
+    final ArrayList<Span> spans = new ArrayList<Span>();
+    for (int i = 0; i < 100; i++) {
+      spans.add(span(i, new long[] { 0, 10, 20, 30 },
+                     new Number[] { i, i + 1, i + 2, i + 3 }));
+    }
+    assertDataPoints(group(spans, false, Aggregators.SUM),
+        "0 4950", "10 5050", "20 5150", "30 5250");
+    assertDataPoints(group(spans, false, Aggregators.MAX),
+        "0 99", "10 100", "20 101", "30 102");
+  }
+
+  @Test
+  public void differentEnds() throws Exception {
+    final ArrayList<Span> spans = new ArrayList<Span>();
+    spans.add(span(0, new long[] { 0, 10, 20, 30, 40, 50 },
+                   new Number[] { 0, 10, 20, 30, 40, 50 }));
+    spans.add(span(1, new long[] { 5, 15 }, new Number[] { 100, 200 }));
+    spans.add(span(2, new long[] { 10, 30 }, new Number[] { 1000, 3000 }));
+    spans.add(span(3, new long[] { 40 }, new Number[] { 7 }));
+    assertDataPoints(group(spans, false, Aggregators.SUM),
+        "0 0", "5 105", "10 1160", "15 1715", "20 2020", "30 3030",
+        "40 47", "50 50");
+  }
+
+  @Test
+  public void mixedIntegersAndFloats() throws Exception {
+    final ArrayList<Span> spans = new ArrayList<Span>();
+    spans.add(span(0, new long[] { 0, 10, 20, 30, 40 },
+                   new Number[] { 1, 2, 3, 4, 5 }));
+    spans.add(span(1, new long[] { 5, 15 }, new Number[] { 0.5f, 1.5f }));
+    spans.add(span(2, new long[] { 10, 25 }, new Number[] { 2.25f, 4.5f }));
+    // Floats as long as a span of floats has data points left, integers again
+    // once the last one ended.
+    assertDataPoints(group(spans, false, Aggregators.SUM),
+        "0 1.0", "5 2.0", "10 5.25", "15 7.0", "20 6.75", "25 8.0", "30 4",
+        "40 5");
+  }
+
+  @Test
+  public void rate() throws Exception {
+    final ArrayList<Span> spans = new ArrayList<Span>();
+    spans.add(span(0, new long[] { 0, 10, 20, 30 },
+                   new Number[] { 0, 10, 30, 60 }));
+    spans.add(span(1, new long[] { 5, 15, 25 },
+                   new Number[] { 100, 120, 100 }));
+    assertDataPoints(group(spans, true, Aggregators.SUM),
+        "10 1.0000000736920542", "15 3.0", "20 4.0", "25 0.0", "30 3.0");
+  }
+
+  @Test
+  public void interpolations() throws Exception {
+    final ArrayList<Span> spans = new ArrayList<Span>();
+    spans.add(span(0, new long[] { 0, 20, 40 }, new Number[] { 10, 30, 50 }));
+    spans.add(span(1, new long[] { 10, 30, 50 },
+                   new Number[] { 100, 300, 500 }));
+    // LERP
+    assertDataPoints(group(spans, false, Aggregators.SUM),
+        "0 10", "10 120", "20 230", "30 340", "40 450", "50 500");
+    // ZIM
+    assertDataPoints(group(spans, false, Aggregators.ZIMSUM),
+        "0 10", "10 100", "20 30", "30 300", "40 50", "50 500");
+    // MAX
+    assertDataPoints(group(spans, false, Aggregators.MIMMIN),
+        "0 10", "10 100", "20 30", "30 300", "40 50", "50 500");
+    // MIN
+    assertDataPoints(group(spans, false, Aggregators.MIMMAX),
+        "0 10", "10 100", "20 30", "30 300", "40 50", "50 500");
+  }
+
+  private SpanGroup group(final ArrayList<Span> spans, final boolean rate,
+                          final Aggregator aggregator) {
+    return new SpanGroup(tsdb, BASE_TIME, BASE_TIME + 3600, spans, rate,
+                         aggregator, 0, null);
+  }
+
+  /**
+   * Checks the data points of a group, written as the offset of their
+   * timestamp from {@link #BASE_TIME} in seconds, then their value.
+   */
+  private static void assertDataPoints(final SpanGroup group,
+                                       final String... expected) {
+    final ArrayList<String> actual = new ArrayList<String>();
+    final SeekableView it = group.iterator();
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      actual.add((dp.timestamp() / 1000 - BASE_TIME) + " "
+          + (dp.isInteger() ? Long.toString(dp.longValue())
+             : Double.toString(dp.doubleValue())));
+    }
+    assertEquals(Arrays.asList(expected), actual);
+  }
+
+  /**
+   * Returns a span of one row, with integers stored on 8 bytes and floats on
+   * 4 bytes.
+   * @param host The tag value UID of the series
+   * @param offsets The offsets of the data points from {@link #BASE_TIME}, in
+   * seconds
+   */
+  private Span span(final int host, final long[] offsets,
+                    final Number[] values) {
+    final byte[] key = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, (byte) (host >> 8),
+      (byte) host };
+    Bytes.setInt(key, (int) BASE_TIME, 3);
+    final byte[][] qualifiers = new byte[offsets.length][];
+    final byte[][] cells = new byte[offsets.length + 1][];
+    for (int i = 0; i < offsets.length; i++) {
+      final boolean integer = !(values[i] instanceof Float);
+      final short flags = integer ? (short) 0x7 : (short) (Const.FLAG_FLOAT | 0x3);
+      qualifiers[i] = Bytes.fromShort(
+          (short) (offsets[i] << Const.FLAG_BITS | flags));
+      cells[i] = integer ? Bytes.fromLong(values[i].longValue())
+        : Bytes.fromInt(Float.floatToRawIntBits(values[i].floatValue()));
+    }
+    // Compacted rows of several data points end with a meta data byte.
+    cells[offsets.length] = offsets.length > 1 ? new byte[] { 0 }
+      : new byte[0];
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(key, FAMILY,
+        MockBase.concatByteArrays(qualifiers),
+        MockBase.concatByteArrays(cells)));
+    assertEquals(offsets.length, span.size());
+    return span;
+  }
+}
@@ -12,10 +12,12 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
@@ -50,7 +52,9 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 /**
@@ -285,6 +289,31 @@ public final class TestTsdbQuery {
     query.setTimeSeries(tsuids, Aggregators.SUM, false);
   }
   
+  @Test
+  public void runScanError() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    failScanners();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    assertScanFails();
+  }
+
+  @Test
+  public void runScanErrorPrefetch() throws Exception {
+    config.overrideConfig("tsd.query.scan.prefetch", "true");
+    storeLongTimeSeriesSeconds(false, false);
+    failScanners();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    assertScanFails();
+  }
+
   @Test
   public void runLongSingleTS() throws Exception {
     storeLongTimeSeriesSeconds(true, false);;
@@ -424,6 +453,637 @@ public final class TestTsdbQuery {
     assertEquals(300, dps[1].size());
   }
   
+  @Test
+  public void runLongTwoGroupParallelScan() throws Exception {
+    config.overrideConfig("tsd.query.scan.parallelism", "4");
+    storeLongTimeSeriesSeconds(true, false);;
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "*");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertNotNull(dps);
+    assertEquals(2, dps.length);
+    assertEquals("web01", dps[0].getTags().get("host"));
+    assertEquals("web02", dps[1].getTags().get("host"));
+    
+    int value = 1;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, dps[0].size());
+    
+    value = 300;
+    for (DataPoint dp : dps[1]) {
+      assertEquals(value, dp.longValue());
+      value--;
+    }
+    assertEquals(300, dps[1].size());
+  }
+  
+  @Test
+  public void runParallelScanNoData() throws Exception {
+    config.overrideConfig("tsd.query.scan.parallelism", "4");
+    setQueryStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertNotNull(dps);
+    assertEquals(0, dps.length);
+  }
+  
+  @Test
+  public void runLongTwoGroupPrefetch() throws Exception {
+    config.overrideConfig("tsd.query.scan.prefetch", "true");
+    config.overrideConfig("tsd.query.scan.parallelism", "4");
+    storeLongTimeSeriesSeconds(true, false);;
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "*");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertNotNull(dps);
+    assertEquals(2, dps.length);
+    assertEquals("web01", dps[0].getTags().get("host"));
+    assertEquals("web02", dps[1].getTags().get("host"));
+    
+    int value = 1;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, dps[0].size());
+    
+    value = 300;
+    for (DataPoint dp : dps[1]) {
+      assertEquals(value, dp.longValue());
+      value--;
+    }
+    assertEquals(300, dps[1].size());
+  }
+  
+  @Test
+  public void runPrefetchNoData() throws Exception {
+    config.overrideConfig("tsd.query.scan.prefetch", "true");
+    setQueryStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertNotNull(dps);
+    assertEquals(0, dps.length);
+  }
+  
+  @Test
+  public void runLongTwoGroupQueryDecoder() throws Exception {
+    config.overrideConfig("tsd.query.scan.prefetch", "true");
+    config.overrideConfig("tsd.query.scan.parallelism", "4");
+    final QueryDecoder decoder = new QueryDecoder(1, 4);
+    Field query_decoder = tsdb.getClass().getDeclaredField("query_decoder");
+    query_decoder.setAccessible(true);
+    query_decoder.set(tsdb, decoder);
+    storeLongTimeSeriesSeconds(true, false);;
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "*");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    decoder.shutdown();
+    assertNotNull(dps);
+    assertEquals(2, dps.length);
+    assertEquals("web01", dps[0].getTags().get("host"));
+    assertEquals("web02", dps[1].getTags().get("host"));
+    
+    int value = 1;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, dps[0].size());
+    
+    value = 300;
+    for (DataPoint dp : dps[1]) {
+      assertEquals(value, dp.longValue());
+      value--;
+    }
+    assertEquals(300, dps[1].size());
+  }
+  
+  @Test
+  public void runLongTwoGroupGroupEvaluator() throws Exception {
+    final GroupEvaluator evaluator = new GroupEvaluator(2, 2);
+    Field group_evaluator = tsdb.getClass().getDeclaredField("group_evaluator");
+    group_evaluator.setAccessible(true);
+    group_evaluator.set(tsdb, evaluator);
+    storeLongTimeSeriesSeconds(true, false);;
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "*");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    evaluator.shutdown();
+    assertNotNull(dps);
+    assertEquals(2, dps.length);
+    assertTrue(((SpanGroup) dps[0]).isMaterialized());
+    assertTrue(((SpanGroup) dps[1]).isMaterialized());
+    assertEquals("web01", dps[0].getTags().get("host"));
+    assertEquals("web02", dps[1].getTags().get("host"));
+    
+    int value = 1;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, dps[0].size());
+    assertEquals(1356998430000L, dps[0].timestamp(0));
+    assertEquals(300, dps[0].longValue(299));
+    
+    value = 300;
+    for (DataPoint dp : dps[1]) {
+      assertEquals(value, dp.longValue());
+      value--;
+    }
+    assertEquals(300, dps[1].size());
+  }
+  
+  @Test
+  public void runQueryCache() throws Exception {
+    final QueryCache cache = new QueryCache(1 << 20, 3600);
+    Field query_cache = tsdb.getClass().getDeclaredField("query_cache");
+    query_cache.setAccessible(true);
+    query_cache.set(tsdb, cache);
+    storeLongTimeSeriesSeconds(true, false);;
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "*");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    DataPoints[] dps = query.run();
+    assertEquals(2, dps.length);
+    assertEquals(300, dps[0].size());
+
+    // Written behind the back of the TSDB, so the cached hour is used.
+    final byte[] key = { 0, 0, 1, 0x50, (byte) 0xE2, 0x43, 0x20, 0, 0, 1, 0,
+        0, 1 };
+    storage.addColumn(key, new byte[] { (byte) 0xDA, (byte) 0xC0 },
+        new byte[] { 42 });
+    tags.put("host", "*");
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.MAX, false);
+    dps = query.run();
+    assertEquals(2, dps.length);
+    assertEquals("web01", dps[0].getTags().get("host"));
+    assertEquals("web02", dps[1].getTags().get("host"));
+    int value = 1;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, dps[0].size());
+    assertEquals(300, dps[1].size());
+
+    // Writing to the hour drops it from the cache.
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", 1357009150L, 43, tags).joinUninterruptibly();
+    tags.put("host", "*");
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    dps = query.run();
+    assertEquals(2, dps.length);
+    assertEquals(302, dps[0].size());
+    assertEquals(42, dps[0].longValue(300));
+    assertEquals(43, dps[0].longValue(301));
+    assertEquals(300, dps[1].size());
+  }
+
+  @Test
+  public void runQueryCacheParallelScan() throws Exception {
+    config.overrideConfig("tsd.query.scan.parallelism", "4");
+    final QueryCache cache = new QueryCache(1 << 20, 3600);
+    Field query_cache = tsdb.getClass().getDeclaredField("query_cache");
+    query_cache.setAccessible(true);
+    query_cache.set(tsdb, cache);
+    storeLongTimeSeriesSeconds(true, false);;
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web02");
+    // Caches the first hours only.
+    query.setStartTime(1356998400);
+    query.setEndTime(1357002000);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals("web02", dps[0].getTags().get("host"));
+    int value = 300;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value--;
+    }
+    assertEquals(300, dps[0].size());
+  }
+
+  @Test
+  public void runQueryCacheWriteInFlight() throws Exception {
+    Field query_cache = tsdb.getClass().getDeclaredField("query_cache");
+    query_cache.setAccessible(true);
+    query_cache.set(tsdb, new QueryCache(1 << 20, 3600));
+    storeLongTimeSeriesSeconds(true, false);
+    final Deferred<Object> ack = holdNextPut();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    final Deferred<Object> write =
+      tsdb.addPoint("sys.cpu.user", 1357009150L, 43, tags);
+
+    // Scanned before the write lands, so the hour is cached without it.
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(300, dps[0].size());
+
+    ack.callback(null);
+    write.joinUninterruptibly();
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(301, dps[0].size());
+    assertEquals(43, dps[0].longValue(300));
+  }
+
+  @Test
+  public void runBlockCache() throws Exception {
+    final BlockCache cache = new BlockCache(1 << 20, 3600);
+    Field block_cache = tsdb.getClass().getDeclaredField("block_cache");
+    block_cache.setAccessible(true);
+    block_cache.set(tsdb, cache);
+    storeLongTimeSeriesSeconds(true, false);;
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(300, dps[0].size());
+
+    // Written behind the back of the TSDB, so the cached block is used even
+    // though that series wasn't queried yet.
+    final byte[] key = { 0, 0, 1, 0x50, (byte) 0xE2, 0x43, 0x20, 0, 0, 1, 0,
+        0, 2 };
+    storage.addColumn(key, new byte[] { (byte) 0xDA, (byte) 0xC0 },
+        new byte[] { 42 });
+    tags.put("host", "web02");
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals("web02", dps[0].getTags().get("host"));
+    int value = 300;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value--;
+    }
+    assertEquals(300, dps[0].size());
+
+    // Writing to the row drops it from the cache.
+    tsdb.addPoint("sys.cpu.user", 1357009150L, 43, tags).joinUninterruptibly();
+    tags.put("host", "*");
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    dps = query.run();
+    assertEquals(2, dps.length);
+    assertEquals(300, dps[0].size());
+    assertEquals(302, dps[1].size());
+    assertEquals(42, dps[1].longValue(300));
+    assertEquals(43, dps[1].longValue(301));
+  }
+
+  @Test
+  public void runBlockCacheWriteInFlight() throws Exception {
+    Field block_cache = tsdb.getClass().getDeclaredField("block_cache");
+    block_cache.setAccessible(true);
+    block_cache.set(tsdb, new BlockCache(1 << 20, 3600));
+    storeLongTimeSeriesSeconds(true, false);
+    final Deferred<Object> ack = holdNextPut();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web02");
+    final Deferred<Object> write =
+      tsdb.addPoint("sys.cpu.user", 1357009150L, 43, tags);
+
+    // Another series read before the write lands, so the block is cached
+    // whole without it.
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(300, dps[0].size());
+
+    ack.callback(null);
+    write.joinUninterruptibly();
+    tags.put("host", "web02");
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(301, dps[0].size());
+    assertEquals(43, dps[0].longValue(300));
+  }
+
+  @Test
+  public void runBlockCacheWithQueryCache() throws Exception {
+    config.overrideConfig("tsd.query.scan.parallelism", "4");
+    Field query_cache = tsdb.getClass().getDeclaredField("query_cache");
+    query_cache.setAccessible(true);
+    query_cache.set(tsdb, new QueryCache(1 << 20, 3600));
+    Field block_cache = tsdb.getClass().getDeclaredField("block_cache");
+    block_cache.setAccessible(true);
+    block_cache.set(tsdb, new BlockCache(1 << 20, 3600));
+    storeLongTimeSeriesSeconds(true, false);;
+    for (int i = 0; i < 2; i++) {
+      HashMap<String, String> tags = new HashMap<String, String>(1);
+      tags.put("host", "*");
+      query = new TsdbQuery(tsdb);
+      query.setStartTime(1356998400);
+      query.setEndTime(1357041600);
+      query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+      final DataPoints[] dps = query.run();
+      assertEquals(2, dps.length);
+      assertEquals("web01", dps[0].getTags().get("host"));
+      assertEquals("web02", dps[1].getTags().get("host"));
+      int value = 1;
+      for (DataPoint dp : dps[0]) {
+        assertEquals(value, dp.longValue());
+        value++;
+      }
+      assertEquals(300, dps[0].size());
+      assertEquals(300, dps[1].size());
+    }
+  }
+
+  @Test
+  public void runUnflushedBatches() throws Exception {
+    config.overrideConfig("tsd.storage.batch.reorder_window", "600");
+    storeLongTimeSeriesSeconds(true, false);
+    final int nrows = storage.numRows();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    final CachedBatches batches = tsdb.getCachedBatches();
+    // Both hours stay open, one of them in the middle of a stored row.
+    batches.addPoint("sys.cpu.user", 1357005615L, "1000", tags);
+    batches.addPoint("sys.cpu.user", 1357009200L, "2000", tags);
+    batches.addPoint("sys.cpu.nice", 1357009200L, "3000", tags);
+    assertEquals(nrows, storage.numRows());
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(302, dps[0].size());
+    assertEquals(240, dps[0].longValue(239));
+    assertEquals(1000, dps[0].longValue(240));
+    assertEquals(1357005615000L, dps[0].timestamp(240));
+    assertEquals(241, dps[0].longValue(241));
+    assertEquals(2000, dps[0].longValue(301));
+    assertEquals(1357009200000L, dps[0].timestamp(301));
+  }
+
+  @Test
+  public void runRollups() throws Exception {
+    storeRolledUpTimeSeries();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.downsample(3600000, Aggregators.SUM);
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(3, dps[0].size());
+    // One data point per hour, at the start of the hour.
+    assertEquals(1356998400000L, dps[0].timestamp(0));
+    assertEquals(7140, dps[0].longValue(0));
+    assertEquals(1357002000000L, dps[0].timestamp(1));
+    assertEquals(21540, dps[0].longValue(1));
+    assertEquals(1357005600000L, dps[0].timestamp(2));
+    assertEquals(16470, dps[0].longValue(2));
+  }
+
+  @Test
+  public void runRollupsDaily() throws Exception {
+    storeRolledUpTimeSeries();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.downsample(86400000, Aggregators.AVG);
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(1, dps[0].size());
+    assertEquals(1356998400000L, dps[0].timestamp(0));
+    assertEquals(150, dps[0].longValue(0));
+  }
+
+  @Test
+  public void runRollupsAndScan() throws Exception {
+    storeRolledUpTimeSeries();
+    // Only the first two hours ended long enough ago to read their rollups.
+    config.overrideConfig("tsd.query.rollups.min_age", Long.toString(
+        System.currentTimeMillis() / 1000 - 1357006200));
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.downsample(3600000, Aggregators.SUM);
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(3, dps[0].size());
+    assertEquals(1356998400000L, dps[0].timestamp(0));
+    assertEquals(7140, dps[0].longValue(0));
+    assertEquals(1357002000000L, dps[0].timestamp(1));
+    assertEquals(21540, dps[0].longValue(1));
+    // The data points of the last hour are downsampled as usual.
+    assertEquals(1357006500000L, dps[0].timestamp(2));
+    assertEquals(16470, dps[0].longValue(2));
+  }
+
+  @Test
+  public void runRollupsBeforeStart() throws Exception {
+    storeRolledUpTimeSeries();
+    // The first hour was written before rollups, its data points are read
+    // and rolled up alike.
+    config.overrideConfig("tsd.query.rollups.start", "1357000000");
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.downsample(3600000, Aggregators.SUM);
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(3, dps[0].size());
+    assertEquals(1356998400000L, dps[0].timestamp(0));
+    assertEquals(7140, dps[0].longValue(0));
+    assertEquals(1357002000000L, dps[0].timestamp(1));
+    assertEquals(21540, dps[0].longValue(1));
+    assertEquals(1357005600000L, dps[0].timestamp(2));
+    assertEquals(16470, dps[0].longValue(2));
+  }
+
+  @Test
+  public void runRollupsNotStarted() throws Exception {
+    storeRolledUpTimeSeries();
+    config.overrideConfig("tsd.query.rollups.start", "0");
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.downsample(3600000, Aggregators.SUM);
+    final DataPoints[] dps = query.run();
+    // Downsampled from the data points, the intervals start at the first one.
+    assertEquals(3, dps[0].size());
+    assertEquals(1357000215000L, dps[0].timestamp(0));
+    assertEquals(7260, dps[0].longValue(0));
+  }
+
+  @Test
+  public void runRollupsScanError() throws Exception {
+    storeRolledUpTimeSeries();
+    failScanners();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.downsample(3600000, Aggregators.SUM);
+    assertScanFails();
+  }
+
+  @Test
+  public void runRollupsPercentiles() throws Exception {
+    storeRolledUpTimeSeries();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.downsample(3600000, Aggregators.P50);
+    DataPoints[] dps = query.run();
+    assertEquals(3, dps[0].size());
+    assertEquals(1357002000000L, dps[0].timestamp(1));
+    assertEquals(179, dps[0].longValue(1), 1.79);
+
+    // The sketches of the hours merge into the one of the day.
+    query.downsample(86400000, Aggregators.P95);
+    dps = query.run();
+    assertEquals(1, dps[0].size());
+    assertEquals(285, dps[0].longValue(0), 2.85);
+  }
+
+  @Test
+  public void runRollupsNotForDev() throws Exception {
+    storeRolledUpTimeSeries();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.downsample(3600000, Aggregators.DEV);
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(3, dps[0].size());
+    assertEquals(1357000215000L, dps[0].timestamp(0));
+  }
+
+  @Test
+  public void splitSlices() throws Exception {
+    final long[] boundaries = { 1356998000, 1357005600, 1357016400 };
+    assertArrayEquals(boundaries, TsdbQuery.splitSlices(boundaries,
+        1356998000));
+    assertArrayEquals(boundaries, TsdbQuery.splitSlices(boundaries,
+        1357005600));
+    assertArrayEquals(boundaries, TsdbQuery.splitSlices(boundaries,
+        1357016400));
+    assertArrayEquals(new long[] { 1356998000, 1357002000, 1357005600,
+        1357016400 }, TsdbQuery.splitSlices(boundaries, 1357002000));
+    assertArrayEquals(new long[] { 1356998000, 1357005600, 1357009200,
+        1357016400 }, TsdbQuery.splitSlices(boundaries, 1357009200));
+    assertArrayEquals(new long[] { 1356998000, 1357002000, -1 },
+        TsdbQuery.splitSlices(new long[] { 1356998000, -1 }, 1357002000));
+  }
+
+  @Test
+  public void nextBatchRows() throws Exception {
+    // keeping up with HBase
+    assertEquals(128, TsdbQuery.nextBatchRows(128, 1024, 1048576, false));
+    // waiting on HBase
+    assertEquals(256, TsdbQuery.nextBatchRows(128, 1024, 1048576, true));
+    assertEquals(1024, TsdbQuery.nextBatchRows(1024, 1024, 1048576, true));
+    assertEquals(TsdbQuery.MAX_BATCH_ROWS,
+        TsdbQuery.nextBatchRows(4096, 1, 1048576, true));
+    // wide rows
+    assertEquals(64, TsdbQuery.nextBatchRows(128, 16384, 1048576, false));
+    assertEquals(TsdbQuery.MIN_BATCH_ROWS,
+        TsdbQuery.nextBatchRows(128, 1 << 20, 1048576, true));
+    // not adapted
+    assertEquals(128, TsdbQuery.nextBatchRows(128, 1 << 20, 0, true));
+  }
+  
+  @Test
+  public void sliceBoundaries() throws Exception {
+    assertArrayEquals(new long[] { 1356991200, 1357045201 },
+        TsdbQuery.sliceBoundaries(1356991200, 1357045201, 1));
+    // 15 row base times after the start, spread over 4 slices
+    assertArrayEquals(new long[] { 1356991200, 1357005600, 1357020000,
+        1357034400, 1357045201 },
+        TsdbQuery.sliceBoundaries(1356991200, 1357045201, 4));
+    // not aligned on hours
+    assertArrayEquals(new long[] { 1356991230, 1356994800, 1356998400,
+        1356998430 },
+        TsdbQuery.sliceBoundaries(1356991230, 1356998430, 4));
+    // less than an hour
+    assertArrayEquals(new long[] { 1356991230, 1356994700 },
+        TsdbQuery.sliceBoundaries(1356991230, 1356994700, 4));
+    // until the end of the table
+    assertArrayEquals(new long[] { 1356991230, -1 },
+        TsdbQuery.sliceBoundaries(1356991230, -1, 4));
+  }
+  
   @Test
   public void runLongSingleTSRate() throws Exception {
     storeLongTimeSeriesSeconds(true, false);;
@@ -2531,6 +3191,88 @@ public final class TestTsdbQuery {
     }
   }
 
+  /** Runs the query, which must fail rather than wait on its scanners. */
+  private void assertScanFails() throws Exception {
+    try {
+      query.runAsync().join(5000);
+      fail("Expected the query to fail");
+    } catch (RuntimeException e) {
+      assertEquals("Boom", e.getMessage());
+    }
+  }
+
+  /**
+   * Holds back the next put, which is only written to the storage once the
+   * deferred returned is called back, as if HBase acknowledged it then.
+   * The other puts are written right away.
+   */
+  private Deferred<Object> holdNextPut() {
+    final Deferred<Object> ack = new Deferred<Object>();
+    PowerMockito.doAnswer(new Answer<Deferred<Object>>() {
+      private boolean held;
+      @Override
+      public Deferred<Object> answer(final InvocationOnMock invocation) {
+        final PutRequest put = (PutRequest) invocation.getArguments()[0];
+        if (held) {
+          writePut(put);
+          return Deferred.fromResult(null);
+        }
+        held = true;
+        return ack.addCallback(new Callback<Object, Object>() {
+          public Object call(final Object arg) {
+            writePut(put);
+            return arg;
+          }
+        });
+      }
+    }).when(client).put(any(PutRequest.class));
+    return ack;
+  }
+
+  /** Writes the cells of a put to the storage. */
+  private void writePut(final PutRequest put) {
+    for (int i = 0; i < put.qualifiers().length; i++) {
+      storage.addColumn(put.key(), put.family(), put.qualifiers()[i],
+          put.values()[i]);
+    }
+  }
+
+  /**
+   * Makes every new scanner fail after an empty batch of rows, as if HBase
+   * returned an error.
+   */
+  private void failScanners() {
+    PowerMockito.doAnswer(new Answer<Scanner>() {
+      @Override
+      public Scanner answer(final InvocationOnMock invocation) {
+        final Scanner scanner = mock(Scanner.class);
+        when(scanner.nextRows())
+          .thenReturn(Deferred.fromResult(new ArrayList<ArrayList<KeyValue>>()))
+          .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromError(
+              new RuntimeException("Boom")));
+        return scanner;
+      }
+    }).when(client).newScanner((byte[]) any());
+  }
+
+  /**
+   * Stores the series of {@link #storeLongTimeSeriesSeconds} with rollups
+   * enabled, and compacts them so that they're rolled up.
+   */
+  private void storeRolledUpTimeSeries() throws Exception {
+    config.overrideConfig("tsd.query.rollups.start", "1356998400");
+    Field rollups = tsdb.getClass().getDeclaredField("rollups");
+    rollups.setAccessible(true);
+    rollups.set(tsdb, new Rollups(tsdb));
+    storeLongTimeSeriesSeconds(false, false);
+    // Every flush leaves a random third of the rows out.
+    final CompactionQueue compactionq =
+      Whitebox.getInternalState(tsdb, "compactionq");
+    while (compactionq.size() > 0) {
+      tsdb.flush().joinUninterruptibly();
+    }
+  }
+
   private void storeLongTimeSeriesMs() throws Exception {
     setQueryStorage();
     // dump a bunch of rows of two metrics so that we can test filtering out
@@ -0,0 +1,149 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public final class TestGenerateData2 {
+
+  @Test
+  public void sameDataWhateverTheThreads() throws Exception {
+    final GenerateData2.Spec spec = spec(0.25, 0.5, 42);
+    final List<String> one = generate(spec, 1);
+    assertEquals(one, generate(spec, 3));
+    assertEquals(one, generate(spec, 7));
+    assertFalse(one.equals(generate(spec(0.25, 0.5, 43), 3)));
+  }
+
+  @Test
+  public void seriesSpace() throws Exception {
+    final GenerateData2.Spec spec = spec(0, 0, 0);
+    assertEquals(2 * 3 * 3, spec.numSeries());
+    final List<String> points = generate(spec, 4);
+    // 18 series, 2 hours every 10 minutes
+    assertEquals(18 * 12, points.size());
+    assertTrue(points.get(0), points.get(0).startsWith(
+        "sys.cpu.0 1356998400 tag0=value0 tag1=value0 value="));
+    final Map<String, String> tags = spec.tags(17);
+    assertEquals("value2", tags.get("tag0"));
+    assertEquals("value2", tags.get("tag1"));
+    assertEquals("sys.cpu.1", spec.metric(17));
+  }
+
+  @Test
+  public void counters() throws Exception {
+    final GenerateData2.Spec spec = spec(1, 0, 0);
+    final HashMap<Long, Long> last = new HashMap<Long, Long>();
+    GenerateData2.generate(spec, 2, 0, new GenerateData2.SinkFactory() {
+      @Override
+      public GenerateData2.Sink open(final int thread, final int num_series) {
+        return new GenerateData2.Sink() {
+          @Override
+          public void add(final long series, final int local,
+              final long timestamp, final long value) {
+            synchronized (last) {
+              final Long previous = last.put(series, value);
+              assertTrue(previous == null || value >= previous);
+            }
+          }
+          @Override
+          public void close() {
+          }
+        };
+      }
+    });
+    assertEquals(18, last.size());
+  }
+
+  @Test
+  public void sparse() throws Exception {
+    final GenerateData2.Spec spec = new GenerateData2.Spec("sys.cpu", 1, 2, 10,
+        1356998400, 24, 60, 0, 1, 0.1, 101, 50, 0);
+    final int points = generate(spec, 2).size();
+    final int dense = 100 * 24 * 60;
+    assertTrue(Integer.toString(points),
+        points > dense * 0.08 && points < dense * 0.12);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void tooManySeries() throws Exception {
+    new GenerateData2.Spec("sys.cpu", 1000, 10, 1000, 1356998400, 1, 60, 0, 0,
+        0, 101, 50, 0);
+  }
+
+  @Test (expected = IOException.class)
+  public void sinkFailure() throws Exception {
+    GenerateData2.generate(spec(0, 0, 0), 2, 0,
+        new GenerateData2.SinkFactory() {
+      @Override
+      public GenerateData2.Sink open(final int thread, final int num_series)
+          throws IOException {
+        throw new IOException("Boom");
+      }
+    });
+  }
+
+  private static GenerateData2.Spec spec(final double counters,
+      final double sparse, final long seed) {
+    return new GenerateData2.Spec("sys.cpu", 2, 2, 3, 1356998400, 2, 600,
+        counters, sparse, 0.5, 101, 50, seed);
+  }
+
+  /**
+   * Generates a spec and returns every data point, sorted.
+   */
+  private static List<String> generate(final GenerateData2.Spec spec,
+      final int threads) throws IOException {
+    final List<String> points = Collections.synchronizedList(
+        new ArrayList<String>());
+    final long count = GenerateData2.generate(spec, threads, 0,
+        new GenerateData2.SinkFactory() {
+      @Override
+      public GenerateData2.Sink open(final int thread, final int num_series) {
+        return new GenerateData2.Sink() {
+          @Override
+          public void add(final long series, final int local,
+              final long timestamp, final long value) {
+            final StringBuilder buf = new StringBuilder(spec.metric(series))
+              .append(' ').append(timestamp);
+            for (final Map.Entry<String, String> tag :
+                new TreeMap<String, String>(spec.tags(series))
+                .entrySet()) {
+              buf.append(' ').append(tag.getKey()).append('=')
+                .append(tag.getValue());
+            }
+            points.add(buf.append(" value=").append(value).toString());
+          }
+          @Override
+          public void close() {
+          }
+        };
+      }
+    });
+    assertEquals(count, points.size());
+    Collections.sort(points);
+    return points;
+  }
+}
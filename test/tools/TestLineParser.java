@@ -0,0 +1,129 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public final class TestLineParser {
+  private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+  private final LineParser parser = new LineParser();
+
+  @Test
+  public void parseLong() {
+    final ByteBuffer buf = parse("sys.cpu.user 1356998400 42 host=web01");
+    assertEquals("sys.cpu.user", LineParser.toString(buf,
+        parser.metricStart(), parser.metricEnd()));
+    assertEquals(1356998400L, parser.timestamp());
+    assertFalse(parser.isFloat());
+    assertEquals(42, parser.longValue());
+    assertEquals("host=web01", LineParser.toString(buf,
+        parser.tagsStart(), parser.tagsEnd()));
+  }
+
+  @Test
+  public void parseNegativeLong() {
+    parse("sys.cpu.user 1356998400 -9223372036854775808 host=web01");
+    assertEquals(Long.MIN_VALUE, parser.longValue());
+  }
+
+  @Test
+  public void parseFloat() {
+    parse("sys.cpu.user 1356998400 42.5 host=web01");
+    assertTrue(parser.isFloat());
+    assertEquals(42.5F, parser.floatValue(), 0);
+  }
+
+  @Test
+  public void parseFloatMatchesParseFloat() {
+    final String[] values = { "0.1", "-0.3", "+1.", ".5", "3.14159265358979",
+        "123456789.123456789", "1e10", "-2.5E-3",
+        "0.000000000000000000000001", "16777217.0", "16777216", "0.16777216",
+        "1677721.6", "99999.99", "0.0000000001",
+        // rounded twice if parsed as a double first
+        "6.639230012893677", "4.234828710556030" };
+    for (final String value : values) {
+      parse("m 1356998400 " + value + " host=web01");
+      assertEquals(value, Float.parseFloat(value), parser.floatValue(), 0);
+    }
+  }
+
+  @Test
+  public void parseExtraSpaces() {
+    final ByteBuffer buf = parse(
+        "sys.cpu.user  1356998400   42 host=web01  dc=lga   \r");
+    assertEquals(1356998400L, parser.timestamp());
+    assertEquals(42, parser.longValue());
+    assertEquals("host=web01  dc=lga", LineParser.toString(buf,
+        parser.tagsStart(), parser.tagsEnd()));
+  }
+
+  @Test
+  public void parseRange() {
+    final ByteBuffer buf = ByteBuffer.wrap(
+        "xxsys.cpu.user 1356998400 42 host=web01\nyy".getBytes(ASCII));
+    parser.parse(buf, 2, 39);
+    assertEquals(2, parser.metricStart());
+    assertEquals(1356998400L, parser.timestamp());
+    assertEquals("host=web01", LineParser.toString(buf,
+        parser.tagsStart(), parser.tagsEnd()));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseEmptyMetric() {
+    parse(" 1356998400 42 host=web01");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseBadTimestamp() {
+    parse("sys.cpu.user 0 42 host=web01");
+  }
+
+  @Test (expected = NumberFormatException.class)
+  public void parseTimestampNotANumber() {
+    parse("sys.cpu.user 13569984OO 42 host=web01");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseMissingValue() {
+    parse("sys.cpu.user 1356998400");
+  }
+
+  @Test (expected = NumberFormatException.class)
+  public void parseBadValue() {
+    parse("sys.cpu.user 1356998400 notanumber host=web01");
+  }
+
+  @Test (expected = NumberFormatException.class)
+  public void parseBadFloat() {
+    parse("sys.cpu.user 1356998400 4.2.1 host=web01");
+  }
+
+  @Test (expected = NumberFormatException.class)
+  public void parseLongOverflow() {
+    parse("sys.cpu.user 1356998400 9223372036854775808 host=web01");
+  }
+
+  private ByteBuffer parse(final String line) {
+    final ByteBuffer buf = ByteBuffer.wrap(line.getBytes(ASCII));
+    parser.parse(buf, 0, buf.limit());
+    return buf;
+  }
+}
@@ -0,0 +1,127 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public final class TestSeriesBlockFile {
+
+  @Test
+  public void roundTrip() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final SeriesBlockFile.Writer writer = new SeriesBlockFile.Writer(out);
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    final int user = writer.addSeries("sys.cpu.user", tags);
+    final int nice = writer.addSeries("sys.cpu.nice", tags);
+    assertEquals(0, user);
+    assertEquals(1, nice);
+    writer.add(user, 1356998400, 42);
+    writer.add(nice, 1356998400, 1.5F);
+    writer.add(user, 1356998401, Long.MIN_VALUE);
+    writer.add(user, 1356998399, Long.MAX_VALUE);
+    writer.add(user, 1356998402, -1.25F);  // switches to floats, new block
+    writer.close();
+
+    final SeriesBlockFile.Reader reader = new SeriesBlockFile.Reader(
+        new ByteArrayInputStream(out.toByteArray()));
+    assertTrue(reader.next());
+    assertEquals(2, reader.numSeries());
+    assertEquals("sys.cpu.user", reader.metric(0));
+    assertEquals(tags, reader.tags(1));
+    assertEquals(user, reader.series());
+    assertFalse(reader.isFloat());
+    assertEquals(3, reader.count());
+    assertEquals(1356998400, reader.timestamp(0));
+    assertEquals(42, reader.longValue(0));
+    assertEquals(Long.MIN_VALUE, reader.longValue(1));
+    assertEquals(1356998399, reader.timestamp(2));
+    assertEquals(Long.MAX_VALUE, reader.longValue(2));
+
+    assertTrue(reader.next());
+    assertEquals(user, reader.series());
+    assertTrue(reader.isFloat());
+    assertEquals(1, reader.count());
+    assertEquals(-1.25F, reader.floatValue(0), 0);
+
+    assertTrue(reader.next());
+    assertEquals(nice, reader.series());
+    assertTrue(reader.isFloat());
+    assertEquals(1.5F, reader.floatValue(0), 0);
+
+    assertFalse(reader.next());
+  }
+
+  @Test
+  public void fullBlocks() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final SeriesBlockFile.Writer writer = new SeriesBlockFile.Writer(out);
+    final int id = writer.addSeries("sys.cpu.user",
+        new HashMap<String, String>());
+    final int points = SeriesBlockFile.Writer.BLOCK_POINTS * 2 + 10;
+    for (int i = 0; i < points; i++) {
+      writer.add(id, 1356998400000L + i * 250, i % 7);
+    }
+    writer.close();
+    // regular timestamps and small values take about 3 bytes per point
+    assertTrue(out.size() < points * 4);
+
+    final SeriesBlockFile.Reader reader = new SeriesBlockFile.Reader(
+        new ByteArrayInputStream(out.toByteArray()));
+    int read = 0;
+    while (reader.next()) {
+      for (int i = 0; i < reader.count(); i++, read++) {
+        assertEquals(1356998400000L + read * 250, reader.timestamp(i));
+        assertEquals(read % 7, reader.longValue(i));
+      }
+    }
+    assertEquals(points, read);
+  }
+
+  @Test (expected = IOException.class)
+  public void badMagic() throws Exception {
+    new SeriesBlockFile.Reader(new ByteArrayInputStream(
+        "sys.cpu.user 1356998400 42 host=web01\n".getBytes()));
+  }
+
+  @Test (expected = EOFException.class)
+  public void truncated() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final SeriesBlockFile.Writer writer = new SeriesBlockFile.Writer(out);
+    writer.add(writer.addSeries("sys.cpu.user", new HashMap<String, String>()),
+        1356998400, 42);
+    writer.close();
+    final byte[] file = out.toByteArray();
+    final SeriesBlockFile.Reader reader = new SeriesBlockFile.Reader(
+        new ByteArrayInputStream(Arrays.copyOf(file, file.length - 3)));
+    reader.next();
+  }
+
+  @Test
+  public void isSeriesBlockFile() {
+    assertTrue(SeriesBlockFile.isSeriesBlockFile("2013-foo.tsb"));
+    assertTrue(SeriesBlockFile.isSeriesBlockFile("2013-foo.tsb.gz"));
+    assertFalse(SeriesBlockFile.isSeriesBlockFile("2013-foo.tsd.gz"));
+  }
+}
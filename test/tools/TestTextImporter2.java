@@ -0,0 +1,305 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  PutRequest.class, KeyValue.class})
+public final class TestTextImporter2 {
+  private static final byte[] ROW_USER = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27,
+    0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] ROW_USER_NEXT_HOUR = { 0, 0, 1, 0x50,
+    (byte) 0xE2, 0x35, 0x10, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] ROW_NICE = { 0, 0, 2, 0x50, (byte) 0xE2, 0x27,
+    0, 0, 0, 1, 0, 0, 1 };
+
+  private TSDB tsdb;
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private UniqueId tag_names = mock(UniqueId.class);
+  private UniqueId tag_values = mock(UniqueId.class);
+  private MockBase storage;
+  private File dir;
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.whenNew(HBaseClient.class)
+      .withArguments(anyString(), anyString()).thenReturn(client);
+    // like the default --reorder-window of the command line
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.storage.batch.reorder_window",
+        Integer.toString(TextImporter2.REORDER_WINDOW));
+    tsdb = new TSDB(config);
+    storage = new MockBase(tsdb, client, true, true, true, true);
+
+    Field met = tsdb.getClass().getDeclaredField("metrics");
+    met.setAccessible(true);
+    met.set(tsdb, metrics);
+
+    Field tagk = tsdb.getClass().getDeclaredField("tag_names");
+    tagk.setAccessible(true);
+    tagk.set(tsdb, tag_names);
+
+    Field tagv = tsdb.getClass().getDeclaredField("tag_values");
+    tagv.setAccessible(true);
+    tagv.set(tsdb, tag_values);
+
+    when(client.shutdown()).thenReturn(Deferred.fromResult(null));
+    when(metrics.width()).thenReturn((short)3);
+    when(tag_names.width()).thenReturn((short)3);
+    when(tag_values.width()).thenReturn((short)3);
+    when(metrics.getId("sys.cpu.user")).thenReturn(new byte[] { 0, 0, 1 });
+    when(metrics.getId("sys.cpu.nice")).thenReturn(new byte[] { 0, 0, 2 });
+    when(metrics.getId("sys.cpu.idle")).thenThrow(
+        new NoSuchUniqueName("metric", "sys.cpu.idle"));
+    when(tag_names.getId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_names.getOrCreateId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getOrCreateId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+
+    dir = File.createTempFile("import2", "");
+    dir.delete();
+    dir.mkdir();
+  }
+
+  @After
+  public void after() {
+    for (final File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void importFiles() throws Exception {
+    // two hours of sys.cpu.user, spread over several chunks
+    final StringBuilder user = new StringBuilder();
+    for (int i = 0; i < 7200; i++) {
+      user.append("sys.cpu.user ").append(1356998400 + i).append(' ')
+        .append(i % 2 == 0 ? Integer.toString(i) : "1.5")
+        .append(" host=web01\n");
+    }
+    final StringBuilder nice = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      nice.append("sys.cpu.nice ").append(1356998400 + i).append(" 42")
+        .append(" host=web01\n");
+    }
+    final String[] paths = { write("user", user.toString()),
+        write("nice.gz", nice.toString()) };
+
+    assertEquals(7300, TextImporter2.importFiles(tsdb, paths, 4, 1, 2));
+    tsdb.shutdown().joinUninterruptibly();
+
+    assertEquals(3600, countDataPoints(ROW_USER));
+    assertEquals(3600, countDataPoints(ROW_USER_NEXT_HOUR));
+    assertEquals(100, countDataPoints(ROW_NICE));
+  }
+
+  @Test
+  public void importFilesSmallChunks() throws Exception {
+    // windows and chunks cut lines in the middle, some lines are longer
+    // than a chunk, and the last line has no end of line
+    final StringBuilder user = new StringBuilder();
+    for (int i = 0; i < 3600; i++) {
+      user.append("sys.cpu.user ").append(1356998400 + i)
+        .append(i % 3 == 0 ? "  " : " ").append(i % 2 == 0 ? "42" : "4.2")
+        .append(" host=web01").append(i % 5 == 0 ? "   \r\n" : "\n");
+    }
+    user.setLength(user.length() - 1);
+    final String[] paths = { write("user", user.toString()),
+        write("user.gz", user.toString().replace("sys.cpu.user",
+            "sys.cpu.nice")) };
+
+    assertEquals(7200, TextImporter2.importFiles(tsdb, paths, 3, 2, 2, 40, 100));
+    tsdb.shutdown().joinUninterruptibly();
+
+    assertEquals(3600, countDataPoints(ROW_USER));
+    assertEquals(3600, countDataPoints(ROW_NICE));
+  }
+
+  @Test
+  public void importFilesAcrossHours() throws Exception {
+    // the data points around the end of the first hour are out of order,
+    // like those of tiny chunks parsed concurrently
+    final StringBuilder user = new StringBuilder();
+    for (int j = 3000; j < 4200; j++) {
+      final int i = j >= 3580 && j < 3620 ? 3580 + 3619 - j : j;
+      user.append("sys.cpu.user ").append(1356998400 + i).append(' ')
+        .append(i).append(" host=web01\n");
+    }
+    final String[] paths = { write("user", user.toString()) };
+
+    assertEquals(1200, TextImporter2.importFiles(tsdb, paths, 4, 1, 1, 200,
+        1000));
+    tsdb.shutdown().joinUninterruptibly();
+
+    // no late data point was written as a cell of its own
+    assertEquals(1, storage.numColumns(ROW_USER));
+    assertEquals(600, countDataPoints(ROW_USER));
+    assertEquals(1, storage.numColumns(ROW_USER_NEXT_HOUR));
+    assertEquals(600, countDataPoints(ROW_USER_NEXT_HOUR));
+  }
+
+  @Test
+  public void importSeriesBlockFiles() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    final String[] paths = { new File(dir, "a.tsb").getPath(),
+        new File(dir, "b.tsb.gz").getPath() };
+    for (int f = 0; f < paths.length; f++) {
+      OutputStream out = new FileOutputStream(paths[f]);
+      if (paths[f].endsWith(".gz")) {
+        out = new GZIPOutputStream(out);
+      }
+      final SeriesBlockFile.Writer writer = new SeriesBlockFile.Writer(out);
+      final int user = writer.addSeries("sys.cpu.user", tags);
+      final int nice = writer.addSeries("sys.cpu.nice", tags);
+      for (int i = f * 3600; i < f * 3600 + 3600; i++) {
+        writer.add(user, 1356998400 + i, i);
+        if (f == 0 && i < 100) {
+          writer.add(nice, 1356998400 + i, i * 0.5F);
+        }
+      }
+      writer.close();
+    }
+
+    assertEquals(7300, TextImporter2.importFiles(tsdb, paths, 1, 2, 2));
+    tsdb.shutdown().joinUninterruptibly();
+
+    assertEquals(3600, countDataPoints(ROW_USER));
+    assertEquals(3600, countDataPoints(ROW_USER_NEXT_HOUR));
+    assertEquals(100, countDataPoints(ROW_NICE));
+  }
+
+  @Test (expected = IOException.class)
+  public void importFilesLineLongerThanMap() throws Exception {
+    final String[] paths = { write("long",
+        "sys.cpu.user 1356998400 42 host=web01\n"
+        + "sys.cpu.user 1356998401 42 host=web01\n") };
+    TextImporter2.importFiles(null, paths, 1, 1, 1, 10, 20);
+  }
+
+  @Test
+  public void importFilesNoImport() throws Exception {
+    final String[] paths = {
+        write("a", "sys.cpu.user 1356998400 42 host=web01\n"),
+        write("b", "sys.cpu.nice 1356998400 42 host=web01\n"
+          + "sys.cpu.nice 1356998401 24 host=web01\n") };
+    assertEquals(3, TextImporter2.importFiles(null, paths, 2, 2, 2));
+    assertEquals(0, storage.numRows());
+  }
+
+  @Test
+  public void importFilesBadLine() throws Exception {
+    final String[] paths = { write("bad",
+        "sys.cpu.user 1356998400 42 host=web01\n"
+        + "sys.cpu.user 1356998401 notanumber host=web01\n") };
+    try {
+      TextImporter2.importFiles(tsdb, paths, 2, 2, 1);
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(" at offset 38: "));
+    }
+  }
+
+  @Test (expected = NoSuchUniqueName.class)
+  public void importFilesNSUN() throws Exception {
+    final String[] paths = { write("nsun",
+        "sys.cpu.idle 1356998400 42 host=web01\n") };
+    try {
+      TextImporter2.importFiles(tsdb, paths, 1, 1, 1);
+    } catch (RuntimeException e) {
+      throw (RuntimeException) e.getCause();
+    }
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void importFilesNoParsers() throws Exception {
+    TextImporter2.importFiles(tsdb, new String[] { "foo" }, 0, 1, 1);
+  }
+
+  /**
+   * Writes a file in the temporary directory, gzip'ed if its name ends with
+   * .gz, and returns its path.
+   */
+  private String write(final String name, final String content)
+      throws IOException {
+    final File file = new File(dir, name);
+    OutputStream out = new FileOutputStream(file);
+    if (name.endsWith(".gz")) {
+      out = new GZIPOutputStream(out);
+    }
+    try {
+      out.write(content.getBytes(MockBase.ASCII()));
+    } finally {
+      out.close();
+    }
+    return file.getPath();
+  }
+
+  /**
+   * Counts the data points stored in a row, whether they were compacted or
+   * not.
+   */
+  private long countDataPoints(final byte[] row) {
+    final Bytes.ByteMap<byte[]> columns = storage.getColumnFamily(row,
+        "t".getBytes(MockBase.ASCII()));
+    assertNotNull(columns);
+    long count = 0;
+    for (final Map.Entry<byte[], byte[]> column : columns) {
+      count += column.getKey().length / 2;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,311 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.hbase.async.PutRequest;
+import org.junit.Ignore;
+import org.mockito.internal.util.MockUtil;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Helpers shared by the benchmarks, which are JUnit classes run by
+ * {@code make bench} and not by {@code make check}.
+ * <p>
+ * A benchmark runs a number of operations on several threads, timing every
+ * operation, and reports the throughput, the latency percentiles and the
+ * bytes allocated per operation. Settings are read from system properties,
+ * see {@link #intProperty}.
+ * <p>
+ * <b>Note:</b> HBase is stood in for by Mockito answers, which have a cost of
+ * their own. Benchmarks should also time that cost alone, so that it can be
+ * told apart from the code being measured.
+ */
+@Ignore
+public final class Benchmarks {
+
+  private Benchmarks() {
+    // Not instantiable.
+  }
+
+  /**
+   * The operations of one thread of a benchmark.
+   */
+  public interface Worker {
+    /** Called once before the timed operations, e.g. to build the inputs. */
+    void prepare() throws Exception;
+
+    /** Runs the {@code i}th operation of this thread. */
+    void run(int i) throws Exception;
+
+    /** Called once after the timed operations, still timed. */
+    void finish() throws Exception;
+  }
+
+  public interface WorkerFactory {
+    Worker newWorker(int thread, int threads) throws Exception;
+  }
+
+  /**
+   * What a benchmark measured.
+   */
+  public static final class Result {
+    public final String name;
+    public final int threads;
+    public final long operations;
+    public final long nanos;
+    /** -1 if the JVM can't measure allocations. */
+    public final long allocated_bytes;
+    /** Latency of every operation, in nanoseconds, sorted. */
+    public final long[] latencies;
+
+    Result(final String name, final int threads, final long operations,
+        final long nanos, final long allocated_bytes, final long[] latencies) {
+      this.name = name;
+      this.threads = threads;
+      this.operations = operations;
+      this.nanos = nanos;
+      this.allocated_bytes = allocated_bytes;
+      this.latencies = latencies;
+    }
+
+    public double operationsPerSecond() {
+      return operations * 1e9 / nanos;
+    }
+
+    /** Returns a latency percentile in microseconds. */
+    public double percentile(final double p) {
+      if (latencies.length == 0) {
+        return 0;
+      }
+      final int i = (int) Math.ceil(p / 100 * latencies.length) - 1;
+      return latencies[Math.max(0, Math.min(i, latencies.length - 1))] / 1e3;
+    }
+
+    @Override
+    public String toString() {
+      final double seconds = nanos / 1e9;
+      return String.format("%-24s %3d %10d %9.3f %12.1f %10s %10s"
+          + " %9.2f %9.2f %9.2f %9.2f", name, threads, operations, seconds,
+          operationsPerSecond(),
+          allocated_bytes < 0 ? "n/a"
+              : String.format("%.1f", allocated_bytes / seconds / (1 << 20)),
+          allocated_bytes < 0 ? "n/a"
+              : String.format("%.1f", (double) allocated_bytes / operations),
+          percentile(50), percentile(90), percentile(99), percentile(99.9));
+    }
+
+    public static String header() {
+      return String.format("%-24s %3s %10s %9s %12s %10s %10s"
+          + " %9s %9s %9s %9s", "benchmark", "thr", "ops", "seconds", "ops/s",
+          "alloc MB/s", "alloc B/op", "p50 us", "p90 us", "p99 us", "p999 us");
+    }
+  }
+
+  /**
+   * Runs a benchmark: every thread prepares its worker, then all of them
+   * start their operations at the same time.
+   * @param name Name of the benchmark in the report
+   * @param threads Number of threads
+   * @param operations Number of operations of each thread
+   * @param factory Creates the worker of each thread
+   * @return What was measured
+   * @throws Exception the first exception thrown by a worker
+   */
+  public static Result run(final String name, final int threads,
+      final int operations, final WorkerFactory factory) throws Exception {
+    final Worker[] workers = new Worker[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = factory.newWorker(i, threads);
+    }
+    final long[][] latencies = new long[threads][operations];
+    final long[] allocated = new long[threads];
+    final CountDownLatch ready = new CountDownLatch(threads);
+    final CountDownLatch go = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final AtomicLong end = new AtomicLong();
+
+    final Thread[] runners = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      runners[t] = new Thread(name + "-" + t) {
+        @Override
+        public void run() {
+          try {
+            final Worker worker = workers[thread];
+            worker.prepare();
+            ready.countDown();
+            go.await();
+            final long before = allocatedBytes();
+            final long[] times = latencies[thread];
+            for (int i = 0; i < operations; i++) {
+              final long start = System.nanoTime();
+              worker.run(i);
+              times[i] = System.nanoTime() - start;
+            }
+            worker.finish();
+            final long now = System.nanoTime();
+            synchronized (end) {
+              end.set(Math.max(end.get(), now));
+            }
+            allocated[thread] = before < 0 ? -1 : allocatedBytes() - before;
+          } catch (Throwable e) {
+            error.compareAndSet(null, e);
+            ready.countDown();
+          }
+        }
+      };
+      runners[t].start();
+    }
+    ready.await();
+    final long start = System.nanoTime();
+    go.countDown();
+    for (final Thread runner : runners) {
+      runner.join();
+    }
+    if (error.get() instanceof Exception) {
+      throw (Exception) error.get();
+    } else if (error.get() != null) {
+      throw new RuntimeException("Benchmark " + name + " failed", error.get());
+    }
+
+    long total_allocated = 0;
+    for (final long bytes : allocated) {
+      total_allocated = bytes < 0 || total_allocated < 0 ? -1
+          : total_allocated + bytes;
+    }
+    final long[] all = new long[threads * operations];
+    for (int t = 0; t < threads; t++) {
+      System.arraycopy(latencies[t], 0, all, t * operations, operations);
+    }
+    Arrays.sort(all);
+    return new Result(name, threads, (long) threads * operations,
+        end.get() - start, total_allocated, all);
+  }
+
+  /**
+   * Prints results as a table on the standard output.
+   */
+  public static void print(final String title, final List<Result> results) {
+    System.out.println();
+    System.out.println(title);
+    System.out.println(Result.header());
+    for (final Result result : results) {
+      System.out.println(result);
+    }
+  }
+
+  /**
+   * Returns an integer setting, from the system property
+   * {@code bench.<name>}.
+   */
+  public static int intProperty(final String name, final int default_value) {
+    return Integer.getInteger("bench." + name, default_value);
+  }
+
+  /**
+   * Returns the benchmarks to run from the comma separated system property
+   * {@code bench.only}, or all of them.
+   */
+  public static List<String> selected(final String... all) {
+    final String only = System.getProperty("bench.only");
+    if (only == null || only.isEmpty()) {
+      return Arrays.asList(all);
+    }
+    final List<String> selected = new ArrayList<String>();
+    for (final String name : only.split(",")) {
+      if (Arrays.asList(all).contains(name.trim())) {
+        selected.add(name.trim());
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Returns the bytes allocated so far by the current thread, or -1 if the
+   * JVM can't tell.
+   */
+  static long allocatedBytes() {
+    final java.lang.management.ThreadMXBean bean =
+        ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      final com.sun.management.ThreadMXBean sun_bean =
+          (com.sun.management.ThreadMXBean) bean;
+      if (sun_bean.isThreadAllocatedMemorySupported()
+          && sun_bean.isThreadAllocatedMemoryEnabled()) {
+        return sun_bean.getThreadAllocatedBytes(
+            Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Stands in for {@code HBaseClient.put()}: counts the puts and the bytes
+   * they would write, and completes them right away. Thread-safe, unlike the
+   * puts of {@link net.opentsdb.storage.MockBase}.
+   * <p>
+   * Mockito records every call made to a mock, which would hold on to every
+   * put, so the calls made to the client are forgotten every so often.
+   */
+  public static final class CountingPut implements Answer<Deferred<Object>> {
+    final AtomicLong puts = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    private final List<?> invocations;
+
+    public CountingPut(final Object client) {
+      invocations = recordedInvocations(client);
+    }
+
+    @Override
+    public Deferred<Object> answer(final InvocationOnMock invocation) {
+      final PutRequest put = (PutRequest) invocation.getArguments()[0];
+      if ((puts.incrementAndGet() & 0x3FF) == 0 && invocations != null) {
+        invocations.clear();
+      }
+      long size = put.key().length;
+      for (int i = 0; i < put.qualifiers().length; i++) {
+        size += put.qualifiers()[i].length + put.values()[i].length;
+      }
+      bytes.addAndGet(size);
+      return Deferred.fromResult(null);
+    }
+  }
+
+  /**
+   * Returns the list in which Mockito records the calls made to a mock, or
+   * null if this version of Mockito keeps it somewhere else.
+   */
+  private static List<?> recordedInvocations(final Object mock) {
+    try {
+      final Object container = new MockUtil().getMockHandler(mock)
+        .getInvocationContainer();
+      final Object registered = Whitebox.getInternalState(container,
+          "registeredInvocations");
+      return (List<?>) Whitebox.getInternalState(registered, "invocations");
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+}
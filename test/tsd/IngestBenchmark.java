@@ -0,0 +1,137 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.CachedBatches;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.HBaseClient;
+import org.hbase.async.PutRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+/**
+ * Measures the ingest paths, from the telnet RPCs down to the puts sent to
+ * HBase, which is stood in for by a client that drops every put.
+ * <p>
+ * Every thread writes {@code bench.points} data points to its share of
+ * {@code bench.series} series, one data point per series per second, after
+ * a warm up run of {@code bench.warmup} data points. {@code bench.only} picks
+ * some of the benchmarks:
+ * <ul>
+ * <li>{@code put.standin}: {@code HBaseClient.put()} alone, i.e. the cost of
+ * the stand-in itself</li>
+ * <li>{@code tsdb.addPoint}: {@link TSDB#addPoint}, one put per data point</li>
+ * <li>{@code tsdb.newBatch}: a {@link TSDB#newBatch} per series, persisted
+ * every hour</li>
+ * <li>{@code batches.addPoint}: {@link CachedBatches#addPoint} with the metric,
+ * tags and value as strings</li>
+ * <li>{@code batches.addPoint.row}: {@link CachedBatches#addPoint} with row
+ * key templates resolved up front</li>
+ * <li>{@code rpc.put}: the telnet {@code put} command</li>
+ * <li>{@code rpc.batch}: the telnet {@code batch} command</li>
+ * </ul>
+ * Run with {@code make bench}. The workers are in {@link IngestWorkers}, out
+ * of reach of the instrumentation PowerMock applies to this class.
+ */
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "com.sun.management.*"})
+@PrepareForTest({HBaseClient.class})
+public final class IngestBenchmark {
+  private final int threads = Benchmarks.intProperty("threads",
+      Runtime.getRuntime().availableProcessors());
+  private final int points = Benchmarks.intProperty("points", 200000);
+  private final int warmup = Benchmarks.intProperty("warmup", 50000);
+  private final int series = Benchmarks.intProperty("series", 1000);
+
+  private TSDB tsdb;
+  private HBaseClient client;
+  private Benchmarks.CountingPut put;
+
+  @Test
+  public void ingest() throws Exception {
+    final List<Benchmarks.Result> results = new ArrayList<Benchmarks.Result>();
+    final List<String> puts = new ArrayList<String>();
+    for (final String name : Benchmarks.selected("put.standin",
+        "tsdb.addPoint", "tsdb.newBatch", "batches.addPoint",
+        "batches.addPoint.row", "rpc.put", "rpc.batch")) {
+      run(name, warmup);
+      final Benchmarks.Result result = run(name, points);
+      results.add(result);
+      puts.add(String.format("%-24s %d puts, %.1f data points per put,"
+          + " %.1f bytes per data point", name, put.puts.get(),
+          (double) result.operations / put.puts.get(),
+          (double) put.bytes.get() / result.operations));
+    }
+    Benchmarks.print("Ingest, " + series + " series", results);
+    for (final String line : puts) {
+      System.out.println(line);
+    }
+  }
+
+  /**
+   * Runs a benchmark against a new TSDB, once all the UIDs it needs exist.
+   */
+  private Benchmarks.Result run(final String name, final int operations)
+      throws Exception {
+    final Config config = new Config(false);
+    config.setAutoMetric(true);
+    config.disableCompactions();
+    tsdb = new TSDB(config);
+    client = mock(HBaseClient.class);
+    new MockBase(tsdb, client, true, true, false, false);
+    for (final String uid : new String[] { "metrics", "tag_names",
+        "tag_values" }) {
+      Whitebox.setInternalState(Whitebox.getInternalState(tsdb, uid),
+          "client", client);
+    }
+    // MockBase isn't thread-safe, so create the UIDs up front and then only
+    // count the puts.
+    for (int i = 0; i < series; i++) {
+      tsdb.getCachedBatches().rowKeyTemplate(IngestWorkers.METRIC,
+          IngestWorkers.tags(i));
+    }
+    put = new Benchmarks.CountingPut(client);
+    doAnswer(put).when(client).put((PutRequest) any());
+    when(client.flush()).thenReturn(Deferred.fromResult(null));
+    when(client.shutdown()).thenReturn(Deferred.fromResult(null));
+
+    final IngestWorkers workers = new IngestWorkers(tsdb, client, series);
+    final Benchmarks.Result result = Benchmarks.run(name, threads, operations,
+        new Benchmarks.WorkerFactory() {
+      @Override
+      public Benchmarks.Worker newWorker(final int thread, final int threads) {
+        return workers.newWorker(name, thread, threads, operations);
+      }
+    });
+    // Write out whatever is still cached, outside of the measurement.
+    tsdb.shutdown().joinUninterruptibly();
+    return result;
+  }
+}
@@ -0,0 +1,272 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.WritableDataPoints;
+
+import org.hbase.async.HBaseClient;
+import org.hbase.async.PutRequest;
+import org.jboss.netty.channel.Channel;
+import org.junit.Ignore;
+
+/**
+ * The workers of {@link IngestBenchmark}, one per benchmark.
+ */
+@Ignore
+final class IngestWorkers {
+  static final String METRIC = "sys.cpu.user";
+  static final long START = 1356998400;
+  private static final byte[] FAMILY = { 't' };
+
+  private final TSDB tsdb;
+  private final HBaseClient client;
+  private final int series;
+
+  IngestWorkers(final TSDB tsdb, final HBaseClient client, final int series) {
+    this.tsdb = tsdb;
+    this.client = client;
+    this.series = series;
+  }
+
+  /**
+   * Returns the worker of a thread for the given benchmark.
+   * @throws IllegalArgumentException if there's no such benchmark
+   */
+  Benchmarks.Worker newWorker(final String name, final int thread,
+      final int threads, final int operations) {
+    if (name.equals("put.standin")) {
+      return new StandInWorker(thread, threads);
+    } else if (name.equals("tsdb.addPoint")) {
+      return new AddPointWorker(thread, threads);
+    } else if (name.equals("tsdb.newBatch")) {
+      return new NewBatchWorker(thread, threads);
+    } else if (name.equals("batches.addPoint")) {
+      return new CachedBatchesWorker(thread, threads);
+    } else if (name.equals("batches.addPoint.row")) {
+      return new CachedRowWorker(thread, threads);
+    } else if (name.equals("rpc.put")) {
+      return new RpcWorker(thread, threads, "put", new PutDataPointRpc(),
+          operations);
+    } else if (name.equals("rpc.batch")) {
+      return new RpcWorker(thread, threads, "batch", new BatchDataPointRpc(),
+          operations);
+    }
+    throw new IllegalArgumentException("Unknown benchmark: " + name);
+  }
+
+  /** Returns the tags of a series. */
+  static HashMap<String, String> tags(final int series) {
+    final HashMap<String, String> tags = new HashMap<String, String>(2);
+    tags.put("host", "web" + (series / 8));
+    tags.put("cpu", Integer.toString(series % 8));
+    return tags;
+  }
+
+  /**
+   * Base of the workers: thread {@code t} writes to the series {@code s}
+   * such that {@code s % threads == t}, one data point for each of them every
+   * second.
+   */
+  private abstract class IngestWorker implements Benchmarks.Worker {
+    final int[] owned;
+    final String[] metrics;
+    final Map<String, String>[] tags;
+
+    @SuppressWarnings("unchecked")
+    IngestWorker(final int thread, final int threads) {
+      owned = new int[(series - thread + threads - 1) / threads];
+      metrics = new String[owned.length];
+      tags = (Map<String, String>[]) new Map<?, ?>[owned.length];
+      for (int i = 0; i < owned.length; i++) {
+        owned[i] = thread + i * threads;
+        metrics[i] = METRIC;
+        tags[i] = IngestWorkers.tags(owned[i]);
+      }
+    }
+
+    /** Returns the series of the {@code i}th data point. */
+    final int local(final int i) {
+      return i % owned.length;
+    }
+
+    /** Returns the timestamp of the {@code i}th data point. */
+    final long timestamp(final int i) {
+      return START + i / owned.length;
+    }
+
+    @Override
+    public void prepare() throws Exception {
+    }
+
+    @Override
+    public void finish() throws Exception {
+    }
+  }
+
+  private final class StandInWorker extends IngestWorker {
+    private byte[][] rows;
+
+    StandInWorker(final int thread, final int threads) {
+      super(thread, threads);
+    }
+
+    @Override
+    public void prepare() {
+      rows = new byte[owned.length][];
+      for (int i = 0; i < owned.length; i++) {
+        rows[i] = tsdb.getCachedBatches().rowKeyTemplate(METRIC, tags[i]);
+      }
+    }
+
+    @Override
+    public void run(final int i) {
+      client.put(new PutRequest(tsdb.dataTable(), rows[local(i)],
+          FAMILY, new byte[] { 0, 0 }, new byte[] { 42 }));
+    }
+  }
+
+  private final class AddPointWorker extends IngestWorker {
+    AddPointWorker(final int thread, final int threads) {
+      super(thread, threads);
+    }
+
+    @Override
+    public void run(final int i) {
+      final int local = local(i);
+      tsdb.addPoint(metrics[local], timestamp(i), i, tags[local]);
+    }
+  }
+
+  private final class NewBatchWorker extends IngestWorker {
+    private WritableDataPoints[] batches;
+
+    NewBatchWorker(final int thread, final int threads) {
+      super(thread, threads);
+    }
+
+    @Override
+    public void prepare() {
+      batches = new WritableDataPoints[owned.length];
+      for (int i = 0; i < owned.length; i++) {
+        batches[i] = tsdb.newBatch(metrics[i], tags[i]);
+      }
+    }
+
+    @Override
+    public void run(final int i) {
+      final int local = local(i);
+      final long timestamp = timestamp(i);
+      if (timestamp % 3600 == 0 && timestamp != START) {
+        batches[local].persist();
+      }
+      batches[local].addPoint(timestamp, i);
+    }
+
+    @Override
+    public void finish() {
+      for (final WritableDataPoints batch : batches) {
+        batch.persist();
+      }
+    }
+  }
+
+  private final class CachedBatchesWorker extends IngestWorker {
+    private final String[] values = new String[1000];
+
+    CachedBatchesWorker(final int thread, final int threads) {
+      super(thread, threads);
+      for (int i = 0; i < values.length; i++) {
+        values[i] = Integer.toString(i);
+      }
+    }
+
+    @Override
+    public void run(final int i) {
+      final int local = local(i);
+      tsdb.getCachedBatches().addPoint(metrics[local], timestamp(i),
+          values[i % values.length], tags[local]);
+    }
+  }
+
+  private final class CachedRowWorker extends IngestWorker {
+    private byte[][] rows;
+
+    CachedRowWorker(final int thread, final int threads) {
+      super(thread, threads);
+    }
+
+    @Override
+    public void prepare() {
+      rows = new byte[owned.length][];
+      for (int i = 0; i < owned.length; i++) {
+        rows[i] = tsdb.getCachedBatches().rowKeyTemplate(METRIC, tags[i]);
+      }
+    }
+
+    @Override
+    public void run(final int i) {
+      tsdb.getCachedBatches().addPoint(rows[local(i)], timestamp(i), (long) i);
+    }
+  }
+
+  /**
+   * Runs telnet commands, split like the telnet server does beforehand since
+   * the RPCs modify them.
+   */
+  private final class RpcWorker extends IngestWorker {
+    private final String command;
+    private final TelnetRpc rpc;
+    private final int operations;
+    private final Channel chan = NettyMocks.fakeChannel();
+    private String[][] commands;
+
+    RpcWorker(final int thread, final int threads, final String command,
+        final TelnetRpc rpc, final int operations) {
+      super(thread, threads);
+      this.command = command;
+      this.rpc = rpc;
+      this.operations = operations;
+    }
+
+    @Override
+    public void prepare() {
+      commands = new String[operations][];
+      for (int i = 0; i < operations; i++) {
+        final Map<String, String> series_tags = tags[local(i)];
+        commands[i] = new String[] { command, METRIC,
+            Long.toString(timestamp(i)), Integer.toString(i % 1000),
+            "host=" + series_tags.get("host"),
+            "cpu=" + series_tags.get("cpu") };
+      }
+    }
+
+    @Override
+    public void run(final int i) throws Exception {
+      rpc.execute(tsdb, chan, commands[i]).joinUninterruptibly();
+    }
+
+    @Override
+    public void finish() {
+      // The RPCs report errors on the channel.
+      verify(chan, never()).write(any());
+    }
+  }
+}
@@ -14,19 +14,41 @@ package net.opentsdb.tsd;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.NoSuchElementException;
 
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
 import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
 import net.opentsdb.utils.Config;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
@@ -36,7 +58,7 @@ import org.powermock.modules.junit4.PowerMockRunner;
  * class
  */
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class, TSQuery.class})
 public final class TestHttpJsonSerializer {
   private TSDB tsdb = null;
 
@@ -157,4 +179,193 @@ public final class TestHttpJsonSerializer {
         serdes.formatSerializersV1().toString(Charset.forName("UTF-8"))
         .substring(0, 15));
   }
+  
+  @Test
+  public void streamQueryV1() throws Exception {
+    final TSQuery data_query = dataQuery();
+    final List<DataPoints[]> results = results(200);
+    final String expected = NettyMocks.getQuery(tsdb, "?jsonp=func")
+      .serializer().formatQueryV1(data_query, results, null)
+      .toString(Charset.forName("UTF-8"));
+
+    final ArrayList<Object> writes = new ArrayList<Object>();
+    final Channel chan = channel(writes, true);
+    final HttpQuery query = new HttpQuery(tsdb, new DefaultHttpRequest(
+        HttpVersion.HTTP_1_1, HttpMethod.GET, "?jsonp=func"), chan);
+    query.serializer().streamQueryV1(data_query, results, null, 256);
+
+    assertTrue(((HttpResponse) writes.get(0)).isChunked());
+    assertSame(HttpChunk.LAST_CHUNK, writes.get(writes.size() - 1));
+    assertTrue(writes.size() > 10);
+    assertEquals(expected, content(writes));
+    assertTrue(query.getDeferred().joinUninterruptibly() == null);
+  }
+
+  @Test
+  public void streamQueryV1WaitsForChannel() throws Exception {
+    final TSQuery data_query = dataQuery();
+    final List<DataPoints[]> results = results(200);
+    final String expected = NettyMocks.getQuery(tsdb, "")
+      .serializer().formatQueryV1(data_query, results, null)
+      .toString(Charset.forName("UTF-8"));
+
+    final ArrayList<Object> writes = new ArrayList<Object>();
+    final Channel chan = channel(writes, false);
+    final HttpQuery query = new HttpQuery(tsdb, new DefaultHttpRequest(
+        HttpVersion.HTTP_1_1, HttpMethod.GET, ""), chan);
+    query.serializer().streamQueryV1(data_query, results, null, 256);
+
+    // Stops once what the JSON generator buffered is sent.
+    assertTrue(writes.size() < 40);
+    int written = 0;
+    while (writes.get(writes.size() - 1) != HttpChunk.LAST_CHUNK) {
+      assertTrue(writes.size() > written);
+      final Object last = writes.get(writes.size() - 1);
+      written = writes.size();
+      // Writing the chunk resumes the serialization.
+      futures.remove(last).setSuccess();
+    }
+    assertTrue(written > 10);
+    assertEquals(expected, content(writes));
+  }
+
+  @Test
+  public void streamQueryV1ClientGone() throws Exception {
+    final ArrayList<Object> writes = new ArrayList<Object>();
+    final Channel chan = channel(writes, false);
+    final HttpQuery query = new HttpQuery(tsdb, new DefaultHttpRequest(
+        HttpVersion.HTTP_1_1, HttpMethod.GET, ""), chan);
+    query.serializer().streamQueryV1(dataQuery(), results(200), null, 256);
+    final int written = writes.size();
+    futures.remove(writes.get(written - 1))
+      .setFailure(new Exception("Gone"));
+    // Stops there, without ending the reply.
+    assertEquals(written, writes.size());
+    assertTrue(query.getDeferred().joinUninterruptibly() == null);
+  }
+
+  /** Futures of the writes not completed yet, by message written. */
+  private final HashMap<Object, ChannelFuture> futures = 
+    new HashMap<Object, ChannelFuture>();
+
+  /**
+   * Returns a channel recording what's written to it. If {@code writable},
+   * writes complete right away, else they wait in {@link #futures}.
+   */
+  private Channel channel(final List<Object> writes, final boolean writable) {
+    final Channel chan = NettyMocks.fakeChannel();
+    when(chan.isWritable()).thenReturn(writable);
+    when(chan.write(any())).thenAnswer(new Answer<ChannelFuture>() {
+      public ChannelFuture answer(final InvocationOnMock invocation) {
+        final Object message = invocation.getArguments()[0];
+        if (message instanceof HttpChunk && !((HttpChunk) message).isLast()) {
+          // Copy the content, as its buffer gets reused once written.
+          writes.add(ChannelBuffers.copiedBuffer(
+              ((HttpChunk) message).getContent()));
+        } else {
+          writes.add(message);
+        }
+        final ChannelFuture future = new DefaultChannelFuture(chan, false);
+        if (writable || !(message instanceof HttpChunk)) {
+          future.setSuccess();
+        } else {
+          futures.put(writes.get(writes.size() - 1), future);
+        }
+        return future;
+      }
+    });
+    return chan;
+  }
+
+  private static String content(final List<Object> writes) {
+    final StringBuilder buf = new StringBuilder();
+    for (final Object write : writes) {
+      if (write instanceof ChannelBuffer) {
+        buf.append(((ChannelBuffer) write).toString(Charset.forName("UTF-8")));
+      }
+    }
+    return buf.toString();
+  }
+
+  private static TSQuery dataQuery() {
+    final TSQuery data_query = mock(TSQuery.class);
+    when(data_query.startTime()).thenReturn(1356998400000L);
+    when(data_query.endTime()).thenReturn(1357041600000L);
+    return data_query;
+  }
+
+  /** Two series of {@code size} data points, every 15 seconds. */
+  private static List<DataPoints[]> results(final int size) {
+    final DataPoints[] dps = new DataPoints[2];
+    for (int i = 0; i < dps.length; i++) {
+      final int series = i;
+      dps[i] = mock(DataPoints.class);
+      when(dps[i].metricName()).thenReturn("sys.cpu.user");
+      final HashMap<String, String> tags = new HashMap<String, String>(1);
+      tags.put("host", "web0" + i);
+      when(dps[i].getTags()).thenReturn(tags);
+      when(dps[i].getAggregatedTags())
+        .thenReturn(Collections.<String>emptyList());
+      when(dps[i].iterator()).thenAnswer(new Answer<SeekableView>() {
+        public SeekableView answer(final InvocationOnMock invocation) {
+          return new Points(size, series == 1);
+        }
+      });
+    }
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(dps);
+    return results;
+  }
+
+  /** Data points every 15 seconds, as integers or as floats. */
+  private static final class Points implements SeekableView, DataPoint {
+    private final int size;
+    private final boolean floats;
+    private int index = -1;
+
+    Points(final int size, final boolean floats) {
+      this.size = size;
+      this.floats = floats;
+    }
+
+    public boolean hasNext() {
+      return index < size - 1;
+    }
+
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      index++;
+      return this;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void seek(final long timestamp) {
+      throw new UnsupportedOperationException();
+    }
+
+    public long timestamp() {
+      return 1356998400000L + index * 15000L;
+    }
+
+    public boolean isInteger() {
+      return !floats;
+    }
+
+    public long longValue() {
+      return index;
+    }
+
+    public double doubleValue() {
+      return index / 4.0;
+    }
+
+    public double toDouble() {
+      return floats ? doubleValue() : longValue();
+    }
+  }
 }
@@ -98,6 +98,15 @@ public final class TestHttpQuery {
     assertEquals("value2", params.get("param2").get(0));
   }
   
+  @Test
+  public void acceptsChunkedReply() {
+    assertTrue(NettyMocks.getQuery(tsdb, "/api/query").acceptsChunkedReply());
+    final HttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_0, 
+        HttpMethod.GET, "/api/query");
+    final HttpQuery query = new HttpQuery(tsdb, req, NettyMocks.fakeChannel());
+    assertFalse(query.acceptsChunkedReply());
+  }
+  
   @Test
   public void getQueryStringEmpty() {
     Map<String, List<String>> params = 
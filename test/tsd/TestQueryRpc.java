@@ -20,10 +20,16 @@ import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
 import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.LastPointIndex;
 import net.opentsdb.core.Query;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
@@ -47,7 +53,8 @@ import com.stumbleupon.async.Deferred;
  */
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({TSDB.class, Config.class, HttpQuery.class, Query.class, 
-  Deferred.class, TSQuery.class})
+  Deferred.class, TSQuery.class, LastPointIndex.class,
+  LastPointIndex.LastPoint.class})
 public final class TestQueryRpc {
   private TSDB tsdb = null;
   final private QueryRpc rpc = new QueryRpc();
@@ -272,6 +279,63 @@ public final class TestQueryRpc {
     parseQuery.invoke(rpc, tsdb, query);
   }
   
+  @Test
+  public void lastTimeseries() throws Exception {
+    final LastPointIndex index = mock(LastPointIndex.class);
+    when(tsdb.getLastPointIndex()).thenReturn(index);
+    final LastPointIndex.LastPoint point = mock(LastPointIndex.LastPoint.class);
+    when(point.metricNameAsync()).thenReturn(
+        Deferred.fromResult("sys.cpu.user"));
+    final Map<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    when(point.getTagsAsync()).thenReturn(Deferred.fromResult(tags));
+    when(point.timestamp()).thenReturn(1356998400000L);
+    when(point.isInteger()).thenReturn(true);
+    when(point.longValue()).thenReturn(42L);
+    when(point.getTSUID()).thenReturn("000001000001000001");
+    final HashMap<String, String> query_tags = new HashMap<String, String>(1);
+    query_tags.put("host", "*");
+    when(index.find("sys.cpu.user", query_tags)).thenReturn(
+        new ArrayList<LastPointIndex.LastPoint>(Arrays.asList(point)));
+
+    HttpQuery query = NettyMocks.getQuery(tsdb,
+      "/api/query/last?timeseries=sys.cpu.user{host=*}");
+    rpc.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    final String json =
+      query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(json.contains("\"metric\":\"sys.cpu.user\""));
+    assertTrue(json.contains("\"timestamp\":1356998400000"));
+    assertTrue(json.contains("\"value\":\"42\""));
+    assertTrue(json.contains("\"host\":\"web01\""));
+    assertTrue(json.contains("\"tsuid\":\"000001000001000001\""));
+  }
+
+  @Test
+  public void lastTSUIDNotFound() throws Exception {
+    when(tsdb.getLastPointIndex()).thenReturn(mock(LastPointIndex.class));
+    HttpQuery query = NettyMocks.getQuery(tsdb,
+      "/api/query/last?tsuids=000001000001000001");
+    rpc.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    assertEquals("[]",
+        query.response().getContent().toString(Charset.forName("UTF-8")));
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void lastMissingSeries() throws Exception {
+    when(tsdb.getLastPointIndex()).thenReturn(mock(LastPointIndex.class));
+    HttpQuery query = NettyMocks.getQuery(tsdb, "/api/query/last");
+    rpc.execute(tsdb, query);
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void lastNotIndexed() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb,
+      "/api/query/last?timeseries=sys.cpu.user");
+    rpc.execute(tsdb, query);
+  }
+
   //TODO(cl) fix this up and add unit tests for the rate options parsing
 //  @SuppressWarnings({ "unchecked", "rawtypes" })
 //  @Test